@@ -26,6 +26,9 @@
 
 package org.cablelabs.cryptfile;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
@@ -228,6 +231,18 @@ public class Bitstream implements MP4BoxXML {
         this.bits = bits;
     }
     
+    /**
+     * Arbitrary data.  Will be encoded in base64 notation for insertion in the cryptfile
+     * 
+     * @param data the data
+     */
+    public void setupDataB64(byte[] data) {
+        type = BSType.DATA64;
+        this.data = data;
+        string = null;
+        bits = 0;
+    }
+    
     /**
      * Arbitrary data.  Input string in base64 notation will be used "as is" in the cryptfile
      * 
@@ -235,7 +250,8 @@ public class Bitstream implements MP4BoxXML {
      */
     public void setupDataB64(String b64Data) {
         type = BSType.DATA64;
-        data = Base64.decodeBase64(b64Data);
+        data = null;
+        string = b64Data;
         bits = 0;
     }
     
@@ -285,7 +301,7 @@ public class Bitstream implements MP4BoxXML {
             e.setAttribute(ATTR_ID128, Hex.encodeHexString(data));
             break;
         case DATA64:
-            e.setAttribute(ATTR_DATA64, Base64.encodeBase64String(data));
+            e.setAttribute(ATTR_DATA64, (string != null) ? string : Base64.encodeBase64String(data));
             break;
         case DATA:
             e.setAttribute(ATTR_DATA, Hex.encodeHexString(data));
@@ -296,4 +312,47 @@ public class Bitstream implements MP4BoxXML {
         
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        w.writeEmptyElement(ELEMENT);
+        if (bits != 0)
+            w.writeAttribute(ATTR_BITS, Integer.toString(bits));
+        
+        switch (type) {
+        case VALUE_LE:
+            w.writeAttribute(ATTR_ENDIAN, "little");
+            // fall through
+        case VALUE:
+            w.writeAttribute(ATTR_VALUE, Integer.toString(value));
+            break;
+        case FILE:
+            w.writeAttribute(ATTR_FILE, string);
+            w.writeAttribute(ATTR_FILE_LENGTH, Integer.toString(length));
+            w.writeAttribute(ATTR_FILE_OFFSET, Integer.toString(offset));
+            break;
+        case STRING:
+            w.writeAttribute(ATTR_STRING, string);
+            break;
+        case FOURCC:
+            w.writeAttribute(ATTR_FOURCC, string);
+            break;
+        case ID128:
+            w.writeAttribute(ATTR_ID128, Hex.encodeHexString(data));
+            break;
+        case DATA64:
+            w.writeAttribute(ATTR_DATA64, (string != null) ? string : Base64.encodeBase64String(data));
+            break;
+        case DATA:
+            w.writeAttribute(ATTR_DATA, Hex.encodeHexString(data));
+            break;
+        default:
+            break;
+        }
+    }
 }
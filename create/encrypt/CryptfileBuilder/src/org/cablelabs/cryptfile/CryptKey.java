@@ -26,6 +26,9 @@
 
 package org.cablelabs.cryptfile;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.binary.Hex;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -76,4 +79,16 @@ public class CryptKey implements MP4BoxXML {
         e.setAttribute(ATTR_KEY, "0x" + Hex.encodeHexString(keypair.getKey()));
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        
+        w.writeEmptyElement(ELEMENT);
+        w.writeAttribute(ATTR_KEYID, "0x" + Hex.encodeHexString(keypair.getID()));
+        w.writeAttribute(ATTR_KEY, "0x" + Hex.encodeHexString(keypair.getKey()));
+    }
 }
@@ -27,9 +27,13 @@
 package org.cablelabs.cryptfile;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.security.SecureRandom;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.apache.commons.codec.binary.Hex;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -46,9 +50,15 @@ public class CryptTrack implements MP4BoxXML {
     private int ivSize = 0;
     private byte[] iv;
     
-    private List<CryptKey> keys;
+    private KeySequence keys;
     private int keyRoll = -1;
     
+    // Pattern encryption (cens, cbcs)
+    private boolean pattern = false;
+    private int cryptByteBlock = 0;
+    private int skipByteBlock = 0;
+    private byte[] constantIV;
+    
     private static final String ELEMENT = "CrypTrack";
     private static final String ATTR_TRACK_ID = "trackID";
     private static final String ATTR_IS_ENCRYPTED = "isEncrypted";
@@ -56,6 +66,10 @@ public class CryptTrack implements MP4BoxXML {
     private static final String ATTR_FIRST_IV = "first_IV";
     private static final String ATTR_SAI_BOX = "saiSavedBox";
     private static final String ATTR_KEY_ROLL = "keyRoll";
+    private static final String ATTR_CRYPT_BYTE_BLOCK = "crypt_byte_block";
+    private static final String ATTR_SKIP_BYTE_BLOCK = "skip_byte_block";
+    private static final String ATTR_CONSTANT_IV = "constant_IV";
+    private static final String ATTR_CONSTANT_IV_SIZE = "constant_IV_size";
     
     /**
      * 8-byte (64-bit) initialization vector
@@ -119,8 +133,7 @@ public class CryptTrack implements MP4BoxXML {
         if (key == null)
             throw new IllegalArgumentException("CryptKey may not be null");
         
-        keys = new ArrayList<CryptKey>(1);
-        keys.add(key);
+        keys = new ListKeySequence(Collections.singletonList(key));
     }
     
     /**
@@ -146,27 +159,254 @@ public class CryptTrack implements MP4BoxXML {
         if (keys.size() > 1 && keyRoll < 1)
             throw new IllegalArgumentException("KeyRoll value must be greater than 0 when multiple keys are specified");
         
-        this.keys = new ArrayList<CryptKey>(keys);
+        this.keys = new ListKeySequence(keys);
         if (keys.size() > 1)
             this.keyRoll = keyRoll;
     }
     
+    /**
+     * Create a new track encrypted with a sequence of rolling keys.  Each N samples (when
+     * N is specified by the <i>keyRoll</i> parameter) will be encrypted with the same key.
+     * Unlike a key list, a {@link DerivedKeySequence} is not copied and its keys are only
+     * derived when they are used, so a sequence may cover any number of crypto periods
+     * 
+     * @param trackID the track ID found in the ISOBMFF track header
+     * @param ivSize the length of the initialization vector (either IV_SIZE_8 or
+     * IV_SIZE_16)
+     * @param iv the initialization vector, or null if you want a random IV of the given
+     * IV length generated for you
+     * @param keys the key sequence that will encrypt the track
+     * @param keyRoll the number of consecutive samples that will be encrypted with a
+     * particular key.  If the sequence contains only one key, this parameter is ignored
+     */
+    public CryptTrack(int trackID, int ivSize, byte[] iv, KeySequence keys, int keyRoll) {
+        this(trackID, ivSize, iv);
+        
+        if (keys == null || keys.size() == 0)
+            throw new IllegalArgumentException("CryptKey sequence may not be null or empty");
+        if (keys.size() > 1 && keyRoll < 1)
+            throw new IllegalArgumentException("KeyRoll value must be greater than 0 when multiple keys are specified");
+        
+        this.keys = keys;
+        if (keys.size() > 1)
+            this.keyRoll = keyRoll;
+    }
+    
+    /**
+     * Create a new track encrypted with rolling keys and set it up for the given
+     * protection scheme.  AES-CBC schemes require 16-byte IVs, pattern-based schemes
+     * get the given pattern and cbcs uses a random constant IV
+     * 
+     * @param scheme the protection scheme
+     * @param trackID the track ID found in the ISOBMFF track header
+     * @param ivSize the length of the initialization vector for AES-CTR schemes (either
+     * IV_SIZE_8 or IV_SIZE_16)
+     * @param keys the keys that will encrypt the track
+     * @param keyRoll the number of consecutive samples that will be encrypted with a
+     * particular key.  If key list contains only one key, this parameter is ignored
+     * @param cryptByteBlock the number of encrypted blocks in the pattern (cens, cbcs)
+     * @param skipByteBlock the number of clear blocks in the pattern (cens, cbcs)
+     * @return the track
+     * @throws IllegalArgumentException if the keys, key roll or pattern are invalid
+     */
+    public static CryptTrack forScheme(CryptfileBuilder.ProtectionScheme scheme, int trackID, int ivSize,
+                                       List<CryptKey> keys, int keyRoll, int cryptByteBlock, int skipByteBlock) {
+        CryptTrack track = new CryptTrack(trackID, scheme.isCBC() ? IV_SIZE_16 : ivSize, null, keys, keyRoll);
+        track.setScheme(scheme, cryptByteBlock, skipByteBlock);
+        return track;
+    }
+    
+    /**
+     * Create a new track encrypted with a sequence of rolling keys and set it up for the
+     * given protection scheme (see {@link #forScheme(CryptfileBuilder.ProtectionScheme, int, int, List, int, int, int)})
+     * 
+     * @param scheme the protection scheme
+     * @param trackID the track ID found in the ISOBMFF track header
+     * @param ivSize the length of the initialization vector for AES-CTR schemes (either
+     * IV_SIZE_8 or IV_SIZE_16)
+     * @param keys the key sequence that will encrypt the track
+     * @param keyRoll the number of consecutive samples that will be encrypted with a
+     * particular key.  If the sequence contains only one key, this parameter is ignored
+     * @param cryptByteBlock the number of encrypted blocks in the pattern (cens, cbcs)
+     * @param skipByteBlock the number of clear blocks in the pattern (cens, cbcs)
+     * @return the track
+     * @throws IllegalArgumentException if the keys, key roll or pattern are invalid
+     */
+    public static CryptTrack forScheme(CryptfileBuilder.ProtectionScheme scheme, int trackID, int ivSize,
+                                       KeySequence keys, int keyRoll, int cryptByteBlock, int skipByteBlock) {
+        CryptTrack track = new CryptTrack(trackID, scheme.isCBC() ? IV_SIZE_16 : ivSize, null, keys, keyRoll);
+        track.setScheme(scheme, cryptByteBlock, skipByteBlock);
+        return track;
+    }
+    
+    // Pattern and constant IV for the protection scheme
+    private void setScheme(CryptfileBuilder.ProtectionScheme scheme, int cryptByteBlock, int skipByteBlock) {
+        if (scheme.isPattern())
+            setPattern(cryptByteBlock, skipByteBlock);
+        if (scheme == CryptfileBuilder.ProtectionScheme.CBCS)
+            setConstantIV(null);
+    }
+    
     /**
      * Add a new encryption key to this track
      * 
      * @param key the key
+     * @throws IllegalStateException if the track was created with a {@link KeySequence}
      */
     public void addKey(CryptKey key) {
-        keys.add(key);
+        if (!(keys instanceof ListKeySequence))
+            throw new IllegalStateException("Keys cannot be added to a key sequence");
+        ((ListKeySequence)keys).add(key);
+    }
+    
+    /**
+     * Set the encryption pattern for pattern-based protection schemes (cens, cbcs).
+     * Of every <i>cryptByteBlock</i> + <i>skipByteBlock</i> 16-byte blocks of protected
+     * data, the first <i>cryptByteBlock</i> are encrypted and the rest are left in the clear
+     * 
+     * @param cryptByteBlock the number of encrypted blocks in the pattern (0-15)
+     * @param skipByteBlock the number of clear blocks in the pattern (0-15)
+     */
+    public void setPattern(int cryptByteBlock, int skipByteBlock) {
+        if (cryptByteBlock < 0 || cryptByteBlock > 15 || skipByteBlock < 0 || skipByteBlock > 15)
+            throw new IllegalArgumentException("Invalid encryption pattern: " + cryptByteBlock + ":" + skipByteBlock);
+        this.pattern = true;
+        this.cryptByteBlock = cryptByteBlock;
+        this.skipByteBlock = skipByteBlock;
+    }
+    
+    /**
+     * Use the same initialization vector for every sample of the track instead of
+     * per-sample IVs (typically used with cbcs)
+     * 
+     * @param iv the 8- or 16-byte constant IV, or null if you want a random 16-byte
+     * IV generated for you
+     */
+    public void setConstantIV(byte[] iv) {
+        if (iv == null) {
+            iv = new byte[IV_SIZE_16];
+            SecureRandom sr = new SecureRandom();
+            sr.nextBytes(iv);
+        }
+        if (iv.length != IV_SIZE_8 && iv.length != IV_SIZE_16)
+            throw new IllegalArgumentException("Invalid constant initialization vector : size = " + iv.length);
+        this.constantIV = iv.clone();
     }
     
     /**
-     * Return the list of keys associated with this track
+     * Returns true if an encryption pattern has been set for this track
+     * 
+     * @return true if the track uses pattern encryption
+     */
+    public boolean hasPattern() {
+        return pattern;
+    }
+    
+    /**
+     * Returns the number of encrypted blocks in the encryption pattern
+     * 
+     * @return the crypt byte block count
+     */
+    public int getCryptByteBlock() {
+        return cryptByteBlock;
+    }
+    
+    /**
+     * Returns the number of clear blocks in the encryption pattern
+     * 
+     * @return the skip byte block count
+     */
+    public int getSkipByteBlock() {
+        return skipByteBlock;
+    }
+    
+    /**
+     * Returns the constant initialization vector
+     * 
+     * @return the constant IV or null if the track uses per-sample IVs
+     */
+    public byte[] getConstantIV() {
+        return (constantIV == null) ? null : constantIV.clone();
+    }
+    
+    /**
+     * Returns the track ID
+     * 
+     * @return the track ID found in the ISOBMFF track header
+     */
+    public int getTrackID() {
+        return trackID;
+    }
+    
+    /**
+     * Returns true if this track is to be encrypted
+     * 
+     * @return the encryption state
+     */
+    public boolean isEncrypted() {
+        return isEncrypted;
+    }
+    
+    /**
+     * Returns the length of the initialization vector
+     * 
+     * @return the IV size (either IV_SIZE_8 or IV_SIZE_16)
+     */
+    public int getIVSize() {
+        return ivSize;
+    }
+    
+    /**
+     * Returns the initialization vector for the first sample of the track
+     * 
+     * @return the first IV
+     */
+    public byte[] getIV() {
+        return (iv == null) ? null : iv.clone();
+    }
+    
+    /**
+     * Returns the number of consecutive samples encrypted with each key
+     * 
+     * @return the key roll sample count or -1 if the track has a single key
+     */
+    public int getKeyRoll() {
+        return keyRoll;
+    }
+    
+    /**
+     * Return the list of keys associated with this track.  Every key of a
+     * {@link DerivedKeySequence} is derived and held in the list, so prefer
+     * {@link #getKeySequence()} for tracks with many rolling keys
      * 
      * @return the keys
      */
     public List<CryptKey> getKeys() {
-        return new ArrayList<CryptKey>(keys);
+        if (keys instanceof ListKeySequence)
+            return ((ListKeySequence)keys).asList();
+        List<CryptKey> list = new ArrayList<CryptKey>(keys.size());
+        for (CryptKey key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+    
+    /**
+     * Return the keys associated with this track without copying them
+     * 
+     * @return the key sequence
+     */
+    public KeySequence getKeySequence() {
+        return keys;
+    }
+    
+    /**
+     * Returns the number of keys associated with this track
+     * 
+     * @return the key count
+     */
+    public int getKeyCount() {
+        return (keys == null) ? 0 : keys.size();
     }
 
     /* (non-Javadoc)
@@ -178,8 +418,19 @@ public class CryptTrack implements MP4BoxXML {
         e.setAttribute(ATTR_TRACK_ID, Integer.toString(trackID));
         e.setAttribute(ATTR_IS_ENCRYPTED, (isEncrypted ? "1" : "0"));
         if (isEncrypted) {
-            e.setAttribute(ATTR_IV_SIZE, Integer.toString(ivSize));
-            e.setAttribute(ATTR_FIRST_IV, "0x" + Hex.encodeHexString(iv));
+            if (constantIV != null) {
+                e.setAttribute(ATTR_IV_SIZE, "0");
+                e.setAttribute(ATTR_CONSTANT_IV_SIZE, Integer.toString(constantIV.length));
+                e.setAttribute(ATTR_CONSTANT_IV, "0x" + Hex.encodeHexString(constantIV));
+            }
+            else {
+                e.setAttribute(ATTR_IV_SIZE, Integer.toString(ivSize));
+                e.setAttribute(ATTR_FIRST_IV, "0x" + Hex.encodeHexString(iv));
+            }
+            if (pattern) {
+                e.setAttribute(ATTR_CRYPT_BYTE_BLOCK, Integer.toString(cryptByteBlock));
+                e.setAttribute(ATTR_SKIP_BYTE_BLOCK, Integer.toString(skipByteBlock));
+            }
             e.setAttribute(ATTR_SAI_BOX, "senc");
             if (keyRoll != -1)
                 e.setAttribute(ATTR_KEY_ROLL, Integer.toString(keyRoll));
@@ -191,4 +442,39 @@ public class CryptTrack implements MP4BoxXML {
         
         return e;
     }
+
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(ELEMENT);
+        // Attributes in the same (sorted) order as the DOM serializer
+        if (isEncrypted) {
+            w.writeAttribute(ATTR_IV_SIZE, (constantIV != null) ? "0" : Integer.toString(ivSize));
+            if (constantIV != null) {
+                w.writeAttribute(ATTR_CONSTANT_IV, "0x" + Hex.encodeHexString(constantIV));
+                w.writeAttribute(ATTR_CONSTANT_IV_SIZE, Integer.toString(constantIV.length));
+            }
+            if (pattern)
+                w.writeAttribute(ATTR_CRYPT_BYTE_BLOCK, Integer.toString(cryptByteBlock));
+            if (constantIV == null)
+                w.writeAttribute(ATTR_FIRST_IV, "0x" + Hex.encodeHexString(iv));
+        }
+        w.writeAttribute(ATTR_IS_ENCRYPTED, (isEncrypted ? "1" : "0"));
+        if (isEncrypted) {
+            if (keyRoll != -1)
+                w.writeAttribute(ATTR_KEY_ROLL, Integer.toString(keyRoll));
+            w.writeAttribute(ATTR_SAI_BOX, "senc");
+            if (pattern)
+                w.writeAttribute(ATTR_SKIP_BYTE_BLOCK, Integer.toString(skipByteBlock));
+        }
+        w.writeAttribute(ATTR_TRACK_ID, Integer.toString(trackID));
+        
+        for (CryptKey key : keys) {
+            key.writeXML(w);
+        }
+        
+        w.writeEndElement();
+    }
 }
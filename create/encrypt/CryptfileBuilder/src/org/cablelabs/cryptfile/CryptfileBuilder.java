@@ -26,17 +26,19 @@
 
 package org.cablelabs.cryptfile;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
@@ -54,18 +56,90 @@ public class CryptfileBuilder {
     
     private static final String ELEMENT = "GPACDRM";
     private static final String ATTR_TYPE = "type";
+    
+    // Matches the declaration written by the DOM serializer in writeCryptfile()
+    private static final String XML_DECLARATION =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+    private static final int INDENT_AMOUNT = 2;
 
     /**
      * Possible encryption schemes under Common Encryption
      */
     public enum ProtectionScheme {
-        AES_CTR("AES-CTR"),
-        AES_CBC("AES-CBC");
+        
+        /**
+         * Full sample AES-CTR ('cenc')
+         */
+        AES_CTR("AES-CTR", "cenc", false, false),
+        
+        /**
+         * Full sample AES-CBC ('cbc1')
+         */
+        AES_CBC("AES-CBC", "cbc1", true, false),
+        
+        /**
+         * Pattern-based AES-CTR ('cens')
+         */
+        CENS("AES-CTR Pattern", "cens", false, true),
+        
+        /**
+         * Pattern-based AES-CBC, typically with a constant IV ('cbcs')
+         */
+        CBCS("AES-CBC Pattern", "cbcs", true, true);
         
         private String str;
+        private String schemeType;
+        private boolean cbc;
+        private boolean pattern;
         
-        ProtectionScheme(String str) {
+        ProtectionScheme(String str, String schemeType, boolean cbc, boolean pattern) {
             this.str = str;
+            this.schemeType = schemeType;
+            this.cbc = cbc;
+            this.pattern = pattern;
+        }
+        
+        /**
+         * Returns the four-character scheme type used in the 'schm' box
+         * 
+         * @return the scheme type
+         */
+        public String getSchemeType() {
+            return schemeType;
+        }
+        
+        /**
+         * Returns true if the scheme uses AES-CBC, which requires 16-byte IVs
+         * 
+         * @return true for CBC-based schemes
+         */
+        public boolean isCBC() {
+            return cbc;
+        }
+        
+        /**
+         * Returns true if the scheme encrypts a pattern of blocks rather than all
+         * blocks of the protected data
+         * 
+         * @return true for pattern-based schemes
+         */
+        public boolean isPattern() {
+            return pattern;
+        }
+        
+        /**
+         * Returns the scheme with the given four-character scheme type
+         * 
+         * @param schemeType the scheme type ("cenc", "cbc1", "cens" or "cbcs")
+         * @return the scheme
+         * @throws IllegalArgumentException if the scheme type is unknown
+         */
+        public static ProtectionScheme fromSchemeType(String schemeType) {
+            for (ProtectionScheme s : values()) {
+                if (s.schemeType.equals(schemeType))
+                    return s;
+            }
+            throw new IllegalArgumentException("Unknown protection scheme: " + schemeType);
         }
         
         public String toString() {
@@ -97,6 +171,33 @@ public class CryptfileBuilder {
         tracks = new ArrayList<CryptTrack>();
     }
     
+    /**
+     * Returns the encryption scheme
+     * 
+     * @return the scheme
+     */
+    public ProtectionScheme getScheme() {
+        return scheme;
+    }
+    
+    /**
+     * Returns the tracks
+     * 
+     * @return the track list
+     */
+    public List<CryptTrack> getTracks() {
+        return new ArrayList<CryptTrack>(tracks);
+    }
+    
+    /**
+     * Returns the PSSH
+     * 
+     * @return the PSSH list
+     */
+    public List<DRMInfoPSSH> getPSSH() {
+        return new ArrayList<DRMInfoPSSH>(pssh);
+    }
+    
     /**
      * Add a single track 
      * 
@@ -134,21 +235,21 @@ public class CryptfileBuilder {
     }
     
     /**
+     * Writes the cryptfile to the given output by building a DOM document
      * 
-     * @param os
+     * @param os the output stream
+     * @throws CryptfileWriteException if the cryptfile could not be serialized
      */
     public void writeCryptfile(OutputStream os) {
         
         // Create a new document
-        DocumentBuilder builder = null;
+        Document d = null;
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            d = XMLSupport.newDocument();
         }
         catch (ParserConfigurationException ex) {
-            System.out.println("Error creating XML DocumentBuilder: " + ex.getMessage());
-            System.exit(1);
+            throw new CryptfileWriteException("Error creating XML DocumentBuilder: " + ex.getMessage(), ex);
         }
-        Document d = builder.newDocument();
         
         // Create our root node
         Element e = d.createElement(ELEMENT);
@@ -168,14 +269,10 @@ public class CryptfileBuilder {
         // Write the document to the desired output
         Transformer tf = null;
         try {
-            tf = TransformerFactory.newInstance().newTransformer();
-            tf.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
-            tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            tf.setOutputProperty(OutputKeys.INDENT, "yes");
+            tf = XMLSupport.newTransformer(XMLSupport.OutputProfile.CRYPTFILE);
         }
         catch (Exception ex) {
-            System.out.println("Error creating XML Transformer: " + ex.getMessage());
-            System.exit(1);;
+            throw new CryptfileWriteException("Error creating XML Transformer: " + ex.getMessage(), ex);
         }
         
         DOMSource source = new DOMSource(d);
@@ -184,8 +281,53 @@ public class CryptfileBuilder {
             tf.transform(source, result);
         }
         catch (TransformerException ex) {
-            System.out.println("Error performing XML transform: " + ex.getMessage());
-            System.exit(1);;
+            throw new CryptfileWriteException("Error performing XML transform: " + ex.getMessage(), ex);
+        }
+    }
+    
+    /**
+     * Writes the cryptfile to the given output without building a DOM document.  Each
+     * element is streamed to the output as it is generated, so memory use does not grow
+     * with the number of keys and tracks.  The output is identical to that of
+     * {@link #writeCryptfile(OutputStream)}
+     * 
+     * @param os the output stream
+     * @throws CryptfileWriteException if the cryptfile could not be serialized or written
+     */
+    public void streamCryptfile(OutputStream os) {
+        
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+            
+            // The stream writer can not produce the "standalone" pseudo-attribute, so
+            // the declaration is written directly
+            out.write(XML_DECLARATION);
+            out.write(System.getProperty("line.separator"));
+            
+            XMLStreamWriter w = new IndentingXMLStreamWriter(
+                    XMLSupport.createXMLStreamWriter(out), INDENT_AMOUNT);
+            
+            // Root node
+            w.writeStartElement(ELEMENT);
+            w.writeAttribute(ATTR_TYPE, "CENC " + scheme.toString());
+            
+            // All the child elements (DRMInfo and CryptTracks)
+            for (MP4BoxXML xml : pssh) {
+                xml.writeXML(w);
+            }
+            for (MP4BoxXML xml : tracks) {
+                xml.writeXML(w);
+            }
+            
+            w.writeEndDocument();
+            w.flush();
+            out.flush();
+        }
+        catch (XMLStreamException ex) {
+            throw new CryptfileWriteException("Error writing XML stream: " + ex.getMessage(), ex);
+        }
+        catch (IOException ex) {
+            throw new CryptfileWriteException("Error writing cryptfile: " + ex.getMessage(), ex);
         }
     }
     
@@ -26,12 +26,23 @@
 
 package org.cablelabs.cryptfile;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
  * Base class for creating DRM-specific <i>DRMInfo</i> elements for use in the 
- * MP4Box cryptfile
+ * MP4Box cryptfile.
+ * <p>
+ * The same PSSH information can also be written directly as a binary ISOBMFF
+ * 'pssh' box (see {@link #toPsshBox(ByteBuffer, int)}) for insertion in
+ * initialization segments or MPD <i>cenc:pssh</i> elements.
  */
 public abstract class DRMInfoPSSH implements MP4BoxXML {
     
@@ -39,6 +50,19 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
     private static final String ATTR_TYPE = "type";
     private static final String ATTR_VERSION = "version";
     
+    /**
+     * 'pssh' box version 0 -- no key IDs in the box header
+     */
+    public static final int PSSH_VERSION_0 = 0;
+    
+    /**
+     * 'pssh' box version 1 -- key IDs are listed in the box header
+     */
+    public static final int PSSH_VERSION_1 = 1;
+    
+    private static final int PSSH_BOX_TYPE = 0x70737368; // 'pssh'
+    private static final int KEYID_SIZE = 16;
+    
     protected byte[] systemID; 
     
     /**
@@ -72,4 +96,136 @@ public abstract class DRMInfoPSSH implements MP4BoxXML {
        
        return e;
     }
+    
+    /**
+     * Writes the start of the base DRMInfo element and its system ID child element.
+     * Subclasses write their own child elements and then end the DRMInfo element
+     * 
+     * @param w the XML stream writer
+     * @throws XMLStreamException if there was an error writing to the stream
+     */
+    protected void writeDRMInfo(XMLStreamWriter w) throws XMLStreamException {
+        w.writeStartElement(ELEMENT);
+        w.writeAttribute(ATTR_TYPE, "pssh");
+        w.writeAttribute(ATTR_VERSION, "0");
+        
+        Bitstream b = new Bitstream();
+        b.setupID128(systemID);
+        b.writeXML(w);
+    }
+    
+    /**
+     * Returns the size of the DRM-specific data carried in the 'pssh' box.  This is
+     * called before anything is written, so data that cannot be written must be
+     * rejected here rather than in {@link #writePsshData(ByteBuffer)}
+     * 
+     * @return the data size in bytes
+     */
+    protected abstract int getPsshDataSize();
+    
+    /**
+     * Writes the DRM-specific data carried in the 'pssh' box at the current
+     * position of the given buffer.  Exactly {@link #getPsshDataSize()} bytes
+     * must be written
+     * 
+     * @param buf the output buffer
+     */
+    protected abstract void writePsshData(ByteBuffer buf);
+    
+    /**
+     * Returns the number of key IDs listed in a version 1 'pssh' box.  The
+     * default implementation lists no key IDs
+     * 
+     * @return the key ID count
+     */
+    protected int getPsshKeyIDCount() {
+        return 0;
+    }
+    
+    /**
+     * Writes the 16-byte key IDs listed in a version 1 'pssh' box at the current
+     * position of the given buffer.  Exactly {@link #getPsshKeyIDCount()} key IDs
+     * must be written
+     * 
+     * @param buf the output buffer
+     */
+    protected void writePsshKeyIDs(ByteBuffer buf) {
+    }
+    
+    /**
+     * Returns the size of the complete 'pssh' box
+     * 
+     * @param version the box version (PSSH_VERSION_0 or PSSH_VERSION_1)
+     * @return the box size in bytes
+     */
+    public int getPsshBoxSize(int version) {
+        if (version != PSSH_VERSION_0 && version != PSSH_VERSION_1)
+            throw new IllegalArgumentException("Invalid PSSH box version: " + version);
+        
+        // Box header (8), FullBox version and flags (4), SystemID (16), DataSize (4)
+        int size = 8 + 4 + 16 + 4 + getPsshDataSize();
+        if (version == PSSH_VERSION_1)
+            size += 4 + (KEYID_SIZE * getPsshKeyIDCount());
+        return size;
+    }
+    
+    /**
+     * Writes a complete version 0 'pssh' box at the current position of the given
+     * buffer
+     * 
+     * @param buf the output buffer
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the buffer does not have enough space
+     * remaining for the box
+     */
+    public int toPsshBox(ByteBuffer buf) {
+        return toPsshBox(buf, PSSH_VERSION_0);
+    }
+    
+    /**
+     * Writes a complete 'pssh' box at the current position of the given buffer.
+     * The buffer position is advanced past the box.  No data is written if the
+     * buffer does not have enough space for the whole box or the PSSH data is
+     * invalid
+     * 
+     * @param buf the output buffer
+     * @param version the box version (PSSH_VERSION_0 or PSSH_VERSION_1)
+     * @return the number of bytes written
+     * @throws BufferOverflowException if the buffer does not have enough space
+     * remaining for the box
+     */
+    public int toPsshBox(ByteBuffer buf, int version) {
+        int boxSize = getPsshBoxSize(version);
+        if (buf.remaining() < boxSize)
+            throw new BufferOverflowException();
+        
+        // ISOBMFF is big-endian regardless of the byte order the caller uses
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        try {
+            int start = buf.position();
+            
+            buf.putInt(boxSize);
+            buf.putInt(PSSH_BOX_TYPE);
+            buf.putInt(version << 24); // version and 24-bit flags
+            buf.put(systemID);
+            
+            if (version == PSSH_VERSION_1) {
+                buf.putInt(getPsshKeyIDCount());
+                writePsshKeyIDs(buf);
+            }
+            
+            buf.putInt(getPsshDataSize());
+            writePsshData(buf);
+            
+            if (buf.position() - start != boxSize)
+                throw new IllegalStateException("PSSH box size mismatch: expected " + boxSize +
+                                                ", wrote " + (buf.position() - start));
+        }
+        finally {
+            buf.order(order);
+        }
+        
+        return boxSize;
+    }
 }
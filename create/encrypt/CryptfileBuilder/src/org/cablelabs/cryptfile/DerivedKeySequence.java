@@ -0,0 +1,154 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A key sequence whose keys are derived on demand from a secret and the crypto
+ * period number, so that the sequence can cover any number of periods without
+ * holding every key.  Only a sliding window of the most recently used keys is
+ * cached.  A year of 10 second crypto periods is over three million keys, but
+ * costs no more memory than the window.
+ * <p>
+ * Crypto period numbers are absolute: index 0 of the sequence is period
+ * <i>firstPeriod</i>.  A key depends only on its period number, so a license server
+ * holding the same secret can derive any key without knowing where the sequence
+ * started.
+ */
+public abstract class DerivedKeySequence implements KeySequence {
+    
+    /**
+     * Default number of recently used keys that are cached
+     */
+    public static final int DEFAULT_WINDOW = 16;
+    
+    private long firstPeriod;
+    private int count;
+    private Map<Integer, CryptKey> window;
+    
+    /**
+     * Create a new derived key sequence
+     * 
+     * @param firstPeriod the crypto period number of the first key
+     * @param count the number of keys in the sequence
+     * @param windowSize the number of recently used keys to cache
+     */
+    protected DerivedKeySequence(long firstPeriod, int count, final int windowSize) {
+        if (firstPeriod < 0)
+            throw new IllegalArgumentException("First crypto period must not be negative: " + firstPeriod);
+        if (count < 1)
+            throw new IllegalArgumentException("Key count must be positive: " + count);
+        if (windowSize < 1)
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        
+        this.firstPeriod = firstPeriod;
+        this.count = count;
+        this.window = new LinkedHashMap<Integer, CryptKey>(windowSize * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CryptKey> eldest) {
+                return size() > windowSize;
+            }
+        };
+    }
+    
+    /**
+     * Derive the key pair for a crypto period.  Called with the sequence locked, so
+     * implementations may reuse digest and cipher instances between calls
+     * 
+     * @param period the absolute crypto period number
+     * @return the key pair
+     * @throws CryptoException if the key could not be derived
+     */
+    protected abstract KeyPair deriveKeyPair(long period);
+    
+    /**
+     * Returns the crypto period number of the first key in the sequence
+     * 
+     * @return the first crypto period
+     */
+    public long getFirstPeriod() {
+        return firstPeriod;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.KeySequence#getKey(int)
+     */
+    @Override
+    public synchronized CryptKey getKey(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Key index " + index + " out of range (0-" + (count - 1) + ")");
+        
+        CryptKey key = window.get(index);
+        if (key == null) {
+            key = new CryptKey(deriveKeyPair(firstPeriod + index));
+            window.put(index, key);
+        }
+        return key;
+    }
+    
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.KeySequence#size()
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+    
+    /* (non-Javadoc)
+     * @see java.lang.Iterable#iterator()
+     */
+    @Override
+    public Iterator<CryptKey> iterator() {
+        return new Iterator<CryptKey>() {
+            private int next = 0;
+            
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+            
+            @Override
+            public CryptKey next() {
+                if (next >= count)
+                    throw new NoSuchElementException();
+                return getKey(next++);
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Key sequences are read-only");
+            }
+        };
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Rolling keys derived with HKDF-SHA256 (<a href="https://tools.ietf.org/html/rfc5869">RFC 5869</a>).
+ * <p>
+ * The seed and salt are extracted into a pseudorandom key once.  For each crypto period,
+ * one 32-byte block is expanded with the info string "cenc-key-period" followed by the
+ * 64-bit big-endian period number.  The first 16 bytes are the key ID and the last 16
+ * bytes are the key.
+ */
+public class HKDFKeySequence extends DerivedKeySequence {
+    
+    private static final String HMAC = "HmacSHA256";
+    private static final byte[] INFO = "cenc-key-period".getBytes(StandardCharsets.US_ASCII);
+    
+    private Mac mac;
+    private byte[] info = Arrays.copyOf(INFO, INFO.length + 9);
+    
+    /**
+     * Create a new HKDF key sequence that caches {@link DerivedKeySequence#DEFAULT_WINDOW}
+     * keys and has no salt
+     * 
+     * @param seed the secret input keying material (at least 16 bytes)
+     * @param firstPeriod the crypto period number of the first key
+     * @param count the number of keys in the sequence
+     */
+    public HKDFKeySequence(byte[] seed, long firstPeriod, int count) {
+        this(seed, null, firstPeriod, count, DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Create a new HKDF key sequence
+     * 
+     * @param seed the secret input keying material (at least 16 bytes)
+     * @param salt the HKDF salt, or null for none
+     * @param firstPeriod the crypto period number of the first key
+     * @param count the number of keys in the sequence
+     * @param windowSize the number of recently used keys to cache
+     */
+    public HKDFKeySequence(byte[] seed, byte[] salt, long firstPeriod, int count, int windowSize) {
+        super(firstPeriod, count, windowSize);
+        if (seed == null || seed.length < 16)
+            throw new IllegalArgumentException("HKDF seed must be at least 16 bytes");
+        
+        try {
+            // Extract: PRK = HMAC(salt, seed), with a zero-filled salt if none is given
+            Mac extract = Mac.getInstance(HMAC);
+            extract.init(new SecretKeySpec((salt != null && salt.length > 0) ? salt : new byte[32], HMAC));
+            byte[] prk = extract.doFinal(seed);
+            
+            mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(prk, HMAC));
+        }
+        catch (GeneralSecurityException e) {
+            throw new CryptoException("Java Virtual Machine does not support HMAC-SHA256", e);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DerivedKeySequence#deriveKeyPair(long)
+     */
+    @Override
+    protected KeyPair deriveKeyPair(long period) {
+        
+        // Expand: T(1) = HMAC(PRK, info | period | 0x01)
+        ByteBuffer.wrap(info, INFO.length, 8).putLong(period);
+        info[info.length - 1] = 1;
+        byte[] okm = mac.doFinal(info);
+        
+        return new KeyPair(Arrays.copyOf(okm, 16), Arrays.copyOfRange(okm, 16, 32));
+    }
+}
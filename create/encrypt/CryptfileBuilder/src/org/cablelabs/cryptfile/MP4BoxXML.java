@@ -26,6 +26,9 @@
 
 package org.cablelabs.cryptfile;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 
@@ -39,4 +42,15 @@ public interface MP4BoxXML {
      */
     public abstract Node generateXML(Document d);
 
+    /**
+     * Write the XML representation directly to the given stream writer.  The
+     * output must be identical to that produced by {@link #generateXML(Document)}
+     * once serialized, so attributes are written in the order the DOM serializer
+     * emits them (sorted by name)
+     * 
+     * @param w the XML stream writer
+     * @throws XMLStreamException if there was an error writing to the stream
+     */
+    public abstract void writeXML(XMLStreamWriter w) throws XMLStreamException;
+
 }
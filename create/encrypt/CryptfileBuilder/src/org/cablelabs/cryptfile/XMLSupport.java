@@ -0,0 +1,168 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile;
+
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.w3c.dom.Document;
+
+/**
+ * Shared XML infrastructure for all cryptfile and DRM header generators.
+ * <p>
+ * JAXP factory lookup and configuration is expensive, so it is done once per JVM
+ * rather than once per document.  DocumentBuilders and stream writer factories are
+ * not thread-safe, so each thread gets its own.  Output formatting is described by
+ * precompiled (thread-safe) identity Templates, one for each {@link OutputProfile}.
+ */
+public class XMLSupport {
+    
+    /**
+     * Serialization profiles used by the generators
+     */
+    public enum OutputProfile {
+        
+        /**
+         * MP4Box cryptfile.  UTF-8, with XML declaration, indented by 2 spaces
+         */
+        CRYPTFILE("<xsl:output method=\"xml\" encoding=\"UTF-8\" standalone=\"no\" " +
+                  "indent=\"yes\" xalan:indent-amount=\"2\"/>"),
+        
+        /**
+         * PlayReady WRM Header.  UTF-16LE, no XML declaration, no indenting
+         */
+        WRM_HEADER("<xsl:output method=\"xml\" encoding=\"UTF-16LE\" " +
+                   "omit-xml-declaration=\"yes\" indent=\"no\"/>");
+        
+        private String output;
+        private volatile Templates templates;
+        
+        OutputProfile(String output) {
+            this.output = output;
+        }
+        
+        // Compile the identity stylesheet for this profile on first use
+        private Templates getTemplates() throws TransformerConfigurationException {
+            Templates t = templates;
+            if (t == null) {
+                synchronized (this) {
+                    t = templates;
+                    if (t == null) {
+                        String xsl = 
+                            "<xsl:stylesheet version=\"1.0\" " +
+                                "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" " +
+                                "xmlns:xalan=\"http://xml.apache.org/xslt\">" +
+                              output +
+                              "<xsl:template match=\"@*|node()\">" +
+                                "<xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy>" +
+                              "</xsl:template>" +
+                            "</xsl:stylesheet>";
+                        synchronized (TRANSFORMER_FACTORY) {
+                            t = TRANSFORMER_FACTORY.newTemplates(new StreamSource(new StringReader(xsl)));
+                        }
+                        templates = t;
+                    }
+                }
+            }
+            return t;
+        }
+    }
+    
+    // Factories are not guaranteed to be thread-safe, so all access is synchronized
+    private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY =
+            DocumentBuilderFactory.newInstance();
+    private static final TransformerFactory TRANSFORMER_FACTORY =
+            TransformerFactory.newInstance();
+    
+    private static final ThreadLocal<DocumentBuilder> documentBuilders =
+            new ThreadLocal<DocumentBuilder>();
+    
+    private static final ThreadLocal<XMLOutputFactory> outputFactories =
+            new ThreadLocal<XMLOutputFactory>() {
+                @Override
+                protected XMLOutputFactory initialValue() {
+                    return XMLOutputFactory.newInstance();
+                }
+            };
+    
+    private XMLSupport() {}
+    
+    /**
+     * Create a new, empty DOM document using the calling thread's DocumentBuilder
+     * 
+     * @return the new document
+     * @throws ParserConfigurationException if a DocumentBuilder could not be created
+     */
+    public static Document newDocument() throws ParserConfigurationException {
+        DocumentBuilder builder = documentBuilders.get();
+        if (builder == null) {
+            synchronized (DOCUMENT_BUILDER_FACTORY) {
+                builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+            }
+            documentBuilders.set(builder);
+        }
+        return builder.newDocument();
+    }
+    
+    /**
+     * Create a new identity Transformer that serializes DOM documents according
+     * to the given output profile
+     * 
+     * @param profile the output profile
+     * @return the transformer
+     * @throws TransformerConfigurationException if the profile stylesheet could not
+     * be compiled
+     */
+    public static Transformer newTransformer(OutputProfile profile)
+            throws TransformerConfigurationException {
+        return profile.getTemplates().newTransformer();
+    }
+    
+    /**
+     * Create a new XMLStreamWriter over the given character output using the calling
+     * thread's XMLOutputFactory
+     * 
+     * @param out the output
+     * @return the stream writer
+     * @throws XMLStreamException if the stream writer could not be created
+     */
+    public static XMLStreamWriter createXMLStreamWriter(Writer out) throws XMLStreamException {
+        return outputFactories.get().createXMLStreamWriter(out);
+    }
+}
@@ -0,0 +1,113 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.batch;
+
+/**
+ * Describes a single asset in a batch manifest -- the cryptfile to generate,
+ * the tracks to encrypt and the keys for each track.
+ * <p>
+ * In JSON manifests each line is one of these objects, for example:
+ * <pre>
+ * {"asset":"movie1","out":"movie1.xml",
+ *  "tracks":[{"id":1,"keys":[{"kid":"10000000-1000-1000-1000-100000000001",
+ *                            "key":"3a2a1b68dd2bd9b2eeb25e84c4776668"}]}]}
+ * </pre>
+ */
+public class AssetSpec implements BatchJob {
+    
+    /**
+     * A key ID in GUID form and, optionally, its 16-byte key value in
+     * hexadecimal.  Generators that derive keys from key IDs do not require
+     * the key value
+     */
+    public static class KeySpec {
+        public String kid;
+        public String key;
+    }
+    
+    /**
+     * A track to be encrypted
+     */
+    public static class TrackSpec {
+        public int id;
+        public int iv_size = 8;
+        public KeySpec keys[];
+    }
+    
+    /**
+     * Unique name of the asset, used in error reports
+     */
+    public String asset;
+    
+    /**
+     * The cryptfile that will be written for this asset
+     */
+    public String out;
+    
+    /**
+     * Number of consecutive samples encrypted with each key for rolling keys.  If
+     * not present, the generator default is used
+     */
+    public Integer roll;
+    
+    public TrackSpec tracks[];
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.BatchJob#getName()
+     */
+    @Override
+    public String getName() {
+        return asset;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.BatchJob#getOutput()
+     */
+    @Override
+    public String getOutput() {
+        return out;
+    }
+    
+    /**
+     * Check that the asset has a name and that every track has at least one key.
+     * The output file is not checked
+     * 
+     * @throws IllegalArgumentException if the asset is invalid
+     */
+    public void validate() {
+        if (asset == null || asset.isEmpty())
+            throw new IllegalArgumentException("missing asset name");
+        if (tracks == null || tracks.length == 0)
+            throw new IllegalArgumentException("no tracks for asset " + asset);
+        for (TrackSpec track : tracks) {
+            if (track.keys == null || track.keys.length == 0)
+                throw new IllegalArgumentException("no keys for track " + track.id + " of asset " + asset);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.cablelabs.cryptfile.CryptfileBuilder;
+
+/**
+ * Generates the cryptfiles for every job in a batch within a single process.
+ * <p>
+ * Jobs are read from the {@link JobSource} as they are needed and handed to a
+ * work-stealing {@link ForkJoinPool}, or to an executor supplied by the caller.  The
+ * number of jobs that have been read but not yet written is bounded so that memory
+ * use does not depend on the size of the batch.  A failure in one job (bad manifest
+ * line, illegal key, unwritable output) is recorded in the {@link BatchSummary} and
+ * does not affect any other job.
+ * 
+ * @param <J> the job type
+ */
+public class BatchEngine<J extends BatchJob> {
+    
+    private JobGenerator<? super J> generator;
+    private int parallelism;
+    private int maxInFlight;
+    private ExecutorService executor;
+    
+    /**
+     * Create a new batch engine with one worker per available processor
+     * 
+     * @param generator creates the cryptfile for each job
+     */
+    public BatchEngine(JobGenerator<? super J> generator) {
+        this(generator, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a new batch engine
+     * 
+     * @param generator creates the cryptfile for each job
+     * @param parallelism the number of worker threads
+     */
+    public BatchEngine(JobGenerator<? super J> generator, int parallelism) {
+        this(generator, parallelism, parallelism * 4);
+    }
+    
+    /**
+     * Create a new batch engine
+     * 
+     * @param generator creates the cryptfile for each job
+     * @param parallelism the number of worker threads
+     * @param maxInFlight the maximum number of jobs that have been read but not yet
+     * completed
+     */
+    public BatchEngine(JobGenerator<? super J> generator, int parallelism, int maxInFlight) {
+        if (parallelism < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("Parallelism and in-flight limit must be positive");
+        this.generator = generator;
+        this.parallelism = parallelism;
+        this.maxInFlight = maxInFlight;
+    }
+    
+    /**
+     * Create a new batch engine that runs its jobs on the given executor.  The executor
+     * is not shut down by the engine
+     * 
+     * @param generator creates the cryptfile for each job
+     * @param executor runs the jobs
+     * @param maxInFlight the maximum number of jobs that have been read but not yet
+     * completed
+     */
+    public BatchEngine(JobGenerator<? super J> generator, ExecutorService executor, int maxInFlight) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("In-flight limit must be positive");
+        this.generator = generator;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+    }
+    
+    /**
+     * Generate the cryptfiles for all jobs from the source.  Returns once every job
+     * has either been written or failed.
+     * 
+     * @param jobs the job source
+     * @return the batch summary
+     * @throws IOException if the jobs could not be read
+     * @throws InterruptedException if interrupted while waiting for jobs to complete
+     */
+    public BatchSummary run(JobSource<? extends J> jobs) throws IOException, InterruptedException {
+        final BatchSummary summary = new BatchSummary();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService pool = (executor != null) ? executor : new ForkJoinPool(parallelism);
+        
+        try {
+            while (true) {
+                
+                // Wait for room before reading the next job so that the source is
+                // never consumed faster than the workers can keep up with
+                inFlight.acquire();
+                
+                final J job;
+                try {
+                    job = jobs.next();
+                }
+                catch (IllegalArgumentException e) {
+                    summary.failed("manifest", e.getMessage());
+                    inFlight.release();
+                    continue;
+                }
+                if (job == null) {
+                    inFlight.release();
+                    break;
+                }
+                
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            generate(job, summary);
+                        }
+                        finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            
+            // All permits are returned once every outstanding job has completed
+            inFlight.acquire(maxInFlight);
+        }
+        finally {
+            if (pool != executor) {
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        }
+        
+        summary.finished();
+        return summary;
+    }
+    
+    private void generate(J job, BatchSummary summary) {
+        long start = System.nanoTime();
+        File outFile = new File(job.getOutput());
+        boolean opened = false;
+        try {
+            CryptfileBuilder builder = generator.generate(job);
+            
+            File parent = outFile.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+                throw new IOException("Could not create directory " + parent);
+            
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+            opened = true;
+            try {
+                builder.streamCryptfile(os);
+            }
+            finally {
+                os.close();
+            }
+            summary.succeeded(System.nanoTime() - start);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            summary.failed(job.getName(), "Interrupted");
+        }
+        catch (Exception e) {
+            // Do not leave a partial cryptfile behind for a failed job
+            if (opened)
+                outFile.delete();
+            summary.failed(job.getName(), e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.batch;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of a batch run -- counts of generated and failed assets, overall throughput,
+ * per-asset latency percentiles and the reason for each failure.
+ */
+public class BatchSummary {
+    
+    /**
+     * An asset that could not be generated
+     */
+    public static class Failure {
+        private String asset;
+        private String reason;
+        
+        Failure(String asset, String reason) {
+            this.asset = asset;
+            this.reason = reason;
+        }
+        
+        /**
+         * Returns the asset name, or the manifest line if the asset could not be parsed
+         * 
+         * @return the asset name
+         */
+        public String getAsset() {
+            return asset;
+        }
+        
+        /**
+         * Returns the reason the asset failed
+         * 
+         * @return the failure reason
+         */
+        public String getReason() {
+            return reason;
+        }
+    }
+    
+    private long[] latencies = new long[1024];
+    private int succeeded = 0;
+    private List<Failure> failures = new ArrayList<Failure>();
+    
+    private long startNanos;
+    private long elapsedNanos;
+    
+    /**
+     * Create a new summary.  The batch elapsed time starts now
+     */
+    public BatchSummary() {
+        startNanos = System.nanoTime();
+    }
+    
+    /**
+     * Record an asset that was generated successfully
+     * 
+     * @param latencyNanos the time taken to generate the asset
+     */
+    public synchronized void succeeded(long latencyNanos) {
+        if (succeeded == latencies.length)
+            latencies = Arrays.copyOf(latencies, latencies.length * 2);
+        latencies[succeeded++] = latencyNanos;
+    }
+    
+    /**
+     * Record an asset that could not be generated
+     * 
+     * @param asset the asset name
+     * @param reason the reason the asset failed
+     */
+    public synchronized void failed(String asset, String reason) {
+        failures.add(new Failure(asset, reason));
+    }
+    
+    /**
+     * Record the end of the batch
+     */
+    public synchronized void finished() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        Arrays.sort(latencies, 0, succeeded);
+    }
+    
+    /**
+     * Returns the number of cryptfiles successfully generated
+     * 
+     * @return the success count
+     */
+    public synchronized int getSucceeded() {
+        return succeeded;
+    }
+    
+    /**
+     * Returns the failed assets in the order in which they failed
+     * 
+     * @return the failure list
+     */
+    public synchronized List<Failure> getFailures() {
+        return Collections.unmodifiableList(new ArrayList<Failure>(failures));
+    }
+    
+    /**
+     * Returns the wall-clock time of the whole batch in milliseconds
+     * 
+     * @return the elapsed time
+     */
+    public synchronized double getElapsedMillis() {
+        return elapsedNanos / 1e6;
+    }
+    
+    /**
+     * Returns the number of cryptfiles generated per second
+     * 
+     * @return the throughput
+     */
+    public synchronized double getThroughput() {
+        return (elapsedNanos == 0) ? 0 : succeeded / (elapsedNanos / 1e9);
+    }
+    
+    /**
+     * Returns the given percentile of the per-asset generation latency (nearest-rank)
+     * 
+     * @param percentile the percentile (0-100]
+     * @return the latency in milliseconds or 0 if no assets succeeded
+     */
+    public synchronized double getLatencyMillis(double percentile) {
+        if (succeeded == 0)
+            return 0;
+        int rank = (int)Math.ceil(percentile / 100 * succeeded);
+        return latencies[Math.max(rank, 1) - 1] / 1e6;
+    }
+    
+    /**
+     * Print the summary
+     * 
+     * @param out the output
+     */
+    public synchronized void print(PrintStream out) {
+        out.println("Batch complete: " + succeeded + " succeeded, " + failures.size() + " failed");
+        out.println(String.format("\telapsed:    %.1f ms", getElapsedMillis()));
+        out.println(String.format("\tthroughput: %.1f cryptfiles/s", getThroughput()));
+        out.println(String.format("\tlatency:    p50=%.3f ms  p90=%.3f ms  p99=%.3f ms  max=%.3f ms",
+                                  getLatencyMillis(50), getLatencyMillis(90),
+                                  getLatencyMillis(99), getLatencyMillis(100)));
+        for (Failure f : failures) {
+            out.println("\tFAILED " + f.getAsset() + ": " + f.getReason());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Base asset generator that builds one {@link CryptTrack} for each track in the asset
+ * specification.  DRM-specific generators override {@link #createKeyPair(AssetSpec.KeySpec)}
+ * and {@link #createPSSH(AssetSpec, List)} to supply their keys and PSSH.
+ */
+public class CryptfileAssetGenerator implements AssetGenerator {
+    
+    protected CryptfileBuilder.ProtectionScheme scheme;
+    protected int keyRoll = -1;
+    protected int cryptByteBlock = 1;
+    protected int skipByteBlock = 9;
+    
+    /**
+     * Create a new generator
+     * 
+     * @param scheme the encryption scheme for all assets
+     */
+    public CryptfileAssetGenerator(CryptfileBuilder.ProtectionScheme scheme) {
+        this.scheme = scheme;
+    }
+    
+    /**
+     * Set the rolling key sample count for assets that do not specify their own
+     * 
+     * @param keyRoll the number of consecutive samples encrypted with each key
+     */
+    public void setKeyRoll(int keyRoll) {
+        this.keyRoll = keyRoll;
+    }
+    
+    /**
+     * Set the encryption pattern used by pattern-based schemes (cens, cbcs).  The
+     * default is 1:9
+     * 
+     * @param cryptByteBlock the number of encrypted blocks in the pattern
+     * @param skipByteBlock the number of clear blocks in the pattern
+     */
+    public void setPattern(int cryptByteBlock, int skipByteBlock) {
+        this.cryptByteBlock = cryptByteBlock;
+        this.skipByteBlock = skipByteBlock;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.AssetGenerator#generate(org.cablelabs.cryptfile.batch.AssetSpec)
+     */
+    @Override
+    public CryptfileBuilder generate(AssetSpec asset) throws Exception {
+        int roll = (asset.roll != null) ? asset.roll : keyRoll;
+        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>(asset.tracks.length);
+        for (AssetSpec.TrackSpec t : asset.tracks) {
+            List<CryptKey> cryptKeys = new ArrayList<CryptKey>(t.keys.length);
+            for (AssetSpec.KeySpec key : t.keys) {
+                cryptKeys.add(new CryptKey(createKeyPair(key)));
+            }
+            cryptTracks.add(CryptTrack.forScheme(scheme, t.id, t.iv_size, cryptKeys, roll,
+                                                 cryptByteBlock, skipByteBlock));
+        }
+        return new CryptfileBuilder(scheme, cryptTracks, createPSSH(asset, cryptTracks));
+    }
+    
+    /**
+     * Create the key pair for the given key specification.  The default implementation
+     * requires both key ID and key value
+     * 
+     * @param key the key specification
+     * @return the key pair
+     * @throws IllegalArgumentException if the key specification is invalid
+     */
+    protected KeyPair createKeyPair(AssetSpec.KeySpec key) {
+        if (key.kid == null || key.key == null)
+            throw new IllegalArgumentException("Key ID and key value are required -- " + key.kid);
+        return new KeyPair(key.kid, key.key);
+    }
+    
+    /**
+     * Create the PSSH for the given asset.  The default implementation generates
+     * no PSSH
+     * 
+     * @param asset the asset specification
+     * @param tracks the tracks that have been created for the asset
+     * @return the PSSH list
+     * @throws Exception if the PSSH could not be created
+     */
+    protected List<DRMInfoPSSH> createPSSH(AssetSpec asset, List<CryptTrack> tracks) throws Exception {
+        return new ArrayList<DRMInfoPSSH>();
+    }
+}
@@ -0,0 +1,170 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Reads asset specifications from a batch manifest, one asset per line.  Assets
+ * are parsed as they are read so that the manifest never has to be held in memory.
+ * <p>
+ * Each line is either a JSON {@link AssetSpec} object (lines starting with '{') or
+ * a comma-separated line of the form:
+ * <pre>
+ *   &lt;asset&gt;,&lt;out_file&gt;,&lt;track_spec&gt;[,&lt;track_spec&gt;...]
+ * </pre>
+ * where each &lt;track_spec&gt; is
+ * <pre>
+ *   &lt;track_id&gt;:&lt;key_id&gt;[=&lt;key&gt;][;&lt;key_id&gt;[=&lt;key&gt;]...]
+ * </pre>
+ * Blank lines and lines starting with '#' are ignored.
+ */
+public class ManifestReader implements JobSource<AssetSpec> {
+    
+    private BufferedReader reader;
+    private int lineNumber = 0;
+    
+    private Gson gson = new Gson();
+    
+    /**
+     * Create a new manifest reader
+     * 
+     * @param reader the manifest input
+     */
+    public ManifestReader(Reader reader) {
+        this.reader = (reader instanceof BufferedReader) ?
+                (BufferedReader)reader : new BufferedReader(reader);
+    }
+    
+    /**
+     * Returns the line number of the most recently read asset
+     * 
+     * @return the line number
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+    
+    /**
+     * Read the next asset from the manifest
+     * 
+     * @return the next asset or null if the end of the manifest has been reached
+     * @throws IOException if there was an error reading the manifest
+     * @throws IllegalArgumentException if the next asset line is invalid.  Reading
+     * may continue with the following line
+     */
+    @Override
+    public AssetSpec next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            
+            AssetSpec asset = line.startsWith("{") ? parseJSON(line) : parseCSV(line);
+            validate(asset);
+            return asset;
+        }
+        return null;
+    }
+    
+    private AssetSpec parseJSON(String line) {
+        try {
+            return gson.fromJson(line, AssetSpec.class);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid JSON -- " + e.getMessage());
+        }
+    }
+    
+    private AssetSpec parseCSV(String line) {
+        String[] fields = line.split(",");
+        if (fields.length < 3)
+            throw new IllegalArgumentException("Line " + lineNumber + ": expected <asset>,<out_file>,<track_spec>...");
+        
+        AssetSpec asset = new AssetSpec();
+        asset.asset = fields[0].trim();
+        asset.out = fields[1].trim();
+        asset.tracks = new AssetSpec.TrackSpec[fields.length - 2];
+        for (int i = 2; i < fields.length; i++) {
+            String[] track_desc = fields[i].trim().split(":");
+            if (track_desc.length != 2)
+                throw new IllegalArgumentException("Line " + lineNumber + ": illegal track specification -- " + fields[i]);
+            
+            AssetSpec.TrackSpec track = new AssetSpec.TrackSpec();
+            try {
+                track.id = Integer.parseInt(track_desc[0]);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": illegal track ID -- " + track_desc[0]);
+            }
+            
+            List<AssetSpec.KeySpec> keys = new ArrayList<AssetSpec.KeySpec>();
+            for (String keyDesc : track_desc[1].split(";")) {
+                String[] keypair = keyDesc.split("=");
+                if (keypair.length < 1 || keypair.length > 2)
+                    throw new IllegalArgumentException("Line " + lineNumber + ": illegal keypair -- " + keyDesc);
+                AssetSpec.KeySpec key = new AssetSpec.KeySpec();
+                key.kid = keypair[0];
+                if (keypair.length == 2)
+                    key.key = keypair[1];
+                keys.add(key);
+            }
+            track.keys = keys.toArray(new AssetSpec.KeySpec[keys.size()]);
+            asset.tracks[i-2] = track;
+        }
+        return asset;
+    }
+    
+    private void validate(AssetSpec asset) {
+        try {
+            asset.validate();
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+        }
+        if (asset.out == null || asset.out.isEmpty())
+            throw new IllegalArgumentException("Line " + lineNumber + ": missing output file for asset " + asset.asset);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,80 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.keystore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Looks keys up in several key stores in turn.  The first store with a key for a
+ * key ID wins.
+ */
+public class CompositeKeyStore implements KeyStore {
+    
+    private List<KeyStore> stores;
+    
+    /**
+     * Create a new composite key store
+     * 
+     * @param stores the key stores, in lookup order
+     */
+    public CompositeKeyStore(List<KeyStore> stores) {
+        this.stores = new ArrayList<KeyStore>(stores);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.keystore.KeyStore#get(byte[])
+     */
+    @Override
+    public KeyPair get(byte[] keyID) {
+        for (KeyStore store : stores) {
+            KeyPair keypair = store.get(keyID);
+            if (keypair != null)
+                return keypair;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the total number of keys in all stores.  Keys present in more than one
+     * store are counted more than once
+     * 
+     * @return the key count
+     */
+    @Override
+    public int size() {
+        long size = 0;
+        for (KeyStore store : stores) {
+            size += store.size();
+        }
+        return (int)Math.min(size, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,123 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.keystore;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Converts between text key files and binary {@link MappedKeyStore} files.
+ */
+public class KeyStoreTool {
+    
+    private static void usage() {
+        System.out.println("Binary key store tool.");
+        System.out.println("");
+        System.out.println("usage:  KeyStoreTool import <text_key_file> <key_store>");
+        System.out.println("        KeyStoreTool export <key_store> [<text_key_file>]");
+        System.out.println("        KeyStoreTool info <key_store>");
+        System.out.println("");
+        System.out.println("\timport");
+        System.out.println("\t\tWrite a binary key store from a text key file.  The text file has <key_id>:<key> lines");
+        System.out.println("\t\t(ClearKey key files) or <key_id>,<key>[,...] CSV lines (PlayReady batch keygen output).");
+        System.out.println("\t\tUse '-' to read from stdin.");
+        System.out.println("");
+        System.out.println("\texport");
+        System.out.println("\t\tWrite the keys of a binary key store as <key_id>:<key> lines, in import order.  Output");
+        System.out.println("\t\tis written to stdout if no text file is given.");
+        System.out.println("");
+        System.out.println("\tinfo");
+        System.out.println("\t\tShow the number of keys in a binary key store.");
+        System.out.println("");
+        System.out.println("\tBinary key stores can be given anywhere the cryptfile generators accept an @<key_file>.");
+    }
+    
+    private static void errorExit(String errorString) {
+        System.err.println(errorString);
+        System.exit(1);
+    }
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args[0].equals("-help")) {
+            usage();
+            System.exit(args.length < 2 ? 1 : 0);
+        }
+        
+        try {
+            if (args[0].equals("import") && args.length == 3) {
+                long start = System.currentTimeMillis();
+                TextKeyReader reader = new TextKeyReader(new InputStreamReader(
+                        args[1].equals("-") ? System.in : new FileInputStream(args[1]), StandardCharsets.UTF_8));
+                int count = MappedKeyStore.write(reader, new File(args[2]));
+                System.err.println("Imported " + count + " keys in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            else if (args[0].equals("export") && (args.length == 2 || args.length == 3)) {
+                MappedKeyStore store = MappedKeyStore.open(new File(args[1]));
+                Writer w = new BufferedWriter(new OutputStreamWriter(
+                        (args.length == 3) ? new FileOutputStream(args[2]) : System.out, StandardCharsets.UTF_8));
+                for (CryptKey key : store.asKeySequence()) {
+                    KeyPair keypair = key.getKeyPair();
+                    w.write(Hex.encodeHex(keypair.getID()));
+                    w.write(':');
+                    w.write(Hex.encodeHex(keypair.getKey()));
+                    w.write('\n');
+                }
+                w.flush();
+                if (args.length == 3)
+                    w.close();
+            }
+            else if (args[0].equals("info") && args.length == 2) {
+                long start = System.nanoTime();
+                MappedKeyStore store = MappedKeyStore.open(new File(args[1]));
+                System.out.println(store.getFile() + ": " + store.size() + " keys (opened in " +
+                                   (System.nanoTime() - start) / 1000 + " us)");
+            }
+            else {
+                usage();
+                errorExit("Illegal arguments");
+            }
+        }
+        catch (IOException e) {
+            errorExit(e.getMessage());
+        }
+    }
+}
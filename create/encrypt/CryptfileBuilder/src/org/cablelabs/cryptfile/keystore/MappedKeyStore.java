@@ -0,0 +1,487 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.keystore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KeySequence;
+
+/**
+ * Read-only key store in a memory-mapped binary file.
+ * <p>
+ * The file is a 16-byte header followed by one 32-byte record (16-byte key ID,
+ * 16-byte key) for every key, sorted by key ID, and then an order table holding the
+ * 4-byte record index of every key in the order the keys were imported.  Keys are
+ * found by binary search directly in the mapping, so opening a store costs the same
+ * for any number of keys and the keys take no heap.  The key pairs returned by a
+ * store are flyweight views of their records that copy the key ID and key out of the
+ * mapping when asked.  The order table lets a store be used as a
+ * {@link KeySequence} of rolling keys in import order.
+ * <p>
+ * Header (big-endian):
+ * <pre>
+ *   0  magic    "CLKS"
+ *   4  version  2
+ *   8  count    number of records (8 bytes)
+ * </pre>
+ * Stores are written by {@link #write(TextKeyReader, File)} or the {@link KeyStoreTool}.
+ */
+public class MappedKeyStore implements KeyStore {
+    
+    private static final int MAGIC = 0x434C4B53;     // "CLKS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 32;
+    private static final int ORDER_SIZE = 4;
+    private static final int KEY_SIZE = 16;
+    
+    /** Maximum number of keys in one store */
+    public static final int MAX_KEYS = (Integer.MAX_VALUE - HEADER_SIZE) / (RECORD_SIZE + ORDER_SIZE);
+    
+    // Ranges at most this long are sorted by insertion sort
+    private static final int INSERTION_SORT_SIZE = 16;
+    
+    /**
+     * A key pair backed by a store record
+     */
+    private static class MappedKeyPair extends KeyPair {
+        
+        private ByteBuffer records;
+        private int offset;
+        
+        MappedKeyPair(ByteBuffer records, int offset) {
+            super();
+            this.records = records;
+            this.offset = offset;
+        }
+        
+        @Override
+        public byte[] getID() {
+            return copy(offset);
+        }
+        
+        @Override
+        public byte[] getKey() {
+            return copy(offset + KEY_SIZE);
+        }
+        
+        private byte[] copy(int position) {
+            byte[] data = new byte[KEY_SIZE];
+            ByteBuffer view = records.duplicate();
+            view.position(position);
+            view.get(data);
+            return data;
+        }
+    }
+    
+    private File file;
+    private ByteBuffer records;
+    private int count;
+    
+    private MappedKeyStore(File file, ByteBuffer records, int count) {
+        this.file = file;
+        this.records = records;
+        this.count = count;
+    }
+    
+    /**
+     * Open a key store file
+     * 
+     * @param file the key store file
+     * @return the key store
+     * @throws IOException if the file could not be opened or is not a valid key store
+     */
+    public static MappedKeyStore open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE)
+                throw new IOException("Not a key store: " + file);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (map.getInt(0) != MAGIC)
+                throw new IOException("Not a key store: " + file);
+            if (map.getInt(4) != VERSION)
+                throw new IOException("Unsupported key store version " + map.getInt(4) + ": " + file);
+            long count = map.getLong(8);
+            if (count < 0 || count > MAX_KEYS || size != HEADER_SIZE + count * (RECORD_SIZE + ORDER_SIZE))
+                throw new IOException("Corrupt key store: " + file);
+            
+            // The mapping stays valid after the channel is closed
+            return new MappedKeyStore(file, map, (int)count);
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Returns true if the given file is a binary key store (rather than a text key file)
+     * 
+     * @param file the file
+     * @return true if the file starts with the key store magic number
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isKeyStore(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            byte[] magic = new byte[4];
+            int read = 0;
+            while (read < magic.length) {
+                int n = fis.read(magic, read, magic.length - read);
+                if (n < 0)
+                    return false;
+                read += n;
+            }
+            return ByteBuffer.wrap(magic).getInt() == MAGIC;
+        }
+        finally {
+            fis.close();
+        }
+    }
+    
+    /**
+     * Write a key store file from a text key file.  The store is written to a temporary
+     * file and sorted there, so memory use does not grow with the number of keys.  The
+     * temporary file then replaces the output file.  The order of the keys in the text
+     * file is kept in the store's order table.
+     * 
+     * @param reader the text key file
+     * @param out the key store file
+     * @return the number of keys written
+     * @throws IOException if the text file could not be read, holds an invalid line or
+     * more than one key for the same key ID, or the store could not be written
+     */
+    public static int write(TextKeyReader reader, File out) throws IOException {
+        File dir = out.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(out.getName(), ".tmp", dir);
+        boolean done = false;
+        try {
+            // Write the records in file order
+            long count = 0;
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeLong(0);
+                KeyPair keypair;
+                while ((keypair = reader.next()) != null) {
+                    if (++count > MAX_KEYS)
+                        throw new IOException("Too many keys for one key store (maximum is " + MAX_KEYS + ")");
+                    dos.write(keypair.getID());
+                    dos.write(keypair.getKey());
+                }
+            }
+            finally {
+                dos.close();
+            }
+            
+            // Sort in place, carrying each record's import position along in the order
+            // table, then invert the table so that it maps import position to record
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(HEADER_SIZE + count * (RECORD_SIZE + ORDER_SIZE));
+                MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+                int table = offset((int)count);
+                for (int i = 0; i < count; i++) {
+                    map.putInt(table + i * ORDER_SIZE, i);
+                }
+                sort(map, table, 0, (int)count - 1);
+                invert(map, table, (int)count);
+                for (int i = 1; i < count; i++) {
+                    if (compare(map, i - 1, i) == 0) {
+                        byte[] keyID = new MappedKeyPair(map, offset(i)).getID();
+                        throw new IOException("Duplicate key ID: " + Hex.encodeHexString(keyID));
+                    }
+                }
+                map.putLong(8, count);
+                map.force();
+            }
+            finally {
+                raf.close();
+            }
+            
+            Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            return (int)count;
+        }
+        finally {
+            if (!done)
+                tmp.delete();
+        }
+    }
+    
+    /**
+     * Returns the key store file
+     * 
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.keystore.KeyStore#get(byte[])
+     */
+    @Override
+    public KeyPair get(byte[] keyID) {
+        int index = indexOf(keyID);
+        return (index >= 0) ? new MappedKeyPair(records, offset(index)) : null;
+    }
+    
+    /**
+     * Returns the index of the record for the given key ID
+     * 
+     * @param keyID the 16-byte key ID
+     * @return the record index or -1 if the store has no key for the key ID
+     */
+    public int indexOf(byte[] keyID) {
+        if (keyID.length != KEY_SIZE)
+            return -1;
+        ByteBuffer id = ByteBuffer.wrap(keyID);
+        long hi = id.getLong(0);
+        long lo = id.getLong(8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = offset(mid);
+            int cmp = compareUnsigned(records.getLong(offset), hi);
+            if (cmp == 0)
+                cmp = compareUnsigned(records.getLong(offset + 8), lo);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+    
+    /**
+     * Returns the key pair at the given index, in key ID order
+     * 
+     * @param index the record index
+     * @return the key pair
+     * @throws IndexOutOfBoundsException if the index is out of range
+     */
+    public KeyPair get(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Key index " + index + " of " + count);
+        return new MappedKeyPair(records, offset(index));
+    }
+    
+    /**
+     * Returns all key pairs in key ID order.  The list is a view of the store, so it
+     * takes no heap for the keys themselves
+     * 
+     * @return the key pairs
+     */
+    public List<KeyPair> asList() {
+        return new ListView();
+    }
+    
+    /**
+     * Returns all keys in the order they were imported, for use as the rolling keys of
+     * a track.  The sequence is a view of the store, so it takes no heap for the keys
+     * themselves
+     * 
+     * @return the key sequence
+     */
+    public KeySequence asKeySequence() {
+        return new SequenceView();
+    }
+    
+    private class ListView extends AbstractList<KeyPair> implements RandomAccess {
+        @Override
+        public KeyPair get(int index) {
+            return MappedKeyStore.this.get(index);
+        }
+        
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+    
+    private class SequenceView implements KeySequence {
+        @Override
+        public CryptKey getKey(int index) {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("Key index " + index + " of " + count);
+            return new CryptKey(get(records.getInt(offset(count) + index * ORDER_SIZE)));
+        }
+        
+        @Override
+        public int size() {
+            return count;
+        }
+        
+        @Override
+        public Iterator<CryptKey> iterator() {
+            return new Iterator<CryptKey>() {
+                private int next = 0;
+                
+                @Override
+                public boolean hasNext() {
+                    return next < count;
+                }
+                
+                @Override
+                public CryptKey next() {
+                    if (next >= count)
+                        throw new NoSuchElementException();
+                    return getKey(next++);
+                }
+                
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("Key sequences are read-only");
+                }
+            };
+        }
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.keystore.KeyStore#size()
+     */
+    @Override
+    public int size() {
+        return count;
+    }
+    
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+    
+    private static int compareUnsigned(long a, long b) {
+        return Long.compare(a + Long.MIN_VALUE, b + Long.MIN_VALUE);
+    }
+    
+    // Compare the key IDs of two records
+    private static int compare(ByteBuffer buf, int i, int j) {
+        int cmp = compareUnsigned(buf.getLong(offset(i)), buf.getLong(offset(j)));
+        return (cmp != 0) ? cmp : compareUnsigned(buf.getLong(offset(i) + 8), buf.getLong(offset(j) + 8));
+    }
+    
+    // Swap two records and their order table entries
+    private static void swap(ByteBuffer buf, int table, int i, int j) {
+        int a = offset(i);
+        int b = offset(j);
+        for (int k = 0; k < RECORD_SIZE; k += 8) {
+            long t = buf.getLong(a + k);
+            buf.putLong(a + k, buf.getLong(b + k));
+            buf.putLong(b + k, t);
+        }
+        a = table + i * ORDER_SIZE;
+        b = table + j * ORDER_SIZE;
+        int t = buf.getInt(a);
+        buf.putInt(a, buf.getInt(b));
+        buf.putInt(b, t);
+    }
+    
+    // In-place inverse of the permutation in the order table.  Each cycle is walked
+    // once, and finished entries are marked by complementing them
+    private static void invert(ByteBuffer buf, int table, int count) {
+        for (int start = 0; start < count; start++) {
+            if (buf.getInt(table + start * ORDER_SIZE) < 0)
+                continue;
+            int prev = start;
+            int cur = buf.getInt(table + start * ORDER_SIZE);
+            while (cur != start) {
+                int next = buf.getInt(table + cur * ORDER_SIZE);
+                buf.putInt(table + cur * ORDER_SIZE, ~prev);
+                prev = cur;
+                cur = next;
+            }
+            buf.putInt(table + start * ORDER_SIZE, ~prev);
+        }
+        for (int i = 0; i < count; i++) {
+            buf.putInt(table + i * ORDER_SIZE, ~buf.getInt(table + i * ORDER_SIZE));
+        }
+    }
+    
+    // In-place quicksort of records [low, high].  Recurses into the smaller partition
+    // only, so the stack depth is logarithmic
+    private static void sort(ByteBuffer buf, int table, int low, int high) {
+        while (high - low >= INSERTION_SORT_SIZE) {
+            
+            // Median of three as pivot, moved to high
+            int mid = (low + high) >>> 1;
+            if (compare(buf, mid, low) < 0)
+                swap(buf, table, mid, low);
+            if (compare(buf, high, low) < 0)
+                swap(buf, table, high, low);
+            if (compare(buf, mid, high) < 0)
+                swap(buf, table, mid, high);
+            
+            int store = low;
+            for (int i = low; i < high; i++) {
+                if (compare(buf, i, high) < 0)
+                    swap(buf, table, i, store++);
+            }
+            swap(buf, table, store, high);
+            
+            if (store - low < high - store) {
+                sort(buf, table, low, store - 1);
+                low = store + 1;
+            }
+            else {
+                sort(buf, table, store + 1, high);
+                high = store - 1;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; j > low && compare(buf, j, j - 1) < 0; j--) {
+                swap(buf, table, j, j - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.keystore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Key store held in a hash map on the heap.  Keys may be added while the store is
+ * in use.
+ * <p>
+ * Key files are read with a {@link TextKeyReader}.
+ */
+public class MemoryKeyStore implements KeyStore {
+    
+    private ConcurrentHashMap<ByteBuffer, KeyPair> keys = new ConcurrentHashMap<ByteBuffer, KeyPair>();
+    
+    /**
+     * Create an empty key store
+     */
+    public MemoryKeyStore() {
+    }
+    
+    /**
+     * Add a key pair, replacing any key pair with the same key ID
+     * 
+     * @param keypair the key pair
+     * @throws IllegalArgumentException if the key ID is not 16 bytes
+     */
+    public void put(KeyPair keypair) {
+        if (keypair.getID() == null || keypair.getID().length != 16)
+            throw new IllegalArgumentException("Key ID must be 16 bytes");
+        keys.put(ByteBuffer.wrap(keypair.getID().clone()), keypair);
+    }
+    
+    /**
+     * Add all key pairs from a key file
+     * 
+     * @param keyFile the key file
+     * @return the number of key pairs read
+     * @throws IOException if the file could not be read or holds an invalid line
+     */
+    public int read(File keyFile) throws IOException {
+        Reader r = new InputStreamReader(new FileInputStream(keyFile), StandardCharsets.UTF_8);
+        try {
+            return read(r);
+        }
+        finally {
+            r.close();
+        }
+    }
+    
+    /**
+     * Add all key pairs from a key file
+     * 
+     * @param r the key file reader
+     * @return the number of key pairs read
+     * @throws IOException if the file could not be read or holds an invalid line
+     */
+    public int read(Reader r) throws IOException {
+        TextKeyReader reader = new TextKeyReader(r);
+        int count = 0;
+        KeyPair keypair;
+        while ((keypair = reader.next()) != null) {
+            put(keypair);
+            count++;
+        }
+        return count;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.keystore.KeyStore#get(byte[])
+     */
+    @Override
+    public KeyPair get(byte[] keyID) {
+        return keys.get(ByteBuffer.wrap(keyID));
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.keystore.KeyStore#size()
+     */
+    @Override
+    public int size() {
+        return keys.size();
+    }
+}
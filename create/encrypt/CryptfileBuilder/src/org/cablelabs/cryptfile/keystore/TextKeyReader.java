@@ -0,0 +1,162 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.keystore;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Reads key pairs from the text key file formats used by the cryptfile generators:
+ * <ul>
+ * <li><code>&lt;key_id&gt;:&lt;key&gt;</code> lines, as read by the <code>@&lt;key_file&gt;</code>
+ * option of the ClearKey generator</li>
+ * <li>CSV lines beginning <code>&lt;key_id&gt;,&lt;key&gt;</code>, as written by the PlayReady
+ * key generator in batch mode.  Further columns and a <code>key_id,...</code> header
+ * line are ignored.</li>
+ * </ul>
+ * Key IDs may be in GUID form or plain hexadecimal.  Keys are hexadecimal, with or
+ * without a leading '0x'.  Blank lines and lines starting with '#' are ignored.
+ */
+public class TextKeyReader {
+    
+    private static final int KEY_SIZE = 16;
+    
+    private BufferedReader br;
+    private int lineNumber = 0;
+    
+    /**
+     * Create a new reader
+     * 
+     * @param r the key file
+     */
+    public TextKeyReader(Reader r) {
+        this.br = (r instanceof BufferedReader) ? (BufferedReader)r : new BufferedReader(r);
+    }
+    
+    /**
+     * Returns the next key pair in the file
+     * 
+     * @return the key pair or null at the end of the file
+     * @throws IOException if the file could not be read or the line is invalid
+     */
+    public KeyPair next() throws IOException {
+        String line;
+        while ((line = br.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("key_id,"))
+                continue;
+            try {
+                return parseKeyPair(line);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the number of the last line read
+     * 
+     * @return the line number
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+    
+    /**
+     * Parse a single key file line
+     * 
+     * @param line the line
+     * @return the key pair
+     * @throws IllegalArgumentException if the line is not a valid key pair
+     */
+    public static KeyPair parseKeyPair(String line) {
+        int separator = line.indexOf(':');
+        int end = line.length();
+        if (separator < 0) {
+            separator = line.indexOf(',');
+            if (separator >= 0 && line.indexOf(',', separator + 1) >= 0)
+                end = line.indexOf(',', separator + 1);
+        }
+        else if (line.indexOf(':', separator + 1) >= 0) {
+            separator = -1;
+        }
+        if (separator < 0)
+            throw new IllegalArgumentException("Expected <key_id>:<key> -- " + line);
+        
+        byte[] keyID = parseHex(line, 0, separator);
+        byte[] key = parseHex(line, separator + 1, end);
+        if (keyID == null || keyID.length != KEY_SIZE)
+            throw new IllegalArgumentException("Invalid key ID -- " + line.substring(0, separator).trim());
+        if (key == null || key.length != KEY_SIZE)
+            throw new IllegalArgumentException("Invalid key -- " + line.substring(separator + 1, end).trim());
+        return new KeyPair(keyID, key);
+    }
+    
+    // Hex digits between start and end, ignoring surrounding whitespace and GUID dashes.
+    // Returns null if there is anything else
+    private static byte[] parseHex(String s, int start, int end) {
+        while (start < end && Character.isWhitespace(s.charAt(start)))
+            start++;
+        while (end > start && Character.isWhitespace(s.charAt(end - 1)))
+            end--;
+        if (end - start > 2 && s.charAt(start) == '0' && (s.charAt(start + 1) == 'x' || s.charAt(start + 1) == 'X'))
+            start += 2;
+        byte[] data = new byte[(end - start) / 2];
+        int count = 0;
+        int hi = -1;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '-')
+                continue;
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                return null;
+            if (hi < 0) {
+                hi = digit;
+            }
+            else {
+                data[count++] = (byte)((hi << 4) | digit);
+                hi = -1;
+            }
+        }
+        if (hi >= 0)
+            return null;
+        if (count != data.length) {
+            byte[] trimmed = new byte[count];
+            System.arraycopy(data, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        return data;
+    }
+}
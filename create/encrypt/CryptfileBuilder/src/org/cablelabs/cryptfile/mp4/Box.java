@@ -0,0 +1,311 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mutable ISOBMFF box.  Container boxes hold a list of child boxes, all other
+ * boxes hold their payload (everything after the box header) as raw bytes.  Box
+ * sizes are recomputed when the box is written, so children may be added, removed
+ * or resized freely.
+ * <p>
+ * Only small structural boxes (moov, moof and their descendants) are held in
+ * memory this way.  Media data is never loaded into a box.
+ */
+class Box {
+    
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    
+    // Boxes whose payload is entirely made up of other boxes
+    private static final String[] CONTAINERS = {
+        "moov", "trak", "mdia", "minf", "stbl", "mvex", "moof", "traf", "edts", "dinf",
+        "sinf", "schi", "mfra"
+    };
+    
+    private String type;
+    private byte[] payload;
+    private List<Box> children;
+    
+    // Position of the box header in the last buffer it was written to
+    private int writtenAt = -1;
+    
+    /**
+     * Create a new leaf box
+     * 
+     * @param type the four-character box type
+     * @param payload the box payload
+     */
+    Box(String type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+    
+    /**
+     * Create a new, empty, container box
+     * 
+     * @param type the four-character box type
+     */
+    Box(String type) {
+        this.type = type;
+        this.children = new ArrayList<Box>();
+    }
+    
+    /**
+     * Returns true if boxes of the given type are parsed as containers
+     * 
+     * @param type the four-character box type
+     * @return true if the type is a container
+     */
+    static boolean isContainer(String type) {
+        for (String c : CONTAINERS) {
+            if (c.equals(type))
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Converts a 32-bit box type to its four-character code
+     * 
+     * @param type the box type
+     * @return the four-character code
+     */
+    static String fourCC(int type) {
+        byte[] b = new byte[] { (byte)(type >> 24), (byte)(type >> 16), (byte)(type >> 8), (byte)type };
+        return new String(b, ASCII);
+    }
+    
+    /**
+     * Converts a four-character code to its 32-bit box type
+     * 
+     * @param type the four-character code
+     * @return the box type
+     */
+    static int fourCC(String type) {
+        byte[] b = type.getBytes(ASCII);
+        return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+    }
+    
+    /**
+     * Parse a box (and, for containers, all of its descendants) starting at the
+     * current position of the buffer.  On return, the buffer is positioned at the
+     * end of the box
+     * 
+     * @param buf the buffer
+     * @return the box
+     * @throws IllegalArgumentException if the box is truncated or malformed
+     */
+    static Box parse(ByteBuffer buf) {
+        int start = buf.position();
+        if (buf.remaining() < 8)
+            throw new IllegalArgumentException("Truncated box header at " + start);
+        
+        long size = buf.getInt() & 0xFFFFFFFFL;
+        String type = fourCC(buf.getInt());
+        if (size == 1) {
+            size = buf.getLong();
+        }
+        else if (size == 0) {
+            size = buf.limit() - start;
+        }
+        int headerSize = buf.position() - start;
+        if (size < headerSize || size > buf.limit() - start)
+            throw new IllegalArgumentException("Invalid size for '" + type + "' box at " + start + ": " + size);
+        
+        int end = start + (int)size;
+        Box box;
+        if (isContainer(type)) {
+            box = new Box(type);
+            while (buf.position() < end) {
+                ByteBuffer child = buf.duplicate();
+                child.limit(end);
+                box.children.add(parse(child));
+                buf.position(child.position());
+            }
+        }
+        else {
+            byte[] payload = new byte[end - buf.position()];
+            buf.get(payload);
+            box = new Box(type, payload);
+        }
+        buf.position(end);
+        return box;
+    }
+    
+    String getType() {
+        return type;
+    }
+    
+    /**
+     * Returns the payload of a leaf box
+     * 
+     * @return the payload
+     */
+    byte[] getPayload() {
+        return payload;
+    }
+    
+    /**
+     * Replace the payload of a leaf box
+     * 
+     * @param payload the new payload
+     */
+    void setPayload(byte[] payload) {
+        this.payload = payload;
+    }
+    
+    /**
+     * Returns the payload of a leaf box wrapped in a big-endian buffer
+     * 
+     * @return the payload buffer
+     */
+    ByteBuffer getPayloadBuffer() {
+        return ByteBuffer.wrap(payload);
+    }
+    
+    /**
+     * Returns the children of a container box.  The returned list may be modified
+     * 
+     * @return the children
+     */
+    List<Box> getChildren() {
+        return children;
+    }
+    
+    /**
+     * Returns the first child of the given type
+     * 
+     * @param type the four-character box type
+     * @return the child or null if no child of that type exists
+     */
+    Box getChild(String type) {
+        for (Box b : children) {
+            if (b.type.equals(type))
+                return b;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns all children of the given type
+     * 
+     * @param type the four-character box type
+     * @return the children
+     */
+    List<Box> getChildren(String type) {
+        List<Box> found = new ArrayList<Box>();
+        for (Box b : children) {
+            if (b.type.equals(type))
+                found.add(b);
+        }
+        return found;
+    }
+    
+    /**
+     * Follow a path of child box types from this box
+     * 
+     * @param path the box types, one for each level
+     * @return the box at the end of the path or null if any box along the path is missing
+     */
+    Box find(String... path) {
+        Box b = this;
+        for (String type : path) {
+            if (b.children == null || (b = b.getChild(type)) == null)
+                return null;
+        }
+        return b;
+    }
+    
+    /**
+     * Returns the total size of the box including its header
+     * 
+     * @return the box size
+     */
+    long getSize() {
+        long size = 8;
+        if (children != null) {
+            for (Box b : children) {
+                size += b.getSize();
+            }
+        }
+        else {
+            size += payload.length;
+        }
+        return (size > 0xFFFFFFFFL) ? size + 8 : size;
+    }
+    
+    /**
+     * Returns the position of this box in the buffer it was last written to
+     * 
+     * @return the position of the box header
+     */
+    int getWrittenAt() {
+        return writtenAt;
+    }
+    
+    /**
+     * Write the box at the current position of the buffer
+     * 
+     * @param buf the buffer
+     */
+    void write(ByteBuffer buf) {
+        writtenAt = buf.position();
+        long size = getSize();
+        if (size > 0xFFFFFFFFL) {
+            buf.putInt(1);
+            buf.putInt(fourCC(type));
+            buf.putLong(size);
+        }
+        else {
+            buf.putInt((int)size);
+            buf.putInt(fourCC(type));
+        }
+        if (children != null) {
+            for (Box b : children) {
+                b.write(buf);
+            }
+        }
+        else {
+            buf.put(payload);
+        }
+    }
+    
+    /**
+     * Serialize the box
+     * 
+     * @return the serialized box
+     */
+    byte[] toByteArray() {
+        byte[] data = new byte[(int)getSize()];
+        write(ByteBuffer.wrap(data));
+        return data;
+    }
+}
@@ -0,0 +1,1154 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeySequence;
+
+/**
+ * Encrypts the samples of a fragmented MP4 file according to a cryptfile, in the
+ * same way that "MP4Box -crypt" would, but without leaving the JVM.
+ * <p>
+ * The input file is memory-mapped and each fragment (moof + mdat) is handled
+ * independently and in parallel.  Sample data is encrypted directly from the mapped
+ * input into the mapped output.  The encryptor adds:
+ * <ul>
+ *   <li>protected sample entries (encv/enca with sinf, frma, schm and tenc) and the
+ *   cryptfile PSSH to the moov</li>
+ *   <li>senc, saiz and saio to every track fragment of an encrypted track</li>
+ *   <li>seig sample groups (sbgp/sgpd) when a track uses rolling keys</li>
+ * </ul>
+ * AVC and HEVC video tracks use subsample encryption, leaving the NAL unit lengths
+ * and headers of video slices (and all other NAL units) in the clear.  All other
+ * tracks are encrypted in full.  sidx and tfra offsets are updated to match the
+ * new fragment sizes.
+ * <p>
+ * All four Common Encryption schemes are supported (see {@link SampleEncryptor}).
+ * For every scheme but 'cenc', the protected part of each video slice is rounded
+ * down to a whole number of cipher blocks and the remainder is left in the clear.
+ * Tracks with a constant IV (normally 'cbcs') carry no per-sample IVs, so their
+ * track fragments only get a senc when subsample information is needed.
+ * <p>
+ * Every track fragment in the output uses "default-base-is-moof" and every track run
+ * carries an explicit data offset.  Non-fragmented files are not supported.
+ */
+public class CencEncryptor {
+    
+    // Track fragment header flags
+    private static final int TFHD_BASE_DATA_OFFSET = 0x000001;
+    private static final int TFHD_SAMPLE_DESC_INDEX = 0x000002;
+    private static final int TFHD_DEFAULT_DURATION = 0x000008;
+    private static final int TFHD_DEFAULT_SIZE = 0x000010;
+    private static final int TFHD_DEFAULT_FLAGS = 0x000020;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    
+    // Track run flags
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x000004;
+    private static final int TRUN_DURATION = 0x000100;
+    private static final int TRUN_SIZE = 0x000200;
+    private static final int TRUN_FLAGS = 0x000400;
+    private static final int TRUN_CTO = 0x000800;
+    
+    // Sample encryption flags
+    private static final int SENC_USE_SUBSAMPLES = 0x000002;
+    
+    private static final int SAMPLE_GROUP_FRAGMENT_LOCAL = 0x10000;
+    
+    // Size of the output chunks mapped when copying unmodified boxes
+    private static final int COPY_CHUNK = 64 * 1024 * 1024;
+    
+    private CryptfileBuilder cryptfile;
+    private int parallelism;
+    
+    // An ISOBMFF box at the top level of the input file
+    private static class TopBox {
+        String type;
+        long offset;
+        long size;
+        int headerSize;
+        
+        byte[] replacement;     // New contents, if modified
+        Fragment fragment;      // Set for moof boxes and their mdat
+        long outOffset;
+        
+        long getOutSize() {
+            return (replacement != null) ? replacement.length : size;
+        }
+    }
+    
+    // Per-track information gathered from the moov
+    private static class TrackState {
+        int trackID;
+        String handler;
+        
+        // Defaults from trex
+        int defaultSampleSize;
+        
+        // Encryption parameters, only for encrypted tracks
+        CryptTrack cryptTrack;
+        ProtectionScheme scheme;
+        int ivSize;             // Per-sample IV size, 0 with a constant IV
+        byte[] constantIV;
+        KeySequence keys;       // Rolling keys are derived on demand, never copied
+        int nalLengthSize = 0;  // 0 if samples are encrypted in full
+        int nalHeaderSize;
+        boolean hevc;
+        
+        // Running totals used to assign IVs and keys to every sample
+        long sampleCount = 0;
+        long blockCount = 0;
+        
+        boolean isEncrypted() {
+            return cryptTrack != null;
+        }
+    }
+    
+    // A track fragment
+    private static class Traf {
+        Box box;
+        TrackState track;
+        List<Box> truns = new ArrayList<Box>();
+        
+        // Absolute input position and size of every sample in the fragment
+        long[] positions;
+        int[] sizes;
+        
+        // Track run sample counts
+        int[] runLengths;
+        
+        // Sample index within the track of the first sample, and the value to add
+        // to the track's first IV for each sample
+        long firstSample;
+        long[] ivCounters;
+        
+        // Subsample layout of each sample (clear, encrypted pairs) or null
+        int[][] subsamples;
+    }
+    
+    // A moof and the mdat containing its samples
+    private static class Fragment {
+        TopBox moof;
+        TopBox mdat;
+        Box moofBox;
+        List<Traf> trafs = new ArrayList<Traf>();
+        long gapSize;   // Size of any boxes between the moof and the mdat
+    }
+    
+    /**
+     * Create a new encryptor using one thread per available processor
+     * 
+     * @param cryptfile the cryptfile describing the tracks to encrypt, their keys
+     * and PSSH
+     */
+    public CencEncryptor(CryptfileBuilder cryptfile) {
+        this(cryptfile, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a new encryptor
+     * 
+     * @param cryptfile the cryptfile describing the tracks to encrypt, their keys
+     * and PSSH
+     * @param parallelism the number of fragments to encrypt concurrently
+     */
+    public CencEncryptor(CryptfileBuilder cryptfile, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.cryptfile = cryptfile;
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * Encrypt a fragmented MP4 file
+     * 
+     * @param input the clear input file
+     * @param output the encrypted output file.  Will be overwritten if it exists
+     * @throws IOException if there was an error reading or writing the files
+     * @throws IllegalArgumentException if the input file is not a fragmented MP4 that
+     * can be encrypted with the cryptfile
+     */
+    public void encrypt(File input, File output) throws IOException {
+        RandomAccessFile inFile = new RandomAccessFile(input, "r");
+        try {
+            final FileChannel in = inFile.getChannel();
+            List<TopBox> boxes = readTopLevelBoxes(in);
+            
+            // Rebuild the moov and gather the sample locations of every fragment
+            Map<Integer, TrackState> tracks = new HashMap<Integer, TrackState>();
+            List<Fragment> fragments = new ArrayList<Fragment>();
+            TopBox moov = null;
+            for (int i = 0; i < boxes.size(); i++) {
+                TopBox b = boxes.get(i);
+                if (b.type.equals("moov")) {
+                    if (moov != null)
+                        throw new IllegalArgumentException("Multiple moov boxes found");
+                    moov = b;
+                    b.replacement = rewriteMoov(map(in, FileChannel.MapMode.READ_ONLY, b.offset, b.size), tracks);
+                }
+                else if (b.type.equals("moof")) {
+                    if (moov == null)
+                        throw new IllegalArgumentException("moof found before moov");
+                    fragments.add(readFragment(in, boxes, i, tracks));
+                }
+            }
+            if (moov == null)
+                throw new IllegalArgumentException("No moov box found");
+            
+            ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+            try {
+                
+                // Build the new moof for every fragment
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(fragments.size());
+                for (final Fragment f : fragments) {
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            buildFragment(in, f);
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(executor, tasks);
+                
+                // Now that all box sizes are known, lay out the output file and update
+                // any boxes that refer to file offsets
+                long outSize = 0;
+                TreeMap<Long, Long> offsetMap = new TreeMap<Long, Long>();
+                for (TopBox b : boxes) {
+                    b.outOffset = outSize;
+                    offsetMap.put(b.offset, b.outOffset);
+                    outSize += b.getOutSize();
+                }
+                offsetMap.put(in.size(), outSize);
+                for (TopBox b : boxes) {
+                    if (b.type.equals("sidx")) {
+                        b.replacement = rewriteSidx(map(in, FileChannel.MapMode.READ_ONLY, b.offset, b.size),
+                                                    b, offsetMap);
+                    }
+                    else if (b.type.equals("mfra")) {
+                        b.replacement = rewriteMfra(map(in, FileChannel.MapMode.READ_ONLY, b.offset, b.size),
+                                                    offsetMap);
+                    }
+                }
+                
+                // Write the output
+                RandomAccessFile outFile = new RandomAccessFile(output, "rw");
+                try {
+                    outFile.setLength(0);
+                    outFile.setLength(outSize);
+                    final FileChannel out = outFile.getChannel();
+                    
+                    tasks.clear();
+                    for (final TopBox b : boxes) {
+                        if (b.fragment != null)
+                            continue;
+                        tasks.add(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                writeBox(in, out, b);
+                                return null;
+                            }
+                        });
+                    }
+                    for (final Fragment f : fragments) {
+                        tasks.add(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                writeFragment(in, out, f);
+                                return null;
+                            }
+                        });
+                    }
+                    invokeAll(executor, tasks);
+                }
+                finally {
+                    outFile.close();
+                }
+            }
+            finally {
+                executor.shutdown();
+            }
+        }
+        finally {
+            inFile.close();
+        }
+    }
+    
+    /*
+     * Input parsing
+     */
+    
+    private static List<TopBox> readTopLevelBoxes(FileChannel in) throws IOException {
+        List<TopBox> boxes = new ArrayList<TopBox>();
+        for (MP4BoxIndex.Entry e : MP4BoxIndex.readTopLevelBoxes(in)) {
+            TopBox b = new TopBox();
+            b.type = e.getType();
+            b.offset = e.getOffset();
+            b.size = e.getSize();
+            b.headerSize = e.getHeaderSize();
+            boxes.add(b);
+        }
+        return boxes;
+    }
+    
+    private static MappedByteBuffer map(FileChannel ch, FileChannel.MapMode mode, long offset, long size)
+            throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Box too large to map: " + size + " bytes at " + offset);
+        return ch.map(mode, offset, size);
+    }
+    
+    private static int getFlags(byte[] fullBoxPayload) {
+        return ((fullBoxPayload[1] & 0xFF) << 16) | ((fullBoxPayload[2] & 0xFF) << 8) | (fullBoxPayload[3] & 0xFF);
+    }
+    
+    private static int getVersion(byte[] fullBoxPayload) {
+        return fullBoxPayload[0] & 0xFF;
+    }
+    
+    /*
+     * moov
+     */
+    
+    private byte[] rewriteMoov(ByteBuffer buf, Map<Integer, TrackState> tracks) {
+        Box moov = Box.parse(buf);
+        if (moov.getChild("mvex") == null)
+            throw new IllegalArgumentException("Only fragmented MP4 files are supported (no mvex box found)");
+        
+        Map<Integer, CryptTrack> cryptTracks = new HashMap<Integer, CryptTrack>();
+        for (CryptTrack t : cryptfile.getTracks()) {
+            if (t.isEncrypted())
+                cryptTracks.put(t.getTrackID(), t);
+        }
+        
+        for (Box trak : moov.getChildren("trak")) {
+            TrackState track = new TrackState();
+            
+            Box tkhd = trak.getChild("tkhd");
+            Box hdlr = trak.find("mdia", "hdlr");
+            Box stsd = trak.find("mdia", "minf", "stbl", "stsd");
+            if (tkhd == null || hdlr == null || stsd == null)
+                throw new IllegalArgumentException("Incomplete trak box");
+            
+            ByteBuffer tkhdData = tkhd.getPayloadBuffer();
+            track.trackID = tkhdData.getInt((getVersion(tkhd.getPayload()) == 1) ? 20 : 12);
+            track.handler = Box.fourCC(hdlr.getPayloadBuffer().getInt(8));
+            tracks.put(track.trackID, track);
+            
+            CryptTrack cryptTrack = cryptTracks.remove(track.trackID);
+            if (cryptTrack != null) {
+                track.cryptTrack = cryptTrack;
+                track.scheme = cryptfile.getScheme();
+                track.constantIV = cryptTrack.getConstantIV();
+                track.ivSize = (track.constantIV != null) ? 0 : cryptTrack.getIVSize();
+                checkTrack(track);
+                track.keys = cryptTrack.getKeySequence();
+                protectSampleEntries(stsd, track);
+            }
+        }
+        if (!cryptTracks.isEmpty())
+            throw new IllegalArgumentException("Tracks not found in input: " + cryptTracks.keySet());
+        
+        // Track fragment defaults
+        for (Box trex : moov.find("mvex").getChildren("trex")) {
+            ByteBuffer data = trex.getPayloadBuffer();
+            TrackState track = tracks.get(data.getInt(4));
+            if (track != null)
+                track.defaultSampleSize = data.getInt(16);
+        }
+        
+        // PSSH from the cryptfile
+        for (DRMInfoPSSH pssh : cryptfile.getPSSH()) {
+            ByteBuffer psshBox = ByteBuffer.allocate(pssh.getPsshBoxSize(DRMInfoPSSH.PSSH_VERSION_0));
+            pssh.toPsshBox(psshBox);
+            psshBox.flip();
+            moov.getChildren().add(Box.parse(psshBox));
+        }
+        
+        return moov.toByteArray();
+    }
+    
+    // Make sure the track's encryption parameters are valid for the scheme
+    private static void checkTrack(TrackState track) {
+        CryptTrack t = track.cryptTrack;
+        if (t.hasPattern() && !track.scheme.isPattern())
+            throw new IllegalArgumentException("Track " + track.trackID + " has an encryption pattern, which '" +
+                                               track.scheme.getSchemeType() + "' does not support");
+        if (track.constantIV != null && track.scheme != ProtectionScheme.CBCS)
+            throw new IllegalArgumentException("Track " + track.trackID + " has a constant IV, which '" +
+                                               track.scheme.getSchemeType() + "' does not support");
+        if (t.hasPattern() && t.getCryptByteBlock() == 0 && t.getSkipByteBlock() != 0)
+            throw new IllegalArgumentException("Track " + track.trackID + " has an encryption pattern with no encrypted blocks");
+        int ivSize = (track.constantIV != null) ? track.constantIV.length : t.getIVSize();
+        if (track.scheme.isCBC() && ivSize != CryptTrack.IV_SIZE_16)
+            throw new IllegalArgumentException("Track " + track.trackID + " must use 16-byte IVs with '" +
+                                               track.scheme.getSchemeType() + "'");
+    }
+    
+    // Convert every sample entry of the track to its protected form
+    private static void protectSampleEntries(Box stsd, TrackState track) {
+        ByteBuffer data = stsd.getPayloadBuffer();
+        int entryCount = data.getInt(4);
+        data.position(8);
+        
+        ByteBuffer newData = ByteBuffer.allocate(stsd.getPayload().length + entryCount * 256);
+        newData.put(stsd.getPayload(), 0, 8);
+        for (int i = 0; i < entryCount; i++) {
+            int start = data.position();
+            int size = data.getInt();
+            String format = Box.fourCC(data.getInt());
+            if (size < 8 || start + size > data.limit())
+                throw new IllegalArgumentException("Invalid sample entry in track " + track.trackID);
+            if (format.startsWith("enc"))
+                throw new IllegalArgumentException("Track " + track.trackID + " is already encrypted");
+            
+            // NAL-structured video is encrypted with subsamples
+            if (format.equals("avc1") || format.equals("avc3") || format.equals("hvc1") || format.equals("hev1")) {
+                track.hevc = format.startsWith("h");
+                Box config = findSampleEntryChild(data, start + 86, start + size, track.hevc ? "hvcC" : "avcC");
+                if (config == null)
+                    throw new IllegalArgumentException("Missing decoder configuration in track " + track.trackID);
+                track.nalLengthSize = (config.getPayload()[track.hevc ? 21 : 4] & 0x3) + 1;
+                track.nalHeaderSize = track.hevc ? 2 : 1;
+            }
+            
+            String protectedFormat;
+            if (track.handler.equals("vide"))
+                protectedFormat = "encv";
+            else if (track.handler.equals("soun"))
+                protectedFormat = "enca";
+            else if (track.handler.equals("text") || track.handler.equals("sbtl") || track.handler.equals("subt"))
+                protectedFormat = "enct";
+            else
+                protectedFormat = "encs";
+            
+            byte[] sinf = createSinf(format, track).toByteArray();
+            newData.putInt(size + sinf.length);
+            newData.putInt(Box.fourCC(protectedFormat));
+            newData.put(stsd.getPayload(), start + 8, size - 8);
+            newData.put(sinf);
+            data.position(start + size);
+        }
+        
+        stsd.setPayload(Arrays.copyOf(newData.array(), newData.position()));
+    }
+    
+    private static Box findSampleEntryChild(ByteBuffer data, int start, int end, String type) {
+        ByteBuffer children = data.duplicate();
+        children.limit(end);
+        children.position(start);
+        while (children.remaining() >= 8) {
+            Box b = Box.parse(children);
+            if (b.getType().equals(type))
+                return b;
+        }
+        return null;
+    }
+    
+    private static Box createSinf(String format, TrackState track) {
+        Box sinf = new Box("sinf");
+        
+        ByteBuffer frma = ByteBuffer.allocate(4);
+        frma.putInt(Box.fourCC(format));
+        sinf.getChildren().add(new Box("frma", frma.array()));
+        
+        ByteBuffer schm = ByteBuffer.allocate(12);
+        schm.putInt(0);
+        schm.putInt(Box.fourCC(track.scheme.getSchemeType()));
+        schm.putInt(0x00010000);
+        sinf.getChildren().add(new Box("schm", schm.array()));
+        
+        // Version 1 carries the encryption pattern
+        ByteBuffer tenc = ByteBuffer.allocate(4 + getKeyInfoSize(track));
+        tenc.putInt(track.scheme.isPattern() ? 0x01000000 : 0);
+        putKeyInfo(tenc, track, track.keys.getKey(0).getKeyPair().getID());
+        Box schi = new Box("schi");
+        schi.getChildren().add(new Box("tenc", tenc.array()));
+        sinf.getChildren().add(schi);
+        
+        return sinf;
+    }
+    
+    // Size of the key information shared by tenc and seig entries
+    private static int getKeyInfoSize(TrackState track) {
+        return 20 + ((track.constantIV != null) ? 1 + track.constantIV.length : 0);
+    }
+    
+    // Write the key information shared by tenc and seig entries
+    private static void putKeyInfo(ByteBuffer buf, TrackState track, byte[] keyID) {
+        CryptTrack t = track.cryptTrack;
+        buf.put((byte)0);
+        buf.put((byte)(track.scheme.isPattern() ? (t.getCryptByteBlock() << 4) | t.getSkipByteBlock() : 0));
+        buf.put((byte)1);
+        buf.put((byte)track.ivSize);
+        buf.put(keyID);
+        if (track.constantIV != null) {
+            buf.put((byte)track.constantIV.length);
+            buf.put(track.constantIV);
+        }
+    }
+    
+    /*
+     * moof
+     */
+    
+    // Parse a moof and locate every sample it describes
+    private static Fragment readFragment(FileChannel in, List<TopBox> boxes, int moofIndex,
+                                         Map<Integer, TrackState> tracks) throws IOException {
+        Fragment f = new Fragment();
+        f.moof = boxes.get(moofIndex);
+        f.moof.fragment = f;
+        for (int i = moofIndex + 1; i < boxes.size(); i++) {
+            TopBox b = boxes.get(i);
+            if (b.type.equals("mdat")) {
+                if (b.fragment != null)
+                    throw new IllegalArgumentException("mdat at " + b.offset + " is shared by multiple moof boxes");
+                f.mdat = b;
+                f.mdat.fragment = f;
+                break;
+            }
+            if (b.type.equals("moof") || b.type.equals("moov"))
+                throw new IllegalArgumentException("No mdat found for moof at " + f.moof.offset);
+            f.gapSize += b.size;
+        }
+        if (f.mdat == null)
+            throw new IllegalArgumentException("No mdat found for moof at " + f.moof.offset);
+        long dataStart = f.mdat.offset + f.mdat.headerSize;
+        long dataEnd = f.mdat.offset + f.mdat.size;
+        
+        f.moofBox = Box.parse(map(in, FileChannel.MapMode.READ_ONLY, f.moof.offset, f.moof.size));
+        long previousDataEnd = f.moof.offset;
+        for (Box trafBox : f.moofBox.getChildren("traf")) {
+            Traf traf = new Traf();
+            traf.box = trafBox;
+            
+            Box tfhd = trafBox.getChild("tfhd");
+            if (tfhd == null)
+                throw new IllegalArgumentException("Missing tfhd in moof at " + f.moof.offset);
+            int tfhdFlags = getFlags(tfhd.getPayload());
+            ByteBuffer tfhdData = tfhd.getPayloadBuffer();
+            tfhdData.position(4);
+            int trackID = tfhdData.getInt();
+            traf.track = tracks.get(trackID);
+            if (traf.track == null)
+                throw new IllegalArgumentException("Fragment for unknown track " + trackID);
+            if (traf.track.isEncrypted() && (trafBox.getChild("senc") != null || trafBox.getChild("saiz") != null))
+                throw new IllegalArgumentException("Track " + trackID + " is already encrypted");
+            
+            long base;
+            if ((tfhdFlags & TFHD_BASE_DATA_OFFSET) != 0)
+                base = tfhdData.getLong();
+            else if ((tfhdFlags & TFHD_DEFAULT_BASE_IS_MOOF) != 0)
+                base = f.moof.offset;
+            else
+                base = previousDataEnd;
+            if ((tfhdFlags & TFHD_SAMPLE_DESC_INDEX) != 0)
+                tfhdData.getInt();
+            if ((tfhdFlags & TFHD_DEFAULT_DURATION) != 0)
+                tfhdData.getInt();
+            int defaultSize = ((tfhdFlags & TFHD_DEFAULT_SIZE) != 0) ? tfhdData.getInt() :
+                                                                      traf.track.defaultSampleSize;
+            
+            // Sample sizes and positions from every track run
+            traf.truns = trafBox.getChildren("trun");
+            traf.runLengths = new int[traf.truns.size()];
+            int sampleCount = 0;
+            for (int r = 0; r < traf.truns.size(); r++) {
+                traf.runLengths[r] = traf.truns.get(r).getPayloadBuffer().getInt(4);
+                sampleCount += traf.runLengths[r];
+            }
+            traf.positions = new long[sampleCount];
+            traf.sizes = new int[sampleCount];
+            
+            int sample = 0;
+            long pos = base;
+            for (Box trun : traf.truns) {
+                int flags = getFlags(trun.getPayload());
+                ByteBuffer data = trun.getPayloadBuffer();
+                data.position(4);
+                int count = data.getInt();
+                if ((flags & TRUN_DATA_OFFSET) != 0)
+                    pos = base + data.getInt();
+                if ((flags & TRUN_FIRST_SAMPLE_FLAGS) != 0)
+                    data.getInt();
+                for (int i = 0; i < count; i++, sample++) {
+                    if ((flags & TRUN_DURATION) != 0)
+                        data.getInt();
+                    int size = ((flags & TRUN_SIZE) != 0) ? data.getInt() : defaultSize;
+                    if ((flags & TRUN_FLAGS) != 0)
+                        data.getInt();
+                    if ((flags & TRUN_CTO) != 0)
+                        data.getInt();
+                    if (pos < dataStart || pos + size > dataEnd)
+                        throw new IllegalArgumentException("Sample data for track " + trackID +
+                                                           " is outside of the mdat following moof at " + f.moof.offset);
+                    traf.positions[sample] = pos;
+                    traf.sizes[sample] = size;
+                    pos += size;
+                }
+            }
+            previousDataEnd = pos;
+            
+            // Assign IVs to each sample.  8-byte IVs increase by one for each sample,
+            // 16-byte IVs by the number of cipher blocks in the previous sample
+            TrackState track = traf.track;
+            if (track.isEncrypted()) {
+                traf.firstSample = track.sampleCount;
+                traf.ivCounters = new long[sampleCount];
+                for (int i = 0; i < sampleCount && track.ivSize > 0; i++) {
+                    if (track.ivSize == CryptTrack.IV_SIZE_8) {
+                        traf.ivCounters[i] = track.sampleCount + i;
+                    }
+                    else {
+                        traf.ivCounters[i] = track.blockCount;
+                        track.blockCount += (traf.sizes[i] + 15) / 16;
+                    }
+                }
+                track.sampleCount += sampleCount;
+            }
+            
+            f.trafs.add(traf);
+        }
+        return f;
+    }
+    
+    // Add the sample encryption boxes to every track fragment and produce the new moof
+    private static void buildFragment(FileChannel in, Fragment f) throws IOException {
+        long dataStart = f.mdat.offset + f.mdat.headerSize;
+        ByteBuffer mdat = map(in, FileChannel.MapMode.READ_ONLY, dataStart, f.mdat.size - f.mdat.headerSize);
+        
+        List<Box> saios = new ArrayList<Box>();
+        List<Box> sencs = new ArrayList<Box>();
+        for (Traf traf : f.trafs) {
+            normalizeTfhd(traf.box.getChild("tfhd"));
+            for (Box trun : traf.truns) {
+                normalizeTrun(trun);
+            }
+            
+            TrackState track = traf.track;
+            if (!track.isEncrypted())
+                continue;
+            
+            int sampleCount = traf.sizes.length;
+            int ivSize = track.ivSize;
+            boolean useSubsamples = track.nalLengthSize > 0;
+            
+            // Subsample layout
+            int[] infoSizes = new int[sampleCount];
+            int sencSize = 8 + sampleCount * ivSize;
+            if (useSubsamples) {
+                traf.subsamples = new int[sampleCount][];
+                for (int i = 0; i < sampleCount; i++) {
+                    traf.subsamples[i] = findSubsamples(mdat, (int)(traf.positions[i] - dataStart), traf.sizes[i], track);
+                    infoSizes[i] = ivSize + 2 + 6 * (traf.subsamples[i].length / 2);
+                    sencSize += infoSizes[i] - ivSize;
+                }
+            }
+            else {
+                Arrays.fill(infoSizes, ivSize);
+            }
+            
+            // Nothing to signal per sample with a constant IV and no subsamples
+            if (ivSize == 0 && !useSubsamples) {
+                if (track.keys.size() > 1)
+                    addKeyGroups(traf);
+                continue;
+            }
+            
+            // senc
+            ByteBuffer senc = ByteBuffer.allocate(sencSize);
+            senc.putInt(useSubsamples ? SENC_USE_SUBSAMPLES : 0);
+            senc.putInt(sampleCount);
+            for (int i = 0; i < sampleCount; i++) {
+                if (ivSize > 0)
+                    senc.put(getSampleIV(track, traf, i));
+                if (useSubsamples) {
+                    int[] subsamples = traf.subsamples[i];
+                    senc.putShort((short)(subsamples.length / 2));
+                    for (int j = 0; j < subsamples.length; j += 2) {
+                        senc.putShort((short)subsamples[j]);
+                        senc.putInt(subsamples[j+1]);
+                    }
+                }
+            }
+            
+            // saiz
+            boolean uniform = true;
+            for (int i = 1; i < sampleCount && uniform; i++) {
+                uniform = infoSizes[i] == infoSizes[0];
+            }
+            ByteBuffer saiz = ByteBuffer.allocate(9 + (uniform ? 0 : sampleCount));
+            saiz.putInt(0);
+            saiz.put((byte)(uniform ? ((sampleCount > 0) ? infoSizes[0] : ivSize) : 0));
+            saiz.putInt(sampleCount);
+            if (!uniform) {
+                for (int size : infoSizes) {
+                    saiz.put((byte)size);
+                }
+            }
+            
+            // saio (offset is filled in once the moof is laid out)
+            ByteBuffer saio = ByteBuffer.allocate(12);
+            saio.putInt(0);
+            saio.putInt(1);
+            saio.putInt(0);
+            
+            Box sencBox = new Box("senc", senc.array());
+            Box saioBox = new Box("saio", saio.array());
+            traf.box.getChildren().add(new Box("saiz", saiz.array()));
+            traf.box.getChildren().add(saioBox);
+            traf.box.getChildren().add(sencBox);
+            sencs.add(sencBox);
+            saios.add(saioBox);
+            
+            if (track.keys.size() > 1)
+                addKeyGroups(traf);
+        }
+        
+        // Data offsets are relative to the start of the new moof
+        long moofSize = f.moofBox.getSize();
+        long mdatDataOffset = moofSize + f.gapSize + f.mdat.headerSize;
+        for (Traf traf : f.trafs) {
+            int sample = 0;
+            for (int r = 0; r < traf.truns.size(); r++) {
+                long offset = (traf.runLengths[r] > 0) ?
+                        mdatDataOffset + (traf.positions[sample] - dataStart) : mdatDataOffset;
+                if (offset > Integer.MAX_VALUE)
+                    throw new IllegalArgumentException("Fragment too large at " + f.moof.offset);
+                ByteBuffer.wrap(traf.truns.get(r).getPayload()).putInt(8, (int)offset);
+                sample += traf.runLengths[r];
+            }
+        }
+        
+        // Point each saio at the first IV in its senc
+        byte[] moof = new byte[(int)moofSize];
+        ByteBuffer moofBuf = ByteBuffer.wrap(moof);
+        f.moofBox.write(moofBuf);
+        for (int i = 0; i < saios.size(); i++) {
+            moofBuf.putInt(saios.get(i).getWrittenAt() + 16, sencs.get(i).getWrittenAt() + 16);
+        }
+        f.moof.replacement = moof;
+    }
+    
+    // Remove any explicit base data offset and make all data offsets relative to the moof
+    private static void normalizeTfhd(Box tfhd) {
+        byte[] payload = tfhd.getPayload();
+        int flags = getFlags(payload);
+        ByteBuffer data = ByteBuffer.allocate(payload.length);
+        data.putInt(((payload[0] & 0xFF) << 24) | (flags & ~TFHD_BASE_DATA_OFFSET) | TFHD_DEFAULT_BASE_IS_MOOF);
+        data.put(payload, 4, 4);
+        if ((flags & TFHD_BASE_DATA_OFFSET) != 0)
+            data.put(payload, 16, payload.length - 16);
+        else
+            data.put(payload, 8, payload.length - 8);
+        tfhd.setPayload(Arrays.copyOf(data.array(), data.position()));
+    }
+    
+    // Make sure the track run has a data offset field
+    private static void normalizeTrun(Box trun) {
+        byte[] payload = trun.getPayload();
+        int flags = getFlags(payload);
+        if ((flags & TRUN_DATA_OFFSET) != 0)
+            return;
+        ByteBuffer data = ByteBuffer.allocate(payload.length + 4);
+        data.putInt(((payload[0] & 0xFF) << 24) | flags | TRUN_DATA_OFFSET);
+        data.put(payload, 4, 4);
+        data.putInt(0);
+        data.put(payload, 8, payload.length - 8);
+        trun.setPayload(data.array());
+    }
+    
+    // Signal the key used by each sample with fragment-local 'seig' sample groups
+    private static void addKeyGroups(Traf traf) {
+        TrackState track = traf.track;
+        int sampleCount = traf.sizes.length;
+        
+        List<Integer> groups = new ArrayList<Integer>();
+        List<int[]> runs = new ArrayList<int[]>();
+        for (int i = 0; i < sampleCount; i++) {
+            int key = getKeyIndex(track, traf.firstSample + i);
+            int group = groups.indexOf(key);
+            if (group == -1) {
+                group = groups.size();
+                groups.add(key);
+            }
+            int[] last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (last != null && last[1] == group)
+                last[0]++;
+            else
+                runs.add(new int[] { 1, group });
+        }
+        
+        ByteBuffer sbgp = ByteBuffer.allocate(12 + runs.size() * 8);
+        sbgp.putInt(0);
+        sbgp.putInt(Box.fourCC("seig"));
+        sbgp.putInt(runs.size());
+        for (int[] run : runs) {
+            sbgp.putInt(run[0]);
+            sbgp.putInt(SAMPLE_GROUP_FRAGMENT_LOCAL + run[1] + 1);
+        }
+        
+        int entrySize = getKeyInfoSize(track);
+        ByteBuffer sgpd = ByteBuffer.allocate(16 + groups.size() * entrySize);
+        sgpd.putInt(0x01000000);
+        sgpd.putInt(Box.fourCC("seig"));
+        sgpd.putInt(entrySize);
+        sgpd.putInt(groups.size());
+        for (int key : groups) {
+            putKeyInfo(sgpd, track, track.keys.getKey(key).getKeyPair().getID());
+        }
+        
+        traf.box.getChildren().add(new Box("sbgp", sbgp.array()));
+        traf.box.getChildren().add(new Box("sgpd", sgpd.array()));
+    }
+    
+    // Returns (clear, encrypted) byte count pairs for a NAL-structured video sample.
+    // Video slices are encrypted after the NAL length and header, all other NAL
+    // units are left in the clear.  Except for 'cenc', encrypted ranges are a whole
+    // number of cipher blocks
+    private static int[] findSubsamples(ByteBuffer mdat, int pos, int size, TrackState track) {
+        boolean blockAligned = track.scheme != ProtectionScheme.AES_CTR;
+        int[] subsamples = new int[8];
+        int count = 0;
+        int clear = 0;
+        int offset = 0;
+        while (offset < size) {
+            if (size - offset < track.nalLengthSize)
+                throw new IllegalArgumentException("Truncated NAL unit in track " + track.trackID);
+            int nalSize = 0;
+            for (int i = 0; i < track.nalLengthSize; i++) {
+                nalSize = (nalSize << 8) | (mdat.get(pos + offset + i) & 0xFF);
+            }
+            if (nalSize < 0 || nalSize > size - offset - track.nalLengthSize)
+                throw new IllegalArgumentException("NAL unit overruns sample in track " + track.trackID);
+            
+            boolean slice = false;
+            if (nalSize > track.nalHeaderSize) {
+                int header = mdat.get(pos + offset + track.nalLengthSize) & 0xFF;
+                if (track.hevc) {
+                    slice = ((header >> 1) & 0x3F) < 32;
+                }
+                else {
+                    int type = header & 0x1F;
+                    slice = type >= 1 && type <= 5;
+                }
+            }
+            
+            int encrypted = slice ? nalSize - track.nalHeaderSize : 0;
+            if (blockAligned)
+                encrypted -= encrypted % SampleEncryptor.BLOCK_SIZE;
+            if (encrypted > 0) {
+                clear += track.nalLengthSize + track.nalHeaderSize;
+                
+                // Clear byte counts are only 16 bits
+                while (clear > 0xFFFF) {
+                    subsamples = add(subsamples, count, 0xFFFF, 0);
+                    count += 2;
+                    clear -= 0xFFFF;
+                }
+                subsamples = add(subsamples, count, clear, encrypted);
+                count += 2;
+                clear = nalSize - track.nalHeaderSize - encrypted;
+            }
+            else {
+                clear += track.nalLengthSize + nalSize;
+            }
+            offset += track.nalLengthSize + nalSize;
+        }
+        while (clear > 0) {
+            int c = Math.min(clear, 0xFFFF);
+            subsamples = add(subsamples, count, c, 0);
+            count += 2;
+            clear -= c;
+        }
+        return Arrays.copyOf(subsamples, count);
+    }
+    
+    private static int[] add(int[] pairs, int count, int clear, int encrypted) {
+        if (count + 2 > pairs.length)
+            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+        pairs[count] = clear;
+        pairs[count+1] = encrypted;
+        return pairs;
+    }
+    
+    private static int getKeyIndex(TrackState track, long sample) {
+        int keyRoll = track.cryptTrack.getKeyRoll();
+        if (track.keys.size() == 1 || keyRoll < 1)
+            return 0;
+        return (int)((sample / keyRoll) % track.keys.size());
+    }
+    
+    // Adds the sample's IV counter to the track's first IV
+    private static byte[] getSampleIV(TrackState track, Traf traf, int sample) {
+        if (track.constantIV != null)
+            return track.constantIV;
+        byte[] iv = track.cryptTrack.getIV();
+        long add = traf.ivCounters[sample];
+        int carry = 0;
+        for (int i = iv.length - 1; i >= 0; i--) {
+            int sum = (iv[i] & 0xFF) + (int)(add & 0xFF) + carry;
+            iv[i] = (byte)sum;
+            carry = sum >> 8;
+            add >>>= 8;
+        }
+        return iv;
+    }
+    
+    /*
+     * Offset updates
+     */
+    
+    private static long mapOffset(TreeMap<Long, Long> offsetMap, long offset) {
+        Long mapped = offsetMap.get(offset);
+        if (mapped == null)
+            throw new IllegalArgumentException("Offset does not refer to a top-level box: " + offset);
+        return mapped;
+    }
+    
+    private static byte[] rewriteSidx(ByteBuffer buf, TopBox sidxBox, TreeMap<Long, Long> offsetMap) {
+        Box sidx = Box.parse(buf);
+        ByteBuffer data = sidx.getPayloadBuffer();
+        int version = getVersion(sidx.getPayload());
+        data.position(12);
+        
+        // Referenced items are located relative to the end of the sidx
+        long firstOffsetPos = data.position() + (version == 0 ? 4 : 8);
+        data.position((int)firstOffsetPos);
+        long firstOffset = (version == 0) ? (data.getInt() & 0xFFFFFFFFL) : data.getLong();
+        long start = sidxBox.offset + sidxBox.size + firstOffset;
+        long newStart = mapOffset(offsetMap, start);
+        long newFirstOffset = newStart - (sidxBox.outOffset + sidxBox.size);
+        if (version == 0) {
+            if (newFirstOffset > 0xFFFFFFFFL)
+                throw new IllegalArgumentException("sidx first offset overflow");
+            data.putInt((int)firstOffsetPos, (int)newFirstOffset);
+        }
+        else {
+            data.putLong((int)firstOffsetPos, newFirstOffset);
+        }
+        
+        data.getShort();
+        int refCount = data.getShort() & 0xFFFF;
+        for (int i = 0; i < refCount; i++) {
+            int refPos = data.position();
+            int ref = data.getInt();
+            long size = ref & 0x7FFFFFFF;
+            long newSize = mapOffset(offsetMap, start + size) - mapOffset(offsetMap, start);
+            if (newSize > 0x7FFFFFFF)
+                throw new IllegalArgumentException("sidx referenced size overflow");
+            data.putInt(refPos, (ref & 0x80000000) | (int)newSize);
+            data.position(refPos + 12);
+            start += size;
+        }
+        return sidx.toByteArray();
+    }
+    
+    private static byte[] rewriteMfra(ByteBuffer buf, TreeMap<Long, Long> offsetMap) {
+        Box mfra = Box.parse(buf);
+        for (Box tfra : mfra.getChildren("tfra")) {
+            ByteBuffer data = tfra.getPayloadBuffer();
+            int version = getVersion(tfra.getPayload());
+            data.position(8);
+            int lengths = data.getInt();
+            int entrySize = ((version == 1) ? 16 : 8) +
+                            ((lengths >> 4) & 0x3) + 1 + ((lengths >> 2) & 0x3) + 1 + (lengths & 0x3) + 1;
+            int count = data.getInt();
+            for (int i = 0; i < count; i++) {
+                int entry = data.position();
+                if (version == 1) {
+                    int pos = entry + 8;
+                    data.putLong(pos, mapOffset(offsetMap, data.getLong(pos)));
+                }
+                else {
+                    int pos = entry + 4;
+                    long offset = mapOffset(offsetMap, data.getInt(pos) & 0xFFFFFFFFL);
+                    if (offset > 0xFFFFFFFFL)
+                        throw new IllegalArgumentException("tfra moof offset overflow");
+                    data.putInt(pos, (int)offset);
+                }
+                data.position(entry + entrySize);
+            }
+        }
+        return mfra.toByteArray();
+    }
+    
+    /*
+     * Output
+     */
+    
+    // Copy a top-level box that is not part of a fragment
+    private static void writeBox(FileChannel in, FileChannel out, TopBox b) throws IOException {
+        if (b.replacement != null) {
+            ByteBuffer data = ByteBuffer.wrap(b.replacement);
+            while (data.hasRemaining()) {
+                out.write(data, b.outOffset + data.position());
+            }
+            return;
+        }
+        for (long done = 0; done < b.size; done += COPY_CHUNK) {
+            long len = Math.min(COPY_CHUNK, b.size - done);
+            map(out, FileChannel.MapMode.READ_WRITE, b.outOffset + done, len)
+                .put(map(in, FileChannel.MapMode.READ_ONLY, b.offset + done, len));
+        }
+    }
+    
+    // Write the new moof and encrypt the fragment's samples into the output mdat
+    private static void writeFragment(FileChannel in, FileChannel out, Fragment f) throws IOException {
+        ByteBuffer moof = map(out, FileChannel.MapMode.READ_WRITE, f.moof.outOffset, f.moof.replacement.length);
+        moof.put(f.moof.replacement);
+        
+        ByteBuffer src = map(in, FileChannel.MapMode.READ_ONLY, f.mdat.offset, f.mdat.size);
+        ByteBuffer dst = map(out, FileChannel.MapMode.READ_WRITE, f.mdat.outOffset, f.mdat.size);
+        
+        // Encrypted samples in file order
+        List<long[]> samples = new ArrayList<long[]>();
+        for (int t = 0; t < f.trafs.size(); t++) {
+            Traf traf = f.trafs.get(t);
+            if (!traf.track.isEncrypted())
+                continue;
+            for (int i = 0; i < traf.sizes.length; i++) {
+                samples.add(new long[] { traf.positions[i] - f.mdat.offset, t, i });
+            }
+        }
+        Collections.sort(samples, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return (a[0] < b[0]) ? -1 : ((a[0] > b[0]) ? 1 : 0);
+            }
+        });
+        
+        try {
+            SampleEncryptor[] encryptors = new SampleEncryptor[f.trafs.size()];
+            
+            // The current key of each track, looked up again only when the key rolls
+            int[] keyIndexes = new int[encryptors.length];
+            SecretKeySpec[] keys = new SecretKeySpec[encryptors.length];
+            Arrays.fill(keyIndexes, -1);
+            for (int t = 0; t < encryptors.length; t++) {
+                TrackState track = f.trafs.get(t).track;
+                if (track.isEncrypted())
+                    encryptors[t] = new SampleEncryptor(track.scheme, track.cryptTrack.getCryptByteBlock(),
+                                                        track.cryptTrack.getSkipByteBlock());
+            }
+            int pos = 0;
+            for (long[] s : samples) {
+                Traf traf = f.trafs.get((int)s[1]);
+                SampleEncryptor encryptor = encryptors[(int)s[1]];
+                int i = (int)s[2];
+                int samplePos = (int)s[0];
+                if (samplePos < pos)
+                    throw new IllegalArgumentException("Overlapping samples in fragment at " + f.moof.offset);
+                
+                copy(src, dst, pos, samplePos - pos);
+                pos = samplePos;
+                
+                int key = getKeyIndex(traf.track, traf.firstSample + i);
+                if (key != keyIndexes[(int)s[1]]) {
+                    keyIndexes[(int)s[1]] = key;
+                    keys[(int)s[1]] = new SecretKeySpec(traf.track.keys.getKey(key).getKeyPair().getKey(), "AES");
+                }
+                encryptor.init(keys[(int)s[1]], getSampleIV(traf.track, traf, i));
+                
+                if (traf.subsamples == null) {
+                    encryptor.encrypt(src, dst, pos, traf.sizes[i]);
+                    pos += traf.sizes[i];
+                }
+                else {
+                    int[] subsamples = traf.subsamples[i];
+                    for (int j = 0; j < subsamples.length; j += 2) {
+                        copy(src, dst, pos, subsamples[j]);
+                        pos += subsamples[j];
+                        encryptor.encrypt(src, dst, pos, subsamples[j+1]);
+                        pos += subsamples[j+1];
+                    }
+                }
+            }
+            copy(src, dst, pos, src.capacity() - pos);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Error encrypting samples: " + e.getMessage(), e);
+        }
+    }
+    
+    private static void copy(ByteBuffer src, ByteBuffer dst, int pos, int len) {
+        SampleEncryptor.copy(src, dst, pos, len);
+    }
+    
+    private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) throws IOException {
+        List<Future<Void>> results;
+        try {
+            results = executor.invokeAll(tasks);
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            }
+            catch (InterruptedException e) {
+                throw new IOException("Interrupted", e);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException)cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException)cause;
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.mp4;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An index of the top-level boxes of an ISOBMFF file and the tracks it contains.
+ * <p>
+ * Only box headers are read when the index is created, so the cost does not depend
+ * on the size of the media data (64-bit box sizes are supported).  The moov is
+ * memory-mapped the first time track information is requested and only the boxes
+ * needed to describe each track (tkhd, hdlr, stsd) are examined.  Sample tables
+ * and media data are never read.
+ */
+public class MP4BoxIndex implements Closeable {
+    
+    /**
+     * The location of a top-level box
+     */
+    public static class Entry {
+        private String type;
+        private long offset;
+        private long size;
+        private int headerSize;
+        
+        Entry(String type, long offset, long size, int headerSize) {
+            this.type = type;
+            this.offset = offset;
+            this.size = size;
+            this.headerSize = headerSize;
+        }
+        
+        /**
+         * Returns the box type
+         * 
+         * @return the four-character box type
+         */
+        public String getType() {
+            return type;
+        }
+        
+        /**
+         * Returns the file offset of the box header
+         * 
+         * @return the box offset
+         */
+        public long getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Returns the size of the box including its header
+         * 
+         * @return the box size
+         */
+        public long getSize() {
+            return size;
+        }
+        
+        /**
+         * Returns the size of the box header (8 or 16 bytes)
+         * 
+         * @return the header size
+         */
+        public int getHeaderSize() {
+            return headerSize;
+        }
+    }
+    
+    private RandomAccessFile file;
+    private List<Entry> boxes;
+    
+    // Parsed from the moov on first use
+    private List<TrackInfo> tracks;
+    private boolean fragmented;
+    
+    /**
+     * Index the given file
+     * 
+     * @param file the ISOBMFF file
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if the top-level box structure is invalid
+     */
+    public MP4BoxIndex(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            boxes = readTopLevelBoxes(this.file.getChannel());
+        }
+        catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Read the headers of all top-level boxes in the file
+     * 
+     * @param in the file
+     * @return the box entries in file order
+     * @throws IOException if the file could not be read
+     * @throws IllegalArgumentException if a box header is invalid
+     */
+    static List<Entry> readTopLevelBoxes(FileChannel in) throws IOException {
+        List<Entry> boxes = new ArrayList<Entry>();
+        ByteBuffer header = ByteBuffer.allocate(16);
+        long fileSize = in.size();
+        long pos = 0;
+        while (pos < fileSize) {
+            header.clear();
+            header.limit((int)Math.min(16, fileSize - pos));
+            while (header.hasRemaining()) {
+                if (in.read(header, pos + header.position()) < 0)
+                    break;
+            }
+            header.flip();
+            if (header.remaining() < 8)
+                throw new IllegalArgumentException("Truncated box header at " + pos);
+            
+            long size = header.getInt() & 0xFFFFFFFFL;
+            String type = Box.fourCC(header.getInt());
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 8)
+                    throw new IllegalArgumentException("Truncated box header at " + pos);
+                size = header.getLong();
+                headerSize = 16;
+            }
+            else if (size == 0) {
+                size = fileSize - pos;
+            }
+            if (size < headerSize || size > fileSize - pos)
+                throw new IllegalArgumentException("Invalid size for '" + type + "' box at " + pos + ": " + size);
+            
+            boxes.add(new Entry(type, pos, size, headerSize));
+            pos += size;
+        }
+        return boxes;
+    }
+    
+    /**
+     * Returns all top-level boxes
+     * 
+     * @return the box entries in file order
+     */
+    public List<Entry> getBoxes() {
+        return Collections.unmodifiableList(boxes);
+    }
+    
+    /**
+     * Returns the first top-level box of the given type
+     * 
+     * @param type the four-character box type
+     * @return the box entry or null if there is no box of that type
+     */
+    public Entry getBox(String type) {
+        for (Entry e : boxes) {
+            if (e.type.equals(type))
+                return e;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns true if the file is fragmented (the moov contains an mvex)
+     * 
+     * @return true if fragmented
+     * @throws IOException if the moov could not be read
+     */
+    public boolean isFragmented() throws IOException {
+        readMoov();
+        return fragmented;
+    }
+    
+    /**
+     * Returns the tracks described by the moov
+     * 
+     * @return the tracks in moov order
+     * @throws IOException if the moov could not be read
+     * @throws IllegalArgumentException if there is no moov or it is malformed
+     */
+    public List<TrackInfo> getTracks() throws IOException {
+        readMoov();
+        return Collections.unmodifiableList(tracks);
+    }
+    
+    /**
+     * Returns the track with the given ID
+     * 
+     * @param trackID the track ID
+     * @return the track or null if there is no track with that ID
+     * @throws IOException if the moov could not be read
+     */
+    public TrackInfo getTrack(int trackID) throws IOException {
+        for (TrackInfo t : getTracks()) {
+            if (t.getTrackID() == trackID)
+                return t;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns all tracks with the given handler type
+     * 
+     * @param handlerType the four-character handler type ("vide", "soun", etc.)
+     * @return the matching tracks
+     * @throws IOException if the moov could not be read
+     */
+    public List<TrackInfo> getTracks(String handlerType) throws IOException {
+        List<TrackInfo> found = new ArrayList<TrackInfo>();
+        for (TrackInfo t : getTracks()) {
+            if (t.getHandlerType().equals(handlerType))
+                found.add(t);
+        }
+        return found;
+    }
+    
+    private synchronized void readMoov() throws IOException {
+        if (tracks != null)
+            return;
+        
+        Entry moov = getBox("moov");
+        if (moov == null)
+            throw new IllegalArgumentException("No moov box found");
+        if (moov.size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("moov box too large: " + moov.size);
+        ByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, moov.offset, moov.size);
+        
+        int end = buf.limit();
+        fragmented = findChild(buf, moov.headerSize, end, "mvex") != null;
+        
+        List<TrackInfo> found = new ArrayList<TrackInfo>();
+        for (int[] trak : findChildren(buf, moov.headerSize, end, "trak")) {
+            found.add(readTrack(buf, trak));
+        }
+        tracks = found;
+    }
+    
+    private static TrackInfo readTrack(ByteBuffer buf, int[] trak) {
+        int[] tkhd = findChild(buf, trak[1], trak[2], "tkhd");
+        int[] mdia = findChild(buf, trak[1], trak[2], "mdia");
+        int[] hdlr = (mdia == null) ? null : findChild(buf, mdia[1], mdia[2], "hdlr");
+        if (tkhd == null || hdlr == null)
+            throw new IllegalArgumentException("Incomplete trak box at moov offset " + trak[0]);
+        
+        // tkhd version 1 has 64-bit times
+        boolean v1 = buf.get(tkhd[1]) == 1;
+        int trackID = buf.getInt(tkhd[1] + (v1 ? 20 : 12));
+        int dimensions = tkhd[1] + (v1 ? 88 : 76);
+        int width = 0;
+        int height = 0;
+        if (dimensions + 8 <= tkhd[2]) {
+            width = buf.getInt(dimensions) >>> 16;
+            height = buf.getInt(dimensions + 4) >>> 16;
+        }
+        
+        String handlerType = Box.fourCC(buf.getInt(hdlr[1] + 8));
+        
+        // First sample entry
+        String format = null;
+        boolean isProtected = false;
+        int[] minf = findChild(buf, mdia[1], mdia[2], "minf");
+        int[] stbl = (minf == null) ? null : findChild(buf, minf[1], minf[2], "stbl");
+        int[] stsd = (stbl == null) ? null : findChild(buf, stbl[1], stbl[2], "stsd");
+        if (stsd != null && buf.getInt(stsd[1] + 4) > 0) {
+            int entry = stsd[1] + 8;
+            int entryEnd = entry + buf.getInt(entry);
+            format = Box.fourCC(buf.getInt(entry + 4));
+            
+            // Visual sample entries carry the coded size
+            if (TrackInfo.HANDLER_VIDEO.equals(handlerType) && entry + 36 <= entryEnd) {
+                width = buf.getShort(entry + 32) & 0xFFFF;
+                height = buf.getShort(entry + 34) & 0xFFFF;
+            }
+            
+            // Protected entries keep the original format in sinf/frma
+            if (format.startsWith("enc")) {
+                isProtected = true;
+                int childStart = entry + (TrackInfo.HANDLER_VIDEO.equals(handlerType) ? 86 : 36);
+                int[] sinf = (childStart < entryEnd) ? findChild(buf, childStart, entryEnd, "sinf") : null;
+                int[] frma = (sinf == null) ? null : findChild(buf, sinf[1], sinf[2], "frma");
+                if (frma != null)
+                    format = Box.fourCC(buf.getInt(frma[1]));
+            }
+        }
+        
+        return new TrackInfo(trackID, handlerType, format, isProtected, width, height);
+    }
+    
+    // Returns {box start, payload start, box end} for each child box of the given type
+    private static List<int[]> findChildren(ByteBuffer buf, int start, int end, String type) {
+        List<int[]> found = new ArrayList<int[]>();
+        int boxType = Box.fourCC(type);
+        int pos = start;
+        while (pos + 8 <= end) {
+            long size = buf.getInt(pos) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = buf.getLong(pos + 8);
+                headerSize = 16;
+            }
+            else if (size == 0) {
+                size = end - pos;
+            }
+            if (size < headerSize || size > end - pos)
+                throw new IllegalArgumentException("Invalid box size at moov offset " + pos);
+            if (buf.getInt(pos + 4) == boxType)
+                found.add(new int[] { pos, pos + headerSize, pos + (int)size });
+            pos += (int)size;
+        }
+        return found;
+    }
+    
+    private static int[] findChild(ByteBuffer buf, int start, int end, String type) {
+        List<int[]> found = findChildren(buf, start, end, type);
+        return found.isEmpty() ? null : found.get(0);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
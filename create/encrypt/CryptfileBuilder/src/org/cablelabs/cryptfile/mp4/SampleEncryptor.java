@@ -0,0 +1,184 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.mp4;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+
+/**
+ * Encrypts the protected byte ranges of samples according to one of the Common
+ * Encryption protection schemes:
+ * <ul>
+ *   <li><b>cenc</b> -- AES-CTR.  All protected bytes are encrypted and the counter
+ *   runs on across the protected ranges of a sample</li>
+ *   <li><b>cbc1</b> -- AES-CBC.  Only whole blocks are encrypted and the cipher block
+ *   chain runs on across the protected ranges of a sample</li>
+ *   <li><b>cens</b> -- AES-CTR with a crypt:skip pattern.  The counter only advances
+ *   over encrypted blocks</li>
+ *   <li><b>cbcs</b> -- AES-CBC with a crypt:skip pattern.  The chain restarts with
+ *   the sample IV at the start of every protected range and runs on across
+ *   skipped blocks</li>
+ * </ul>
+ * For the pattern schemes, the pattern restarts at the beginning of every protected
+ * range.  A pattern of 0:0 encrypts every whole block.  Partial blocks at the end of
+ * a protected range are left in the clear by every scheme except cenc.
+ * <p>
+ * Instances are not thread-safe.
+ */
+class SampleEncryptor {
+    
+    static final int BLOCK_SIZE = 16;
+    
+    private Cipher cipher;
+    private boolean wholeBlocks;
+    private boolean cbc;
+    private boolean pattern;
+    private int cryptBytes;
+    private int skipBytes;
+    
+    private SecretKey key;
+    private IvParameterSpec iv;
+    
+    /**
+     * Create a new sample encryptor
+     * 
+     * @param scheme the protection scheme
+     * @param cryptByteBlock the number of encrypted blocks in the pattern (pattern
+     * schemes only)
+     * @param skipByteBlock the number of clear blocks in the pattern (pattern schemes
+     * only)
+     * @throws GeneralSecurityException if the AES cipher is not available
+     */
+    SampleEncryptor(ProtectionScheme scheme, int cryptByteBlock, int skipByteBlock)
+            throws GeneralSecurityException {
+        this.wholeBlocks = scheme != ProtectionScheme.AES_CTR;
+        this.cbc = scheme.isCBC();
+        this.pattern = scheme.isPattern() && (cryptByteBlock != 0 || skipByteBlock != 0);
+        this.cryptBytes = cryptByteBlock * BLOCK_SIZE;
+        this.skipBytes = skipByteBlock * BLOCK_SIZE;
+        if (pattern && cryptByteBlock == 0)
+            throw new IllegalArgumentException("Encryption pattern must have at least one encrypted block");
+        cipher = Cipher.getInstance(cbc ? "AES/CBC/NoPadding" : "AES/CTR/NoPadding");
+    }
+    
+    /**
+     * Start a new sample
+     * 
+     * @param key the sample key
+     * @param iv the 8- or 16-byte sample IV.  8-byte IVs are padded with zeros
+     * @throws GeneralSecurityException if the key or IV is invalid
+     */
+    void init(SecretKey key, byte[] iv) throws GeneralSecurityException {
+        if (cbc && iv.length != BLOCK_SIZE)
+            throw new IllegalArgumentException("AES-CBC requires a 16-byte IV");
+        this.key = key;
+        this.iv = new IvParameterSpec(Arrays.copyOf(iv, BLOCK_SIZE));
+        cipher.init(Cipher.ENCRYPT_MODE, key, this.iv);
+    }
+    
+    /**
+     * Encrypt the next protected range of the current sample from the source buffer
+     * into the same position of the destination buffer.  Bytes of the range that are
+     * not encrypted are copied
+     * 
+     * @param src the clear data
+     * @param dst the output
+     * @param pos the position of the range in both buffers
+     * @param len the length of the range
+     * @throws GeneralSecurityException if there was an error encrypting the data
+     */
+    void encrypt(ByteBuffer src, ByteBuffer dst, int pos, int len) throws GeneralSecurityException {
+        if (len <= 0)
+            return;
+        
+        // cenc encrypts every byte
+        if (!wholeBlocks) {
+            cipher.update(range(src, pos, len), range(dst, pos, len));
+            return;
+        }
+        
+        // cbcs restarts the chain for every protected range
+        if (cbc && pattern)
+            cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+        
+        int end = pos + len;
+        int blocksEnd = pos + len - (len % BLOCK_SIZE);
+        if (!pattern) {
+            update(src, dst, pos, blocksEnd - pos);
+            copy(src, dst, blocksEnd, end - blocksEnd);
+            return;
+        }
+        
+        // Most of a pattern-encrypted range is clear, so copy it all in one go and
+        // then overwrite the encrypted blocks
+        copy(src, dst, pos, len);
+        for (int p = pos; p < blocksEnd; p += cryptBytes + skipBytes) {
+            update(src, dst, p, Math.min(cryptBytes, blocksEnd - p));
+        }
+    }
+    
+    private void update(ByteBuffer src, ByteBuffer dst, int pos, int len) throws GeneralSecurityException {
+        if (len > 0)
+            cipher.update(range(src, pos, len), range(dst, pos, len));
+    }
+    
+    /**
+     * Returns the number of bytes of a protected range that are encrypted
+     * 
+     * @param len the length of the range
+     * @return the number of encrypted bytes
+     */
+    int getEncryptedBytes(int len) {
+        if (!wholeBlocks)
+            return len;
+        int blocks = len - (len % BLOCK_SIZE);
+        if (!pattern)
+            return blocks;
+        int period = cryptBytes + skipBytes;
+        return (blocks / period) * cryptBytes + Math.min(cryptBytes, blocks % period);
+    }
+    
+    static ByteBuffer range(ByteBuffer buf, int pos, int len) {
+        ByteBuffer b = buf.duplicate();
+        b.position(pos);
+        b.limit(pos + len);
+        return b;
+    }
+    
+    static void copy(ByteBuffer src, ByteBuffer dst, int pos, int len) {
+        if (len > 0 && src != dst)
+            range(dst, pos, len).put(range(src, pos, len));
+    }
+}
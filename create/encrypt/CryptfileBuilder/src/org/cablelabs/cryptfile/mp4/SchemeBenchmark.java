@@ -0,0 +1,126 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.cryptfile.mp4;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme;
+
+/**
+ * Compares the sample encryption throughput of the Common Encryption protection
+ * schemes.  A buffer of synthetic AVC video samples (one slice NAL unit per sample)
+ * is encrypted repeatedly with each scheme, in the same way that {@link CencEncryptor}
+ * encrypts the samples of a fragment.
+ * <p>
+ * usage:  SchemeBenchmark [&lt;sample_count&gt; [&lt;mean_sample_size&gt; [&lt;iterations&gt;]]]
+ */
+public class SchemeBenchmark {
+    
+    private static final int NAL_LENGTH_SIZE = 4;
+    private static final int NAL_HEADER_SIZE = 1;
+    
+    private static final int CRYPT_BYTE_BLOCK = 1;
+    private static final int SKIP_BYTE_BLOCK = 9;
+    
+    public static void main(String[] args) throws GeneralSecurityException {
+        int sampleCount = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int meanSize = (args.length > 1) ? Integer.parseInt(args[1]) : 16 * 1024;
+        int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        
+        // Samples with random sizes and content.  Each sample has one slice whose data,
+        // after the NAL length and header, is the protected range
+        Random random = new Random(0);
+        int[] sizes = new int[sampleCount];
+        int total = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = NAL_LENGTH_SIZE + NAL_HEADER_SIZE + meanSize / 2 + random.nextInt(meanSize);
+            total += sizes[i];
+        }
+        byte[] data = new byte[total];
+        random.nextBytes(data);
+        ByteBuffer src = ByteBuffer.allocateDirect(total);
+        src.put(data);
+        ByteBuffer dst = ByteBuffer.allocateDirect(total);
+        
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        
+        System.out.println(sampleCount + " samples, " + total + " bytes, " + iterations + " iterations");
+        System.out.println("");
+        System.out.println(String.format("%-6s %-8s %12s %12s %10s", "scheme", "pattern", "sample MB/s",
+                                         "crypt MB/s", "encrypted"));
+        for (ProtectionScheme scheme : ProtectionScheme.values()) {
+            SampleEncryptor encryptor = new SampleEncryptor(scheme, CRYPT_BYTE_BLOCK, SKIP_BYTE_BLOCK);
+            
+            // Subsample layout for this scheme
+            int[] protectedSizes = new int[sampleCount];
+            long encryptedBytes = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                protectedSizes[i] = sizes[i] - NAL_LENGTH_SIZE - NAL_HEADER_SIZE;
+                if (scheme != ProtectionScheme.AES_CTR)
+                    protectedSizes[i] -= protectedSizes[i] % SampleEncryptor.BLOCK_SIZE;
+                encryptedBytes += encryptor.getEncryptedBytes(protectedSizes[i]);
+            }
+            
+            // Warm up, then measure
+            run(encryptor, keySpec, iv, src, dst, sizes, protectedSizes);
+            long start = System.nanoTime();
+            for (int n = 0; n < iterations; n++) {
+                run(encryptor, keySpec, iv, src, dst, sizes, protectedSizes);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            
+            double mb = (double)total * iterations / (1024 * 1024);
+            double cryptMB = (double)encryptedBytes * iterations / (1024 * 1024);
+            System.out.println(String.format("%-6s %-8s %12.1f %12.1f %9.1f%%", scheme.getSchemeType(),
+                                             scheme.isPattern() ? CRYPT_BYTE_BLOCK + ":" + SKIP_BYTE_BLOCK : "-",
+                                             mb / seconds, cryptMB / seconds,
+                                             100.0 * encryptedBytes / total));
+        }
+    }
+    
+    private static void run(SampleEncryptor encryptor, SecretKeySpec key, byte[] iv,
+                            ByteBuffer src, ByteBuffer dst, int[] sizes, int[] protectedSizes)
+            throws GeneralSecurityException {
+        int pos = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            int clear = sizes[i] - protectedSizes[i];
+            SampleEncryptor.copy(src, dst, pos, clear);
+            encryptor.init(key, iv);
+            encryptor.encrypt(src, dst, pos + clear, protectedSizes[i]);
+            pos += sizes[i];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.cryptfile.mp4;
+
+/**
+ * Describes a track found in an ISOBMFF file
+ */
+public class TrackInfo {
+    
+    /**
+     * Handler type of video tracks
+     */
+    public static final String HANDLER_VIDEO = "vide";
+    
+    /**
+     * Handler type of audio tracks
+     */
+    public static final String HANDLER_AUDIO = "soun";
+    
+    private int trackID;
+    private String handlerType;
+    private String format;
+    private boolean isProtected;
+    private int width;
+    private int height;
+    
+    TrackInfo(int trackID, String handlerType, String format, boolean isProtected, int width, int height) {
+        this.trackID = trackID;
+        this.handlerType = handlerType;
+        this.format = format;
+        this.isProtected = isProtected;
+        this.width = width;
+        this.height = height;
+    }
+    
+    /**
+     * Returns the track ID
+     * 
+     * @return the track ID from the track header
+     */
+    public int getTrackID() {
+        return trackID;
+    }
+    
+    /**
+     * Returns the handler type ("vide", "soun", "text", etc.)
+     * 
+     * @return the four-character handler type
+     */
+    public String getHandlerType() {
+        return handlerType;
+    }
+    
+    /**
+     * Returns the coding format of the first sample entry ("avc1", "mp4a", etc.).  For
+     * protected tracks, this is the original format of the clear samples
+     * 
+     * @return the four-character sample entry format or null if the track has no
+     * sample entries
+     */
+    public String getFormat() {
+        return format;
+    }
+    
+    /**
+     * Returns true if the track's samples are already protected
+     * 
+     * @return true if the sample entry is encv, enca, etc.
+     */
+    public boolean isProtected() {
+        return isProtected;
+    }
+    
+    /**
+     * Returns the width of video tracks
+     * 
+     * @return the width in pixels, or 0 if the track has no visual size
+     */
+    public int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Returns the height of video tracks
+     * 
+     * @return the height in pixels, or 0 if the track has no visual size
+     */
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns true if this is a video track
+     * 
+     * @return true if the handler type is "vide"
+     */
+    public boolean isVideo() {
+        return HANDLER_VIDEO.equals(handlerType);
+    }
+    
+    /**
+     * Returns true if this is an audio track
+     * 
+     * @return true if the handler type is "soun"
+     */
+    public boolean isAudio() {
+        return HANDLER_AUDIO.equals(handlerType);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        String s = "Track " + trackID + ": " + handlerType + " (" + format + ")";
+        if (width != 0 || height != 0)
+            s += " " + width + "x" + height;
+        if (isProtected)
+            s += " protected";
+        return s;
+    }
+}
@@ -0,0 +1,241 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.benchmark;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Compares two sets of JMH results (written with "-rf json") and reports the change
+ * in score and in normalized allocation rate (from "-prof gc") for every benchmark.
+ * A benchmark regresses when either number gets worse by more than the threshold.
+ */
+public class BenchmarkCompare {
+    
+    // Older JMH versions prefix secondary metric names with a middle dot
+    private static final String[] ALLOC_METRICS = { "gc.alloc.rate.norm", "\u00b7gc.alloc.rate.norm" };
+    
+    private static void usage() {
+        System.out.println("JMH benchmark results comparison tool.");
+        System.out.println("");
+        System.out.println("usage:  BenchmarkCompare [OPTIONS] <baseline_json> <results_json>");
+        System.out.println("");
+        System.out.println("\tOPTIONS:");
+        System.out.println("");
+        System.out.println("\t-help");
+        System.out.println("\t\tDisplay this usage message.");
+        System.out.println("");
+        System.out.println("\t-threshold <percent>");
+        System.out.println("\t\tThe change in score or allocation that counts as a regression.  Default is 10.");
+        System.out.println("");
+        System.out.println("\t-out <filename>");
+        System.out.println("\t\tIf present, the report will also be written to the given file.");
+        System.out.println("");
+        System.out.println("\t-fail");
+        System.out.println("\t\tExit with a non-zero status if any benchmark regressed.");
+    }
+    
+    private static void errorExit(String errorString) {
+        usage();
+        System.err.println(errorString);
+        System.exit(1);
+    }
+    
+    // One benchmark result
+    private static class Result {
+        String mode;
+        double score;
+        double error;
+        String unit;
+        double alloc = Double.NaN;
+        
+        // Lower scores are better for everything but throughput
+        boolean isWorse(double baseline, double current, double threshold) {
+            double change = (current - baseline) / baseline;
+            return mode.equals("thrpt") ? change < -threshold : change > threshold;
+        }
+    }
+    
+    // Read JMH results keyed by benchmark name and parameters
+    private static Map<String, Result> readResults(String file) throws IOException {
+        Map<String, Result> results = new TreeMap<String, Result>();
+        Reader r = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            for (JsonElement e : new JsonParser().parse(r).getAsJsonArray()) {
+                JsonObject o = e.getAsJsonObject();
+                
+                // Class and method name without the package
+                String name = o.get("benchmark").getAsString();
+                int method = name.lastIndexOf('.');
+                StringBuilder key = new StringBuilder(name.substring(name.lastIndexOf('.', method - 1) + 1));
+                if (o.has("params")) {
+                    Map<String, String> params = new TreeMap<String, String>();
+                    for (Map.Entry<String, JsonElement> p : o.getAsJsonObject("params").entrySet()) {
+                        params.put(p.getKey(), p.getValue().getAsString());
+                    }
+                    key.append(params.toString());
+                }
+                
+                Result result = new Result();
+                result.mode = o.get("mode").getAsString();
+                JsonObject primary = o.getAsJsonObject("primaryMetric");
+                result.score = primary.get("score").getAsDouble();
+                result.error = primary.get("scoreError").isJsonPrimitive() ?
+                        primary.get("scoreError").getAsDouble() : Double.NaN;
+                result.unit = primary.get("scoreUnit").getAsString();
+                JsonObject secondary = o.getAsJsonObject("secondaryMetrics");
+                for (int i = 0; secondary != null && i < ALLOC_METRICS.length; i++) {
+                    if (secondary.has(ALLOC_METRICS[i]))
+                        result.alloc = secondary.getAsJsonObject(ALLOC_METRICS[i]).get("score").getAsDouble();
+                }
+                results.put(key.toString(), result);
+            }
+        }
+        finally {
+            r.close();
+        }
+        return results;
+    }
+    
+    private static String percent(double baseline, double current) {
+        if (Double.isNaN(baseline) || Double.isNaN(current) || baseline == 0)
+            return "";
+        return String.format("%+.1f%%", 100 * (current - baseline) / baseline);
+    }
+    
+    public static void main(String[] args) {
+        
+        double threshold = 0.10;
+        String outfile = null;
+        boolean fail = false;
+        List<String> files = new ArrayList<String>();
+        
+        // Parse arguments
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-help")) {
+                usage();
+                System.exit(0);
+            }
+            else if (args[i].equals("-threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]) / 100;
+            }
+            else if (args[i].equals("-out") && i + 1 < args.length) {
+                outfile = args[++i];
+            }
+            else if (args[i].equals("-fail")) {
+                fail = true;
+            }
+            else if (args[i].startsWith("-")) {
+                errorExit("Illegal argument: " + args[i]);
+            }
+            else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() != 2)
+            errorExit("Baseline and results files are required");
+        
+        Map<String, Result> baseline = null;
+        Map<String, Result> current = null;
+        try {
+            baseline = readResults(files.get(0));
+            current = readResults(files.get(1));
+        }
+        catch (FileNotFoundException e) {
+            errorExit("Results file not found: " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading results: " + e.getMessage());
+        }
+        catch (JsonParseException e) {
+            errorExit("Invalid JMH results: " + e.getMessage());
+        }
+        catch (IllegalStateException e) {
+            errorExit("Invalid JMH results: " + e.getMessage());
+        }
+        
+        // Build the report
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-84s %14s %14s %9s %12s %12s %9s%n", "Benchmark", "Baseline", "Current",
+                                    "Change", "Alloc B/op", "Alloc B/op", "Change"));
+        int regressions = 0;
+        int missing = 0;
+        for (Map.Entry<String, Result> e : baseline.entrySet()) {
+            Result b = e.getValue();
+            Result c = current.get(e.getKey());
+            if (c == null) {
+                missing++;
+                continue;
+            }
+            boolean regressed = b.isWorse(b.score, c.score, threshold) ||
+                    (!Double.isNaN(b.alloc) && !Double.isNaN(c.alloc) && b.alloc > 0 &&
+                     (c.alloc - b.alloc) / b.alloc > threshold);
+            if (regressed)
+                regressions++;
+            report.append(String.format("%-84s %14.3f %14.3f %9s %12.0f %12.0f %9s%s%n", e.getKey(), b.score, c.score,
+                                        percent(b.score, c.score), b.alloc, c.alloc, percent(b.alloc, c.alloc),
+                                        regressed ? " REGRESSION" : ""));
+        }
+        for (String key : current.keySet()) {
+            if (!baseline.containsKey(key))
+                report.append(String.format("%-84s %14s %14.3f%n", key, "(new)", current.get(key).score));
+        }
+        report.append(String.format("%n%d benchmarks compared, %d regressed by more than %.0f%%, %d not run%n",
+                                    baseline.size() - missing, regressions, threshold * 100, missing));
+        
+        // Write the output
+        System.out.print(report);
+        if (outfile != null) {
+            try {
+                PrintStream out = new PrintStream(new FileOutputStream(outfile), false, "UTF-8");
+                out.print(report);
+                out.close();
+            }
+            catch (IOException e) {
+                errorExit("Could not open output file (" + outfile + ") for writing");
+            }
+        }
+        
+        if (fail && regressions > 0)
+            System.exit(1);
+    }
+}
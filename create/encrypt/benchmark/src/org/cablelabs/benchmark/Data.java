@@ -0,0 +1,97 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Deterministic test data shared by the benchmarks
+ */
+class Data {
+    
+    /**
+     * Returns <i>count</i> key IDs in GUID form.  Key IDs are unique across tracks
+     * 
+     * @param track the track number
+     * @param count the number of key IDs
+     * @return the key IDs
+     */
+    static List<String> keyIDs(int track, int count) {
+        List<String> keyIDs = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            keyIDs.add(String.format("%08x-0000-1000-8000-%012x", track, i));
+        }
+        return keyIDs;
+    }
+    
+    /**
+     * Returns <i>count</i> key pairs with random key values
+     * 
+     * @param track the track number
+     * @param count the number of key pairs
+     * @return the key pairs
+     */
+    static List<KeyPair> keyPairs(int track, int count) {
+        Random random = new Random(track);
+        List<KeyPair> keyPairs = new ArrayList<KeyPair>(count);
+        for (String keyID : keyIDs(track, count)) {
+            byte[] key = new byte[16];
+            random.nextBytes(key);
+            keyPairs.add(new KeyPair(keyID, key));
+        }
+        return keyPairs;
+    }
+    
+    /**
+     * Returns <i>trackCount</i> encrypted tracks, each with <i>keysPerTrack</i> rolling keys
+     * 
+     * @param scheme the protection scheme the tracks will be used with
+     * @param trackCount the number of tracks
+     * @param keysPerTrack the number of keys for each track
+     * @return the tracks
+     */
+    static List<CryptTrack> tracks(CryptfileBuilder.ProtectionScheme scheme, int trackCount, int keysPerTrack) {
+        List<CryptTrack> tracks = new ArrayList<CryptTrack>(trackCount);
+        for (int t = 1; t <= trackCount; t++) {
+            List<CryptKey> keys = new ArrayList<CryptKey>(keysPerTrack);
+            for (KeyPair keyPair : keyPairs(t, keysPerTrack)) {
+                keys.add(new CryptKey(keyPair));
+            }
+            tracks.add(CryptTrack.forScheme(scheme, t, CryptTrack.IV_SIZE_8, keys,
+                                            (keysPerTrack > 1) ? 1 : -1, 1, 9));
+        }
+        return tracks;
+    }
+}
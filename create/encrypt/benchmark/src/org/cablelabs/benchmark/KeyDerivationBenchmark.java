@@ -0,0 +1,100 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cablelabs.playready.PlayReadyKeyDeriver;
+import org.cablelabs.playready.PlayReadyKeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * PlayReady key derivation.  Each invocation derives the keys (and checksums) for
+ * <i>keys</i> key IDs from the PlayReady test server key seed, either one
+ * {@link PlayReadyKeyPair} at a time or in bulk with {@link PlayReadyKeyDeriver}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+    
+    @Param({ "1", "100", "10000", "100000" })
+    public int keys;
+    
+    private List<String> keyIDs;
+    private PlayReadyKeyDeriver deriver;
+    private PlayReadyKeyDeriver singleThreadDeriver;
+    
+    @Setup
+    public void setup() {
+        keyIDs = Data.keyIDs(0, keys);
+        deriver = new PlayReadyKeyDeriver();
+        singleThreadDeriver = new PlayReadyKeyDeriver(1);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        deriver.close();
+        singleThreadDeriver.close();
+    }
+    
+    @Benchmark
+    public List<PlayReadyKeyPair> generateKeys() {
+        List<PlayReadyKeyPair> keyPairs = new ArrayList<PlayReadyKeyPair>(keyIDs.size());
+        for (String keyID : keyIDs) {
+            keyPairs.add(new PlayReadyKeyPair(keyID));
+        }
+        return keyPairs;
+    }
+    
+    @Benchmark
+    public List<PlayReadyKeyPair> deriveKeys() {
+        return deriver.derive(keyIDs, null);
+    }
+    
+    @Benchmark
+    public List<PlayReadyKeyPair> deriveKeysSingleThread() {
+        return singleThreadDeriver.derive(keyIDs, null);
+    }
+}
@@ -0,0 +1,150 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.cablelabs.clearkey.cryptfile.ClearKeyJsonPSSH;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.XMLSupport;
+import org.cablelabs.playready.PlayReadyKeyPair;
+import org.cablelabs.playready.WRMHeader;
+import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
+import org.cablelabs.widevine.cryptfile.WidevinePSSH;
+import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * PSSH serialization for each DRM.  Each invocation serializes the PSSH for
+ * <i>keys</i> keys, either as a cryptfile DRMInfo element or as a binary 'pssh' box.
+ * <p>
+ * ClearKey JSON PSSH data is limited to 65535 bytes (about 540 keys), so the key
+ * count stops at 500.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PSSHBenchmark {
+    
+    @Param({ "1", "100", "500" })
+    public int keys;
+    
+    private List<WRMHeader> wrmHeaders;
+    private List<KeyPair> keyPairs;
+    private List<ByteString> keyIDs;
+    private Document doc;
+    
+    @Setup
+    public void setup() throws ParserConfigurationException {
+        wrmHeaders = new ArrayList<WRMHeader>(keys);
+        for (String keyID : Data.keyIDs(0, keys)) {
+            wrmHeaders.add(new WRMHeader(WRMHeader.Version.V_4000, new PlayReadyKeyPair(keyID),
+                                         "http://playready.example.com/rightsmanager.asmx"));
+        }
+        
+        keyPairs = Data.keyPairs(0, keys);
+        keyIDs = new ArrayList<ByteString>(keys);
+        for (KeyPair keyPair : keyPairs) {
+            keyIDs.add(ByteString.copyFrom(keyPair.getID()));
+        }
+        
+        doc = XMLSupport.newDocument();
+    }
+    
+    private static ByteBuffer toPsshBox(DRMInfoPSSH pssh) {
+        ByteBuffer buf = ByteBuffer.allocate(pssh.getPsshBoxSize(DRMInfoPSSH.PSSH_VERSION_1));
+        pssh.toPsshBox(buf, DRMInfoPSSH.PSSH_VERSION_1);
+        return buf;
+    }
+    
+    private WidevinePSSHProtoBuf.WidevineCencHeader widevineHeader() {
+        return WidevinePSSHProtoBuf.WidevineCencHeader.newBuilder()
+                .setAlgorithm(WidevinePSSHProtoBuf.WidevineCencHeader.Algorithm.AESCTR)
+                .addAllKeyId(keyIDs)
+                .setProvider("cablelabs")
+                .setTrackType("HD")
+                .build();
+    }
+    
+    @Benchmark
+    public int wrmHeaderData() {
+        int size = 0;
+        for (WRMHeader header : wrmHeaders) {
+            size += header.getWRMHeaderData().length;
+        }
+        return size;
+    }
+    
+    @Benchmark
+    public ByteBuffer playReadyPsshBox() {
+        return toPsshBox(new PlayReadyPSSH(wrmHeaders));
+    }
+    
+    @Benchmark
+    public Node clearKeyJsonXML() {
+        return new ClearKeyJsonPSSH(keyPairs).generateXML(doc);
+    }
+    
+    @Benchmark
+    public ByteBuffer clearKeyJsonPsshBox() {
+        return toPsshBox(new ClearKeyJsonPSSH(keyPairs));
+    }
+    
+    @Benchmark
+    public byte[] widevineProtobuf() {
+        return widevineHeader().toByteArray();
+    }
+    
+    @Benchmark
+    public ByteBuffer widevinePsshBox() {
+        return toPsshBox(new WidevinePSSH(widevineHeader()));
+    }
+}
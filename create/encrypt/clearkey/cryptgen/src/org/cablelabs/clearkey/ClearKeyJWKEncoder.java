@@ -0,0 +1,189 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.clearkey;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.cablelabs.cryptfile.KeyPair;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams a JSON Web Key set ({@link ClearKeyJWK}) for a list of keys straight to
+ * ASCII bytes.
+ * <p>
+ * Keys are written one at a time with a {@link JsonWriter} into one reusable buffer,
+ * so no intermediate key objects or JSON strings are built and the cost is linear in
+ * the number of keys.  Key IDs and keys are in unpadded base64url notation as
+ * required by W3C Encrypted Media Extensions.  The output matches
+ * {@link com.google.gson.Gson} serialization of a {@link ClearKeyJWK}, and its size
+ * can be computed up front with {@link #getEncodedSize(List)}.
+ * <p>
+ * An encoder is not thread-safe.  Reuse one per thread for many key sets.
+ */
+public class ClearKeyJWKEncoder {
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private static final String KTY = "oct";
+    private static final String ALG = "A128GCM";
+    
+    // Everything in the key set but the separating commas and the base64url values
+    private static final int KEY_SET_OVERHEAD = "{\"keys\":[]}".length();
+    private static final int KEY_OVERHEAD =
+            ("{\"kty\":\"" + KTY + "\",\"alg\":\"" + ALG + "\",\"kid\":\"\",\"k\":\"\"}").length();
+    
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+    
+    private AsciiWriter out = new AsciiWriter(INITIAL_CAPACITY);
+    
+    /**
+     * Returns the size of the JSON Web Key set for the given keys, without encoding it
+     * 
+     * @param keypairs the keys
+     * @return the encoded size in bytes
+     */
+    public static int getEncodedSize(List<? extends KeyPair> keypairs) {
+        long size = KEY_SET_OVERHEAD;
+        for (KeyPair keypair : keypairs) {
+            size += KEY_OVERHEAD + getBase64URLSize(keypair.getID().length) +
+                    getBase64URLSize(keypair.getKey().length);
+        }
+        if (!keypairs.isEmpty())
+            size += keypairs.size() - 1;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many keys for one JSON Web Key set: " + keypairs.size());
+        return (int)size;
+    }
+    
+    // Unpadded base64 length
+    private static int getBase64URLSize(int length) {
+        return (length * 4 + 2) / 3;
+    }
+    
+    /**
+     * Encode a JSON Web Key set into this encoder's buffer
+     * 
+     * @param keypairs the keys
+     * @return the encoded key set, from position 0 to the limit.  Only valid until
+     * the next call to this encoder
+     */
+    public ByteBuffer encode(List<? extends KeyPair> keypairs) {
+        out.reset(getEncodedSize(keypairs));
+        try {
+            JsonWriter w = new JsonWriter(out);
+            w.beginObject();
+            w.name("keys").beginArray();
+            for (KeyPair keypair : keypairs) {
+                w.beginObject();
+                w.name("kty").value(KTY);
+                w.name("alg").value(ALG);
+                w.name("kid").value(BASE64URL.encodeToString(keypair.getID()));
+                w.name("k").value(BASE64URL.encodeToString(keypair.getKey()));
+                w.endObject();
+            }
+            w.endArray();
+            w.endObject();
+            w.flush();
+        }
+        catch (IOException e) {
+            // AsciiWriter never throws
+            throw new IllegalStateException("Could not encode JSON Web Key set", e);
+        }
+        return ByteBuffer.wrap(out.buf, 0, out.size);
+    }
+    
+    /**
+     * Encode a JSON Web Key set into a new array
+     * 
+     * @param keypairs the keys
+     * @return the encoded key set
+     */
+    public byte[] encodeToArray(List<? extends KeyPair> keypairs) {
+        ByteBuffer data = encode(keypairs);
+        return Arrays.copyOf(data.array(), data.limit());
+    }
+    
+    // Growable byte buffer for the JsonWriter.  All JWK output is ASCII
+    private static class AsciiWriter extends Writer {
+        
+        private byte[] buf;
+        private int size;
+        
+        AsciiWriter(int capacity) {
+            buf = new byte[capacity];
+        }
+        
+        // Empty the buffer, making room for the given number of bytes
+        void reset(int capacity) {
+            if (buf.length < capacity)
+                buf = new byte[Math.max(capacity, buf.length * 2)];
+            size = 0;
+        }
+        
+        private void ensureCapacity(int len) {
+            if (size + len > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(size + len, buf.length * 2));
+        }
+        
+        @Override
+        public void write(int c) {
+            ensureCapacity(1);
+            buf[size++] = (byte)c;
+        }
+        
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++) {
+                buf[size++] = (byte)cbuf[off + i];
+            }
+        }
+        
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(len);
+            for (int i = 0; i < len; i++) {
+                buf[size++] = (byte)str.charAt(off + i);
+            }
+        }
+        
+        @Override
+        public void flush() {
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+}
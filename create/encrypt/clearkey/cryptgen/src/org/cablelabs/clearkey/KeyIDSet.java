@@ -0,0 +1,240 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.clearkey;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.cablelabs.cryptfile.CryptoException;
+
+/**
+ * A sorted set of distinct 16-byte key IDs, with the compact forms used to name it in a
+ * ClearKey "remote" PSSH license URL.
+ * <p>
+ * A set can be described by its runs of consecutive key IDs (see {@link #getRanges()}),
+ * which is compact for rolling keys with sequential IDs, or by a fixed-size handle
+ * (see {@link #getHandle()}): the first 16 bytes of the SHA-256 digest of the sorted
+ * key IDs, in unpadded base64url notation.  The license server resolves a handle by
+ * computing the handles of the key sets registered with it.
+ */
+public final class KeyIDSet {
+    
+    /** Size of a key ID in bytes */
+    public static final int KEY_ID_SIZE = 16;
+    
+    private static final int HANDLE_SIZE = 16;
+    
+    /** Unsigned, big-endian key ID order */
+    public static final Comparator<byte[]> KEY_ID_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            for (int i = 0; i < KEY_ID_SIZE; i++) {
+                int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            return 0;
+        }
+    };
+    
+    private List<byte[]> keyIDs;
+    private String handle;
+    
+    /**
+     * Create a key ID set.  Duplicate key IDs are removed
+     * 
+     * @param keyIDs the 16-byte key IDs, in any order
+     * @throws IllegalArgumentException if a key ID is not 16 bytes
+     */
+    public KeyIDSet(Collection<byte[]> keyIDs) {
+        byte[][] sorted = new byte[keyIDs.size()][];
+        int i = 0;
+        for (byte[] keyID : keyIDs) {
+            if (keyID.length != KEY_ID_SIZE)
+                throw new IllegalArgumentException("Invalid key ID length: " + keyID.length);
+            sorted[i++] = keyID.clone();
+        }
+        Arrays.sort(sorted, KEY_ID_ORDER);
+        
+        List<byte[]> distinct = new ArrayList<byte[]>(sorted.length);
+        for (i = 0; i < sorted.length; i++) {
+            if (i == 0 || KEY_ID_ORDER.compare(sorted[i], sorted[i - 1]) != 0)
+                distinct.add(sorted[i]);
+        }
+        this.keyIDs = Collections.unmodifiableList(distinct);
+    }
+    
+    /**
+     * Parse a key ID in hexadecimal, optionally in GUID form
+     * (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx)
+     * 
+     * @param keyID the key ID string
+     * @return the 16-byte key ID
+     * @throws IllegalArgumentException if the string is not a 16-byte hexadecimal value
+     */
+    public static byte[] parseKeyID(String keyID) {
+        byte[] retVal = new byte[KEY_ID_SIZE];
+        int pos = 0;
+        int hi = -1;
+        for (int i = 0; i < keyID.length(); i++) {
+            char c = keyID.charAt(i);
+            if (c == '-')
+                continue;
+            int digit = Character.digit(c, 16);
+            if (digit < 0 || pos == KEY_ID_SIZE)
+                throw new IllegalArgumentException("Invalid key ID: " + keyID);
+            if (hi < 0) {
+                hi = digit;
+            }
+            else {
+                retVal[pos++] = (byte)((hi << 4) | digit);
+                hi = -1;
+            }
+        }
+        if (hi >= 0 || pos != KEY_ID_SIZE)
+            throw new IllegalArgumentException("Invalid key ID: " + keyID);
+        return retVal;
+    }
+    
+    /**
+     * Returns the key IDs in ascending order
+     * 
+     * @return the key IDs.  The arrays must not be modified
+     */
+    public List<byte[]> getKeyIDs() {
+        return keyIDs;
+    }
+    
+    /**
+     * Returns the number of key IDs
+     * 
+     * @return the key ID count
+     */
+    public int size() {
+        return keyIDs.size();
+    }
+    
+    /**
+     * Returns the runs of consecutive key IDs, treating key IDs as 128-bit unsigned
+     * integers.  A key ID with no neighbours is a run of one
+     * 
+     * @return the first and last key ID of each run, in ascending order
+     */
+    public List<byte[][]> getRanges() {
+        List<byte[][]> ranges = new ArrayList<byte[][]>();
+        int first = 0;
+        for (int i = 1; i <= keyIDs.size(); i++) {
+            if (i < keyIDs.size() && isSuccessor(keyIDs.get(i - 1), keyIDs.get(i)))
+                continue;
+            ranges.add(new byte[][] { keyIDs.get(first), keyIDs.get(i - 1) });
+            first = i;
+        }
+        return ranges;
+    }
+    
+    // True if b == a + 1
+    private static boolean isSuccessor(byte[] a, byte[] b) {
+        int i = KEY_ID_SIZE - 1;
+        
+        // Trailing bytes of a that wrap from 0xff to 0x00
+        while (i >= 0 && a[i] == (byte)0xff) {
+            if (b[i] != 0)
+                return false;
+            i--;
+        }
+        if (i < 0 || b[i] != (byte)(a[i] + 1))
+            return false;
+        for (i--; i >= 0; i--) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Returns every key ID from <code>first</code> to <code>last</code>, inclusive
+     * 
+     * @param first the first key ID
+     * @param last the last key ID
+     * @param max the largest number of key IDs accepted
+     * @return the key IDs in ascending order
+     * @throws IllegalArgumentException if the range is empty or holds more than
+     * <code>max</code> key IDs
+     */
+    public static List<byte[]> expandRange(byte[] first, byte[] last, int max) {
+        if (first.length != KEY_ID_SIZE || last.length != KEY_ID_SIZE)
+            throw new IllegalArgumentException("Invalid key ID length");
+        BigInteger count = new BigInteger(1, last).subtract(new BigInteger(1, first)).add(BigInteger.ONE);
+        if (count.signum() <= 0)
+            throw new IllegalArgumentException("Empty key ID range");
+        if (count.compareTo(BigInteger.valueOf(max)) > 0)
+            throw new IllegalArgumentException("Too many key IDs in range: " + count);
+        
+        List<byte[]> keyIDs = new ArrayList<byte[]>(count.intValue());
+        byte[] keyID = first.clone();
+        for (int n = count.intValue(); n > 0; n--) {
+            keyIDs.add(keyID.clone());
+            for (int i = KEY_ID_SIZE - 1; i >= 0; i--) {
+                if (++keyID[i] != 0)
+                    break;
+            }
+        }
+        return keyIDs;
+    }
+    
+    /**
+     * Returns the handle that names this set in a license request: the first 16 bytes
+     * of the SHA-256 digest of the sorted key IDs, in unpadded base64url notation
+     * 
+     * @return the 22-character handle
+     */
+    public String getHandle() {
+        if (handle == null) {
+            try {
+                MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+                for (byte[] keyID : keyIDs) {
+                    sha256.update(keyID);
+                }
+                handle = Base64.getUrlEncoder().withoutPadding()
+                        .encodeToString(Arrays.copyOf(sha256.digest(), HANDLE_SIZE));
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new CryptoException("Java Virtual Machine does not support SHA-256 algorithm", e);
+            }
+        }
+        return handle;
+    }
+}
@@ -26,18 +26,13 @@
 
 package org.cablelabs.clearkey.cryptfile;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
-import org.cablelabs.clearkey.ClearKeyJWK;
-import org.cablelabs.cryptfile.Bitstream;
+import org.cablelabs.clearkey.ClearKeyJWKEncoder;
 import org.cablelabs.cryptfile.KeyPair;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 
 /**
  * Generates CableLabs ClearKey "JSON" PSSH for MP4Box cryptfiles.
@@ -47,6 +42,15 @@ import com.google.gson.GsonBuilder;
  */
 public class ClearKeyJsonPSSH extends ClearKeyPSSH {
     
+    // Encoders keep their buffer between key sets
+    private static final ThreadLocal<ClearKeyJWKEncoder> encoders =
+            new ThreadLocal<ClearKeyJWKEncoder>() {
+                @Override
+                protected ClearKeyJWKEncoder initialValue() {
+                    return new ClearKeyJWKEncoder();
+                }
+            };
+    
     private List<KeyPair> keypairs;
 
     /**
@@ -62,36 +66,52 @@ public class ClearKeyJsonPSSH extends ClearKeyPSSH {
     
     /*
      * (non-Javadoc)
-     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#getClearKeyType()
      */
     @Override
-    public Node generateXML(Document d) {
-        Element e = generateDRMInfo(d);
-        Bitstream b = new Bitstream();
-        
+    protected int getClearKeyType() {
         // ClearKey Type = 1 for JSON
-        b.setupInteger(1, 8);
-        e.appendChild(b.generateXML(d));
+        return 1;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#generateClearKeyData()
+     */
+    @Override
+    protected String generateClearKeyData() {
         
-        // Create the JWK Object and populate it with our keys
-        ClearKeyJWK jwk = new ClearKeyJWK();
-        jwk.keys = new ClearKeyJWK.Key[keypairs.size()];
-        int i = 0;
+        // The data is the base64-encoded JWK set
+        ByteBuffer data = Base64.getEncoder().encode(encoders.get().encode(keypairs));
+        return new String(data.array(), 0, data.limit(), StandardCharsets.US_ASCII);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#describeClearKeyData()
+     */
+    @Override
+    protected String describeClearKeyData() {
+        return "JSON Web Key set for " + keypairs.size() + " key(s)";
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshKeyIDCount()
+     */
+    @Override
+    protected int getPsshKeyIDCount() {
+        return keypairs.size();
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshKeyIDs(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshKeyIDs(ByteBuffer buf) {
         for (KeyPair keypair : keypairs) {
-            ClearKeyJWK.Key key = new ClearKeyJWK.Key();
-            
-            // Use the URL-safe variant because we expect no padding
-            key.kid = Base64.encodeBase64String(keypair.getID()).replaceAll("=", "");
-            key.k = Base64.encodeBase64String(keypair.getKey()).replaceAll("=", "");
-            
-            jwk.keys[i++] = key;
+            buf.put(keypair.getID());
         }
-
-        // Generate the element from the JSON string
-        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-        b.setupString(Base64.encodeBase64String(gson.toJson(jwk).getBytes()), 16);
-        e.appendChild(b.generateXML(d));
-        
-        return e;
     }
 }
@@ -26,10 +26,23 @@
 
 package org.cablelabs.clearkey.cryptfile;
 
+import java.nio.ByteBuffer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.cablelabs.cryptfile.Bitstream;
+import org.cablelabs.cryptfile.CryptfileWriteException;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
- * Abstract base class for CableLabs ClearKey PSSH variants
+ * Abstract base class for CableLabs ClearKey PSSH variants.
+ * <p>
+ * All variants share the same PSSH data layout: an 8-bit ClearKey type
+ * followed by a 16-bit length and the variant-specific ASCII data string
  */
 public abstract class ClearKeyPSSH extends DRMInfoPSSH {
     
@@ -40,8 +53,119 @@ public abstract class ClearKeyPSSH extends DRMInfoPSSH {
         (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x01
     };
     
+    private static final int LENGTH_BITS = 16;
+    
+    // Longest data string the 16-bit length field can describe
+    private static final int MAX_DATA_LENGTH = (1 << LENGTH_BITS) - 1;
+    
+    private String data;
+    
     protected ClearKeyPSSH() {
         super(CLEARKEY_SYSTEM_ID);
     }
     
+    /**
+     * Returns the ClearKey type value that identifies this PSSH variant
+     * 
+     * @return the ClearKey type
+     */
+    protected abstract int getClearKeyType();
+    
+    /**
+     * Generates the variant-specific data string
+     * 
+     * @return the data string
+     */
+    protected abstract String generateClearKeyData();
+    
+    /**
+     * Describes the data string for the error raised when it is too long for the
+     * length field, for example "JSON Web Key set for 3 key(s)"
+     * 
+     * @return the description
+     */
+    protected abstract String describeClearKeyData();
+    
+    /**
+     * Returns advice appended to the error raised when the data string is too long
+     * for the length field.  The default is no advice
+     * 
+     * @return the advice, starting with a sentence separator, or an empty string
+     */
+    protected String getDataLengthAdvice() {
+        return "";
+    }
+    
+    // The data string is generated and checked against the length field once, on
+    // first use
+    private String getClearKeyData() {
+        if (data == null) {
+            String d = generateClearKeyData();
+            if (d.length() > MAX_DATA_LENGTH)
+                throw new CryptfileWriteException(describeClearKeyData() + " is " + d.length() +
+                                                  " bytes in base64, over the ClearKey PSSH limit of " +
+                                                  MAX_DATA_LENGTH + getDataLengthAdvice());
+            data = d;
+        }
+        return data;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     */
+    @Override
+    public Node generateXML(Document d) {
+        Element e = generateDRMInfo(d);
+        Bitstream b = new Bitstream();
+        
+        b.setupInteger(getClearKeyType(), 8);
+        e.appendChild(b.generateXML(d));
+        
+        b.setupString(getClearKeyData(), LENGTH_BITS);
+        e.appendChild(b.generateXML(d));
+        
+        return e;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        
+        b.setupInteger(getClearKeyType(), 8);
+        b.writeXML(w);
+        
+        b.setupString(getClearKeyData(), LENGTH_BITS);
+        b.writeXML(w);
+        
+        w.writeEndElement();
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshDataSize()
+     */
+    @Override
+    protected int getPsshDataSize() {
+        return 1 + 2 + getClearKeyData().length();
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshData(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshData(ByteBuffer buf) {
+        String data = getClearKeyData();
+        buf.put((byte)getClearKeyType());
+        buf.putShort((short)data.length());
+        for (int i = 0; i < data.length(); i++)
+            buf.put((byte)data.charAt(i));
+    }
+    
 }
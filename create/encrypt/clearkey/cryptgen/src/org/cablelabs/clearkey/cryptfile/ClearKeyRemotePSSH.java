@@ -27,23 +27,66 @@
 package org.cablelabs.clearkey.cryptfile;
 
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
-import org.cablelabs.cryptfile.Bitstream;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.clearkey.KeyIDSet;
 
 /**
  * Generates CableLabs ClearKey "remote" PSSH for MP4Box cryptfiles.
  * This variant of the PSSH instructs the player to retrieve keys from
- * a remote server using a specific URL
+ * a remote server using a specific URL.
+ * <p>
+ * The key IDs are named in the URL query string in one of three forms (see
+ * {@link Mode}).  The base64-encoded URL must fit the 16-bit ClearKey length
+ * field, which a plain list of key IDs overflows at about 1,200 keys.
  */
 public class ClearKeyRemotePSSH extends ClearKeyPSSH {
     
+    /**
+     * How the key IDs are named in the license URL
+     */
+    public enum Mode {
+        
+        /** One <code>keyid=&lt;hex&gt;</code> parameter for each key ID */
+        LIST,
+        
+        /**
+         * One <code>keyrange=&lt;first hex&gt;~&lt;last hex&gt;</code> parameter for each
+         * run of consecutive key IDs, and <code>keyid</code> for the rest
+         */
+        RANGE,
+        
+        /**
+         * A single <code>keyset=&lt;handle&gt;</code> parameter (see
+         * {@link KeyIDSet#getHandle()}).  The key set must be registered with the
+         * license server
+         */
+        KEYSET;
+        
+        /**
+         * Returns the mode with the given name, ignoring case
+         * 
+         * @param name the mode name ('list', 'range' or 'keyset')
+         * @return the mode
+         * @throws IllegalArgumentException if there is no such mode
+         */
+        public static Mode fromString(String name) {
+            for (Mode m : values()) {
+                if (m.name().equalsIgnoreCase(name))
+                    return m;
+            }
+            throw new IllegalArgumentException("Unknown remote PSSH mode: " + name);
+        }
+    }
+    
     private URL url;
     private List<String> keyIDs;
+    private Mode mode;
 
     /**
      * Create a "remote" PSSH.  This PSSH instructs the player to retrieve
@@ -54,39 +97,139 @@ public class ClearKeyRemotePSSH extends ClearKeyPSSH {
      * the server
      */
     public ClearKeyRemotePSSH(URL url, List<String> keyIDs) {
+        this(url, keyIDs, Mode.LIST);
+    }
+    
+    /**
+     * Create a "remote" PSSH.  This PSSH instructs the player to retrieve
+     * the keys from a remote server using the given URL
+     * 
+     * @param url the clearkey server url 
+     * @param keyIDs a list of key IDs for keys that will be retrieved from
+     * the server
+     * @param mode how the key IDs are named in the URL
+     */
+    public ClearKeyRemotePSSH(URL url, List<String> keyIDs, Mode mode) {
         super();
         this.url = url;
         this.keyIDs = keyIDs;
+        this.mode = mode;
+    }
+    
+    /**
+     * Returns the set of key IDs in this PSSH.  In {@link Mode#KEYSET} mode, this is
+     * the set that must be registered with the license server
+     * 
+     * @return the key ID set
+     * @throws IllegalArgumentException if a key ID is invalid
+     */
+    public KeyIDSet getKeyIDSet() {
+        return new KeyIDSet(parseKeyIDs());
+    }
+    
+    /*
+     * Parse the key IDs, in the order given, to their 16-byte form
+     */
+    private List<byte[]> parseKeyIDs() {
+        List<byte[]> ids = new ArrayList<byte[]>(keyIDs.size());
+        for (String keyID : keyIDs) {
+            ids.add(KeyIDSet.parseKeyID(keyID));
+        }
+        return ids;
     }
     
     /*
      * (non-Javadoc)
-     * @see org.cablelabs.cryptfile.MP4BoxXML#generateXML(org.w3c.dom.Document)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#getClearKeyType()
      */
     @Override
-    public Node generateXML(Document d) {
-        Element e = generateDRMInfo(d);
-        Bitstream b = new Bitstream();
-        
+    protected int getClearKeyType() {
         // ClearKey Type = 0 for Remote
-        b.setupInteger(0, 8);
-        e.appendChild(b.generateXML(d));
-        
-        String urlString = url.toString();
-        if (url.getPath() == null) {
-            urlString += "/";
-        }
+        return 0;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#generateClearKeyData()
+     */
+    @Override
+    protected String generateClearKeyData() {
+        StringBuilder sb = new StringBuilder(url.toString());
+        if (url.getPath().isEmpty())
+            sb.append('/');
         
         // Append query string
-        urlString += "?";
-        for (String keyID : keyIDs) {
-            urlString += "keyid=" + keyID.replaceAll("/-/", "") + "&";
+        sb.append((url.getQuery() == null) ? '?' : '&');
+        switch (mode) {
+        case LIST:
+            for (String keyID : keyIDs) {
+                sb.append("keyid=");
+                for (int i = 0; i < keyID.length(); i++) {
+                    if (keyID.charAt(i) != '-')
+                        sb.append(keyID.charAt(i));
+                }
+                sb.append('&');
+            }
+            break;
+        case RANGE:
+            for (byte[][] range : getKeyIDSet().getRanges()) {
+                if (range[0] == range[1]) {
+                    sb.append("keyid=").append(Hex.encodeHex(range[0]));
+                }
+                else {
+                    sb.append("keyrange=").append(Hex.encodeHex(range[0]))
+                      .append('~').append(Hex.encodeHex(range[1]));
+                }
+                sb.append('&');
+            }
+            break;
+        case KEYSET:
+            sb.append("keyset=").append(getKeyIDSet().getHandle()).append('&');
+            break;
         }
-        urlString = urlString.substring(0, urlString.length()-1);
+        sb.setLength(sb.length() - 1);
         
-        b.setupString(Base64.encodeBase64String(urlString.getBytes()), 16);
-        e.appendChild(b.generateXML(d));
+        return Base64.getEncoder().encodeToString(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#describeClearKeyData()
+     */
+    @Override
+    protected String describeClearKeyData() {
+        return "License URL for " + keyIDs.size() + " key ID(s)";
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.clearkey.cryptfile.ClearKeyPSSH#getDataLengthAdvice()
+     */
+    @Override
+    protected String getDataLengthAdvice() {
+        return ".  Use a more compact remote PSSH mode";
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshKeyIDCount()
+     */
+    @Override
+    protected int getPsshKeyIDCount() {
+        return keyIDs.size();
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshKeyIDs(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshKeyIDs(ByteBuffer buf) {
         
-        return e;
+        // Parse every key ID before writing so that an invalid one leaves the
+        // buffer untouched
+        for (byte[] keyID : parseKeyIDs()) {
+            buf.put(keyID);
+        }
     }
 }
@@ -0,0 +1,101 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.clearkey.cryptgen;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.clearkey.cryptfile.ClearKeyJsonPSSH;
+import org.cablelabs.clearkey.cryptfile.ClearKeyRemotePSSH;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.batch.AssetSpec;
+import org.cablelabs.cryptfile.batch.CryptfileAssetGenerator;
+
+/**
+ * Batch asset generator for ClearKey cryptfiles.  Generates either JSON or
+ * remote ClearKey PSSH for each asset.
+ */
+public class ClearKeyAssetGenerator extends CryptfileAssetGenerator {
+    
+    private URL url;
+    
+    /**
+     * Create a new generator
+     * 
+     * @param url the ClearKey server URL for remote PSSH or null to embed the keys
+     * in JSON PSSH
+     */
+    public ClearKeyAssetGenerator(URL url) {
+        this(url, CryptfileBuilder.ProtectionScheme.AES_CTR);
+    }
+    
+    /**
+     * Create a new generator
+     * 
+     * @param url the ClearKey server URL for remote PSSH or null to embed the keys
+     * in JSON PSSH
+     * @param scheme the encryption scheme for all assets
+     */
+    public ClearKeyAssetGenerator(URL url, CryptfileBuilder.ProtectionScheme scheme) {
+        super(scheme);
+        this.url = url;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.CryptfileAssetGenerator#createPSSH(org.cablelabs.cryptfile.batch.AssetSpec, java.util.List)
+     */
+    @Override
+    protected List<DRMInfoPSSH> createPSSH(AssetSpec asset, List<CryptTrack> tracks) {
+        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+        if (url != null) {
+            List<String> keyIDs = new ArrayList<String>();
+            for (CryptTrack t : tracks) {
+                for (CryptKey key : t.getKeySequence()) {
+                    keyIDs.add(Hex.encodeHexString(key.getKeyPair().getID()));
+                }
+            }
+            psshList.add(new ClearKeyRemotePSSH(url, keyIDs));
+        }
+        else {
+            List<KeyPair> keypairs = new ArrayList<KeyPair>();
+            for (CryptTrack t : tracks) {
+                for (CryptKey key : t.getKeySequence()) {
+                    keypairs.add(key.getKeyPair());
+                }
+            }
+            psshList.add(new ClearKeyJsonPSSH(keypairs));
+        }
+        return psshList;
+    }
+}
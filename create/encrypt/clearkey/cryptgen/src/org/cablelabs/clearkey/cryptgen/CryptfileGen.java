@@ -26,11 +26,14 @@
 
 package org.cablelabs.clearkey.cryptgen;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -43,8 +46,21 @@ import org.cablelabs.clearkey.cryptfile.ClearKeyRemotePSSH;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileWriteException;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.HKDFKeySequence;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KeySequence;
+import org.cablelabs.cryptfile.batch.AssetGenerator;
+import org.cablelabs.cryptfile.batch.AssetSpec;
+import org.cablelabs.cryptfile.batch.BatchEngine;
+import org.cablelabs.cryptfile.batch.BatchSummary;
+import org.cablelabs.cryptfile.batch.ManifestReader;
+import org.cablelabs.cryptfile.keystore.MappedKeyStore;
+import org.cablelabs.cryptfile.keystore.TextKeyReader;
+import org.cablelabs.cryptfile.mp4.CencEncryptor;
+import org.cablelabs.cryptfile.mp4.MP4BoxIndex;
+import org.cablelabs.cryptfile.mp4.TrackInfo;
 
 /**
  * This utility will build a MP4Box CableLabs ClearKey cryptfile for a given piece of content.
@@ -57,13 +73,15 @@ public class CryptfileGen {
         System.out.println("usage:  CryptfileGen [OPTIONS] <track_id>:{@<key_file>|<key_id>=<key>[,<key_id>:<key>...]} [<track_id>:{@<key_file>|<key_id>:<key>[,<key_id>:<key>...]}]...");
         System.out.println("");
         System.out.println("\t<track_id> is the track ID from the MP4 file to be encrypted.");
+        System.out.println("\tWhen -media is given, <track_id> may also be 'vide' or 'soun' to select every video or");
+        System.out.println("\taudio track in the media file.");
         System.out.println("\tAfter the '<track_id>:', you can specify either a file containing key/keyID pairs");
         System.out.println("\tOR a comma-separated list of keyID/key pairs separated by '='.  Key IDs are always");
         System.out.println("\trepresented in GUID form (xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx).  Key values are");
         System.out.println("\talways in hexadecimal.  Multiple key IDs indicate the use of rolling keys.");
         System.out.println("");
         System.out.println("\t\t<keyid_file> is a file that contains a list of key pairs, one pair per line in");
-        System.out.println("\t\tthe form <key_id>:<key>");
+        System.out.println("\t\tthe form <key_id>:<key>, or a binary key store written by KeyStoreTool.");
         System.out.println("");
         System.out.println("\t\t<keyid> is a key ID in GUID form.");
         System.out.println("");
@@ -78,19 +96,57 @@ public class CryptfileGen {
         System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
         System.out.println("\t\twritten to stdout.");
         System.out.println("");
-        System.out.println("\t-remote <license_url>");
+        System.out.println("\t-encrypt <input_mp4>,<output_mp4>");
+        System.out.println("\t\tIf present, <input_mp4> (a fragmented MP4 file) will be encrypted with the generated");
+        System.out.println("\t\tcryptfile and written to <output_mp4>.  MP4Box is not required.");
+        System.out.println("");
+        System.out.println("\t-media <mp4_file>");
+        System.out.println("\t\tThe MP4 file that will be encrypted.  Track IDs are checked against the file and");
+        System.out.println("\t\t'vide' or 'soun' may be used in place of track IDs.");
+        System.out.println("\t\tDefaults to the -encrypt input file.");
+        System.out.println("");
+        System.out.println("\t-remote <license_url>[,{list|range|keyset}]");
         System.out.println("\t\tIf present, the ClearKey PSSH for the content will indicate that the player should");
         System.out.println("\t\tcontact the ClearKey server at the given URL for keys.  The default behavior is to");
-        System.out.println("\t\tgenerate ClearKey PSSH with JSON Web Keys embedded directly");
+        System.out.println("\t\tgenerate ClearKey PSSH with JSON Web Keys embedded directly.  The key IDs are named in");
+        System.out.println("\t\tthe URL one by one ('list', the default), as ranges of consecutive key IDs ('range') or");
+        System.out.println("\t\tby one key set handle ('keyset') that must be registered with the server.  Use 'range'");
+        System.out.println("\t\tor 'keyset' when there are too many key IDs to list in the PSSH");
+        System.out.println("");
+        System.out.println("\t-scheme {cenc|cbc1|cens|cbcs}");
+        System.out.println("\t\tThe Common Encryption protection scheme.  Default is 'cenc'.  The AES-CBC schemes");
+        System.out.println("\t\t(cbc1, cbcs) use 16-byte IVs and 'cbcs' uses a random constant IV for each track.");
+        System.out.println("");
+        System.out.println("\t-pattern <crypt_blocks>,<skip_blocks>");
+        System.out.println("\t\tThe encryption pattern for the 'cens' and 'cbcs' schemes.  Of every <crypt_blocks> +");
+        System.out.println("\t\t<skip_blocks> 16-byte blocks of protected data, the first <crypt_blocks> are encrypted.");
+        System.out.println("\t\tDefault is 1,9.");
         System.out.println("");
         System.out.println("\t-roll <sample_count>");
         System.out.println("\t\tUsed for rolling keys only.  <sample_count> is the number of consecutive samples to be");
         System.out.println("\t\tencrypted with each key before moving to the next.");
+        System.out.println("");
+        System.out.println("\t-derive <key_count>[,<first_period>]");
+        System.out.println("\t\tDerive <key_count> rolling keys for each track with HKDF-SHA256, using the track's single");
+        System.out.println("\t\tkey as the seed.  Key IDs and keys are derived for crypto periods <first_period> (default");
+        System.out.println("\t\t0) onwards, so they never need to be stored.  Use with -roll.  Not supported with -batch.");
+        System.out.println("");
+        System.out.println("\t-batch <manifest_file>");
+        System.out.println("\t\tGenerate the cryptfiles for every asset in the given manifest in a single run.  Each line");
+        System.out.println("\t\tof the manifest is either a JSON asset object or a CSV line of the form:");
+        System.out.println("\t\t<asset>,<out_file>,<track_id>:<key_spec>[;<key_spec>...][,<track_id>:...]");
+        System.out.println("\t\twhere <key_spec> is <key_id>=<key>.  Use '-' to read the manifest");
+        System.out.println("\t\tfrom stdin.  Track arguments and -out are ignored in batch mode.");
+        System.out.println("");
+        System.out.println("\t-threads <count>");
+        System.out.println("\t\tNumber of worker threads for -batch.  Default is the number of available processors.");
     }
     
     private static class Track {
         List<KeyPair> keypairs = new ArrayList<KeyPair>();
+        KeySequence keys; // Stored keys, if read from a key store
         int id;
+        String handler;
     }
     
     private static void invalidOption(String option) {
@@ -130,15 +186,105 @@ public class CryptfileGen {
         System.exit(1);;
     }
     
+    // Replace track types with the IDs of all matching tracks in the media file and
+    // make sure that every track ID is present in the media
+    private static List<Track> resolveTracks(List<Track> tracks, String mediaFile) {
+        if (mediaFile == null) {
+            for (Track t : tracks) {
+                if (t.handler != null)
+                    errorExit("-media is required to select tracks by type -- " + t.handler);
+            }
+            return tracks;
+        }
+        
+        List<Track> resolved = new ArrayList<Track>();
+        try {
+            MP4BoxIndex media = new MP4BoxIndex(new File(mediaFile));
+            try {
+                for (Track t : tracks) {
+                    if (t.handler == null) {
+                        if (media.getTrack(t.id) == null)
+                            errorExit("Track " + t.id + " not found in " + mediaFile);
+                        resolved.add(t);
+                        continue;
+                    }
+                    List<TrackInfo> matches = media.getTracks(t.handler);
+                    if (matches.isEmpty())
+                        errorExit("No '" + t.handler + "' tracks found in " + mediaFile);
+                    for (TrackInfo info : matches) {
+                        Track r = new Track();
+                        r.id = info.getTrackID();
+                        r.keypairs = t.keypairs;
+                        r.keys = t.keys;
+                        resolved.add(r);
+                    }
+                }
+            }
+            finally {
+                media.close();
+            }
+        }
+        catch (IllegalArgumentException e) {
+            errorExit("Invalid media file (" + mediaFile + "): " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading media file (" + mediaFile + "): " + e.getMessage());
+        }
+        return resolved;
+    }
+    
+    private static void runBatch(AssetGenerator generator, String manifestFile, int threads) {
+        try {
+            Reader r = "-".equals(manifestFile) ? new InputStreamReader(System.in, "UTF-8") :
+                                                  new InputStreamReader(new FileInputStream(manifestFile), "UTF-8");
+            ManifestReader manifest = new ManifestReader(r);
+            BatchSummary summary;
+            try {
+                summary = new BatchEngine<AssetSpec>(generator, threads).run(manifest);
+            }
+            finally {
+                manifest.close();
+            }
+            summary.print(System.out);
+            if (!summary.getFailures().isEmpty())
+                System.exit(1);
+        }
+        catch (FileNotFoundException e) {
+            errorExit("Manifest file not found: " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading manifest: " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            errorExit("Batch interrupted");
+        }
+    }
+    
     public static void main(String[] args) {
 
         // Rolling keys
         int rollingKeySamples = -1;
         
+        // Derived rolling keys
+        int deriveCount = 0;
+        long derivePeriod = 0;
+        
+        // Protection scheme
+        CryptfileBuilder.ProtectionScheme scheme = CryptfileBuilder.ProtectionScheme.AES_CTR;
+        int cryptByteBlock = 1;
+        int skipByteBlock = 9;
+        
         String outfile = null;
+        String[] encryptFiles = null;
+        String mediaFile = null;
         URL url = null;
+        ClearKeyRemotePSSH.Mode remoteMode = ClearKeyRemotePSSH.Mode.LIST;
         List<Track> tracks = new ArrayList<Track>();
         
+        // Batch
+        String manifestFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
             
@@ -153,17 +299,60 @@ public class CryptfileGen {
                     outfile = subopts[0];
                     i++;
                 }
+                else if ((subopts = checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles = subopts;
+                    i++;
+                }
+                else if ((subopts = checkOption("-media", args, i, 1)) != null) {
+                    mediaFile = subopts[0];
+                    i++;
+                }
+                else if ((subopts = checkOption("-scheme", args, i, 1)) != null) {
+                    try {
+                        scheme = CryptfileBuilder.ProtectionScheme.fromSchemeType(subopts[0]);
+                    }
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
+                    }
+                    i++;
+                }
+                else if ((subopts = checkOption("-pattern", args, i, 2)) != null) {
+                    cryptByteBlock = Integer.parseInt(subopts[0]);
+                    skipByteBlock = Integer.parseInt(subopts[1]);
+                    i++;
+                }
                 else if ((subopts = checkOption("-roll", args, i, 1)) != null) {
                     rollingKeySamples = Integer.parseInt(subopts[0]);
                     i++;
                 }
-                else if ((subopts = checkOption("-remote", args, i, 1)) != null) {
+                else if ((subopts = checkOption("-derive", args, i, 1, 2)) != null) {
+                    deriveCount = Integer.parseInt(subopts[0]);
+                    if (deriveCount < 1)
+                        invalidOption("-derive");
+                    if (subopts.length > 1)
+                        derivePeriod = Long.parseLong(subopts[1]);
+                    i++;
+                }
+                else if ((subopts = checkOption("-batch", args, i, 1)) != null) {
+                    manifestFile = subopts[0];
+                    i++;
+                }
+                else if ((subopts = checkOption("-threads", args, i, 1)) != null) {
+                    threads = Integer.parseInt(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = checkOption("-remote", args, i, 1, 2)) != null) {
                     try {
                         url = new URL(subopts[0]);
+                        if (subopts.length > 1)
+                            remoteMode = ClearKeyRemotePSSH.Mode.fromString(subopts[1]);
                     }
                     catch (MalformedURLException e) {
                         errorExit("Illegal URL: " + e.getMessage());
                     }
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
+                    }
                     i++;
                 }
                 else {
@@ -181,21 +370,29 @@ public class CryptfileGen {
             }
             try {
                 Track t = new Track();
-                t.id = Integer.parseInt(track_desc[0]);
+                if (track_desc[0].equals(TrackInfo.HANDLER_VIDEO) || track_desc[0].equals(TrackInfo.HANDLER_AUDIO))
+                    t.handler = track_desc[0];
+                else
+                    t.id = Integer.parseInt(track_desc[0]);
                 
-                // Read key pairs from file
+                // Read key pairs from file.  Binary key stores are used in place
                 if (track_desc[1].startsWith("@")) {
-                    String keyfile = track_desc[1].substring(1);
-                    BufferedReader br = new BufferedReader(new FileReader(keyfile));
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        String[] keypair = line.split(":");
-                        if (keypair.length != 2) {
-                            errorExit("Illegal keypair from file: " + line);
+                    File keyfile = new File(track_desc[1].substring(1));
+                    if (MappedKeyStore.isKeyStore(keyfile)) {
+                        t.keys = MappedKeyStore.open(keyfile).asKeySequence();
+                    }
+                    else {
+                        TextKeyReader reader = new TextKeyReader(new FileReader(keyfile));
+                        KeyPair keypair;
+                        try {
+                            while ((keypair = reader.next()) != null) {
+                                t.keypairs.add(keypair);
+                            }
+                        }
+                        catch (IOException e) {
+                            errorExit("Illegal keypair from file: " + e.getMessage());
                         }
-                        t.keypairs.add(new KeyPair(keypair[0], keypair[1]));
                     }
-                    br.close();
                 }
                 else { // Key pairs on command line
                     String[] keypairsarg = track_desc[1].split(",");
@@ -221,16 +418,51 @@ public class CryptfileGen {
             }
         }
         
+        if (manifestFile != null) {
+            if (deriveCount > 0)
+                errorExit("-derive is not supported with -batch");
+            ClearKeyAssetGenerator generator = new ClearKeyAssetGenerator(url, scheme);
+            generator.setKeyRoll(rollingKeySamples);
+            generator.setPattern(cryptByteBlock, skipByteBlock);
+            runBatch(generator, manifestFile, threads);
+            return;
+        }
+        
+        // Resolve track types and check track IDs against the media
+        if (mediaFile == null && encryptFiles != null)
+            mediaFile = encryptFiles[0];
+        tracks = resolveTracks(tracks, mediaFile);
+        
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
         List<KeyPair> keypairs = new ArrayList<KeyPair>(); // Need this for URL-based PSSH
         for (Track t : tracks) {
-            List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
-            for (KeyPair key : t.keypairs) {
-                cryptKeys.add(new CryptKey(key));
+            try {
+                // The track's only key seeds its derived keys
+                if (deriveCount > 0) {
+                    if (t.keys != null || t.keypairs.size() != 1)
+                        errorExit("-derive requires exactly one key for each track");
+                    t.keys = new HKDFKeySequence(t.keypairs.get(0).getKey(), derivePeriod, deriveCount);
+                }
+                if (t.keys != null) {
+                    for (CryptKey key : t.keys) {
+                        keypairs.add(key.getKeyPair());
+                    }
+                    cryptTracks.add(CryptTrack.forScheme(scheme, t.id, CryptTrack.IV_SIZE_8, t.keys,
+                                                         rollingKeySamples, cryptByteBlock, skipByteBlock));
+                }
+                else {
+                    List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
+                    for (KeyPair key : t.keypairs) {
+                        cryptKeys.add(new CryptKey(key));
+                    }
+                    keypairs.addAll(t.keypairs);
+                    cryptTracks.add(CryptTrack.forScheme(scheme, t.id, CryptTrack.IV_SIZE_8, cryptKeys,
+                                                         rollingKeySamples, cryptByteBlock, skipByteBlock));
+                }
+            }
+            catch (IllegalArgumentException e) {
+                errorExit(e.getMessage());
             }
-            keypairs.addAll(t.keypairs);
-            
-            cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, rollingKeySamples));
         }
         
         ClearKeyPSSH pssh = null;
@@ -245,7 +477,13 @@ public class CryptfileGen {
                 keyIDs.add(Hex.encodeHexString(keypair.getID()));
             }
             System.out.println("");
-            pssh = new ClearKeyRemotePSSH(url, keyIDs);
+            ClearKeyRemotePSSH remotePSSH = new ClearKeyRemotePSSH(url, keyIDs, remoteMode);
+            if (remoteMode == ClearKeyRemotePSSH.Mode.KEYSET) {
+                System.out.println("Register key set " + remotePSSH.getKeyIDSet().getHandle() +
+                                   " with the ClearKey server (ClearKeyServer -keyset)");
+                System.out.println("");
+            }
+            pssh = remotePSSH;
         }
         else { // JSON
             pssh = new ClearKeyJsonPSSH(keypairs);
@@ -255,20 +493,36 @@ public class CryptfileGen {
         psshList.add(pssh);
         
         // Create the cryptfile builder
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
+        CryptfileBuilder cfBuilder = new CryptfileBuilder(scheme, cryptTracks, psshList);
         
         // Write the output
-        cfBuilder.writeCryptfile(System.out);
         try {
+            cfBuilder.streamCryptfile(System.out);
             if (outfile != null) {
                 System.out.println("Writing cryptfile to: " + outfile);
-                cfBuilder.writeCryptfile(new FileOutputStream(outfile));
+                cfBuilder.streamCryptfile(new FileOutputStream(outfile));
             }
         }
         catch (FileNotFoundException e) {
             errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (CryptfileWriteException e) {
+            errorExit("Could not write cryptfile: " + e.getMessage());
+        }
+        
+        // Encrypt the media
+        if (encryptFiles != null) {
+            try {
+                System.out.println("Encrypting " + encryptFiles[0] + " to: " + encryptFiles[1]);
+                new CencEncryptor(cfBuilder).encrypt(new File(encryptFiles[0]), new File(encryptFiles[1]));
+            }
+            catch (IllegalArgumentException e) {
+                errorExit("Could not encrypt " + encryptFiles[0] + ": " + e.getMessage());
+            }
+            catch (IOException e) {
+                errorExit("Error encrypting " + encryptFiles[0] + ": " + e.getMessage());
+            }
+        }
     }
 
 }
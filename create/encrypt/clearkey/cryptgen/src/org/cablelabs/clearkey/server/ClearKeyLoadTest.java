@@ -0,0 +1,203 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.clearkey.server;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cryptfile.TaskExecutors;
+import org.cablelabs.cryptfile.keystore.TextKeyReader;
+
+/**
+ * Load generator for a ClearKey license server.  A fixed number of clients send
+ * "remote" PSSH style GET requests back to back for a given time, each for a random
+ * one of a set of key ID combinations drawn from a key file, and the achieved request
+ * rate and latency percentiles are reported.
+ */
+public class ClearKeyLoadTest {
+    
+    private static void usage() {
+        System.out.println("ClearKey license server load generator.");
+        System.out.println("");
+        System.out.println("usage:  ClearKeyLoadTest [OPTIONS] <key_file>");
+        System.out.println("");
+        System.out.println("\t<key_file>");
+        System.out.println("\t\tA <key_id>:<key> file whose key IDs are requested.  Normally one of the files the");
+        System.out.println("\t\tserver was started with.");
+        System.out.println("");
+        System.out.println("\tOPTIONS:");
+        System.out.println("");
+        System.out.println("\t-url <url>");
+        System.out.println("\t\tThe license server URL.  Default is http://localhost:" + ClearKeyServer.DEFAULT_PORT + "/");
+        System.out.println("");
+        System.out.println("\t-clients <count>");
+        System.out.println("\t\tThe number of concurrent clients.  Default is 64.");
+        System.out.println("");
+        System.out.println("\t-duration <seconds>");
+        System.out.println("\t\tHow long to run.  Default is 10.");
+        System.out.println("");
+        System.out.println("\t-kids <count>");
+        System.out.println("\t\tThe number of key IDs in each request.  Default is 2.");
+        System.out.println("");
+        System.out.println("\t-sets <count>");
+        System.out.println("\t\tThe number of distinct key ID combinations requested.  Default is 1000.");
+    }
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:" + ClearKeyServer.DEFAULT_PORT + "/";
+        int clients = 64;
+        int duration = 10;
+        int kidsPerRequest = 2;
+        int sets = 1000;
+        String keyFile = null;
+        
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-help")) {
+                    usage();
+                    System.exit(0);
+                }
+                else if (args[i].equals("-url") && i + 1 < args.length) {
+                    url = args[++i];
+                }
+                else if (args[i].equals("-clients") && i + 1 < args.length) {
+                    clients = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-duration") && i + 1 < args.length) {
+                    duration = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-kids") && i + 1 < args.length) {
+                    kidsPerRequest = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-sets") && i + 1 < args.length) {
+                    sets = Integer.parseInt(args[++i]);
+                }
+                else if (!args[i].startsWith("-") && keyFile == null) {
+                    keyFile = args[i];
+                }
+                else {
+                    usage();
+                    System.err.println("Illegal argument: " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            usage();
+            System.err.println("Illegal number: " + e.getMessage());
+            System.exit(1);
+        }
+        if (keyFile == null) {
+            usage();
+            System.err.println("No key file given");
+            System.exit(1);
+        }
+        
+        // Build the request URLs
+        List<String> keyIDs = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(keyFile));
+        String line;
+        while ((line = br.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#"))
+                keyIDs.add(Hex.encodeHexString(TextKeyReader.parseKeyPair(line).getID()));
+        }
+        br.close();
+        if (keyIDs.isEmpty()) {
+            System.err.println("No keys in " + keyFile);
+            System.exit(1);
+        }
+        Random random = new Random(0);
+        final URI[] uris = new URI[sets];
+        for (int i = 0; i < sets; i++) {
+            StringBuilder sb = new StringBuilder(url).append('?');
+            for (int k = 0; k < kidsPerRequest; k++) {
+                if (k > 0)
+                    sb.append('&');
+                sb.append("keyid=").append(keyIDs.get(random.nextInt(keyIDs.size())));
+            }
+            uris[i] = URI.create(sb.toString());
+        }
+        
+        final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        final ServerMetrics metrics = new ServerMetrics();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(duration);
+        
+        System.out.println("Running " + clients + " clients against " + url + " for " + duration + " s");
+        ExecutorService executor = TaskExecutors.newTaskExecutor();
+        for (int c = 0; c < clients; c++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < deadline) {
+                        HttpRequest request = HttpRequest.newBuilder(
+                                uris[ThreadLocalRandom.current().nextInt(uris.length)]).GET().build();
+                        long start = System.nanoTime();
+                        boolean error;
+                        try {
+                            error = client.send(request, HttpResponse.BodyHandlers.ofByteArray()).statusCode() != 200;
+                        }
+                        catch (IOException e) {
+                            error = true;
+                        }
+                        catch (InterruptedException e) {
+                            return;
+                        }
+                        metrics.record(System.nanoTime() - start, 0, false, error);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(duration + 60, TimeUnit.SECONDS);
+        
+        Map<String, Object> results = metrics.toMap();
+        System.out.println("");
+        System.out.println("\trequests:   " + results.get("requests"));
+        System.out.println("\terrors:     " + results.get("errors"));
+        System.out.println("\tthroughput: " + results.get("mean_request_rate") + " requests/s");
+        System.out.println("\tlatency:    " + results.get("latency_us") + " us");
+        System.exit(0);
+    }
+}
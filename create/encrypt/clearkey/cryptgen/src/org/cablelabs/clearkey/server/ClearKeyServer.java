@@ -0,0 +1,600 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.clearkey.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.clearkey.ClearKeyJWK;
+import org.cablelabs.clearkey.ClearKeyJWKEncoder;
+import org.cablelabs.clearkey.KeyIDSet;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.TaskExecutors;
+import org.cablelabs.cryptfile.keystore.CompositeKeyStore;
+import org.cablelabs.cryptfile.keystore.KeyStore;
+import org.cablelabs.cryptfile.keystore.MappedKeyStore;
+import org.cablelabs.cryptfile.keystore.MemoryKeyStore;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ClearKey license server.  Serves the keys for the key IDs in a license request as a
+ * W3C Encrypted Media Extensions JSON Web Key set ({@link ClearKeyJWK}).
+ * <p>
+ * Two request forms are accepted:
+ * <ul>
+ * <li>GET with one or more <code>keyid=&lt;hex key ID&gt;</code>,
+ * <code>keyrange=&lt;first hex key ID&gt;~&lt;last hex key ID&gt;</code> or
+ * <code>keyset=&lt;handle&gt;</code> query parameters, as generated from a CableLabs
+ * "remote" ClearKey PSSH ({@link org.cablelabs.clearkey.cryptfile.ClearKeyRemotePSSH})</li>
+ * <li>POST of an EME ClearKey license request (<code>{"kids":[...]}</code> with
+ * base64url key IDs)</li>
+ * </ul>
+ * Keys are looked up in a {@link KeyStore}.  Key IDs that are not in the store are left
+ * out of the response, and a request for which no key is found gets a 404.  A
+ * <code>keyset</code> handle names a set of key IDs registered with
+ * {@link #addKeySet(Collection)}, so a channel with thousands of rolling keys needs
+ * only a short license URL.  Serialized
+ * responses are cached by key ID set, up to a total size in bytes, so repeated requests
+ * for the same content are answered without building any JSON.  Each request runs on its own virtual thread when
+ * the JVM supports them (Java 21 and later) or on a pooled platform thread otherwise.
+ * <p>
+ * Request counts, the request rate and latency percentiles are available from
+ * {@link #getMetrics()} and, as JSON, from <code>/metrics</code>.
+ */
+public class ClearKeyServer {
+    
+    /** Default port, the same as the Node.js ClearKey server */
+    public static final int DEFAULT_PORT = 8584;
+    
+    /** Default total size of the cached responses in bytes */
+    public static final long DEFAULT_CACHE_SIZE = 64L * 1024 * 1024;
+    
+    /** Maximum number of key IDs, key ID ranges and key sets named in one request */
+    public static final int MAX_KEY_IDS = 1024;
+    
+    /** Maximum number of key IDs in one license, after expanding ranges and key sets */
+    public static final int MAX_LICENSE_KEY_IDS = 65536;
+    
+    // Largest accepted POST body
+    private static final int MAX_REQUEST_SIZE = 64 * 1024;
+    
+    // EME ClearKey license request
+    private static class LicenseRequest {
+        String[] kids;
+    }
+    
+    // A serialized response and the number of keys in it
+    private static class License {
+        byte[] data;
+        int keyCount;
+        
+        License(byte[] data, int keyCount) {
+            this.data = data;
+            this.keyCount = keyCount;
+        }
+    }
+    
+    private Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    
+    private KeyStore keyStore;
+    private ConcurrentHashMap<String, KeyIDSet> keySets = new ConcurrentHashMap<String, KeyIDSet>();
+    private ConcurrentHashMap<ByteBuffer, License> cache = new ConcurrentHashMap<ByteBuffer, License>();
+    private long cacheSize;
+    private AtomicLong cachedBytes = new AtomicLong();
+    private ServerMetrics metrics = new ServerMetrics();
+    
+    private HttpServer server;
+    private ExecutorService executor;
+    
+    private static void usage() {
+        System.out.println("ClearKey license server.");
+        System.out.println("");
+        System.out.println("usage:  ClearKeyServer [OPTIONS] <key_file> [<key_file>...]");
+        System.out.println("");
+        System.out.println("\t<key_file>");
+        System.out.println("\t\tA file with one <key_id>:<key> pair per line.  The key ID is a GUID or 32 hex digits");
+        System.out.println("\t\tand the key is 32 hex digits.  Binary key stores written by KeyStoreTool are mapped");
+        System.out.println("\t\tinto memory rather than loaded.");
+        System.out.println("");
+        System.out.println("\tOPTIONS:");
+        System.out.println("");
+        System.out.println("\t-help");
+        System.out.println("\t\tDisplay this usage message.");
+        System.out.println("");
+        System.out.println("\t-port <port>");
+        System.out.println("\t\tThe port to listen on.  Default is " + DEFAULT_PORT + ".");
+        System.out.println("");
+        System.out.println("\t-keyset <keyid_file>[,<keyid_file>...]");
+        System.out.println("\t\tRegister the key IDs in the given files as one key set, for remote PSSH in 'keyset'");
+        System.out.println("\t\tmode.  Each file has one key ID per line (a <key_id>:<key> key file may also be");
+        System.out.println("\t\tused) or is a binary key store.  The keys themselves must be given as <key_file>s.");
+        System.out.println("\t\tMay be repeated.");
+        System.out.println("");
+        System.out.println("\t-cache <megabytes>");
+        System.out.println("\t\tThe total size of the serialized responses to cache, or 0 for no caching.  Default is " +
+                           (DEFAULT_CACHE_SIZE >> 20) + ".");
+        System.out.println("");
+        System.out.println("\tLicense requests are served at / and metrics at /metrics.");
+    }
+    
+    /**
+     * Create a new license server with the default response cache size.  The server
+     * is not started
+     * 
+     * @param port the port to listen on, or 0 for any free port
+     * @param keyStore the keys to serve
+     * @throws IOException if the server socket could not be opened
+     */
+    public ClearKeyServer(int port, KeyStore keyStore) throws IOException {
+        this(new InetSocketAddress(port), keyStore, DEFAULT_CACHE_SIZE);
+    }
+    
+    /**
+     * Create a new license server.  The server is not started
+     * 
+     * @param address the address to listen on
+     * @param keyStore the keys to serve
+     * @param cacheSize the maximum total size of the cached responses in bytes, or 0 for
+     * no caching
+     * @throws IOException if the server socket could not be opened
+     */
+    public ClearKeyServer(InetSocketAddress address, KeyStore keyStore, long cacheSize) throws IOException {
+        if (cacheSize < 0)
+            throw new IllegalArgumentException("Cache size must not be negative: " + cacheSize);
+        this.keyStore = keyStore;
+        this.cacheSize = cacheSize;
+        
+        server = HttpServer.create(address, 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    addCORSHeaders(exchange);
+                    send(exchange, 200, gson.toJson(metrics.toMap()).getBytes(StandardCharsets.UTF_8));
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = TaskExecutors.newTaskExecutor();
+        server.setExecutor(executor);
+    }
+    
+    /**
+     * Start accepting requests
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Returns the URL of this server
+     * 
+     * @return the server URL
+     */
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+    
+    /**
+     * Returns the request metrics
+     * 
+     * @return the metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Discard all cached responses.  Must be called if keys in the key store change
+     */
+    public void clearCache() {
+        for (ByteBuffer cacheKey : cache.keySet()) {
+            uncache(cacheKey);
+        }
+    }
+    
+    /**
+     * Register a set of key IDs that license requests can name by its handle
+     * 
+     * @param keyIDs the 16-byte key IDs
+     * @return the key set handle (see {@link KeyIDSet#getHandle()})
+     */
+    public String addKeySet(Collection<byte[]> keyIDs) {
+        KeyIDSet keySet = new KeyIDSet(keyIDs);
+        keySets.put(keySet.getHandle(), keySet);
+        return keySet.getHandle();
+    }
+    
+    /**
+     * Returns the serialized JSON Web Key set for the given key IDs.  Key IDs that are
+     * not in the key store are left out
+     * 
+     * @param keyIDs the 16-byte key IDs
+     * @return the JSON Web Key set (UTF-8)
+     */
+    public byte[] getLicense(List<byte[]> keyIDs) {
+        return getLicense(keyIDs, null).data;
+    }
+    
+    // Cached responses are keyed by the sorted, distinct key IDs of the request
+    private License getLicense(List<byte[]> keyIDs, boolean[] cached) {
+        byte[][] sorted = keyIDs.toArray(new byte[keyIDs.size()][]);
+        Arrays.sort(sorted, KeyIDSet.KEY_ID_ORDER);
+        ByteBuffer cacheKey = ByteBuffer.allocate(sorted.length * KeyIDSet.KEY_ID_SIZE);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && KeyIDSet.KEY_ID_ORDER.compare(sorted[i], sorted[i - 1]) == 0)
+                continue;
+            cacheKey.put(sorted[i]);
+        }
+        cacheKey.flip();
+        
+        License license = cache.get(cacheKey);
+        if (license != null) {
+            if (cached != null)
+                cached[0] = true;
+            return license;
+        }
+        
+        List<KeyPair> keypairs = new ArrayList<KeyPair>(sorted.length);
+        while (cacheKey.hasRemaining()) {
+            byte[] keyID = new byte[KeyIDSet.KEY_ID_SIZE];
+            cacheKey.get(keyID);
+            KeyPair keypair = keyStore.get(keyID);
+            if (keypair != null)
+                keypairs.add(keypair);
+        }
+        cacheKey.rewind();
+        
+        license = new License(new ClearKeyJWKEncoder().encodeToArray(keypairs), keypairs.size());
+        
+        // Only found keys are cached.  When full, arbitrary entries make room.  A license
+        // for thousands of keys is large, so the cache is bounded by size, not entry count
+        long size = cacheEntrySize(cacheKey, license);
+        if (license.keyCount > 0 && size <= cacheSize) {
+            Iterator<ByteBuffer> it = cache.keySet().iterator();
+            while (cachedBytes.get() + size > cacheSize && it.hasNext()) {
+                uncache(it.next());
+            }
+            if (cache.putIfAbsent(cacheKey, license) == null)
+                cachedBytes.addAndGet(size);
+        }
+        return license;
+    }
+    
+    private void uncache(ByteBuffer cacheKey) {
+        License license = cache.remove(cacheKey);
+        if (license != null)
+            cachedBytes.addAndGet(-cacheEntrySize(cacheKey, license));
+    }
+    
+    private static long cacheEntrySize(ByteBuffer cacheKey, License license) {
+        return cacheKey.capacity() + license.data.length;
+    }
+    
+    private void respond(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        addCORSHeaders(exchange);
+        String method = exchange.getRequestMethod();
+        if (method.equals("OPTIONS")) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        
+        int status = 200;
+        License license = null;
+        boolean[] cached = new boolean[1];
+        if (method.equals("GET") || method.equals("POST")) {
+            try {
+                List<byte[]> keyIDs = method.equals("GET") ?
+                        parseQuery(exchange.getRequestURI().getRawQuery()) :
+                        parseLicenseRequest(exchange.getRequestBody());
+                license = getLicense(keyIDs, cached);
+                if (license.keyCount == 0)
+                    status = 404;
+            }
+            catch (IllegalArgumentException e) {
+                status = 400;
+            }
+        }
+        else {
+            status = 405;
+            exchange.getResponseHeaders().set("Allow", "GET, POST, OPTIONS");
+        }
+        
+        try {
+            if (status == 200)
+                send(exchange, status, license.data);
+            else
+                exchange.sendResponseHeaders(status, -1);
+        }
+        finally {
+            metrics.record(System.nanoTime() - start, (status == 200) ? license.keyCount : 0,
+                           cached[0], status != 200);
+        }
+    }
+    
+    // keyid=<hex>, keyrange=<first hex>~<last hex> or keyset=<handle>, joined with '&'.
+    // GUID dashes are allowed.  Unknown key sets name no keys
+    private List<byte[]> parseQuery(String query) {
+        if (query == null)
+            throw new IllegalArgumentException("No key IDs");
+        List<byte[]> keyIDs = new ArrayList<byte[]>();
+        int count = 0;
+        for (String param : query.split("&")) {
+            if (param.startsWith("keyid=")) {
+                keyIDs.add(KeyIDSet.parseKeyID(param.substring(6)));
+            }
+            else if (param.startsWith("keyrange=")) {
+                String[] range = param.substring(9).split("~");
+                if (range.length != 2)
+                    throw new IllegalArgumentException("Invalid key ID range: " + param.substring(9));
+                keyIDs.addAll(KeyIDSet.expandRange(KeyIDSet.parseKeyID(range[0]), KeyIDSet.parseKeyID(range[1]),
+                                                   MAX_LICENSE_KEY_IDS - keyIDs.size()));
+            }
+            else if (param.startsWith("keyset=")) {
+                KeyIDSet keySet = keySets.get(param.substring(7));
+                if (keySet != null)
+                    keyIDs.addAll(keySet.getKeyIDs());
+            }
+            else {
+                continue;
+            }
+            if (++count > MAX_KEY_IDS || keyIDs.size() > MAX_LICENSE_KEY_IDS)
+                throw new IllegalArgumentException("Too many key IDs");
+        }
+        checkKeyIDCount(count);
+        return keyIDs;
+    }
+    
+    // {"kids":["<base64url>",...],"type":"temporary"}
+    private List<byte[]> parseLicenseRequest(InputStream body) throws IOException {
+        LicenseRequest request;
+        try {
+            request = gson.fromJson(new String(readAll(body, MAX_REQUEST_SIZE), StandardCharsets.UTF_8),
+                                    LicenseRequest.class);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Malformed license request");
+        }
+        if (request == null || request.kids == null)
+            throw new IllegalArgumentException("No key IDs");
+        checkKeyIDCount(request.kids.length);
+        List<byte[]> keyIDs = new ArrayList<byte[]>(request.kids.length);
+        for (String kid : request.kids) {
+            byte[] keyID = (kid != null) ? Base64.decodeBase64(kid) : null;
+            if (keyID == null || keyID.length != KeyIDSet.KEY_ID_SIZE)
+                throw new IllegalArgumentException("Invalid key ID: " + kid);
+            keyIDs.add(keyID);
+        }
+        return keyIDs;
+    }
+    
+    private static void checkKeyIDCount(int count) {
+        if (count == 0)
+            throw new IllegalArgumentException("No key IDs");
+        if (count > MAX_KEY_IDS)
+            throw new IllegalArgumentException("Too many key IDs: " + count);
+    }
+    
+    private static void addCORSHeaders(HttpExchange exchange) {
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Access-Control-Allow-Origin", "*");
+        headers.set("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
+        headers.set("Access-Control-Allow-Headers", "Content-Type, Authorization, Content-Length");
+    }
+    
+    private static void send(HttpExchange exchange, int status, byte[] data) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, data.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(data);
+        os.close();
+    }
+    
+    private static byte[] readAll(InputStream is, int limit) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = is.read(buf)) != -1) {
+            baos.write(buf, 0, bytesRead);
+            if (baos.size() > limit)
+                throw new IllegalArgumentException("License request too large");
+        }
+        return baos.toByteArray();
+    }
+    
+    // Key IDs from a binary key store, or from a text file with a key ID at the start of
+    // every line.  Blank lines and lines starting with '#' are ignored
+    private static void readKeyIDs(File file, List<byte[]> keyIDs) throws IOException {
+        if (MappedKeyStore.isKeyStore(file)) {
+            for (KeyPair keypair : MappedKeyStore.open(file).asList()) {
+                keyIDs.add(keypair.getID());
+            }
+            return;
+        }
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("key_id,"))
+                    continue;
+                int end = line.length();
+                for (int i = 0; i < line.length(); i++) {
+                    if (line.charAt(i) == ':' || line.charAt(i) == ',') {
+                        end = i;
+                        break;
+                    }
+                }
+                try {
+                    keyIDs.add(KeyIDSet.parseKeyID(line.substring(0, end).trim()));
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+        finally {
+            br.close();
+        }
+    }
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        long cacheSize = DEFAULT_CACHE_SIZE;
+        MemoryKeyStore textKeys = new MemoryKeyStore();
+        List<KeyStore> stores = new ArrayList<KeyStore>();
+        stores.add(textKeys);
+        List<List<byte[]>> keySets = new ArrayList<List<byte[]>>();
+        
+        try {
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-help")) {
+                    usage();
+                    System.exit(0);
+                }
+                else if (args[i].equals("-port") && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-cache") && i + 1 < args.length) {
+                    cacheSize = Long.parseLong(args[++i]) << 20;
+                }
+                else if (args[i].equals("-keyset") && i + 1 < args.length) {
+                    List<byte[]> keySet = new ArrayList<byte[]>();
+                    for (String file : args[++i].split(",")) {
+                        try {
+                            readKeyIDs(new File(file), keySet);
+                        }
+                        catch (IOException e) {
+                            System.err.println("Could not read key ID file " + file + ": " + e.getMessage());
+                            System.exit(1);
+                        }
+                    }
+                    keySets.add(keySet);
+                }
+                else if (args[i].startsWith("-")) {
+                    usage();
+                    System.err.println("Illegal argument: " + args[i]);
+                    System.exit(1);
+                }
+                else {
+                    try {
+                        File keyFile = new File(args[i]);
+                        if (MappedKeyStore.isKeyStore(keyFile))
+                            stores.add(MappedKeyStore.open(keyFile));
+                        else
+                            textKeys.read(keyFile);
+                    }
+                    catch (IOException e) {
+                        System.err.println("Could not read key file " + args[i] + ": " + e.getMessage());
+                        System.exit(1);
+                    }
+                }
+            }
+            KeyStore keyStore = (stores.size() == 1) ? textKeys : new CompositeKeyStore(stores);
+            if (keyStore.size() == 0) {
+                usage();
+                System.err.println("No keys given");
+                System.exit(1);
+            }
+            System.out.println("Loaded " + keyStore.size() + " keys in " + (System.currentTimeMillis() - start) + " ms");
+            
+            ClearKeyServer server = new ClearKeyServer(new InetSocketAddress(port), keyStore, cacheSize);
+            for (List<byte[]> keySet : keySets) {
+                System.out.println("Key set " + server.addKeySet(keySet) + ": " + keySet.size() + " key IDs");
+            }
+            server.start();
+            System.out.println("ClearKey license server listening at " + server.getURL());
+        }
+        catch (NumberFormatException e) {
+            usage();
+            System.err.println("Illegal number: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IllegalArgumentException e) {
+            usage();
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
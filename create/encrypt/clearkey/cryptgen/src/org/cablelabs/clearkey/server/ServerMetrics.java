@@ -0,0 +1,192 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.clearkey.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histogram for the ClearKey license server.  Recording
+ * is lock-free so that it adds no contention between request threads.
+ * <p>
+ * Latencies are kept in a histogram with 8 sub-buckets per power of two, so reported
+ * percentiles are within about 12% of the true value.  The current request rate is
+ * averaged over the last {@link #RATE_WINDOW} complete seconds.
+ */
+public class ServerMetrics {
+    
+    /** Number of seconds over which the current request rate is averaged */
+    public static final int RATE_WINDOW = 10;
+    
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (65 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    
+    private long startTime = System.currentTimeMillis();
+    
+    private LongAdder requests = new LongAdder();
+    private LongAdder errors = new LongAdder();
+    private LongAdder cacheHits = new LongAdder();
+    private LongAdder keysServed = new LongAdder();
+    
+    private AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    private AtomicLongArray maxLatency = new AtomicLongArray(1);
+    
+    // Request counts for each of the last few seconds, indexed by second modulo the
+    // array length.  The second each slot counts is kept alongside it
+    private AtomicLongArray secondCounts = new AtomicLongArray(RATE_WINDOW + 2);
+    private AtomicLongArray seconds = new AtomicLongArray(RATE_WINDOW + 2);
+    
+    /**
+     * Record a completed request
+     * 
+     * @param latencyNanos the time taken to handle the request (ns)
+     * @param keys the number of keys returned
+     * @param cached true if the response came from the response cache
+     * @param error true if the request failed
+     */
+    public void record(long latencyNanos, int keys, boolean cached, boolean error) {
+        requests.increment();
+        if (error)
+            errors.increment();
+        if (cached)
+            cacheHits.increment();
+        keysServed.add(keys);
+        
+        long micros = Math.max(0, latencyNanos / 1000);
+        latency.incrementAndGet(bucket(micros));
+        long max;
+        while (micros > (max = maxLatency.get(0)) && !maxLatency.compareAndSet(0, max, micros));
+        
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int)(second % secondCounts.length());
+        long slotSecond = seconds.get(slot);
+        if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second))
+            secondCounts.set(slot, 0);
+        secondCounts.incrementAndGet(slot);
+    }
+    
+    /**
+     * Returns the total number of requests
+     * 
+     * @return the request count
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+    
+    /**
+     * Returns the request rate averaged over the last {@link #RATE_WINDOW} complete seconds
+     * 
+     * @return the request rate (requests/s)
+     */
+    public double getRequestRate() {
+        long now = System.currentTimeMillis() / 1000;
+        long count = 0;
+        for (int i = 1; i <= RATE_WINDOW; i++) {
+            int slot = (int)((now - i) % secondCounts.length());
+            if (seconds.get(slot) == now - i)
+                count += secondCounts.get(slot);
+        }
+        long uptime = Math.max(1, now - startTime / 1000);
+        return (double)count / Math.min(RATE_WINDOW, uptime);
+    }
+    
+    /**
+     * Returns a latency percentile
+     * 
+     * @param percentile the percentile (0 - 100)
+     * @return the latency (us)
+     */
+    public long getLatencyPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latency.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long)Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(bucketLimit(i), maxLatency.get(0));
+        }
+        return maxLatency.get(0);
+    }
+    
+    /**
+     * Returns all metrics as name/value pairs, in a form suitable for JSON serialization
+     * 
+     * @return the metrics
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        long total = requests.sum();
+        long uptime = System.currentTimeMillis() - startTime;
+        map.put("uptime_ms", uptime);
+        map.put("requests", total);
+        map.put("errors", errors.sum());
+        map.put("cache_hits", cacheHits.sum());
+        map.put("keys_served", keysServed.sum());
+        map.put("request_rate", Math.round(getRequestRate() * 10) / 10.0);
+        map.put("mean_request_rate", Math.round(total * 10000.0 / Math.max(1, uptime)) / 10.0);
+        
+        Map<String, Object> latencies = new LinkedHashMap<String, Object>();
+        latencies.put("p50", getLatencyPercentile(50));
+        latencies.put("p90", getLatencyPercentile(90));
+        latencies.put("p99", getLatencyPercentile(99));
+        latencies.put("p999", getLatencyPercentile(99.9));
+        latencies.put("max", maxLatency.get(0));
+        map.put("latency_us", latencies);
+        return map;
+    }
+    
+    // Values below SUB_BUCKETS get their own bucket.  Above that, each power of two is
+    // split into SUB_BUCKETS equal parts
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> exponent) - SUB_BUCKETS;
+        return (exponent + 1) * SUB_BUCKETS + sub;
+    }
+    
+    // Largest value in a bucket
+    private static long bucketLimit(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << exponent) - 1;
+    }
+}
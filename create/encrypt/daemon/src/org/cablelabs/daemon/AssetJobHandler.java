@@ -0,0 +1,80 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.daemon;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.batch.AssetGenerator;
+import org.cablelabs.cryptfile.batch.AssetSpec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Job handler for DRMs whose keys are given in the job, using the same
+ * {@link AssetSpec} JSON as batch manifests.  The "out" member is not required.
+ * <p>
+ * One {@link AssetGenerator} is created for each encryption scheme the first time
+ * that scheme is requested and is then shared by all jobs.
+ */
+public abstract class AssetJobHandler implements JobHandler {
+    
+    private Gson gson = new Gson();
+    private ConcurrentHashMap<CryptfileBuilder.ProtectionScheme, AssetGenerator> generators =
+            new ConcurrentHashMap<CryptfileBuilder.ProtectionScheme, AssetGenerator>();
+    
+    /**
+     * Create the asset generator for the given encryption scheme
+     * 
+     * @param scheme the encryption scheme
+     * @return the asset generator
+     */
+    protected abstract AssetGenerator createGenerator(CryptfileBuilder.ProtectionScheme scheme);
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.daemon.JobHandler#generate(java.lang.String, org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme)
+     */
+    @Override
+    public CryptfileBuilder generate(String json, CryptfileBuilder.ProtectionScheme scheme) throws Exception {
+        AssetSpec asset;
+        try {
+            asset = gson.fromJson(json, AssetSpec.class);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid JSON -- " + e.getMessage());
+        }
+        if (asset == null)
+            throw new IllegalArgumentException("Empty job");
+        asset.validate();
+        
+        // Atomic, so concurrent first jobs for a scheme never create a second generator
+        return generators.computeIfAbsent(scheme, this::createGenerator).generate(asset);
+    }
+}
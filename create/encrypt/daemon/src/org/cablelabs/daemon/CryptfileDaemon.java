@@ -0,0 +1,683 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.daemon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.cablelabs.clearkey.cryptgen.ClearKeyAssetGenerator;
+import org.cablelabs.clearkey.server.ServerMetrics;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyAcquisitionException;
+import org.cablelabs.cryptfile.TaskExecutors;
+import org.cablelabs.cryptfile.batch.AssetGenerator;
+import org.cablelabs.playready.WRMHeader;
+import org.cablelabs.playready.cryptgen.PlayReadyAssetGenerator;
+import org.cablelabs.widevine.batch.KeyAcquisitionService;
+import org.cablelabs.widevine.cryptfile.WidevinePSSHBuilder;
+import org.cablelabs.widevine.keyreq.KeyCache;
+import org.cablelabs.widevine.keyreq.KeyServerClient;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running cryptfile generator.  The ClearKey, PlayReady and Widevine generators
+ * are loaded once and jobs are submitted over a local HTTP/JSON API, so each cryptfile
+ * costs neither JVM startup nor class loading and runs in already-compiled code.
+ * <p>
+ * The API is:
+ * <pre>
+ *   POST /cryptfile/&lt;drm&gt;[?scheme=&lt;scheme&gt;]                returns the cryptfile XML
+ *   POST /pssh/&lt;drm&gt;[?scheme=&lt;scheme&gt;][&amp;version={0|1}]    returns the binary 'pssh' boxes
+ *   GET  /health
+ *   GET  /metrics
+ * </pre>
+ * The request body is a ClearKey or PlayReady {@link org.cablelabs.cryptfile.batch.AssetSpec}
+ * or a Widevine {@link org.cablelabs.widevine.batch.KeyJob}, in the same JSON form as
+ * batch manifests.  The "out" member is not required.
+ * <p>
+ * Jobs run on a fixed pool of worker threads.  Jobs that arrive while every worker is
+ * busy wait in a bounded queue.  When the queue is full the job is rejected at once
+ * with HTTP 503 and a Retry-After header, so callers see backpressure instead of
+ * unbounded latency.  Jobs that do not complete within the timeout are cancelled
+ * and also fail with 503.  An invalid job fails with 400, a job whose keys could not
+ * be acquired from a remote key server with 502 and any other generation error with
+ * 500.  Every error response is a JSON object with an "error" member.
+ */
+public class CryptfileDaemon {
+    
+    /** Default port */
+    public static final int DEFAULT_PORT = 8585;
+    
+    /** Default number of jobs that may wait for a worker, per worker */
+    public static final int DEFAULT_QUEUE_PER_WORKER = 16;
+    
+    /** Default job timeout (ms) */
+    public static final long DEFAULT_TIMEOUT = 30000;
+    
+    // Largest accepted job description
+    private static final int MAX_REQUEST_SIZE = 4 * 1024 * 1024;
+    
+    private static final String CRYPTFILE_PATH = "/cryptfile/";
+    private static final String PSSH_PATH = "/pssh/";
+    
+    // The output of one job and the number of keys in it
+    private static class Result {
+        byte[] data;
+        int keyCount;
+        
+        Result(byte[] data, int keyCount) {
+            this.data = data;
+            this.keyCount = keyCount;
+        }
+    }
+    
+    private Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    
+    private ConcurrentHashMap<String, JobHandler> handlers = new ConcurrentHashMap<String, JobHandler>();
+    private ThreadPoolExecutor workers;
+    private long timeout;
+    
+    private ServerMetrics metrics = new ServerMetrics();
+    private LongAdder rejected = new LongAdder();
+    private LongAdder timedOut = new LongAdder();
+    private volatile boolean stopping = false;
+    
+    private HttpServer server;
+    private ExecutorService executor;
+    
+    private static void usage() {
+        System.out.println("Cryptfile generation daemon.");
+        System.out.println("");
+        System.out.println("usage:  CryptfileDaemon [OPTIONS]");
+        System.out.println("");
+        System.out.println("\tOPTIONS:");
+        System.out.println("");
+        System.out.println("\t-help");
+        System.out.println("\t\tDisplay this usage message.");
+        System.out.println("");
+        System.out.println("\t-port <port>");
+        System.out.println("\t\tThe port to listen on.  Default is " + DEFAULT_PORT + ".  Only local connections are");
+        System.out.println("\t\taccepted.");
+        System.out.println("");
+        System.out.println("\t-workers <count>");
+        System.out.println("\t\tNumber of worker threads.  Default is the number of available processors.");
+        System.out.println("");
+        System.out.println("\t-queue <count>");
+        System.out.println("\t\tNumber of jobs that may wait for a worker before new jobs are rejected.  Default is");
+        System.out.println("\t\t" + DEFAULT_QUEUE_PER_WORKER + " per worker.");
+        System.out.println("");
+        System.out.println("\t-timeout <ms>");
+        System.out.println("\t\tJobs that have not completed within this time are cancelled.  Default is " + DEFAULT_TIMEOUT + ".");
+        System.out.println("");
+        System.out.println("\t-pattern <crypt>,<skip>");
+        System.out.println("\t\tThe encryption pattern for the 'cens' and 'cbcs' schemes.  Default is 1,9.");
+        System.out.println("");
+        System.out.println("\t-roll <sample_count>");
+        System.out.println("\t\tDefault rolling key sample count for jobs that do not give 'roll'.");
+        System.out.println("");
+        System.out.println("\t-ck_remote <url>");
+        System.out.println("\t\tGenerate CableLabs 'Remote' ClearKey PSSH with the given ClearKey server URL.");
+        System.out.println("\t\tOtherwise 'JSON' ClearKey PSSH are generated.");
+        System.out.println("");
+        System.out.println("\t-pr_url <url>");
+        System.out.println("\t\tThe license URL to embed in PlayReady WRMHeaders.  Default is the PlayReady test server.");
+        System.out.println("");
+        System.out.println("\t-pr_version {4000|4100|4200|4300}");
+        System.out.println("\t\tThe WRMHeader version to generate.  Default is 4000.  4200 and 4300 put all keys in");
+        System.out.println("\t\tone WRMHeader.");
+        System.out.println("");
+        System.out.println("\t-pr_clearkey");
+        System.out.println("\t\tAdd ClearKey PSSH (see -ck_remote) to PlayReady cryptfiles.");
+        System.out.println("");
+        System.out.println("\t-wv_sign <sign_props_file>");
+        System.out.println("\t\tSign Widevine key requests using the given properties file (see the Widevine");
+        System.out.println("\t\tCryptfileGen).  Otherwise the unsigned test server is used.");
+        System.out.println("");
+        System.out.println("\t-wv_pssh {server|track|asset}");
+        System.out.println("\t\tHow Widevine PSSH are generated.  Default is 'track'.");
+        System.out.println("");
+        System.out.println("\t-wv_cache <dir>[,<ttl_hours>]");
+        System.out.println("\t\tCache Widevine key server responses in the given directory.");
+        System.out.println("");
+        System.out.println("\t-wv_cache_key <file>");
+        System.out.println("\t\tThe wrapping key file for the Widevine key cache.  Default is ~/.widevine_cache_key.");
+        System.out.println("");
+        System.out.println("\tJobs are submitted to /cryptfile/<drm> or /pssh/<drm>, where <drm> is 'clearkey',");
+        System.out.println("\t'playready' or 'widevine'.  The 'scheme' query parameter selects the encryption scheme");
+        System.out.println("\t(default 'cenc').  Health is reported at /health and metrics at /metrics.");
+    }
+    
+    /**
+     * Create a new daemon.  No DRMs are registered and the daemon is not started
+     * 
+     * @param address the address to listen on
+     * @param workerCount the number of worker threads
+     * @param queueSize the number of jobs that may wait for a worker
+     * @param timeout the time after which a job is cancelled (ms)
+     * @throws IOException if the server socket could not be opened
+     */
+    public CryptfileDaemon(InetSocketAddress address, int workerCount, int queueSize, long timeout) throws IOException {
+        if (workerCount < 1 || queueSize < 1)
+            throw new IllegalArgumentException("Worker count and queue size must be positive");
+        if (timeout <= 0)
+            throw new IllegalArgumentException("Timeout must be positive: " + timeout);
+        this.timeout = timeout;
+        
+        // The bounded queue and abort policy turn a full queue into an immediate rejection
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                                         new ArrayBlockingQueue<Runnable>(queueSize),
+                                         new ThreadPoolExecutor.AbortPolicy());
+        
+        server = HttpServer.create(address, 0);
+        server.createContext(CRYPTFILE_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, false);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext(PSSH_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange, true);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Map<String, Object> health = new LinkedHashMap<String, Object>();
+                    health.put("status", stopping ? "stopping" : "ok");
+                    health.put("drms", new TreeSet<String>(handlers.keySet()));
+                    health.put("workers", workers.getPoolSize());
+                    health.put("active", workers.getActiveCount());
+                    health.put("queued", workers.getQueue().size());
+                    health.put("queue_remaining", workers.getQueue().remainingCapacity());
+                    send(exchange, stopping ? 503 : 200, "application/json",
+                         gson.toJson(health).getBytes(StandardCharsets.UTF_8));
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Map<String, Object> map = metrics.toMap();
+                    map.put("rejected", rejected.sum());
+                    map.put("timed_out", timedOut.sum());
+                    map.put("active", workers.getActiveCount());
+                    map.put("queued", workers.getQueue().size());
+                    send(exchange, 200, "application/json", gson.toJson(map).getBytes(StandardCharsets.UTF_8));
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        // Request threads only wait for workers, so they need not be bounded themselves
+        executor = TaskExecutors.newTaskExecutor();
+        server.setExecutor(executor);
+    }
+    
+    /**
+     * Register the job handler for a DRM.  Jobs for the DRM are submitted to
+     * /cryptfile/&lt;drm&gt; and /pssh/&lt;drm&gt;
+     * 
+     * @param drm the DRM name used in request paths
+     * @param handler the job handler
+     */
+    public void register(String drm, JobHandler handler) {
+        handlers.put(drm, handler);
+    }
+    
+    /**
+     * Start the worker threads and accept requests
+     */
+    public void start() {
+        workers.prestartAllCoreThreads();
+        server.start();
+    }
+    
+    /**
+     * Stop accepting requests, wait for up to the given time for running and queued
+     * jobs to complete, then stop the server
+     * 
+     * @param delay the maximum time to wait for jobs to complete (ms)
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void stop(long delay) throws InterruptedException {
+        stopping = true;
+        workers.shutdown();
+        workers.awaitTermination(delay, TimeUnit.MILLISECONDS);
+        server.stop(0);
+        workers.shutdownNow();
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Returns the URL of this daemon
+     * 
+     * @return the daemon URL
+     */
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+    
+    /**
+     * Returns the job metrics.  Rejected and timed out jobs are counted as errors
+     * 
+     * @return the metrics
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    private void respond(HttpExchange exchange, final boolean pssh) throws IOException {
+        long start = System.nanoTime();
+        int keyCount = 0;
+        int status = 500;
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                status = 405;
+                sendError(exchange, status, "Jobs must be POSTed");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath();
+            String drm = path.substring(path.indexOf('/', 1) + 1);
+            final JobHandler handler = handlers.get(drm);
+            if (handler == null) {
+                status = 404;
+                sendError(exchange, status, "Unknown DRM: " + drm);
+                return;
+            }
+            
+            final CryptfileBuilder.ProtectionScheme scheme;
+            final int psshVersion;
+            final String json;
+            try {
+                Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                scheme = query.containsKey("scheme") ?
+                        CryptfileBuilder.ProtectionScheme.fromSchemeType(query.get("scheme")) :
+                        CryptfileBuilder.ProtectionScheme.AES_CTR;
+                psshVersion = query.containsKey("version") ? parsePSSHVersion(query.get("version")) :
+                        DRMInfoPSSH.PSSH_VERSION_0;
+                json = new String(readAll(exchange.getRequestBody(), MAX_REQUEST_SIZE), StandardCharsets.UTF_8);
+            }
+            catch (IllegalArgumentException e) {
+                status = 400;
+                sendError(exchange, status, e.getMessage());
+                return;
+            }
+            
+            Future<Result> future;
+            try {
+                future = workers.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() throws Exception {
+                        return run(handler, json, scheme, pssh, psshVersion);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                rejected.increment();
+                status = 503;
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, status, stopping ? "Daemon is stopping" : "Job queue is full");
+                return;
+            }
+            
+            Result result;
+            try {
+                result = future.get(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                future.cancel(true);
+                timedOut.increment();
+                status = 503;
+                sendError(exchange, status, "Job timed out after " + timeout + " ms");
+                return;
+            }
+            catch (InterruptedException e) {
+                future.cancel(true);
+                Thread.currentThread().interrupt();
+                status = 503;
+                sendError(exchange, status, "Interrupted");
+                return;
+            }
+            catch (ExecutionException e) {
+                Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+                if (cause instanceof IllegalArgumentException)
+                    status = 400;
+                else if (cause instanceof KeyAcquisitionException)
+                    status = 502;
+                else
+                    status = 500;
+                sendError(exchange, status, cause.getClass().getSimpleName() + ": " + cause.getMessage());
+                return;
+            }
+            
+            status = 200;
+            keyCount = result.keyCount;
+            send(exchange, status, pssh ? "application/octet-stream" : "application/xml", result.data);
+        }
+        finally {
+            metrics.record(System.nanoTime() - start, keyCount, false, status != 200);
+        }
+    }
+    
+    // Runs on a worker thread
+    private static Result run(JobHandler handler, String json, CryptfileBuilder.ProtectionScheme scheme,
+                              boolean pssh, int psshVersion) throws Exception {
+        CryptfileBuilder builder = handler.generate(json, scheme);
+        int keyCount = 0;
+        for (CryptTrack track : builder.getTracks()) {
+            keyCount += track.getKeyCount();
+        }
+        
+        if (pssh) {
+            int size = 0;
+            for (DRMInfoPSSH box : builder.getPSSH()) {
+                size += box.getPsshBoxSize(psshVersion);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size);
+            for (DRMInfoPSSH box : builder.getPSSH()) {
+                box.toPsshBox(buf, psshVersion);
+            }
+            return new Result(buf.array(), keyCount);
+        }
+        
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(4096);
+        builder.streamCryptfile(baos);
+        return new Result(baos.toByteArray(), keyCount);
+    }
+    
+    private static int parsePSSHVersion(String version) {
+        if ("0".equals(version))
+            return DRMInfoPSSH.PSSH_VERSION_0;
+        if ("1".equals(version))
+            return DRMInfoPSSH.PSSH_VERSION_1;
+        throw new IllegalArgumentException("Invalid PSSH version: " + version);
+    }
+    
+    // name=value[&name=value...].  Values are not URL-encoded
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0)
+                params.put(param.substring(0, eq), param.substring(eq + 1));
+        }
+        return params;
+    }
+    
+    private void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        Map<String, String> error = new LinkedHashMap<String, String>();
+        error.put("error", message);
+        send(exchange, status, "application/json", gson.toJson(error).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] data) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, data.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(data);
+        os.close();
+    }
+    
+    private static byte[] readAll(InputStream is, int limit) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = is.read(buf)) != -1) {
+            baos.write(buf, 0, bytesRead);
+            if (baos.size() > limit)
+                throw new IllegalArgumentException("Job description larger than " + limit + " bytes");
+        }
+        return baos.toByteArray();
+    }
+    
+    private static void errorExit(String errorString) {
+        usage();
+        System.err.println(errorString);
+        System.exit(1);
+    }
+    
+    private static KeyCache openCache(String[] cacheOpts, String cacheKeyFile) throws IOException {
+        File keyFile = (cacheKeyFile != null) ? new File(cacheKeyFile) :
+                new File(System.getProperty("user.home"), ".widevine_cache_key");
+        long ttl = (cacheOpts.length > 1) ? Long.parseLong(cacheOpts[1]) * 60 * 60 * 1000 : KeyCache.DEFAULT_TTL;
+        return new KeyCache(new File(cacheOpts[0]), KeyCache.loadWrappingKey(keyFile),
+                            KeyCache.DEFAULT_MAX_ENTRIES, ttl);
+    }
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int queueSize = -1;
+        long timeout = DEFAULT_TIMEOUT;
+        int cryptByteBlock = 1;
+        int skipByteBlock = 9;
+        int keyRoll = -1;
+        URL clearkeyURL = null;
+        String playreadyURL = WRMHeader.TEST_SERVER_URL;
+        WRMHeader.Version headerVersion = WRMHeader.Version.V_4000;
+        boolean playreadyClearKey = false;
+        String signingFile = null;
+        WidevinePSSHBuilder.Mode psshMode = WidevinePSSHBuilder.Mode.TRACK;
+        String[] cacheOpts = null;
+        String cacheKeyFile = null;
+        
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-help")) {
+                    usage();
+                    System.exit(0);
+                }
+                else if (args[i].equals("-pr_clearkey")) {
+                    playreadyClearKey = true;
+                }
+                else if (i + 1 >= args.length) {
+                    errorExit("Illegal argument: " + args[i]);
+                }
+                else if (args[i].equals("-port")) {
+                    port = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-workers")) {
+                    workerCount = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-queue")) {
+                    queueSize = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-timeout")) {
+                    timeout = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals("-pattern")) {
+                    String[] pattern = args[++i].split(",");
+                    if (pattern.length != 2)
+                        errorExit("Illegal pattern: " + args[i]);
+                    cryptByteBlock = Integer.parseInt(pattern[0]);
+                    skipByteBlock = Integer.parseInt(pattern[1]);
+                }
+                else if (args[i].equals("-roll")) {
+                    keyRoll = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-ck_remote")) {
+                    clearkeyURL = new URL(args[++i]);
+                }
+                else if (args[i].equals("-pr_url")) {
+                    playreadyURL = args[++i];
+                }
+                else if (args[i].equals("-pr_version")) {
+                    headerVersion = WRMHeader.Version.fromString(args[++i]);
+                }
+                else if (args[i].equals("-wv_sign")) {
+                    signingFile = args[++i];
+                }
+                else if (args[i].equals("-wv_pssh")) {
+                    psshMode = WidevinePSSHBuilder.Mode.valueOf(args[++i].toUpperCase());
+                }
+                else if (args[i].equals("-wv_cache")) {
+                    cacheOpts = args[++i].split(",");
+                }
+                else if (args[i].equals("-wv_cache_key")) {
+                    cacheKeyFile = args[++i];
+                }
+                else {
+                    errorExit("Illegal argument: " + args[i]);
+                }
+            }
+        }
+        catch (MalformedURLException e) {
+            errorExit("Illegal ClearKey URL: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            errorExit("Illegal argument: " + e.getMessage());
+        }
+        if (queueSize == -1)
+            queueSize = workerCount * DEFAULT_QUEUE_PER_WORKER;
+        
+        KeyCache cache = null;
+        if (cacheOpts != null) {
+            try {
+                cache = openCache(cacheOpts, cacheKeyFile);
+            }
+            catch (IllegalArgumentException e) {
+                errorExit("Illegal cache option: " + e.getMessage());
+            }
+            catch (IOException e) {
+                errorExit("Could not open key cache: " + e.getMessage());
+            }
+        }
+        
+        final int finalCryptByteBlock = cryptByteBlock;
+        final int finalSkipByteBlock = skipByteBlock;
+        final int finalKeyRoll = keyRoll;
+        final URL finalClearkeyURL = clearkeyURL;
+        final String finalPlayreadyURL = playreadyURL;
+        final WRMHeader.Version finalHeaderVersion = headerVersion;
+        final boolean finalPlayreadyClearKey = playreadyClearKey;
+        final String finalSigningFile = signingFile;
+        final WidevinePSSHBuilder.Mode finalPSSHMode = psshMode;
+        final KeyCache finalCache = cache;
+        final int maxConcurrent = workerCount;
+        
+        try {
+            CryptfileDaemon daemon = new CryptfileDaemon(new InetSocketAddress("localhost", port),
+                                                         workerCount, queueSize, timeout);
+            daemon.register("clearkey", new AssetJobHandler() {
+                @Override
+                protected AssetGenerator createGenerator(CryptfileBuilder.ProtectionScheme scheme) {
+                    ClearKeyAssetGenerator generator = new ClearKeyAssetGenerator(finalClearkeyURL, scheme);
+                    generator.setPattern(finalCryptByteBlock, finalSkipByteBlock);
+                    generator.setKeyRoll(finalKeyRoll);
+                    return generator;
+                }
+            });
+            daemon.register("playready", new AssetJobHandler() {
+                @Override
+                protected AssetGenerator createGenerator(CryptfileBuilder.ProtectionScheme scheme) {
+                    PlayReadyAssetGenerator generator =
+                            new PlayReadyAssetGenerator(finalHeaderVersion, finalPlayreadyURL,
+                                                        finalPlayreadyClearKey, finalClearkeyURL, scheme);
+                    generator.setPattern(finalCryptByteBlock, finalSkipByteBlock);
+                    generator.setKeyRoll(finalKeyRoll);
+                    return generator;
+                }
+            });
+            daemon.register("widevine", new WidevineJobHandler() {
+                @Override
+                protected KeyAcquisitionService createService(CryptfileBuilder.ProtectionScheme scheme) {
+                    KeyAcquisitionService service = new KeyAcquisitionService(KeyServerClient.getDefault(),
+                                                                              finalSigningFile, maxConcurrent, null);
+                    service.setScheme(scheme, finalCryptByteBlock, finalSkipByteBlock);
+                    service.setRollingKeys(-1, -1, finalKeyRoll);
+                    service.setCache(finalCache);
+                    service.setPSSHMode(finalPSSHMode);
+                    return service;
+                }
+            });
+            daemon.start();
+            System.out.println("Cryptfile daemon listening at " + daemon.getURL() + " with " + workerCount +
+                               " workers and a queue of " + queueSize);
+        }
+        catch (IllegalArgumentException e) {
+            errorExit(e.getMessage());
+        }
+        catch (IOException e) {
+            System.err.println("Could not start daemon: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
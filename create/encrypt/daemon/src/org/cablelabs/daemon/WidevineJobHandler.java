@@ -0,0 +1,81 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.daemon;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.widevine.batch.KeyAcquisitionService;
+import org.cablelabs.widevine.batch.KeyJob;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Job handler for Widevine, using the same {@link KeyJob} JSON as Widevine job lists.
+ * The "out" member is not required.  Keys are requested from the key server (or the
+ * key cache) by a {@link KeyAcquisitionService}.
+ * <p>
+ * One service is created for each encryption scheme the first time that scheme is
+ * requested and is then shared by all jobs.
+ */
+public abstract class WidevineJobHandler implements JobHandler {
+    
+    private Gson gson = new Gson();
+    private ConcurrentHashMap<CryptfileBuilder.ProtectionScheme, KeyAcquisitionService> services =
+            new ConcurrentHashMap<CryptfileBuilder.ProtectionScheme, KeyAcquisitionService>();
+    
+    /**
+     * Create the key acquisition service for the given encryption scheme
+     * 
+     * @param scheme the encryption scheme
+     * @return the key acquisition service
+     */
+    protected abstract KeyAcquisitionService createService(CryptfileBuilder.ProtectionScheme scheme);
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.daemon.JobHandler#generate(java.lang.String, org.cablelabs.cryptfile.CryptfileBuilder.ProtectionScheme)
+     */
+    @Override
+    public CryptfileBuilder generate(String json, CryptfileBuilder.ProtectionScheme scheme) throws Exception {
+        KeyJob job;
+        try {
+            job = gson.fromJson(json, KeyJob.class);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid JSON -- " + e.getMessage());
+        }
+        if (job == null)
+            throw new IllegalArgumentException("Empty job");
+        job.validate();
+        
+        // Atomic, so concurrent first jobs for a scheme never create a second service
+        return services.computeIfAbsent(scheme, this::createService).generate(job);
+    }
+}
@@ -0,0 +1,255 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.io.Closeable;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.cablelabs.cryptfile.CryptfileException;
+import org.cablelabs.cryptfile.CryptoException;
+
+/**
+ * Derives PlayReady keys for many key IDs at once.  The results are identical to
+ * creating a {@link PlayReadyKeyPair} for each key ID, but each thread reuses one
+ * SHA-256 digest that has already absorbed the key seed and one AES cipher for the
+ * checksums, and the key IDs are split across all available processors.
+ * <p>
+ * The worker threads are created on first use and kept until the deriver is closed,
+ * and each one keeps its digest and cipher for as long as the key seed is unchanged,
+ * so repeated calls (one per chunk of a large batch, for instance) pay no setup cost.
+ */
+public class PlayReadyKeyDeriver implements Closeable {
+    
+    // Lists shorter than this are derived on the calling thread
+    private static final int MIN_PARALLEL_KEYS = 256;
+    
+    private int parallelism;
+    private ExecutorService executor;
+    private volatile boolean closed;
+    
+    // Derivation state for the key seed last used on each thread
+    private ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+    
+    // Derivation state for one thread
+    static class Worker {
+        byte[] keySeed;
+        boolean testKeySeed;    // Every key gets its own copy, as with PlayReadyKeyPair(String)
+        MessageDigest seeded;   // Has absorbed the key seed
+        Cipher cipher;
+        
+        Worker(byte[] keySeed, boolean testKeySeed) throws GeneralSecurityException {
+            this.keySeed = keySeed;
+            this.testKeySeed = testKeySeed;
+            seeded = MessageDigest.getInstance("SHA-256");
+            seeded.update(keySeed);
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        }
+        
+        PlayReadyKeyPair derive(String keyID) throws GeneralSecurityException {
+            return derive(PlayReadyKeyPair.parseGUID(keyID));
+        }
+        
+        PlayReadyKeyPair derive(byte[] id) throws GeneralSecurityException {
+            byte[] msID = PlayReadyKeyPair.binaryEncodeMSGUID(id);
+            
+            // The three hashes are (seed, id), (seed, id, seed) and (seed, id, seed, id)
+            // so each one continues from a copy of the one before
+            MessageDigest a = clone(seeded);
+            a.update(msID);
+            MessageDigest b = clone(a);
+            byte[] shaA = a.digest();
+            b.update(keySeed);
+            MessageDigest c = clone(b);
+            byte[] shaB = b.digest();
+            c.update(msID);
+            byte[] shaC = c.digest();
+            
+            byte[] key = new byte[16];
+            for (int i = 0; i < 16; i++) {
+                key[i] = (byte)(shaA[i] ^ shaA[i + 16] ^ shaB[i] ^ shaB[i + 16] ^ shaC[i] ^ shaC[i + 16]);
+            }
+            
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            byte[] checksum = Arrays.copyOf(cipher.doFinal(msID), 8);
+            
+            return new PlayReadyKeyPair(id, msID, key, checksum, testKeySeed ? keySeed.clone() : keySeed);
+        }
+        
+        private static MessageDigest clone(MessageDigest md) throws GeneralSecurityException {
+            try {
+                return (MessageDigest)md.clone();
+            }
+            catch (CloneNotSupportedException e) {
+                throw new GeneralSecurityException("SHA-256 digest cannot be cloned", e);
+            }
+        }
+    }
+    
+    /**
+     * Create a new key deriver that uses one thread per available processor
+     */
+    public PlayReadyKeyDeriver() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Create a new key deriver
+     * 
+     * @param parallelism the number of threads shared by all calls to
+     * {@link #derive(List, byte[])}
+     */
+    public PlayReadyKeyDeriver(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * Derive the keys for the given key IDs
+     * 
+     * @param keyIDs the key ID GUIDs in xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx format
+     * @param keySeed the key seed (at least 30 bytes) or null to use the
+     * <a href="http://playready.directtaps.net/pr/doc/customrights/>PlayReady Test Server</a>
+     * key seed
+     * @return the key pairs, in the same order as the key IDs
+     * @throws IllegalArgumentException if any of the key IDs is not a valid GUID
+     * @throws CryptoException if the keys could not be derived
+     * @throws IllegalStateException if the deriver has been closed
+     */
+    public List<PlayReadyKeyPair> derive(List<String> keyIDs, byte[] keySeed) {
+        if (closed)
+            throw new IllegalStateException("Key deriver is closed");
+        final List<String> ids = (keyIDs instanceof RandomAccess) ? keyIDs : new ArrayList<String>(keyIDs);
+        final byte[] seed = (keySeed != null) ? keySeed : PlayReadyKeyPair.getTestKeySeed();
+        final boolean testKeySeed = keySeed == null;
+        final PlayReadyKeyPair[] results = new PlayReadyKeyPair[ids.size()];
+        
+        int threads = Math.min(parallelism, (ids.size() + MIN_PARALLEL_KEYS - 1) / MIN_PARALLEL_KEYS);
+        if (threads <= 1) {
+            derive(ids, seed, testKeySeed, results, 0, results.length);
+            return Arrays.asList(results);
+        }
+        
+        // One contiguous range of key IDs for each thread
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+        for (int t = 0; t < threads; t++) {
+            final int start = (int)((long)results.length * t / threads);
+            final int end = (int)((long)results.length * (t + 1) / threads);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    derive(ids, seed, testKeySeed, results, start, end);
+                    return null;
+                }
+            });
+        }
+        
+        try {
+            for (Future<Void> result : getExecutor().invokeAll(tasks)) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CryptfileException("Key derivation interrupted", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new CryptfileException("Error deriving PlayReady keys: " + cause.getMessage(), cause);
+        }
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Stop the worker threads.  No more keys can be derived once the deriver is closed.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (executor != null)
+            executor.shutdown();
+    }
+    
+    // The worker threads are daemons, so a deriver that is never closed does not keep
+    // the JVM alive
+    private synchronized ExecutorService getExecutor() {
+        if (closed)
+            throw new IllegalStateException("Key deriver is closed");
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PlayReadyKeyDeriver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+    
+    private void derive(List<String> keyIDs, byte[] keySeed, boolean testKeySeed,
+                        PlayReadyKeyPair[] results, int start, int end) {
+        try {
+            Worker worker = getWorker(keySeed, testKeySeed);
+            for (int i = start; i < end; i++) {
+                results[i] = worker.derive(keyIDs.get(i));
+            }
+        }
+        catch (GeneralSecurityException e) {
+            throw new CryptoException("Error deriving PlayReady keys: " + e.getMessage(), e);
+        }
+    }
+    
+    // Reuse this thread's worker unless the key seed has changed.  The worker keeps its
+    // own copy of a caller's key seed so that it cannot change underneath the digest
+    private Worker getWorker(byte[] keySeed, boolean testKeySeed) throws GeneralSecurityException {
+        Worker worker = workers.get();
+        if (worker == null || worker.testKeySeed != testKeySeed || !Arrays.equals(worker.keySeed, keySeed)) {
+            worker = new Worker(testKeySeed ? keySeed : keySeed.clone(), testKeySeed);
+            workers.set(worker);
+        }
+        return worker;
+    }
+}
@@ -37,6 +37,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.cablelabs.cryptfile.CryptoException;
 import org.cablelabs.cryptfile.KeyPair;
 
 /**
@@ -51,7 +52,7 @@ public class PlayReadyKeyPair extends KeyPair {
     private byte[] checksum;
     
     // Default key seed is the one used by the Microsoft test server
-    private byte[] keySeed = {
+    private static final byte[] TEST_KEY_SEED = {
             (byte)0x5D, (byte)0x50, (byte)0x68, (byte)0xBE,
             (byte)0xC9, (byte)0xB3, (byte)0x84, (byte)0xFF,
             (byte)0x60, (byte)0x44, (byte)0x86, (byte)0x71,
@@ -62,6 +63,8 @@ public class PlayReadyKeyPair extends KeyPair {
             (byte)0x8E, (byte)0x88 
     };
     
+    private byte[] keySeed = TEST_KEY_SEED.clone();
+    
     /**
      * Converts a GUID into the Microsoft-specific binary encoded form as described
      * <a href="http://en.wikipedia.org/wiki/Globally_unique_identifier#Binary_encoding">here</a>
@@ -70,7 +73,7 @@ public class PlayReadyKeyPair extends KeyPair {
      * @param guid the 16-byte GUID
      * @return the binary encoded GUID for little-endian platforms
      */
-    private byte[] binaryEncodeMSGUID(byte[] guid) {
+    static byte[] binaryEncodeMSGUID(byte[] guid) {
         if (guid.length != 16)
             throw new IllegalArgumentException("Illegal GUID length: " + guid.length);
         
@@ -133,7 +136,7 @@ public class PlayReadyKeyPair extends KeyPair {
             }
         }
         catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support SHA-256 algorithm!");
+            throw new CryptoException("Java Virtual Machine does not support SHA-256 algorithm", e);
         }
         
         return key;
@@ -141,30 +144,52 @@ public class PlayReadyKeyPair extends KeyPair {
     
     // Generate the key/keyID checksum according to the Microsoft documentation
     private static byte[] generateChecksum(byte[] mskeyID, byte[] key) {
-        byte[] checksum = null;
-        // Generate checksum
         try {
             Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
             SecretKeySpec keySpec = new SecretKeySpec(key, "AES");
             cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-            checksum = Arrays.copyOf(cipher.doFinal(mskeyID), 8);
+            return Arrays.copyOf(cipher.doFinal(mskeyID), 8);
         }
         catch (NoSuchAlgorithmException e) {
-            System.out.println("Java Virtual Machine does not support AES/ECB cipher!");
+            throw new CryptoException("Java Virtual Machine does not support AES/ECB cipher", e);
         }
         catch (NoSuchPaddingException e) {
-            System.out.println("Java Virtual Machine does not support NoPadding!");
+            throw new CryptoException("Java Virtual Machine does not support NoPadding", e);
         }
         catch (InvalidKeyException e) {
-            System.out.println("Invalid key during checksum generation!");
+            throw new CryptoException("Invalid key during checksum generation", e);
         }
         catch (IllegalBlockSizeException e) {
-            System.out.println("Illegal block size exception during checksum generation!");
+            throw new CryptoException("Illegal block size during checksum generation", e);
         }
         catch (BadPaddingException e) {
-            System.out.println("Bad padding exception during checksum generation!");
+            throw new CryptoException("Bad padding during checksum generation", e);
         }
-        return checksum;
+    }
+    
+    /**
+     * Returns a copy of the PlayReady test server key seed
+     * 
+     * @return the test key seed
+     */
+    static byte[] getTestKeySeed() {
+        return TEST_KEY_SEED.clone();
+    }
+    
+    /**
+     * Create a key from already-derived key data (see {@link PlayReadyKeyDeriver})
+     * 
+     * @param keyID the 16-byte key ID
+     * @param mskeyID the Microsoft binary encoded key ID
+     * @param key the 16-byte key value
+     * @param checksum the 8-byte checksum
+     * @param keySeed the key seed used to generate the key
+     */
+    PlayReadyKeyPair(byte[] keyID, byte[] mskeyID, byte[] key, byte[] checksum, byte[] keySeed) {
+        super(keyID, key);
+        this.mskeyID = mskeyID;
+        this.checksum = checksum;
+        this.keySeed = keySeed;
     }
     
     /**
@@ -182,6 +207,19 @@ public class PlayReadyKeyPair extends KeyPair {
         this.keySeed = keySeed;
     }
 
+    /**
+     * Create a key from a stored key ID and key value, such as one from a
+     * {@link org.cablelabs.cryptfile.keystore.KeyStore}
+     * 
+     * @param keypair the key ID and 16-byte key value
+     */
+    public PlayReadyKeyPair(KeyPair keypair) {
+        super(keypair.getID(), keypair.getKey());
+        this.mskeyID = binaryEncodeMSGUID(this.keyID);
+        this.checksum = generateChecksum(mskeyID, key);
+        this.keySeed = null;
+    }
+
     /**
      * Create a key in which the encryption key will be generated from the
      * given key seed and given key ID using the algorithm
@@ -0,0 +1,122 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.cablelabs.cryptfile.CryptoException;
+import org.cablelabs.cryptfile.DerivedKeySequence;
+import org.cablelabs.cryptfile.KeyPair;
+
+/**
+ * Rolling PlayReady keys derived on demand from a key seed.
+ * <p>
+ * The key ID for each crypto period is the first 16 bytes of the SHA-256 hash of the
+ * base key ID followed by the 64-bit big-endian period number.  The key is derived
+ * from the key ID and key seed with the Microsoft-documented algorithm (see
+ * {@link PlayReadyKeyPair}), so any PlayReady license server that holds the key seed
+ * can issue licenses for every period without a key exchange.
+ */
+public class PlayReadyKeySequence extends DerivedKeySequence {
+    
+    private byte[] baseKeyID;
+    private PlayReadyKeyDeriver.Worker worker;
+    private MessageDigest sha256;
+    
+    /**
+     * Create a new PlayReady key sequence that caches
+     * {@link DerivedKeySequence#DEFAULT_WINDOW} keys
+     * 
+     * @param baseKeyID the base key ID GUID in xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx format
+     * @param keySeed the key seed (at least 30 bytes) or null to use the
+     * <a href="http://playready.directtaps.net/pr/doc/customrights/>PlayReady Test Server</a>
+     * key seed
+     * @param firstPeriod the crypto period number of the first key
+     * @param count the number of keys in the sequence
+     */
+    public PlayReadyKeySequence(String baseKeyID, byte[] keySeed, long firstPeriod, int count) {
+        this(baseKeyID, keySeed, firstPeriod, count, DEFAULT_WINDOW);
+    }
+    
+    /**
+     * Create a new PlayReady key sequence
+     * 
+     * @param baseKeyID the base key ID GUID in xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx format
+     * @param keySeed the key seed (at least 30 bytes) or null to use the
+     * <a href="http://playready.directtaps.net/pr/doc/customrights/>PlayReady Test Server</a>
+     * key seed
+     * @param firstPeriod the crypto period number of the first key
+     * @param count the number of keys in the sequence
+     * @param windowSize the number of recently used keys to cache
+     */
+    public PlayReadyKeySequence(String baseKeyID, byte[] keySeed, long firstPeriod, int count, int windowSize) {
+        super(firstPeriod, count, windowSize);
+        if (keySeed != null && keySeed.length < 30)
+            throw new IllegalArgumentException("PlayReady key seed must be at least 30 bytes");
+        
+        this.baseKeyID = KeyPair.parseGUID(baseKeyID);
+        try {
+            // Keep our own copy of a caller's key seed so that it cannot change
+            // underneath the worker
+            byte[] seed = (keySeed != null) ? keySeed.clone() : PlayReadyKeyPair.getTestKeySeed();
+            worker = new PlayReadyKeyDeriver.Worker(seed, keySeed == null);
+            sha256 = MessageDigest.getInstance("SHA-256");
+        }
+        catch (GeneralSecurityException e) {
+            throw new CryptoException("Error creating PlayReady key deriver: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Returns the key ID for the given crypto period
+     * 
+     * @param period the absolute crypto period number
+     * @return the 16-byte key ID
+     */
+    public synchronized byte[] getKeyID(long period) {
+        sha256.update(baseKeyID);
+        sha256.update(ByteBuffer.allocate(8).putLong(period).array());
+        return Arrays.copyOf(sha256.digest(), 16);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DerivedKeySequence#deriveKeyPair(long)
+     */
+    @Override
+    protected synchronized KeyPair deriveKeyPair(long period) {
+        try {
+            return worker.derive(getKeyID(period));
+        }
+        catch (GeneralSecurityException e) {
+            throw new CryptoException("Error deriving PlayReady key: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cryptfile.CryptfileWriteException;
+
+/**
+ * An immutable, serialized PlayReady Object (PRO): the little-endian header object
+ * that carries one WRM header record for each {@link WRMHeader}.
+ * <p>
+ * Record lengths are measured from the header model first, so the object is written
+ * into one buffer of exactly the right size in a single pass.  The same bytes then
+ * serve as the PlayReady 'pssh' box data, the cryptfile DRMInfo data and, in base64
+ * form, the MPD <i>mspr:pro</i> element, without encoding the headers again.
+ * <p>
+ * Layout:
+ * <pre>
+ *    4          PlayReady Header Object Size field
+ *    2          Number of Records field
+ *    4*NumRec   Record Type and Record Length field for each record
+ *    RecSize    Size of all headers
+ * </pre>
+ */
+public final class PlayReadyObject {
+    
+    // Record type of WRM headers
+    private static final int RECORD_TYPE_WRM_HEADER = 1;
+    
+    // Record lengths and the record count are 16-bit
+    private static final int MAX_RECORD_SIZE = 0xFFFF;
+    private static final int MAX_RECORDS = 0xFFFF;
+    
+    private List<WRMHeader> headers;
+    private int[] recordSizes;
+    private byte[] data;
+    private volatile String base64;
+    
+    /**
+     * Build the PlayReady Object for the given headers
+     * 
+     * @param headers the WRM headers, one record each
+     * @throws IllegalArgumentException if there are no headers or too many
+     * @throws CryptfileWriteException if a header is too large for a record
+     */
+    public PlayReadyObject(List<WRMHeader> headers) {
+        if (headers == null || headers.isEmpty())
+            throw new IllegalArgumentException("PlayReady Object needs at least one WRMHeader");
+        if (headers.size() > MAX_RECORDS)
+            throw new IllegalArgumentException("Too many WRMHeader records: " + headers.size());
+        this.headers = Collections.unmodifiableList(new ArrayList<WRMHeader>(headers));
+        
+        // Measure every record to find the exact object size
+        WRMHeaderEncoder encoder = new WRMHeaderEncoder();
+        recordSizes = new int[headers.size()];
+        int size = 4 + 2;
+        for (int i = 0; i < recordSizes.length; i++) {
+            WRMHeader header = this.headers.get(i);
+            recordSizes[i] = encoder.getEncodedSize(header);
+            if (recordSizes[i] > MAX_RECORD_SIZE)
+                throw new CryptfileWriteException("WRMHeader for " + header.getKeyPairs().size() +
+                                                  " key(s) is " + recordSizes[i] +
+                                                  " bytes, over the PlayReady Object record limit of " +
+                                                  MAX_RECORD_SIZE);
+            size += 4 + recordSizes[i];
+        }
+        
+        // Single pass into the exact-size buffer
+        ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(size);
+        buf.putShort((short)recordSizes.length);
+        for (int i = 0; i < recordSizes.length; i++) {
+            buf.putShort((short)RECORD_TYPE_WRM_HEADER);
+            buf.putShort((short)recordSizes[i]);
+            encoder.encode(this.headers.get(i), buf);
+        }
+        data = buf.array();
+    }
+    
+    /**
+     * Returns the headers in this object, in record order
+     * 
+     * @return the headers
+     */
+    public List<WRMHeader> getHeaders() {
+        return headers;
+    }
+    
+    /**
+     * Returns the size of the PlayReady Object
+     * 
+     * @return the size in bytes
+     */
+    public int size() {
+        return data.length;
+    }
+    
+    /**
+     * Returns the number of WRM header records
+     * 
+     * @return the record count
+     */
+    public int getRecordCount() {
+        return recordSizes.length;
+    }
+    
+    /**
+     * Returns the size of one WRM header record, not counting its type and length fields
+     * 
+     * @param index the record index
+     * @return the record size in bytes
+     */
+    public int getRecordSize(int index) {
+        return recordSizes[index];
+    }
+    
+    /**
+     * Returns the total size of the WRM header records, not counting their type and
+     * length fields
+     * 
+     * @return the header size in bytes
+     */
+    public int getWRMHeaderSize() {
+        return data.length - 6 - 4 * recordSizes.length;
+    }
+    
+    /**
+     * Returns a read-only view of the serialized object
+     * 
+     * @return the object bytes, from position 0 to the limit
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+    
+    /**
+     * Returns a copy of the serialized object
+     * 
+     * @return the object bytes
+     */
+    public byte[] toByteArray() {
+        return data.clone();
+    }
+    
+    /**
+     * Write the serialized object to the given buffer
+     * 
+     * @param buf the buffer
+     */
+    public void writeTo(ByteBuffer buf) {
+        buf.put(data);
+    }
+    
+    /**
+     * Returns the object in base64 notation, as used by the MPD <i>mspr:pro</i> element
+     * and the cryptfile.  Encoded once on first use
+     * 
+     * @return the base64 encoded object
+     */
+    public String toBase64() {
+        String b64 = base64;
+        if (b64 == null) {
+            b64 = Base64.encodeBase64String(data);
+            base64 = b64;
+        }
+        return b64;
+    }
+}
@@ -26,30 +26,38 @@
 
 package org.cablelabs.playready;
 
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileWriteException;
+import org.cablelabs.cryptfile.XMLSupport;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
- * Generates a PlayReady Windows Rights Management Header XML document
+ * Generates a PlayReady Windows Rights Management Header XML document.
+ * <p>
+ * Version 4.0.0.0 and 4.1.0.0 headers describe a single key, so content with many keys
+ * needs one header record per key in the PlayReady Object.  Version 4.2.0.0 and later
+ * headers carry a KIDS list, so all of an asset's keys fit in one header.  Version
+ * 4.3.0.0 adds the AESCBC algorithm for the 'cbc1' and 'cbcs' schemes.
  */
 public class WRMHeader {
     
+    /** License acquisition URL of the PlayReady test server */
+    public static final String TEST_SERVER_URL =
+            "http://playready.directtaps.net/pr/svc/rightsmanager.asmx?PlayRight=1&UseSimpleNonPersistentLicense=1";
+    
     public enum Version {
         V_4000("4.0.0.0"),
-        V_4100("4.1.0.0");
+        V_4100("4.1.0.0"),
+        V_4200("4.2.0.0"),
+        V_4300("4.3.0.0");
         
         private String xml_attr;
         
@@ -60,14 +68,64 @@ public class WRMHeader {
         String toXMLAttr() {
             return xml_attr;
         }
+        
+        /**
+         * Returns true if headers of this version can describe more than one key
+         * 
+         * @return true for version 4.2.0.0 and later
+         */
+        public boolean supportsMultipleKeys() {
+            return compareTo(V_4200) >= 0;
+        }
+        
+        /**
+         * Parse a header version in either short ("4300") or attribute ("4.3.0.0") form
+         * 
+         * @param version the version string
+         * @return the version
+         * @throws IllegalArgumentException if the version is not supported
+         */
+        public static Version fromString(String version) {
+            for (Version v : values()) {
+                if (v.xml_attr.equals(version) || v.xml_attr.replace(".", "").equals(version))
+                    return v;
+            }
+            throw new IllegalArgumentException("Illegal WRMHeader version: " + version);
+        }
     }
     
-    private static final String XMLNS = "http://schemas.microsoft.com/DRM/2007/03/PlayReadyHeader";
+    /**
+     * Content encryption algorithm signalled for each key
+     */
+    public enum Algorithm {
+        
+        /** AES-128 CTR, for the 'cenc' and 'cens' schemes */
+        AESCTR,
+        
+        /** AES-128 CBC, for the 'cbc1' and 'cbcs' schemes (version 4.3.0.0 and later) */
+        AESCBC;
+        
+        /**
+         * Returns the algorithm for the given protection scheme
+         * 
+         * @param scheme the protection scheme
+         * @return the algorithm
+         */
+        public static Algorithm forScheme(CryptfileBuilder.ProtectionScheme scheme) {
+            return scheme.isCBC() ? AESCBC : AESCTR;
+        }
+    }
+    
+    static final String XMLNS = "http://schemas.microsoft.com/DRM/2007/03/PlayReadyHeader";
     
-    private Document doc;
+    private Version version;
+    private List<PlayReadyKeyPair> keys;
+    private Algorithm algorithm;
+    private String url;
     
     // Build a version 4.0.0.0 WRM Header
-    private void build4000Doc(PlayReadyKeyPair key, String url, Element root) {
+    private void build4000Doc(Document doc, Element root) {
+        PlayReadyKeyPair key = keys.get(0);
         Element data = doc.createElement("DATA");
         root.appendChild(data);
         
@@ -92,24 +150,157 @@ public class WRMHeader {
         data.appendChild(la_url);
     }
     
-    // Build a version 4.1.0.0 WRM Header
-    private void build4100Doc(PlayReadyKeyPair key, String url, Element root) {
-        // This is not working in my scripts yet, so I'm not going to implement it
-        // here until I have a working test
+    // Build a version 4.1.0.0 or later WRM Header.  The KID elements are in PROTECTINFO,
+    // directly for version 4.1.0.0 and in a KIDS list after that
+    private void build4100Doc(Document doc, Element root) {
+        Element data = doc.createElement("DATA");
+        root.appendChild(data);
+        
+        Element protectinfo = doc.createElement("PROTECTINFO");
+        data.appendChild(protectinfo);
+        
+        Element kidParent = protectinfo;
+        if (version.supportsMultipleKeys()) {
+            kidParent = doc.createElement("KIDS");
+            protectinfo.appendChild(kidParent);
+        }
+        for (PlayReadyKeyPair key : keys) {
+            Element kid = doc.createElement("KID");
+            kid.setAttribute("ALGID", algorithm.toString());
+            if (algorithm == Algorithm.AESCTR)
+                kid.setAttribute("CHECKSUM", Base64.encodeBase64String(key.getChecksum()));
+            kid.setAttribute("VALUE", Base64.encodeBase64String(key.getMSKeyID()));
+            kidParent.appendChild(kid);
+        }
+        
+        Element la_url = doc.createElement("LA_URL");
+        la_url.setTextContent(url);
+        data.appendChild(la_url);
     }
     
+    /**
+     * Create a header for a single AESCTR key
+     * 
+     * @param version the header version
+     * @param key the key
+     * @param url the license acquisition URL
+     */
     public WRMHeader(Version version, PlayReadyKeyPair key, String url) {
+        this(version, Collections.singletonList(key), Algorithm.AESCTR, url);
+    }
+    
+    /**
+     * Create a header for one or more keys.  The checksum for each key is only
+     * included for AESCTR keys, since it is defined for the AESCTR algorithm
+     * 
+     * @param version the header version
+     * @param keys the keys.  Versions before 4.2.0.0 allow a single key
+     * @param algorithm the algorithm for every key.  Versions before 4.3.0.0 only
+     * allow AESCTR
+     * @param url the license acquisition URL
+     */
+    public WRMHeader(Version version, List<PlayReadyKeyPair> keys, Algorithm algorithm, String url) {
+        if (version == null || algorithm == null)
+            throw new IllegalArgumentException("WRMHeader version and algorithm may not be null");
+        if (keys == null || keys.isEmpty() || keys.contains(null))
+            throw new IllegalArgumentException("WRMHeader key list may not be null or empty");
+        if (keys.size() > 1 && !version.supportsMultipleKeys())
+            throw new IllegalArgumentException("WRMHeader v" + version.toXMLAttr() + " allows a single key");
+        if (algorithm != Algorithm.AESCTR && version.compareTo(Version.V_4300) < 0)
+            throw new IllegalArgumentException("WRMHeader v" + version.toXMLAttr() + " only supports AESCTR");
+        
+        this.version = version;
+        this.keys = new ArrayList<PlayReadyKeyPair>(keys);
+        this.algorithm = algorithm;
+        this.url = url;
+    }
+    
+    /**
+     * Create the headers for a set of keys: one header for every key if the version
+     * only allows a single key, otherwise one header for all of them
+     * 
+     * @param version the header version
+     * @param keys the keys
+     * @param algorithm the algorithm for every key
+     * @param url the license acquisition URL
+     * @return the headers
+     */
+    public static List<WRMHeader> createHeaders(Version version, List<PlayReadyKeyPair> keys,
+                                                Algorithm algorithm, String url) {
+        List<WRMHeader> headers = new ArrayList<WRMHeader>();
+        if (version.supportsMultipleKeys()) {
+            headers.add(new WRMHeader(version, keys, algorithm, url));
+        }
+        else {
+            for (PlayReadyKeyPair key : keys) {
+                headers.add(new WRMHeader(version, Collections.singletonList(key), algorithm, url));
+            }
+        }
+        return headers;
+    }
+    
+    /**
+     * Returns the header version
+     * 
+     * @return the version
+     */
+    public Version getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the first key described by this header
+     * 
+     * @return the key
+     */
+    public PlayReadyKeyPair getKeyPair() {
+        return keys.get(0);
+    }
+    
+    /**
+     * Returns all keys described by this header
+     * 
+     * @return the keys
+     */
+    public List<PlayReadyKeyPair> getKeyPairs() {
+        return Collections.unmodifiableList(keys);
+    }
+    
+    /**
+     * Returns the algorithm signalled for every key
+     * 
+     * @return the algorithm
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+    
+    /**
+     * Returns the license acquisition URL
+     * 
+     * @return the URL or null if none was given
+     */
+    public String getURL() {
+        return url;
+    }
+    
+    /**
+     * Builds the WRMHeader as an XML document.  {@link WRMHeaderEncoder} writes the
+     * same header directly, without a DOM
+     * 
+     * @return the WRMHeader document
+     * @throws CryptfileWriteException if the document could not be created
+     */
+    public Document generateDocument() {
         
         // Create a new document
-        DocumentBuilder builder = null;
+        Document doc;
         try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            doc = XMLSupport.newDocument();
         }
         catch (ParserConfigurationException ex) {
-            System.out.println("Error creating XML DocumentBuilder: " + ex.getMessage());
-            System.exit(1);
+            throw new CryptfileWriteException("Error creating XML DocumentBuilder: " + ex.getMessage(), ex);
         }
-        doc = builder.newDocument();
         
         // Create root element and set namespace and version
         Element root = doc.createElement("WRMHEADER");
@@ -118,54 +309,21 @@ public class WRMHeader {
         doc.appendChild(root);
         
         // Build the version-specific document
-        switch (version) {
-        case V_4000:
-            build4000Doc(key, url, root);
-            break;
-        case V_4100:
-            build4100Doc(key, url, root);
-            break;
-        default:
-            break;
-        }
+        if (version == Version.V_4000)
+            build4000Doc(doc, root);
+        else
+            build4100Doc(doc, root);
+        return doc;
     }
     
     /**
-     * Returns the WRMHeader data exactly as it should be used in the PlayReady PSSH 
+     * Returns the WRMHeader data exactly as it should be used in the PlayReady PSSH.
+     * To serialize many headers, reuse one {@link WRMHeaderEncoder} instead
      * 
      * @return the WRMHeader data
      */
     public byte[] getWRMHeaderData() {
-        
-        // Setup our transformer to output UTF16 little-endian, with no declaration and no
-        // indenting
-        Transformer tf = null;
-        try {
-            tf = TransformerFactory.newInstance().newTransformer();
-            tf.setOutputProperty(OutputKeys.ENCODING, "UTF-16LE");
-            tf.setOutputProperty(OutputKeys.INDENT, "no");
-            tf.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        }
-        catch (Exception ex) {
-            System.out.println("Error creating XML Transformer: " + ex.getMessage());
-            System.exit(1);;
-        }
-        
-        byte[] retVal = null;
-        
-        // Write the document to a byte array
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DOMSource source = new DOMSource(doc);
-        StreamResult result = new StreamResult(baos);
-        try {
-            tf.transform(source, result);
-            retVal = baos.toByteArray();
-        }
-        catch (TransformerException ex) {
-            System.out.println("Error performing XML transform: " + ex.getMessage());
-        }
-        
-        return retVal;
+        return new WRMHeaderEncoder().encodeToArray(this);
     }
 
 }
@@ -0,0 +1,265 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Serializes {@link WRMHeader}s straight to UTF-16LE bytes.
+ * <p>
+ * The PlayReady header schema is fixed, so the encoder writes the markup for each
+ * header version directly into one reusable buffer instead of building a DOM and
+ * running it through a Transformer.  The output is byte-for-byte identical to
+ * serializing {@link WRMHeader#generateDocument()} with
+ * {@link org.cablelabs.cryptfile.XMLSupport.OutputProfile#WRM_HEADER}: no XML
+ * declaration, no byte order mark, no indenting, and the same character escaping
+ * and empty element forms.
+ * <p>
+ * The encoder can also measure a header without writing it (see
+ * {@link #getEncodedSize(WRMHeader)}) and write it into a caller's buffer, so a
+ * PlayReady Object can be allocated at its exact size and filled in one pass.
+ * <p>
+ * An encoder is not thread-safe.  Reuse one per thread for many headers.
+ */
+public class WRMHeaderEncoder {
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    
+    private ByteBuffer buf = ByteBuffer.allocate(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+    
+    // The buffer being written, or null while measuring
+    private ByteBuffer out;
+    
+    // UTF-16 code units counted while measuring
+    private int count;
+    
+    /**
+     * Returns the size of a header's encoding, without encoding it
+     * 
+     * @param header the header
+     * @return the encoded size in bytes
+     */
+    public int getEncodedSize(WRMHeader header) {
+        out = null;
+        count = 0;
+        writeHeader(header);
+        return count * 2;
+    }
+    
+    /**
+     * Encode a header into this encoder's buffer
+     * 
+     * @param header the header
+     * @return the encoded header, from position 0 to the limit.  The buffer is reused by
+     * the next call to this encoder
+     */
+    public ByteBuffer encode(WRMHeader header) {
+        int size = getEncodedSize(header);
+        if (buf.capacity() < size)
+            buf = ByteBuffer.allocate(Math.max(size, buf.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        buf.clear();
+        encode(header, buf);
+        buf.flip();
+        return buf;
+    }
+    
+    /**
+     * Encode a header at the current position of the given buffer, which must have
+     * {@link #getEncodedSize(WRMHeader)} bytes remaining.  The byte order of the buffer
+     * is ignored and left unchanged
+     * 
+     * @param header the header
+     * @param dst the buffer
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public void encode(WRMHeader header, ByteBuffer dst) {
+        ByteOrder order = dst.order();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        out = dst;
+        try {
+            writeHeader(header);
+        }
+        finally {
+            out = null;
+            dst.order(order);
+        }
+    }
+    
+    /**
+     * Encode a header into a new array
+     * 
+     * @param header the header
+     * @return the encoded header
+     */
+    public byte[] encodeToArray(WRMHeader header) {
+        ByteBuffer data = encode(header);
+        return Arrays.copyOf(data.array(), data.limit());
+    }
+    
+    private void writeHeader(WRMHeader header) {
+        write("<WRMHEADER xmlns=\"");
+        write(WRMHeader.XMLNS);
+        write("\" version=\"");
+        write(header.getVersion().toXMLAttr());
+        write("\">");
+        if (header.getVersion() == WRMHeader.Version.V_4000)
+            encode4000(header);
+        else
+            encode4100(header);
+        write("</WRMHEADER>");
+    }
+    
+    // Version 4.0.0.0 DATA element
+    private void encode4000(WRMHeader header) {
+        PlayReadyKeyPair key = header.getKeyPair();
+        write("<DATA><PROTECTINFO><KEYLEN>16</KEYLEN><ALGID>AESCTR</ALGID></PROTECTINFO><KID>");
+        writeBase64(key.getMSKeyID());
+        write("</KID><CHECKSUM>");
+        writeBase64(key.getChecksum());
+        write("</CHECKSUM>");
+        writeTextElement("LA_URL", header.getURL());
+        write("</DATA>");
+    }
+    
+    // Version 4.1.0.0 and later DATA element.  Attribute values are base64 or
+    // algorithm names, which never need escaping
+    private void encode4100(WRMHeader header) {
+        boolean kids = header.getVersion().supportsMultipleKeys();
+        String algorithm = header.getAlgorithm().toString();
+        boolean checksum = header.getAlgorithm() == WRMHeader.Algorithm.AESCTR;
+        
+        write(kids ? "<DATA><PROTECTINFO><KIDS>" : "<DATA><PROTECTINFO>");
+        for (PlayReadyKeyPair key : header.getKeyPairs()) {
+            write("<KID ALGID=\"");
+            write(algorithm);
+            if (checksum) {
+                write("\" CHECKSUM=\"");
+                writeBase64(key.getChecksum());
+            }
+            write("\" VALUE=\"");
+            writeBase64(key.getMSKeyID());
+            write("\"/>");
+        }
+        write(kids ? "</KIDS></PROTECTINFO>" : "</PROTECTINFO>");
+        writeTextElement("LA_URL", header.getURL());
+        write("</DATA>");
+    }
+    
+    // An element with escaped text content, or an empty element if there is no text
+    private void writeTextElement(String name, String text) {
+        write("<");
+        write(name);
+        if (text == null || text.isEmpty()) {
+            write("/>");
+            return;
+        }
+        write(">");
+        writeEscaped(text);
+        write("</");
+        write(name);
+        write(">");
+    }
+    
+    // Markup and other text that needs no escaping
+    private void write(String s) {
+        if (out == null) {
+            count += s.length();
+            return;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            out.putChar(s.charAt(i));
+        }
+    }
+    
+    private void write(char c) {
+        if (out == null)
+            count++;
+        else
+            out.putChar(c);
+    }
+    
+    // Character data escaped the same way as the Transformer: markup characters become
+    // entities, and control characters other than tab and newline become character
+    // references.  The JDK serializer also writes a character reference for any other
+    // BMP character whose UTF-16LE encoding starts with 0x00 or 0x3F ('?'), because its
+    // encodability check mistakes those bytes for an unmappable character.  Everything
+    // else, including surrogate pairs, is written as-is.  Like the serializer, an
+    // unpaired surrogate is replaced with U+FFFD and the following character is kept
+    private void writeEscaped(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                write(c);
+                write(s.charAt(++i));
+            }
+            else if (Character.isSurrogate(c))
+                write('\uFFFD');
+            else if (c == '&')
+                write("&amp;");
+            else if (c == '<')
+                write("&lt;");
+            else if (c == '>')
+                write("&gt;");
+            else if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F) ||
+                     (c >= 0x100 && ((c & 0xFF) == 0 || (c & 0xFF) == '?')))
+                write("&#" + (int)c + ";");
+            else
+                write(c);
+        }
+    }
+    
+    private void writeBase64(byte[] data) {
+        if (out == null) {
+            count += (data.length + 2) / 3 * 4;
+            return;
+        }
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            int n = ((data[i] & 0xFF) << 16) | ((data[i+1] & 0xFF) << 8) | (data[i+2] & 0xFF);
+            out.putChar(BASE64[n >>> 18]);
+            out.putChar(BASE64[(n >>> 12) & 0x3F]);
+            out.putChar(BASE64[(n >>> 6) & 0x3F]);
+            out.putChar(BASE64[n & 0x3F]);
+        }
+        int remaining = data.length - i;
+        if (remaining > 0) {
+            int n = (data[i] & 0xFF) << 16;
+            if (remaining == 2)
+                n |= (data[i+1] & 0xFF) << 8;
+            out.putChar(BASE64[n >>> 18]);
+            out.putChar(BASE64[(n >>> 12) & 0x3F]);
+            out.putChar((remaining == 2) ? BASE64[(n >>> 6) & 0x3F] : '=');
+            out.putChar('=');
+        }
+    }
+}
@@ -26,19 +26,25 @@
 
 package org.cablelabs.playready.cryptfile;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
+import org.cablelabs.cryptfile.CryptfileWriteException;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.playready.PlayReadyKeyPair;
+import org.cablelabs.playready.PlayReadyObject;
 import org.cablelabs.playready.WRMHeader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
- * Generates PlayReady-specific PSSH for MP4Box cryptfiles
+ * Generates PlayReady-specific PSSH for MP4Box cryptfiles.  The PSSH data is a
+ * PlayReady Object with one WRM header record for each {@link WRMHeader}.
  */
 public class PlayReadyPSSH extends DRMInfoPSSH {
     
@@ -50,11 +56,77 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
     };
     
     private List<WRMHeader> wrmHeaders;
+    
+    // Serialized PlayReady Object, generated once on first use
+    private PlayReadyObject pro;
 
     public PlayReadyPSSH(List<WRMHeader> wrmHeaders) {
         super(PLAYREADY_SYSTEM_ID);
         this.wrmHeaders = wrmHeaders;
     }
+    
+    /**
+     * Create a PSSH from an already serialized PlayReady Object, so that the same
+     * bytes can be shared with other outputs such as the MPD <i>mspr:pro</i> element
+     * 
+     * @param pro the PlayReady Object
+     */
+    public PlayReadyPSSH(PlayReadyObject pro) {
+        super(PLAYREADY_SYSTEM_ID);
+        this.wrmHeaders = pro.getHeaders();
+        this.pro = pro;
+    }
+    
+    /**
+     * Returns the PlayReady Object that makes up the PSSH data
+     * 
+     * @return the PlayReady Object
+     * @throws CryptfileWriteException if a header is too large for a record
+     */
+    public PlayReadyObject getPlayReadyObject() {
+        if (pro == null)
+            pro = new PlayReadyObject(wrmHeaders);
+        return pro;
+    }
+
+    /**
+     * Returns the size of the PlayReady Object that makes up the PSSH data
+     * 
+     * @return the PlayReady Object size in bytes
+     * @throws CryptfileWriteException if a header is too large for a record
+     */
+    public int getPlayReadyObjectSize() {
+        return getPlayReadyObject().size();
+    }
+    
+    /**
+     * Returns the total size of the WRM header records.  A license challenge carries
+     * the WRM header of the keys being requested, so this is also the header payload
+     * sent to acquire licenses for every key: one header per key for versions before
+     * 4.2.0.0, or one header for all keys after that
+     * 
+     * @return the WRM header size in bytes
+     * @throws CryptfileWriteException if a header is too large for a record
+     */
+    public int getWRMHeaderSize() {
+        return getPlayReadyObject().getWRMHeaderSize();
+    }
+    
+    /**
+     * Returns the number of WRM header records in the PlayReady Object
+     * 
+     * @return the record count
+     */
+    public int getRecordCount() {
+        return wrmHeaders.size();
+    }
+    
+    // The whole PlayReady Object as one bitstream element
+    private Bitstream generateBitstream() {
+        Bitstream b = new Bitstream();
+        b.setupDataB64(getPlayReadyObject().toBase64());
+        return b;
+    }
 
     /*
      * (non-Javadoc)
@@ -62,51 +134,63 @@ public class PlayReadyPSSH extends DRMInfoPSSH {
      */
     @Override
     public Node generateXML(Document d) {
-        List<byte[]> wrmheader_data = new ArrayList<byte[]>();
-        
-        // Collect all of our WRMHeader data arrays so that we can calculate the
-        // total size
-        int wrmSize = 0;
+        Element e = generateDRMInfo(d);
+        e.appendChild(generateBitstream().generateXML(d));
+        return e;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        generateBitstream().writeXML(w);
+        w.writeEndElement();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshDataSize()
+     */
+    @Override
+    protected int getPsshDataSize() {
+        return getPlayReadyObjectSize();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshData(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshData(ByteBuffer buf) {
+        getPlayReadyObject().writeTo(buf);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshKeyIDCount()
+     */
+    @Override
+    protected int getPsshKeyIDCount() {
+        int count = 0;
         for (WRMHeader header : wrmHeaders) {
-            byte[] data = header.getWRMHeaderData();
-            wrmSize += data.length;
-            wrmheader_data.add(data);
+            count += header.getKeyPairs().size();
         }
-        
-        // Total size of PlayReady Header Object is:
-        // 
-        //    4          PlayReady Header Object Size field
-        //    2          Number of Records field
-        //    4*NumRec   Record Type and Record Length field for each record
-        //    RecSize    Size of all headers
-        int proSize = 4 + 2 + (4*wrmHeaders.size()) + wrmSize;
-        
-        Element e = generateDRMInfo(d);
-        Bitstream b = new Bitstream();
-        
-        // PlayReady Header Object Size field
-        b.setupIntegerLE(proSize, 32);
-        e.appendChild(b.generateXML(d));
-        
-        // Number of Records field
-        b.setupIntegerLE(wrmHeaders.size(), 16);
-        e.appendChild(b.generateXML(d));
-        
-        for (byte[] wrmData : wrmheader_data) {
-            
-            // Record Type (always 1 for WRM Headers)
-            b.setupIntegerLE(1, 16);
-            e.appendChild(b.generateXML(d));
-            
-            // Record Length
-            b.setupIntegerLE(wrmData.length, 16);
-            e.appendChild(b.generateXML(d));
-            
-            // Data
-            b.setupDataB64(Base64.encodeBase64String(wrmData));
-            e.appendChild(b.generateXML(d));
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshKeyIDs(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshKeyIDs(ByteBuffer buf) {
+        for (WRMHeader header : wrmHeaders) {
+            for (PlayReadyKeyPair key : header.getKeyPairs()) {
+                buf.put(key.getID());
+            }
         }
-        
-        return e;
     }
 }
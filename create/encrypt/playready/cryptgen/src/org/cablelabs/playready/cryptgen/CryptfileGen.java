@@ -27,10 +27,14 @@
 package org.cablelabs.playready.cryptgen;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -42,9 +46,22 @@ import org.cablelabs.clearkey.cryptfile.ClearKeyRemotePSSH;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileException;
+import org.cablelabs.cryptfile.CryptfileWriteException;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.KeySequence;
+import org.cablelabs.cryptfile.batch.AssetGenerator;
+import org.cablelabs.cryptfile.batch.AssetSpec;
+import org.cablelabs.cryptfile.batch.BatchEngine;
+import org.cablelabs.cryptfile.batch.BatchSummary;
+import org.cablelabs.cryptfile.batch.ManifestReader;
+import org.cablelabs.cryptfile.keystore.MappedKeyStore;
+import org.cablelabs.cryptfile.mp4.CencEncryptor;
+import org.cablelabs.cryptfile.mp4.MP4BoxIndex;
+import org.cablelabs.cryptfile.mp4.TrackInfo;
 import org.cablelabs.playready.PlayReadyKeyPair;
+import org.cablelabs.playready.PlayReadyKeySequence;
 import org.cablelabs.playready.WRMHeader;
 import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
 
@@ -56,12 +73,16 @@ public class CryptfileGen {
         System.out.println("usage:  CryptfileGen [OPTIONS] <track_id>:{@<keyid_file>|<key_id>[,<key_id>...]} [<track_id>:{@<keyid_file>|<key_id>[,<key_id>...]}]...");
         System.out.println("");
         System.out.println("\t<track_id> is the track ID from the MP4 file to be encrypted.");
+        System.out.println("\tWhen -media is given, <track_id> may also be 'vide' or 'soun' to select every video or");
+        System.out.println("\taudio track in the media file.");
         System.out.println("\tAfter the '<track_id>:', you can specify either a file containing key IDs OR a");
         System.out.println("\tcomma-separated list of key IDs.  Key IDs are always represented in GUID form");
         System.out.println("\t(xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx). Multiple key IDs indicate the use of");
         System.out.println("\trolling keys.");
         System.out.println("");
-        System.out.println("\t\t<keyid_file> is a file that contains a list of key IDs, one key ID per line.");
+        System.out.println("\t\t<keyid_file> is a file that contains a list of key IDs, one key ID per line, or a");
+        System.out.println("\t\tbinary key store written by KeyStoreTool.  Keys are taken from a key store rather than");
+        System.out.println("\t\tgenerated from the key seed.");
         System.out.println("");
         System.out.println("\t\t<keyid> is a key ID in GUID form.");
         System.out.println("");
@@ -74,30 +95,73 @@ public class CryptfileGen {
         System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
         System.out.println("\t\twritten to stdout.");
         System.out.println("");
-        System.out.println("\t-version {4000|4100}");
-        System.out.println("\t\tIf present, specifies the WRMHeader version to generate.  Must be either '4000' for v4.0.0.0");
-        System.out.println("\t\tor '4100' for v4.1.0.0.  Default is '4000'.");
+        System.out.println("\t-encrypt <input_mp4>,<output_mp4>");
+        System.out.println("\t\tIf present, <input_mp4> (a fragmented MP4 file) will be encrypted with the generated");
+        System.out.println("\t\tcryptfile and written to <output_mp4>.  MP4Box is not required.");
+        System.out.println("");
+        System.out.println("\t-media <mp4_file>");
+        System.out.println("\t\tThe MP4 file that will be encrypted.  Track IDs are checked against the file and");
+        System.out.println("\t\t'vide' or 'soun' may be used in place of track IDs.");
+        System.out.println("\t\tDefaults to the -encrypt input file.");
+        System.out.println("");
+        System.out.println("\t-version {4000|4100|4200|4300}");
+        System.out.println("\t\tIf present, specifies the WRMHeader version to generate: '4000' for v4.0.0.0, '4100' for");
+        System.out.println("\t\tv4.1.0.0, '4200' for v4.2.0.0 or '4300' for v4.3.0.0.  Default is '4000'.  Versions before");
+        System.out.println("\t\tv4.2.0.0 need one WRMHeader for every key.  Later versions put all keys in one WRMHeader,");
+        System.out.println("\t\twhich keeps the PlayReady Object small when there are many rolling keys.");
         System.out.println("");
         System.out.println("\t-url <license_url>");
         System.out.println("\t\tIf present, specifies the license URL to embed in the WRMHeaders.  If not specified, will");
         System.out.println("\t\tuse the default url of:");
         System.out.println("\t\t'http://playready.directtaps.net/pr/svc/rightsmanager.asmx?PlayRight=1&UseSimpleNonPersistentLicense=1'");
         System.out.println("");
+        System.out.println("\t-scheme {cenc|cbc1|cens|cbcs}");
+        System.out.println("\t\tThe Common Encryption protection scheme.  Default is 'cenc'.  The AES-CBC schemes");
+        System.out.println("\t\t(cbc1, cbcs) use 16-byte IVs and 'cbcs' uses a random constant IV for each track.");
+        System.out.println("\t\tv4.3.0.0 WRMHeaders signal AESCBC for the AES-CBC schemes.  Earlier versions only signal");
+        System.out.println("\t\tAESCTR, so with them the AES-CBC schemes are only useful together with -clearkey.");
+        System.out.println("");
+        System.out.println("\t-pattern <crypt_blocks>,<skip_blocks>");
+        System.out.println("\t\tThe encryption pattern for the 'cens' and 'cbcs' schemes.  Of every <crypt_blocks> +");
+        System.out.println("\t\t<skip_blocks> 16-byte blocks of protected data, the first <crypt_blocks> are encrypted.");
+        System.out.println("\t\tDefault is 1,9.");
+        System.out.println("");
         System.out.println("\t-roll <sample_count>");
         System.out.println("\t\tUsed for rolling keys only.  <sample_count> is the number of consecutive samples to be");
         System.out.println("\t\tencrypted with each key before moving to the next.");
         System.out.println("");
-        System.out.println("\t-ck_remote <url>");
+        System.out.println("\t-derive <key_count>[,<first_period>]");
+        System.out.println("\t\tDerive <key_count> rolling keys for each track from the track's single key ID, which is");
+        System.out.println("\t\tused as the base key ID.  The key ID for each crypto period from <first_period> (default 0)");
+        System.out.println("\t\tonwards is hashed from the base key ID and its key is generated from the key seed, so a");
+        System.out.println("\t\tlicense server with the key seed can issue every key.  Use with -roll.  Not supported with");
+        System.out.println("\t\t-batch.");
+        System.out.println("");
+        System.out.println("\t-ck_remote <url>[,{list|range|keyset}]");
         System.out.println("\t\tAdd CableLabs 'Remote' ClearKey PSSH to the cryptfile.  <url> is the ClearKey server");
-        System.out.println("\t\tURL.");
+        System.out.println("\t\tURL.  The key IDs are named in the URL one by one ('list', the default), as ranges of");
+        System.out.println("\t\tconsecutive key IDs ('range') or by one key set handle ('keyset') that must be");
+        System.out.println("\t\tregistered with the server.");
         System.out.println("");
         System.out.println("\t-ck_json");
         System.out.println("\t\tAdd CableLabs 'JSON' ClearKey PSSH to the cryptfile.");
+        System.out.println("");
+        System.out.println("\t-batch <manifest_file>");
+        System.out.println("\t\tGenerate the cryptfiles for every asset in the given manifest in a single run.  Each line");
+        System.out.println("\t\tof the manifest is either a JSON asset object or a CSV line of the form:");
+        System.out.println("\t\t<asset>,<out_file>,<track_id>:<key_spec>[;<key_spec>...][,<track_id>:...]");
+        System.out.println("\t\twhere <key_spec> is <key_id>.  Use '-' to read the manifest");
+        System.out.println("\t\tfrom stdin.  Track arguments and -out are ignored in batch mode.");
+        System.out.println("");
+        System.out.println("\t-threads <count>");
+        System.out.println("\t\tNumber of worker threads for -batch.  Default is the number of available processors.");
     }
     
     private static class Track {
         List<String> keyIDs = new ArrayList<String>();
+        KeySequence keys; // Stored keys, if read from a key store
         int id;
+        String handler;
     }
     
     private static void invalidOption(String option) {
@@ -136,19 +200,109 @@ public class CryptfileGen {
         System.exit(1);;
     }
     
+    // Replace track types with the IDs of all matching tracks in the media file and
+    // make sure that every track ID is present in the media
+    private static List<Track> resolveTracks(List<Track> tracks, String mediaFile) {
+        if (mediaFile == null) {
+            for (Track t : tracks) {
+                if (t.handler != null)
+                    errorExit("-media is required to select tracks by type -- " + t.handler);
+            }
+            return tracks;
+        }
+        
+        List<Track> resolved = new ArrayList<Track>();
+        try {
+            MP4BoxIndex media = new MP4BoxIndex(new File(mediaFile));
+            try {
+                for (Track t : tracks) {
+                    if (t.handler == null) {
+                        if (media.getTrack(t.id) == null)
+                            errorExit("Track " + t.id + " not found in " + mediaFile);
+                        resolved.add(t);
+                        continue;
+                    }
+                    List<TrackInfo> matches = media.getTracks(t.handler);
+                    if (matches.isEmpty())
+                        errorExit("No '" + t.handler + "' tracks found in " + mediaFile);
+                    for (TrackInfo info : matches) {
+                        Track r = new Track();
+                        r.id = info.getTrackID();
+                        r.keyIDs = t.keyIDs;
+                        r.keys = t.keys;
+                        resolved.add(r);
+                    }
+                }
+            }
+            finally {
+                media.close();
+            }
+        }
+        catch (IllegalArgumentException e) {
+            errorExit("Invalid media file (" + mediaFile + "): " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading media file (" + mediaFile + "): " + e.getMessage());
+        }
+        return resolved;
+    }
+    
+    private static void runBatch(AssetGenerator generator, String manifestFile, int threads) {
+        try {
+            Reader r = "-".equals(manifestFile) ? new InputStreamReader(System.in, "UTF-8") :
+                                                  new InputStreamReader(new FileInputStream(manifestFile), "UTF-8");
+            ManifestReader manifest = new ManifestReader(r);
+            BatchSummary summary;
+            try {
+                summary = new BatchEngine<AssetSpec>(generator, threads).run(manifest);
+            }
+            finally {
+                manifest.close();
+            }
+            summary.print(System.out);
+            if (!summary.getFailures().isEmpty())
+                System.exit(1);
+        }
+        catch (FileNotFoundException e) {
+            errorExit("Manifest file not found: " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading manifest: " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            errorExit("Batch interrupted");
+        }
+    }
+    
     public static void main(String[] args) {
 
         // Rolling keys
         int rollingKeySamples = -1;
         
+        // Derived rolling keys
+        int deriveCount = 0;
+        long derivePeriod = 0;
+        
+        // Protection scheme
+        CryptfileBuilder.ProtectionScheme scheme = CryptfileBuilder.ProtectionScheme.AES_CTR;
+        int cryptByteBlock = 1;
+        int skipByteBlock = 9;
+        
         String outfile = null;
-        String url = "http://playready.directtaps.net/pr/svc/rightsmanager.asmx?PlayRight=1&UseSimpleNonPersistentLicense=1";
+        String[] encryptFiles = null;
+        String mediaFile = null;
+        String url = WRMHeader.TEST_SERVER_URL;
         List<Track> tracks = new ArrayList<Track>();
         WRMHeader.Version headerVersion = WRMHeader.Version.V_4000;
         
+        // Batch
+        String manifestFile = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        
         // Clearkey
         boolean clearkey = false;
         URL clearkey_url = null;
+        ClearKeyRemotePSSH.Mode clearkey_mode = ClearKeyRemotePSSH.Mode.LIST;
         
         // Parse arguments
         for (int i = 0; i < args.length; i++) {
@@ -164,22 +318,57 @@ public class CryptfileGen {
                     outfile = subopts[0];
                     i++;
                 }
+                else if ((subopts = checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles = subopts;
+                    i++;
+                }
+                else if ((subopts = checkOption("-media", args, i, 1)) != null) {
+                    mediaFile = subopts[0];
+                    i++;
+                }
                 else if ((subopts = checkOption("-version", args, i, 1)) != null) {
-                    if ("4000".equals(subopts[0])) {
-                        headerVersion = WRMHeader.Version.V_4000;
+                    try {
+                        headerVersion = WRMHeader.Version.fromString(subopts[0]);
                     }
-                    else if ("4100".equals(subopts[0])) {
-                        headerVersion = WRMHeader.Version.V_4000;
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
                     }
-                    else {
-                        errorExit("Illegal WRMHeader version: " + subopts[0]);
+                    i++;
+                }
+                else if ((subopts = checkOption("-scheme", args, i, 1)) != null) {
+                    try {
+                        scheme = CryptfileBuilder.ProtectionScheme.fromSchemeType(subopts[0]);
+                    }
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
                     }
                     i++;
                 }
+                else if ((subopts = checkOption("-pattern", args, i, 2)) != null) {
+                    cryptByteBlock = Integer.parseInt(subopts[0]);
+                    skipByteBlock = Integer.parseInt(subopts[1]);
+                    i++;
+                }
                 else if ((subopts = checkOption("-roll", args, i, 1)) != null) {
                     rollingKeySamples = Integer.parseInt(subopts[0]);
                     i++;
                 }
+                else if ((subopts = checkOption("-derive", args, i, 1, 2)) != null) {
+                    deriveCount = Integer.parseInt(subopts[0]);
+                    if (deriveCount < 1)
+                        invalidOption("-derive");
+                    if (subopts.length > 1)
+                        derivePeriod = Long.parseLong(subopts[1]);
+                    i++;
+                }
+                else if ((subopts = checkOption("-batch", args, i, 1)) != null) {
+                    manifestFile = subopts[0];
+                    i++;
+                }
+                else if ((subopts = checkOption("-threads", args, i, 1)) != null) {
+                    threads = Integer.parseInt(subopts[0]);
+                    i++;
+                }
                 else if ((subopts = checkOption("-url", args, i, 1)) != null) {
                     url = subopts[0];
                     i++;
@@ -187,14 +376,19 @@ public class CryptfileGen {
                 else if ((subopts = checkOption("-ck_json", args, i, 0)) != null) {
                     clearkey = true;
                 }
-                else if ((subopts = checkOption("-ck_remote", args, i, 1)) != null) {
+                else if ((subopts = checkOption("-ck_remote", args, i, 1, 2)) != null) {
                     try {
                         clearkey_url = new URL(subopts[0]);
+                        if (subopts.length > 1)
+                            clearkey_mode = ClearKeyRemotePSSH.Mode.fromString(subopts[1]);
                         clearkey = true;
                     }
                     catch (MalformedURLException e) {
                         errorExit("Illegal clearkey URL: " + e.getMessage());
                     }
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
+                    }
                     i++;
                 }
                 else {
@@ -211,10 +405,16 @@ public class CryptfileGen {
             }
             try {
                 Track t = new Track();
-                t.id = Integer.parseInt(track_desc[0]);
+                if (track_desc[0].equals(TrackInfo.HANDLER_VIDEO) || track_desc[0].equals(TrackInfo.HANDLER_AUDIO))
+                    t.handler = track_desc[0];
+                else
+                    t.id = Integer.parseInt(track_desc[0]);
                 
-                // Read key IDs from file
-                if (track_desc[1].startsWith("@")) {
+                // Read key IDs from file.  Binary key stores are used in place
+                if (track_desc[1].startsWith("@") && MappedKeyStore.isKeyStore(new File(track_desc[1].substring(1)))) {
+                    t.keys = MappedKeyStore.open(new File(track_desc[1].substring(1))).asKeySequence();
+                }
+                else if (track_desc[1].startsWith("@")) {
                     String keyfile = track_desc[1].substring(1);
                     BufferedReader br = new BufferedReader(new FileReader(keyfile));
                     String line;
@@ -243,25 +443,85 @@ public class CryptfileGen {
             }
         }
         
-        List<WRMHeader> wrmHeaders = new ArrayList<WRMHeader>();
+        if (manifestFile != null) {
+            if (deriveCount > 0)
+                errorExit("-derive is not supported with -batch");
+            PlayReadyAssetGenerator generator =
+                    new PlayReadyAssetGenerator(headerVersion, url, clearkey, clearkey_url, scheme);
+            generator.setKeyRoll(rollingKeySamples);
+            generator.setPattern(cryptByteBlock, skipByteBlock);
+            runBatch(generator, manifestFile, threads);
+            return;
+        }
+        
+        // Resolve track types and check track IDs against the media
+        if (mediaFile == null && encryptFiles != null)
+            mediaFile = encryptFiles[0];
+        tracks = resolveTracks(tracks, mediaFile);
+        
+        List<PlayReadyKeyPair> prKeys = new ArrayList<PlayReadyKeyPair>();
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
         
         // Build one CryptTrack for every track and gather a list of all
-        // WRMHeaders to put in one PSSH
+        // keys to put in the WRMHeaders
         for (Track t : tracks) {
             List<CryptKey> cryptKeys = new ArrayList<CryptKey>();
-            for (String keyID : t.keyIDs) {
-                PlayReadyKeyPair prKey = new PlayReadyKeyPair(keyID);
-                wrmHeaders.add(new WRMHeader(headerVersion, prKey, url));
+            try {
+                // The track's only key ID is the base of its derived key IDs
+                if (deriveCount > 0) {
+                    if (t.keys != null || t.keyIDs.size() != 1)
+                        errorExit("-derive requires exactly one key ID for each track");
+                    t.keys = new PlayReadyKeySequence(t.keyIDs.get(0), null, derivePeriod, deriveCount);
+                    t.keyIDs = new ArrayList<String>();
+                }
+                for (String keyID : t.keyIDs) {
+                    PlayReadyKeyPair prKey = new PlayReadyKeyPair(keyID);
+                    prKeys.add(prKey);
+                    
+                    cryptKeys.add(new CryptKey(prKey));
+                }
                 
-                cryptKeys.add(new CryptKey(prKey));
+                // Stored keys are read from the key store by the track.  Only the
+                // headers need the PlayReady checksums
+                if (t.keys != null) {
+                    for (CryptKey key : t.keys) {
+                        prKeys.add(new PlayReadyKeyPair(key.getKeyPair()));
+                    }
+                }
+            }
+            catch (CryptfileException e) {
+                errorExit("Could not create PlayReady keys: " + e.getMessage());
+            }
+            catch (IllegalArgumentException e) {
+                errorExit("Could not create PlayReady keys: " + e.getMessage());
+            }
+            try {
+                cryptTracks.add((t.keys != null) ?
+                        CryptTrack.forScheme(scheme, t.id, CryptTrack.IV_SIZE_8, t.keys,
+                                             rollingKeySamples, cryptByteBlock, skipByteBlock) :
+                        CryptTrack.forScheme(scheme, t.id, CryptTrack.IV_SIZE_8, cryptKeys,
+                                             rollingKeySamples, cryptByteBlock, skipByteBlock));
+            }
+            catch (IllegalArgumentException e) {
+                errorExit(e.getMessage());
             }
-            cryptTracks.add(new CryptTrack(t.id, 8, null, cryptKeys, rollingKeySamples));
         }
         
-        // Create our PSSH
+        // Create our PSSH.  Only v4.3.0.0 headers can signal AESCBC
+        WRMHeader.Algorithm algorithm = (headerVersion.compareTo(WRMHeader.Version.V_4300) >= 0) ?
+                WRMHeader.Algorithm.forScheme(scheme) : WRMHeader.Algorithm.AESCTR;
+        PlayReadyPSSH prPSSH = null;
+        try {
+            prPSSH = new PlayReadyPSSH(WRMHeader.createHeaders(headerVersion, prKeys, algorithm, url));
+            System.out.println("PlayReady Object: " + prPSSH.getPlayReadyObjectSize() + " bytes, " +
+                               prPSSH.getRecordCount() + " WRMHeader record(s) totalling " +
+                               prPSSH.getWRMHeaderSize() + " bytes");
+        }
+        catch (CryptfileException e) {
+            errorExit("Could not create PlayReady PSSH: " + e.getMessage());
+        }
         List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
-        psshList.add(new PlayReadyPSSH(wrmHeaders));
+        psshList.add(prPSSH);
         
         // Add clearkey PSSH if requested
         if (clearkey) {
@@ -270,20 +530,26 @@ public class CryptfileGen {
                 List<String> keyIDs = new ArrayList<String>();
                 System.out.println("Ensure the following keys are installed on the ClearKey server:");
                 for (CryptTrack t : cryptTracks) {
-                    for (CryptKey key : t.getKeys()) {
+                    for (CryptKey key : t.getKeySequence()) {
                         System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
                                            " : " + Hex.encodeHexString(key.getKeyPair().getKey()));
                         keyIDs.add(Hex.encodeHexString(key.getKeyPair().getID()));
                     }
                 }
                 System.out.println("");
-                psshList.add(new ClearKeyRemotePSSH(clearkey_url, keyIDs));
+                ClearKeyRemotePSSH remotePSSH = new ClearKeyRemotePSSH(clearkey_url, keyIDs, clearkey_mode);
+                if (clearkey_mode == ClearKeyRemotePSSH.Mode.KEYSET) {
+                    System.out.println("Register key set " + remotePSSH.getKeyIDSet().getHandle() +
+                                       " with the ClearKey server (ClearKeyServer -keyset)");
+                    System.out.println("");
+                }
+                psshList.add(remotePSSH);
             }
             else {
                 // Build list of all key pairs
                 List<KeyPair> keys = new ArrayList<KeyPair>();
                 for (CryptTrack t : cryptTracks) {
-                    for (CryptKey key : t.getKeys()) {
+                    for (CryptKey key : t.getKeySequence()) {
                         keys.add(key.getKeyPair());
                     }
                 }
@@ -292,19 +558,35 @@ public class CryptfileGen {
         }
         
         // Create the cryptfile builder
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
+        CryptfileBuilder cfBuilder = new CryptfileBuilder(scheme, cryptTracks, psshList);
         
         // Write the output
-        cfBuilder.writeCryptfile(System.out);
         try {
+            cfBuilder.streamCryptfile(System.out);
             if (outfile != null) {
                 System.out.println("Writing cryptfile to: " + outfile);
-                cfBuilder.writeCryptfile(new FileOutputStream(outfile));
+                cfBuilder.streamCryptfile(new FileOutputStream(outfile));
             }
         }
         catch (FileNotFoundException e) {
             errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (CryptfileWriteException e) {
+            errorExit("Could not write cryptfile: " + e.getMessage());
+        }
+        
+        // Encrypt the media
+        if (encryptFiles != null) {
+            try {
+                System.out.println("Encrypting " + encryptFiles[0] + " to: " + encryptFiles[1]);
+                new CencEncryptor(cfBuilder).encrypt(new File(encryptFiles[0]), new File(encryptFiles[1]));
+            }
+            catch (IllegalArgumentException e) {
+                errorExit("Could not encrypt " + encryptFiles[0] + ": " + e.getMessage());
+            }
+            catch (IOException e) {
+                errorExit("Error encrypting " + encryptFiles[0] + ": " + e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,148 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.cablelabs.playready.cryptgen;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.clearkey.cryptfile.ClearKeyJsonPSSH;
+import org.cablelabs.clearkey.cryptfile.ClearKeyRemotePSSH;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.batch.AssetSpec;
+import org.cablelabs.cryptfile.batch.CryptfileAssetGenerator;
+import org.cablelabs.playready.PlayReadyKeyPair;
+import org.cablelabs.playready.WRMHeader;
+import org.cablelabs.playready.cryptfile.PlayReadyPSSH;
+
+/**
+ * Batch asset generator for PlayReady cryptfiles.  Keys are derived from the key IDs
+ * in the manifest using the PlayReady test server key seed.  ClearKey PSSH may
+ * optionally be added to each asset.
+ */
+public class PlayReadyAssetGenerator extends CryptfileAssetGenerator {
+    
+    private WRMHeader.Version headerVersion;
+    private String url;
+    
+    private boolean clearkey;
+    private URL clearkeyURL;
+    
+    /**
+     * Create a new generator
+     * 
+     * @param headerVersion the WRMHeader version
+     * @param url the license URL to embed in the WRMHeaders
+     * @param clearkey true if ClearKey PSSH should be added to each asset
+     * @param clearkeyURL the ClearKey server URL for remote ClearKey PSSH or null to
+     * generate JSON ClearKey PSSH
+     */
+    public PlayReadyAssetGenerator(WRMHeader.Version headerVersion, String url,
+                                   boolean clearkey, URL clearkeyURL) {
+        this(headerVersion, url, clearkey, clearkeyURL, CryptfileBuilder.ProtectionScheme.AES_CTR);
+    }
+    
+    /**
+     * Create a new generator
+     * 
+     * @param headerVersion the WRMHeader version
+     * @param url the license URL to embed in the WRMHeaders
+     * @param clearkey true if ClearKey PSSH should be added to each asset
+     * @param clearkeyURL the ClearKey server URL for remote ClearKey PSSH or null to
+     * generate JSON ClearKey PSSH
+     * @param scheme the encryption scheme for all assets
+     */
+    public PlayReadyAssetGenerator(WRMHeader.Version headerVersion, String url,
+                                   boolean clearkey, URL clearkeyURL,
+                                   CryptfileBuilder.ProtectionScheme scheme) {
+        super(scheme);
+        this.headerVersion = headerVersion;
+        this.url = url;
+        this.clearkey = clearkey;
+        this.clearkeyURL = clearkeyURL;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.CryptfileAssetGenerator#createKeyPair(org.cablelabs.cryptfile.batch.AssetSpec.KeySpec)
+     */
+    @Override
+    protected KeyPair createKeyPair(AssetSpec.KeySpec key) {
+        if (key.kid == null)
+            throw new IllegalArgumentException("Key ID is required");
+        return new PlayReadyKeyPair(key.kid);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.CryptfileAssetGenerator#createPSSH(org.cablelabs.cryptfile.batch.AssetSpec, java.util.List)
+     */
+    @Override
+    protected List<DRMInfoPSSH> createPSSH(AssetSpec asset, List<CryptTrack> tracks) {
+        
+        // One WRMHeader for every key, or one for all keys with v4.2.0.0 and later,
+        // all in one PSSH
+        List<PlayReadyKeyPair> prKeys = new ArrayList<PlayReadyKeyPair>();
+        for (CryptTrack t : tracks) {
+            for (CryptKey key : t.getKeySequence()) {
+                prKeys.add((PlayReadyKeyPair)key.getKeyPair());
+            }
+        }
+        WRMHeader.Algorithm algorithm = (headerVersion.compareTo(WRMHeader.Version.V_4300) >= 0) ?
+                WRMHeader.Algorithm.forScheme(scheme) : WRMHeader.Algorithm.AESCTR;
+        
+        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+        psshList.add(new PlayReadyPSSH(WRMHeader.createHeaders(headerVersion, prKeys, algorithm, url)));
+        
+        if (clearkey) {
+            if (clearkeyURL != null) {
+                List<String> keyIDs = new ArrayList<String>();
+                for (CryptTrack t : tracks) {
+                    for (CryptKey key : t.getKeySequence()) {
+                        keyIDs.add(Hex.encodeHexString(key.getKeyPair().getID()));
+                    }
+                }
+                psshList.add(new ClearKeyRemotePSSH(clearkeyURL, keyIDs));
+            }
+            else {
+                List<KeyPair> keys = new ArrayList<KeyPair>();
+                for (CryptTrack t : tracks) {
+                    for (CryptKey key : t.getKeySequence()) {
+                        keys.add(key.getKeyPair());
+                    }
+                }
+                psshList.add(new ClearKeyJsonPSSH(keys));
+            }
+        }
+        return psshList;
+    }
+}
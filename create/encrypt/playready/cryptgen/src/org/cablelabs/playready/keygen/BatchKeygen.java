@@ -0,0 +1,235 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.playready.keygen;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.playready.PlayReadyKeyDeriver;
+import org.cablelabs.playready.PlayReadyKeyPair;
+
+/**
+ * Derives PlayReady keys for a stream of key IDs and writes one machine-readable
+ * record per key ID, in input order.
+ * <p>
+ * Key IDs are read in fixed-size chunks.  Each chunk is derived in parallel with
+ * {@link PlayReadyKeyDeriver} and written on a separate thread while the next chunk
+ * is read and derived, so no more than two chunks are held in memory regardless of
+ * the number of key IDs.  The derivation threads are kept until the generator is
+ * closed.
+ */
+public class BatchKeygen implements Closeable {
+    
+    /**
+     * Output record format
+     */
+    public enum Format {
+        
+        /** Comma-separated values with a header line */
+        CSV,
+        
+        /** One JSON object per line */
+        JSON
+    }
+    
+    // Number of key IDs read and derived at a time
+    private static final int CHUNK_SIZE = 16384;
+    
+    private static final String CSV_HEADER = "key_id,key,checksum,iv";
+    
+    private byte[] keySeed;
+    private Format format;
+    private PlayReadyKeyDeriver deriver;
+    private SecureRandom random = new SecureRandom();
+    
+    /**
+     * Create a new batch key generator
+     * 
+     * @param keySeed the 30-byte key seed
+     * @param format the output record format
+     * @param threads the number of threads used to derive keys
+     */
+    public BatchKeygen(byte[] keySeed, Format format, int threads) {
+        this.keySeed = keySeed;
+        this.format = format;
+        this.deriver = new PlayReadyKeyDeriver(threads);
+    }
+    
+    /**
+     * Derive the keys for every key ID read from the given reader and write one
+     * record per key ID.  Key IDs are in GUID form, one per line.  Blank lines are
+     * ignored.
+     * 
+     * @param in the key ID source
+     * @param out the record destination.  The writer is flushed but not closed
+     * @return the number of keys written
+     * @throws IOException if there was an error reading key IDs or writing records
+     * @throws IllegalArgumentException if a line does not contain a valid key ID
+     */
+    public long generate(BufferedReader in, final Writer out) throws IOException {
+        if (format == Format.CSV) {
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+        
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        Future<Void> pendingWrite = null;
+        long count = 0;
+        long lineNumber = 0;
+        try {
+            List<String> keyIDs = new ArrayList<String>(CHUNK_SIZE);
+            String line;
+            do {
+                line = in.readLine();
+                if (line != null) {
+                    lineNumber++;
+                    String keyID = line.trim();
+                    if (keyID.isEmpty())
+                        continue;
+                    if (!isGUID(keyID))
+                        throw new IllegalArgumentException("Invalid key ID on line " + lineNumber + ": " + keyID);
+                    keyIDs.add(keyID.toLowerCase());
+                    if (keyIDs.size() < CHUNK_SIZE)
+                        continue;
+                }
+                if (keyIDs.isEmpty())
+                    continue;
+                
+                // Derive this chunk while the previous one is still being written
+                final List<String> chunkIDs = keyIDs;
+                final List<PlayReadyKeyPair> chunkKeys = deriver.derive(chunkIDs, keySeed);
+                waitFor(pendingWrite);
+                pendingWrite = writer.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        write(chunkIDs, chunkKeys, out);
+                        return null;
+                    }
+                });
+                count += chunkIDs.size();
+                keyIDs = new ArrayList<String>(CHUNK_SIZE);
+            } while (line != null);
+            
+            waitFor(pendingWrite);
+        }
+        finally {
+            writer.shutdownNow();
+        }
+        out.flush();
+        return count;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() {
+        deriver.close();
+    }
+    
+    // Write the records for one chunk of key IDs
+    private void write(List<String> keyIDs, List<PlayReadyKeyPair> keys, Writer out) throws IOException {
+        byte[] ivs = new byte[keyIDs.size() * 8];
+        random.nextBytes(ivs);
+        
+        StringBuilder sb = new StringBuilder(128);
+        for (int i = 0; i < keyIDs.size(); i++) {
+            PlayReadyKeyPair key = keys.get(i);
+            String keyHex = Hex.encodeHexString(key.getKey());
+            String checksumHex = Hex.encodeHexString(key.getChecksum());
+            String ivHex = Hex.encodeHexString(Arrays.copyOfRange(ivs, i * 8, i * 8 + 8));
+            
+            sb.setLength(0);
+            if (format == Format.CSV) {
+                sb.append(keyIDs.get(i)).append(',')
+                  .append(keyHex).append(',')
+                  .append(checksumHex).append(',')
+                  .append(ivHex).append('\n');
+            }
+            else {
+                sb.append("{\"key_id\":\"").append(keyIDs.get(i))
+                  .append("\",\"key\":\"").append(keyHex)
+                  .append("\",\"checksum\":\"").append(checksumHex)
+                  .append("\",\"iv\":\"").append(ivHex)
+                  .append("\"}\n");
+            }
+            out.append(sb);
+        }
+    }
+    
+    // Wait for a chunk write to finish and rethrow its error, if any
+    private static void waitFor(Future<Void> write) throws IOException {
+        if (write == null)
+            return;
+        try {
+            write.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing keys", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException(cause);
+        }
+    }
+    
+    // True if the given string is a GUID in xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx form
+    private static boolean isGUID(String s) {
+        if (s.length() != 36)
+            return false;
+        for (int i = 0; i < 36; i++) {
+            char c = s.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-')
+                    return false;
+            }
+            else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
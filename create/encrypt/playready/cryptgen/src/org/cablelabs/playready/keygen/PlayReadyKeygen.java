@@ -26,6 +26,18 @@
 
 package org.cablelabs.playready.keygen;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
 import java.util.Arrays;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -37,9 +49,10 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
 
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 
 public class PlayReadyKeygen {
     
@@ -47,11 +60,126 @@ public class PlayReadyKeygen {
     private static final String DEFAULT_KEY_SEED = "XVBovsmzhP9gRIZxWfFta3VVRPzVEWmJsazEJ46I";
 
     private static void usage() {
-        System.out.println("usage:  PlayReadyKeygen <key_id> [<key_seed>]");
-        System.out.println("\t <key_id> is a UUID representing the Key ID in the form xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx");
-        System.out.println("\t\t where 'x' is any hexadecimal digit in the range [0-9a-f] (case insensitive)");
-        System.out.println("\t <key_seed> is a 30-byte key seed value in Base64 notation.  If not provided, the default");
-        System.out.println("\t\t value of the Microsoft test server is used (" + DEFAULT_KEY_SEED + ")");
+        usage(System.out);
+    }
+    
+    private static void usage(PrintStream out) {
+        out.println("usage:  PlayReadyKeygen <key_id> [<key_seed>]");
+        out.println("        PlayReadyKeygen -batch [-in <file>] [-out <file>] [-format {csv|json}] [-threads <count>] [<key_seed>]");
+        out.println("\t <key_id> is a UUID representing the Key ID in the form xxxxxxxx-xxxx-xxxx-xxxx-xxxxxxxxxxxx");
+        out.println("\t\t where 'x' is any hexadecimal digit in the range [0-9a-f] (case insensitive)");
+        out.println("\t <key_seed> is a 30-byte key seed value in Base64 notation.  If not provided, the default");
+        out.println("\t\t value of the Microsoft test server is used (" + DEFAULT_KEY_SEED + ")");
+        out.println("\t -batch derives the keys for many key IDs, one per line, and writes one record per key ID");
+        out.println("\t\t in input order.  Each record holds the key ID, key, checksum and a random 8-byte IV, in hex.");
+        out.println("\t\t -in <file> reads key IDs from the given file instead of stdin.");
+        out.println("\t\t -out <file> writes records to the given file instead of stdout.");
+        out.println("\t\t -format selects CSV with a header line (default) or one JSON object per line.");
+        out.println("\t\t -threads is the number of derivation threads.  Default is the number of available processors.");
+    }
+    
+    private static String hex(byte[] data) {
+        return new String(Hex.encodeHex(data, false));
+    }
+    
+    // Decode a Base64 key seed and truncate it to 30 bytes, or return null if it is too short
+    private static byte[] parseKeySeed(String keySeedStr) {
+        byte[] keySeedRaw = Base64.decodeBase64(keySeedStr);
+        if (keySeedRaw.length < 30)
+            return null;
+        return Arrays.copyOf(keySeedRaw, 30);
+    }
+    
+    // Records go to stdout, so batch mode errors are written to stderr
+    private static void batchErrorExit(String errorString) {
+        usage(System.err);
+        System.err.println("****** " + errorString);
+        System.exit(1);
+    }
+    
+    private static void batch(String[] args) {
+        String inFile = null;
+        String outFile = null;
+        BatchKeygen.Format format = BatchKeygen.Format.CSV;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String keySeedStr = DEFAULT_KEY_SEED;
+        
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                if (i + 1 >= args.length)
+                    batchErrorExit("Missing value for " + args[i]);
+                if (args[i].equals("-in")) {
+                    inFile = args[++i];
+                }
+                else if (args[i].equals("-out")) {
+                    outFile = args[++i];
+                }
+                else if (args[i].equals("-format")) {
+                    try {
+                        format = BatchKeygen.Format.valueOf(args[++i].toUpperCase());
+                    }
+                    catch (IllegalArgumentException e) {
+                        batchErrorExit("Invalid output format: " + args[i]);
+                    }
+                }
+                else if (args[i].equals("-threads")) {
+                    try {
+                        threads = Integer.parseInt(args[++i]);
+                    }
+                    catch (NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if (threads < 1)
+                        batchErrorExit("Invalid thread count: " + args[i]);
+                }
+                else {
+                    batchErrorExit("Illegal argument: " + args[i]);
+                }
+            }
+            else {
+                keySeedStr = args[i];
+            }
+        }
+        
+        byte[] keySeed = parseKeySeed(keySeedStr);
+        if (keySeed == null)
+            batchErrorExit("Invalid key seed ( < 30 bytes )!");
+        
+        InputStream is = null;
+        OutputStream os = null;
+        BatchKeygen keygen = new BatchKeygen(keySeed, format, threads);
+        try {
+            is = (inFile != null) ? new FileInputStream(inFile) : System.in;
+            os = (outFile != null) ? new FileOutputStream(outFile) : System.out;
+            BufferedReader in = new BufferedReader(new InputStreamReader(is, "UTF-8"), 1 << 16);
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1 << 16);
+            
+            long start = System.currentTimeMillis();
+            long count = keygen.generate(in, out);
+            System.err.println("Generated " + count + " keys in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (FileNotFoundException e) {
+            batchErrorExit("Could not open file: " + e.getMessage());
+        }
+        catch (IllegalArgumentException e) {
+            batchErrorExit(e.getMessage());
+        }
+        catch (IOException e) {
+            batchErrorExit("I/O error: " + e.getMessage());
+        }
+        finally {
+            keygen.close();
+            try {
+                if (inFile != null && is != null)
+                    is.close();
+                if (outFile != null && os != null)
+                    os.close();
+            }
+            catch (IOException e) {
+                batchErrorExit("Could not close file: " + e.getMessage());
+            }
+        }
     }
     
     /**
@@ -65,6 +193,11 @@ public class PlayReadyKeygen {
             System.exit(1);
         }
         
+        if (args[0].equals("-batch")) {
+            batch(args);
+            return;
+        }
+        
         String key_id_str = args[0];
         String key_seed_str = DEFAULT_KEY_SEED;
         if (args.length > 1) {
@@ -84,9 +217,9 @@ public class PlayReadyKeygen {
         key_id_str = key_id_str.replaceAll("-", "");
         byte[] key_id = null;
         try {
-            key_id = DatatypeConverter.parseHexBinary(key_id_str);
+            key_id = Hex.decodeHex(key_id_str.toCharArray());
         }
-        catch (IllegalArgumentException e) {
+        catch (DecoderException e) {
             System.out.println("******  Invalid key ID (not valid Base64 string)!");
             System.exit(1);
         }
@@ -103,17 +236,14 @@ public class PlayReadyKeygen {
         for (int j = 8; j < 16; j++)
             ms_key_id[le_pos++] = key_id[j];
         
-        // Ensure that key seed is at least 30 bytes in length
-        byte[] key_seed_raw = Base64.decodeBase64(key_seed_str);
-        if (key_seed_raw.length < 30) {
+        // Ensure that key seed is at least 30 bytes in length and truncate to 30 bytes
+        byte[] key_seed = parseKeySeed(key_seed_str);
+        if (key_seed == null) {
             usage();
             System.out.println("******  Invalid key seed ( < 30 bytes )!");
             System.exit(1);;
         }
         
-        // Truncate to 30 bytes
-        byte[] key_seed = Arrays.copyOf(key_seed_raw, 30);
-        
         byte[] contentKey = new byte[DRM_AES_KEYSIZE_128];
         try {
             
@@ -195,18 +325,18 @@ public class PlayReadyKeygen {
             
         System.out.println("===============================================");
         System.out.println("Content key ID = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(key_id));
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(ms_key_id) + " (MS binary)");
+        System.out.println("\t0x" + hex(key_id));
+        System.out.println("\t0x" + hex(ms_key_id) + " (MS binary)");
         System.out.println("\t" + Base64.encodeBase64String(key_id) + " (Base64)");
         System.out.println("\t" + Base64.encodeBase64String(ms_key_id) + " (Base64, MS binary)");
         System.out.println("Content key = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(contentKey));
+        System.out.println("\t0x" + hex(contentKey));
         System.out.println("\t" + Base64.encodeBase64String(contentKey) + " (Base64)");
         System.out.println("Checksum = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(checksum));
+        System.out.println("\t0x" + hex(checksum));
         System.out.println("\t" + Base64.encodeBase64String(checksum) + " (Base64)");
         System.out.println("IV = ");
-        System.out.println("\t0x" + DatatypeConverter.printHexBinary(iv));
+        System.out.println("\t0x" + hex(iv));
         System.out.println("\t" + Base64.encodeBase64String(iv) + " (Base64)");
         System.out.println("===============================================");
         
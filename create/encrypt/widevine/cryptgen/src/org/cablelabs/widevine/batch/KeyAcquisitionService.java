@@ -0,0 +1,256 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.batch;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.cablelabs.cryptfile.CryptTrack;
+import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.KeyAcquisitionException;
+import org.cablelabs.cryptfile.TaskExecutors;
+import org.cablelabs.cryptfile.batch.BatchEngine;
+import org.cablelabs.cryptfile.batch.BatchSummary;
+import org.cablelabs.cryptfile.batch.JobGenerator;
+import org.cablelabs.widevine.Track;
+import org.cablelabs.widevine.TrackType;
+import org.cablelabs.widevine.cryptfile.RollingKeyCollector;
+import org.cablelabs.widevine.cryptfile.WidevinePSSHBuilder;
+import org.cablelabs.widevine.keyreq.KeyCache;
+import org.cablelabs.widevine.keyreq.KeyRequest;
+import org.cablelabs.widevine.keyreq.KeyServerClient;
+import org.cablelabs.widevine.keyreq.ResponseMessage;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Requests Widevine keys for many content IDs concurrently and writes a cryptfile
+ * for each one as soon as its keys arrive.
+ * <p>
+ * Jobs are run by a {@link BatchEngine}, each on its own virtual thread when the JVM
+ * supports them (Java 21 and later) or on a pooled platform thread otherwise.  The
+ * number of outstanding key
+ * requests is limited by a semaphore and the rate at which requests are sent is
+ * limited by a {@link TokenBucket}, so the service can be matched to the key
+ * server's quota.  All requests share one {@link KeyServerClient} and therefore
+ * its connections.  A failure in one job (key server error, unknown track type,
+ * unwritable output) is recorded in the {@link BatchSummary} and does not affect
+ * any other job.
+ */
+public class KeyAcquisitionService implements JobGenerator<KeyJob> {
+    
+    private KeyServerClient client;
+    private String signingFile;
+    private int maxConcurrent;
+    private TokenBucket rateLimiter;
+    
+    private CryptfileBuilder.ProtectionScheme scheme = CryptfileBuilder.ProtectionScheme.AES_CTR;
+    private int cryptByteBlock = 1;
+    private int skipByteBlock = 9;
+    
+    private int cryptoPeriodStart = -1;
+    private int cryptoPeriodCount = -1;
+    private int keyRoll = -1;
+    
+    private KeyCache cache;
+    
+    private WidevinePSSHBuilder.Mode psshMode = WidevinePSSHBuilder.Mode.TRACK;
+    
+    /**
+     * Create a new key acquisition service
+     * 
+     * @param client the key server client shared by all requests
+     * @param signingFile the request signing properties file (see
+     * {@link KeyRequest#setSigningProperties(String)}) or null to use the unsigned
+     * test server
+     * @param maxConcurrent the maximum number of key requests outstanding at once
+     * @param rateLimiter limits the rate at which key requests are sent, or null for
+     * no limit
+     */
+    public KeyAcquisitionService(KeyServerClient client, String signingFile, int maxConcurrent,
+                                 TokenBucket rateLimiter) {
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("Concurrency limit must be positive: " + maxConcurrent);
+        this.client = client;
+        this.signingFile = signingFile;
+        this.maxConcurrent = maxConcurrent;
+        this.rateLimiter = rateLimiter;
+    }
+    
+    /**
+     * Set the encryption scheme and pattern for all cryptfiles
+     * 
+     * @param scheme the encryption scheme
+     * @param cryptByteBlock the number of encrypted blocks in the pattern (cens, cbcs)
+     * @param skipByteBlock the number of clear blocks in the pattern (cens, cbcs)
+     */
+    public void setScheme(CryptfileBuilder.ProtectionScheme scheme, int cryptByteBlock, int skipByteBlock) {
+        this.scheme = scheme;
+        this.cryptByteBlock = cryptByteBlock;
+        this.skipByteBlock = skipByteBlock;
+    }
+    
+    /**
+     * Set the rolling key window for jobs that do not specify their own
+     * 
+     * @param cryptoPeriodStart the index of the first crypto period
+     * @param cryptoPeriodCount the number of crypto periods (keys per track)
+     * @param keyRoll the number of consecutive samples encrypted with each key
+     */
+    public void setRollingKeys(int cryptoPeriodStart, int cryptoPeriodCount, int keyRoll) {
+        this.cryptoPeriodStart = cryptoPeriodStart;
+        this.cryptoPeriodCount = cryptoPeriodCount;
+        this.keyRoll = keyRoll;
+    }
+    
+    /**
+     * Use the given cache for all key requests.  Jobs whose keys are cached make no
+     * key server request and do not consume a rate limiter token.
+     * 
+     * @param cache the key cache or null for no caching
+     */
+    public void setCache(KeyCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Set how Widevine PSSH are generated.  The default is one PSSH per track
+     * 
+     * @param psshMode the PSSH generation mode
+     */
+    public void setPSSHMode(WidevinePSSHBuilder.Mode psshMode) {
+        this.psshMode = psshMode;
+    }
+    
+    /**
+     * Request the keys and write the cryptfile for every job in the list.  Returns
+     * once every job has either been written or failed.
+     * 
+     * @param jobs the job list
+     * @return the batch summary
+     * @throws IOException if the job list could not be read
+     * @throws InterruptedException if interrupted while waiting for jobs to complete
+     */
+    public BatchSummary run(KeyJobReader jobs) throws IOException, InterruptedException {
+        // The number of tasks is bounded by the engine's in-flight limit
+        ExecutorService executor = TaskExecutors.newTaskExecutor();
+        try {
+            return new BatchEngine<KeyJob>(this, executor, maxConcurrent).run(jobs);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+    
+    /**
+     * Request the keys for a single job and build its cryptfile.  The job output file
+     * is not written.  May be called concurrently from multiple threads
+     * 
+     * @param job the job
+     * @return the cryptfile builder
+     * @throws GeneralSecurityException if the key request could not be signed
+     * @throws IOException if the signing file could not be read or the key request failed
+     * @throws InterruptedException if interrupted while waiting for a rate limiter token
+     * or the key server response
+     * @throws KeyAcquisitionException if the key server returned an error, no keys or a
+     * track type that was not requested
+     * @throws InvalidProtocolBufferException if a Widevine PSSH could not be parsed
+     */
+    @Override
+    public CryptfileBuilder generate(KeyJob job)
+            throws GeneralSecurityException, IOException, InterruptedException {
+        int periodStart = (job.crypto_period_start != null) ? job.crypto_period_start : cryptoPeriodStart;
+        int periodCount = (job.crypto_period_count != null) ? job.crypto_period_count : cryptoPeriodCount;
+        List<Track> tracks = Arrays.asList(job.tracks);
+        KeyRequest request = (periodCount != -1 && periodStart != -1) ?
+                new KeyRequest(job.content_id, tracks, periodStart, periodCount) :
+                new KeyRequest(job.content_id, tracks);
+        if (signingFile != null)
+            request.setSigningProperties(signingFile);
+        request.setCache(cache);
+        
+        // Keys are collected while the response is parsed.  Only wait for a rate
+        // limiter token when the keys are not cached
+        WidevinePSSHBuilder psshBuilder = new WidevinePSSHBuilder(psshMode);
+        RollingKeyCollector keys = new RollingKeyCollector(psshBuilder);
+        ResponseMessage response = request.getCachedResponse();
+        if (response != null) {
+            keys.addTracks(response);
+        }
+        else {
+            if (rateLimiter != null)
+                rateLimiter.acquire();
+            response = request.requestKeys(client, keys);
+        }
+        
+        return createCryptfile(job, response, keys, psshBuilder);
+    }
+    
+    /**
+     * Build the cryptfile for a job from its key server response.  Each track gets
+     * all rolling keys for its track type in crypto period order.
+     * 
+     * @param job the job
+     * @param response the key server response
+     * @param keys the keys of the response
+     * @param psshBuilder the PSSH builder that has received the tracks of the response
+     * @return the cryptfile builder
+     * @throws KeyAcquisitionException if the key server returned an error, no keys or a
+     * track type that was not requested
+     * @throws InvalidProtocolBufferException if a Widevine PSSH could not be parsed
+     */
+    protected CryptfileBuilder createCryptfile(KeyJob job, ResponseMessage response, RollingKeyCollector keys,
+                                               WidevinePSSHBuilder psshBuilder)
+            throws InvalidProtocolBufferException {
+        if (response.status != ResponseMessage.StatusCode.OK)
+            throw new KeyAcquisitionException("Key server returned " + response.status);
+        if (keys.getTrackTypes().isEmpty())
+            throw new KeyAcquisitionException("Key server returned no tracks");
+        
+        // Track IDs by track type
+        int[] trackIDs = new int[TrackType.values().length];
+        Arrays.fill(trackIDs, -1);
+        for (Track t : job.tracks) {
+            trackIDs[t.type.ordinal()] = t.id;
+        }
+        
+        int roll = (job.roll != null) ? job.roll : keyRoll;
+        List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
+        for (TrackType type : keys.getTrackTypes()) {
+            if (trackIDs[type.ordinal()] == -1)
+                throw new KeyAcquisitionException("Key server returned an unrequested track type: " + type);
+            cryptTracks.add(CryptTrack.forScheme(scheme, trackIDs[type.ordinal()], CryptTrack.IV_SIZE_8,
+                                                 keys.getKeys(type), roll, cryptByteBlock, skipByteBlock));
+        }
+        return new CryptfileBuilder(scheme, cryptTracks, psshBuilder.build());
+    }
+}
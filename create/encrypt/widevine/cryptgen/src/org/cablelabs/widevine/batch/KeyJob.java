@@ -0,0 +1,121 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.batch;
+
+import org.cablelabs.cryptfile.batch.BatchJob;
+import org.cablelabs.widevine.Track;
+import org.cablelabs.widevine.TrackType;
+
+/**
+ * One content ID whose keys are requested from the Widevine key server, along with
+ * the tracks to request keys for and, for rolling keys, the crypto period window.
+ * Jobs are read by {@link KeyJobReader}.  In JSON form:
+ * <p>
+ * <pre>
+ * {"content_id":"movie1","out":"movie1.xml",
+ *  "tracks":[{"id":1,"type":"HD"},{"id":2,"type":"AUDIO"}],
+ *  "crypto_period_start":0,"crypto_period_count":10,"roll":500}
+ * </pre>
+ */
+public class KeyJob implements BatchJob {
+    
+    /**
+     * The content ID sent to the key server
+     */
+    public String content_id;
+    
+    /**
+     * The cryptfile that will be written for this content
+     */
+    public String out;
+    
+    /**
+     * The tracks to request keys for.  At most one track of each type
+     */
+    public Track tracks[];
+    
+    /**
+     * Index of the first crypto period for rolling keys.  If not present, the
+     * service default is used
+     */
+    public Integer crypto_period_start;
+    
+    /**
+     * Number of crypto periods (keys per track) for rolling keys.  If not present,
+     * the service default is used
+     */
+    public Integer crypto_period_count;
+    
+    /**
+     * Number of consecutive samples encrypted with each key for rolling keys.  If
+     * not present, the service default is used
+     */
+    public Integer roll;
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.BatchJob#getName()
+     */
+    @Override
+    public String getName() {
+        return content_id;
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.batch.BatchJob#getOutput()
+     */
+    @Override
+    public String getOutput() {
+        return out;
+    }
+    
+    /**
+     * Check that the job has a content ID and at most one track of each type.  The
+     * output file is not checked
+     * 
+     * @throws IllegalArgumentException if the job is invalid
+     */
+    public void validate() {
+        if (content_id == null || content_id.isEmpty())
+            throw new IllegalArgumentException("missing content ID");
+        if (tracks == null || tracks.length == 0)
+            throw new IllegalArgumentException("no tracks for content " + content_id);
+        boolean[] types = new boolean[TrackType.values().length];
+        for (Track track : tracks) {
+            if (track.type == null || track.type == TrackType.NUM_TYPES)
+                throw new IllegalArgumentException("missing track type for track " + track.id +
+                                                   " of content " + content_id);
+            if (types[track.type.ordinal()])
+                throw new IllegalArgumentException("multiple " + track.type + " tracks for content " + content_id);
+            types[track.type.ordinal()] = true;
+        }
+        if (crypto_period_count != null && crypto_period_count < 1)
+            throw new IllegalArgumentException("crypto period count must be positive for content " + content_id);
+    }
+}
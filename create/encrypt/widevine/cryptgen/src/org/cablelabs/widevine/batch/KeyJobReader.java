@@ -0,0 +1,152 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.batch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.cablelabs.cryptfile.batch.JobSource;
+import org.cablelabs.widevine.Track;
+import org.cablelabs.widevine.TrackType;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Reads Widevine key jobs from a job list, one job per line.  Jobs are parsed as
+ * they are read so that the list never has to be held in memory.
+ * <p>
+ * Blank lines and lines beginning with '#' are ignored.  Each other line is either
+ * a JSON {@link KeyJob} object or a comma-separated line of the form:
+ * <pre>
+ *   &lt;content_id&gt;,&lt;out_file&gt;,&lt;track_id&gt;:&lt;track_type&gt;[,&lt;track_id&gt;:&lt;track_type&gt;...]
+ * </pre>
+ */
+public class KeyJobReader implements JobSource<KeyJob> {
+    
+    private BufferedReader reader;
+    private int lineNumber = 0;
+    
+    private Gson gson = new Gson();
+    
+    /**
+     * Create a new job reader
+     * 
+     * @param reader the job list input
+     */
+    public KeyJobReader(Reader reader) {
+        this.reader = (reader instanceof BufferedReader) ?
+                (BufferedReader)reader : new BufferedReader(reader);
+    }
+    
+    /**
+     * Read the next job from the job list
+     * 
+     * @return the next job or null if the end of the list has been reached
+     * @throws IOException if there was an error reading the job list
+     * @throws IllegalArgumentException if the next job line is invalid.  Reading
+     * may continue with the following line
+     */
+    @Override
+    public KeyJob next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            
+            KeyJob job = line.startsWith("{") ? parseJSON(line) : parseCSV(line);
+            validate(job);
+            return job;
+        }
+        return null;
+    }
+    
+    private KeyJob parseJSON(String line) {
+        try {
+            return gson.fromJson(line, KeyJob.class);
+        }
+        catch (JsonParseException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": invalid JSON -- " + e.getMessage());
+        }
+    }
+    
+    private KeyJob parseCSV(String line) {
+        String[] fields = line.split(",");
+        if (fields.length < 3)
+            throw new IllegalArgumentException("Line " + lineNumber + ": expected <content_id>,<out_file>,<track_id>:<track_type>...");
+        
+        KeyJob job = new KeyJob();
+        job.content_id = fields[0].trim();
+        job.out = fields[1].trim();
+        job.tracks = new Track[fields.length - 2];
+        for (int i = 2; i < fields.length; i++) {
+            String[] track_desc = fields[i].trim().split(":");
+            if (track_desc.length != 2)
+                throw new IllegalArgumentException("Line " + lineNumber + ": illegal track specification -- " + fields[i]);
+            
+            Track track = new Track();
+            try {
+                track.id = Integer.parseInt(track_desc[0]);
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": illegal track ID -- " + track_desc[0]);
+            }
+            try {
+                track.type = TrackType.valueOf(track_desc[1]);
+            }
+            catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": illegal track type -- " + track_desc[1]);
+            }
+            job.tracks[i-2] = track;
+        }
+        return job;
+    }
+    
+    private void validate(KeyJob job) {
+        try {
+            job.validate();
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+        }
+        if (job.out == null || job.out.isEmpty())
+            throw new IllegalArgumentException("Line " + lineNumber + ": missing output file for content " + job.content_id);
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
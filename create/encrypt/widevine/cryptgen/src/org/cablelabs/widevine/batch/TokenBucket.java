@@ -0,0 +1,87 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.batch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket rate limiter.  Tokens are added at a fixed rate up to the bucket
+ * capacity, so a burst of up to <i>capacity</i> requests can go out at once after
+ * an idle period, but the long-term rate never exceeds the configured rate.
+ * <p>
+ * Waiting callers sleep without holding any lock, so the bucket can be shared by
+ * a large number of (virtual) threads.
+ */
+public class TokenBucket {
+    
+    private long nanosPerToken;
+    private long burstNanos;
+    
+    // Theoretical time at which the bucket would next be empty if no tokens were
+    // taken early.  Taking a token pushes it forward by one token interval
+    private long emptyTime;
+    private ReentrantLock lock = new ReentrantLock();
+    
+    /**
+     * Create a new, full, token bucket
+     * 
+     * @param ratePerSecond the rate at which tokens are added
+     * @param capacity the maximum number of tokens in the bucket (the largest burst)
+     */
+    public TokenBucket(double ratePerSecond, int capacity) {
+        if (!(ratePerSecond > 0))
+            throw new IllegalArgumentException("Rate must be positive: " + ratePerSecond);
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.nanosPerToken = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.burstNanos = nanosPerToken * capacity;
+        this.emptyTime = System.nanoTime();
+    }
+    
+    /**
+     * Take one token, waiting until one is available
+     * 
+     * @throws InterruptedException if interrupted while waiting.  The token is still
+     * consumed
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            emptyTime = Math.max(emptyTime, now) + nanosPerToken;
+            wait = emptyTime - now - burstNanos;
+        }
+        finally {
+            lock.unlock();
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+}
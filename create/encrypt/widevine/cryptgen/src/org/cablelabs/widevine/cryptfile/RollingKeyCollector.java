@@ -0,0 +1,135 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.cryptfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cryptfile.CryptKey;
+import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.widevine.TrackType;
+import org.cablelabs.widevine.keyreq.ResponseMessage;
+import org.cablelabs.widevine.keyreq.ResponseParser;
+
+/**
+ * Collects the keys of a key server response by track type and crypto period.  With
+ * rolling keys the response holds one track for every track type and crypto period;
+ * {@link #getKeys(TrackType)} returns all keys for a track type in crypto period order,
+ * ready to be rotated by a single {@link org.cablelabs.cryptfile.CryptTrack}.
+ * <p>
+ * Tracks are ordered by their <code>crypto_period_index</code>.  Tracks without one are
+ * numbered in the order they arrive for their track type.  Each track is also passed
+ * to an optional {@link WidevinePSSHBuilder}.
+ */
+public class RollingKeyCollector implements ResponseParser.TrackHandler {
+    
+    private WidevinePSSHBuilder psshBuilder;
+    
+    // Keys by crypto period for each track type
+    private List<TreeMap<Integer, CryptKey>> keys;
+    private int[] arrivals;
+    
+    /**
+     * Create a new collector
+     * 
+     * @param psshBuilder receives every track for PSSH generation, or null
+     */
+    public RollingKeyCollector(WidevinePSSHBuilder psshBuilder) {
+        this.psshBuilder = psshBuilder;
+        int typeCount = TrackType.values().length;
+        keys = new ArrayList<TreeMap<Integer, CryptKey>>(typeCount);
+        for (int i = 0; i < typeCount; i++) {
+            keys.add(new TreeMap<Integer, CryptKey>());
+        }
+        arrivals = new int[typeCount];
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.widevine.keyreq.ResponseParser.TrackHandler#track(org.cablelabs.widevine.keyreq.ResponseMessage.Track)
+     */
+    @Override
+    public void track(ResponseMessage.Track track) throws IOException {
+        if (track.type == null)
+            throw new IOException("Key server returned a track of unknown type");
+        if (track.key_id == null || track.key == null)
+            throw new IOException("Key server returned a " + track.type + " track without a key");
+        
+        int ordinal = track.type.ordinal();
+        int period = (track.crypto_period_index != null) ? track.crypto_period_index : arrivals[ordinal];
+        arrivals[ordinal]++;
+        
+        CryptKey key = new CryptKey(new KeyPair(Base64.decodeBase64(track.key_id), Base64.decodeBase64(track.key)));
+        if (keys.get(ordinal).put(period, key) != null)
+            throw new IOException("Key server returned more than one " + track.type + " key for crypto period " + period);
+        
+        if (psshBuilder != null)
+            psshBuilder.addTrack(track);
+    }
+    
+    /**
+     * Add all tracks of an already parsed response message
+     * 
+     * @param response the response message
+     * @throws IOException if a track is invalid
+     */
+    public void addTracks(ResponseMessage response) throws IOException {
+        for (ResponseMessage.Track track : response.tracks) {
+            track(track);
+        }
+    }
+    
+    /**
+     * Returns the track types for which keys were received
+     * 
+     * @return the track types
+     */
+    public Set<TrackType> getTrackTypes() {
+        Set<TrackType> types = EnumSet.noneOf(TrackType.class);
+        for (TrackType type : TrackType.values()) {
+            if (!keys.get(type.ordinal()).isEmpty())
+                types.add(type);
+        }
+        return types;
+    }
+    
+    /**
+     * Returns the keys for a track type in crypto period order
+     * 
+     * @param type the track type
+     * @return the keys, which is empty if none were received for the type
+     */
+    public List<CryptKey> getKeys(TrackType type) {
+        return new ArrayList<CryptKey>(keys.get(type.ordinal()).values());
+    }
+}
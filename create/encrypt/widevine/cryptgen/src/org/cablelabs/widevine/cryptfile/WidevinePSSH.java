@@ -26,14 +26,23 @@
 
 package org.cablelabs.widevine.cryptfile;
 
-import org.apache.commons.codec.binary.Base64;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import org.cablelabs.cryptfile.Bitstream;
+import org.cablelabs.cryptfile.CryptfileWriteException;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
 import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
 /**
  * Generates Widevine-specific PSSH for MP4Box cryptfiles
  */
@@ -66,8 +75,79 @@ public class WidevinePSSH extends DRMInfoPSSH {
     public Node generateXML(Document d) {
         Element e = generateDRMInfo(d);
         Bitstream b = new Bitstream();
-        b.setupDataB64(Base64.encodeBase64String(psshProto.toByteArray()));
+        b.setupDataB64(psshProto.toByteArray());
         e.appendChild(b.generateXML(d));
         return e;
     }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.MP4BoxXML#writeXML(javax.xml.stream.XMLStreamWriter)
+     */
+    @Override
+    public void writeXML(XMLStreamWriter w) throws XMLStreamException {
+        writeDRMInfo(w);
+        Bitstream b = new Bitstream();
+        b.setupDataB64(psshProto.toByteArray());
+        b.writeXML(w);
+        w.writeEndElement();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshDataSize()
+     */
+    @Override
+    protected int getPsshDataSize() {
+        return psshProto.getSerializedSize();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshData(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshData(ByteBuffer buf) {
+        int size = psshProto.getSerializedSize();
+        
+        // Heap buffers are encoded in place.  Protobuf can not write to direct
+        // buffers, so those go through an intermediate array
+        if (buf.hasArray()) {
+            CodedOutputStream cos = CodedOutputStream.newInstance(buf.array(),
+                    buf.arrayOffset() + buf.position(), size);
+            try {
+                psshProto.writeTo(cos);
+                cos.checkNoSpaceLeft();
+            }
+            catch (IOException e) {
+                throw new CryptfileWriteException("Error encoding PSSH protobuf: " + e.getMessage(), e);
+            }
+            buf.position(buf.position() + size);
+        }
+        else {
+            buf.put(psshProto.toByteArray());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#getPsshKeyIDCount()
+     */
+    @Override
+    protected int getPsshKeyIDCount() {
+        return psshProto.getKeyIdCount();
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see org.cablelabs.cryptfile.DRMInfoPSSH#writePsshKeyIDs(java.nio.ByteBuffer)
+     */
+    @Override
+    protected void writePsshKeyIDs(ByteBuffer buf) {
+        for (ByteString keyID : psshProto.getKeyIdList()) {
+            if (keyID.size() != 16)
+                throw new IllegalArgumentException("Invalid key ID size in PSSH protobuf: " + keyID.size());
+            keyID.copyTo(buf);
+        }
+    }
 }
@@ -0,0 +1,191 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.cryptfile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.widevine.TrackType;
+import org.cablelabs.widevine.keyreq.ResponseMessage;
+import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Builds the Widevine PSSH for a key server response.  The Widevine key server sends a
+ * separate PSSH for every key in every track, so with rolling keys the number of PSSH
+ * boxes grows with the number of crypto periods.  This builder can instead merge the key
+ * IDs of each track (or of the whole asset) into a single <code>WidevineCencHeader</code>.
+ * <p>
+ * Provider, content ID, policy and algorithm are taken from the first Widevine PSSH the
+ * server sent for the track, so only one PSSH is parsed per merged header.  Key IDs are
+ * taken from the response tracks in the order they were added, without duplicates.
+ */
+public class WidevinePSSHBuilder {
+    
+    /**
+     * How Widevine PSSH are generated
+     */
+    public enum Mode {
+        
+        /** One PSSH for each distinct PSSH sent by the key server */
+        SERVER,
+        
+        /** One PSSH for each track type holding the key IDs of that track */
+        TRACK,
+        
+        /** A single PSSH holding the key IDs of all tracks */
+        ASSET
+    }
+    
+    // The key IDs and template header for one merged PSSH
+    private static class Group {
+        String templateData;
+        Set<ByteString> keyIDs = new LinkedHashSet<ByteString>();
+    }
+    
+    private Mode mode;
+    
+    // SERVER mode -- distinct PSSH payloads in the order they were received
+    private Set<String> serverData = new LinkedHashSet<String>();
+    
+    // TRACK and ASSET modes -- merged PSSH by track type (ASSET uses a single null key)
+    private Map<TrackType, Group> groups = new LinkedHashMap<TrackType, Group>();
+    
+    /**
+     * Create a new builder
+     * 
+     * @param mode the PSSH generation mode
+     */
+    public WidevinePSSHBuilder(Mode mode) {
+        this.mode = mode;
+    }
+    
+    /**
+     * Add a track from the key server response
+     * 
+     * @param track the response track
+     */
+    public void addTrack(ResponseMessage.Track track) {
+        String psshData = null;
+        if (track.pssh != null) {
+            for (ResponseMessage.Track.PSSH pssh : track.pssh) {
+                if (!pssh.drm_type.equalsIgnoreCase("widevine"))
+                    continue;
+                if (mode == Mode.SERVER) {
+                    serverData.add(pssh.data);
+                }
+                else if (psshData == null) {
+                    psshData = pssh.data;
+                }
+            }
+        }
+        if (mode == Mode.SERVER)
+            return;
+        
+        TrackType groupType = (mode == Mode.TRACK) ? track.type : null;
+        Group group = groups.get(groupType);
+        if (group == null) {
+            group = new Group();
+            groups.put(groupType, group);
+        }
+        if (group.templateData == null)
+            group.templateData = psshData;
+        group.keyIDs.add(ByteString.copyFrom(Base64.decodeBase64(track.key_id)));
+    }
+    
+    /**
+     * Add all tracks from the key server response
+     * 
+     * @param response the key server response
+     */
+    public void addTracks(ResponseMessage response) {
+        for (ResponseMessage.Track track : response.tracks) {
+            addTrack(track);
+        }
+    }
+    
+    /**
+     * Build the PSSH for all tracks that have been added.  Tracks for which the key
+     * server sent no Widevine PSSH use the header of another track as a template.  No
+     * PSSH is generated if the server sent no Widevine PSSH at all.
+     * 
+     * @return the PSSH list
+     * @throws InvalidProtocolBufferException if a key server PSSH could not be parsed
+     */
+    public List<DRMInfoPSSH> build() throws InvalidProtocolBufferException {
+        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
+        if (mode == Mode.SERVER) {
+            for (String data : serverData) {
+                psshList.add(new WidevinePSSH(parse(data)));
+            }
+            return psshList;
+        }
+        
+        String anyTemplateData = null;
+        for (Group group : groups.values()) {
+            if (group.templateData != null) {
+                anyTemplateData = group.templateData;
+                break;
+            }
+        }
+        if (anyTemplateData == null)
+            return psshList;
+        
+        WidevinePSSHProtoBuf.WidevineCencHeader anyTemplate = null;
+        for (Map.Entry<TrackType, Group> entry : groups.entrySet()) {
+            Group group = entry.getValue();
+            WidevinePSSHProtoBuf.WidevineCencHeader.Builder header;
+            if (group.templateData != null) {
+                header = parse(group.templateData).toBuilder();
+            }
+            else {
+                if (anyTemplate == null)
+                    anyTemplate = parse(anyTemplateData);
+                header = anyTemplate.toBuilder().setTrackType(entry.getKey().toString());
+            }
+            header.clearKeyId().addAllKeyId(group.keyIDs);
+            if (mode == Mode.ASSET)
+                header.clearTrackType();
+            psshList.add(new WidevinePSSH(header.build()));
+        }
+        return psshList;
+    }
+    
+    private static WidevinePSSHProtoBuf.WidevineCencHeader parse(String data)
+            throws InvalidProtocolBufferException {
+        return WidevinePSSHProtoBuf.WidevineCencHeader.parseFrom(Base64.decodeBase64(data));
+    }
+}
@@ -26,28 +26,43 @@
 
 package org.cablelabs.widevine.cryptgen;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.cablelabs.clearkey.cryptfile.ClearKeyJsonPSSH;
 import org.cablelabs.clearkey.cryptfile.ClearKeyRemotePSSH;
 import org.cablelabs.cryptfile.CryptKey;
 import org.cablelabs.cryptfile.CryptTrack;
 import org.cablelabs.cryptfile.CryptfileBuilder;
+import org.cablelabs.cryptfile.CryptfileWriteException;
 import org.cablelabs.cryptfile.DRMInfoPSSH;
+import org.cablelabs.cryptfile.KeyAcquisitionException;
 import org.cablelabs.cryptfile.KeyPair;
+import org.cablelabs.cryptfile.batch.BatchSummary;
+import org.cablelabs.cryptfile.mp4.CencEncryptor;
+import org.cablelabs.cryptfile.mp4.MP4BoxIndex;
+import org.cablelabs.cryptfile.mp4.TrackInfo;
 import org.cablelabs.widevine.Track;
 import org.cablelabs.widevine.TrackType;
-import org.cablelabs.widevine.cryptfile.WidevinePSSH;
+import org.cablelabs.widevine.batch.KeyAcquisitionService;
+import org.cablelabs.widevine.batch.KeyJobReader;
+import org.cablelabs.widevine.batch.TokenBucket;
+import org.cablelabs.widevine.cryptfile.RollingKeyCollector;
+import org.cablelabs.widevine.cryptfile.WidevinePSSHBuilder;
+import org.cablelabs.widevine.keyreq.KeyCache;
 import org.cablelabs.widevine.keyreq.KeyRequest;
+import org.cablelabs.widevine.keyreq.KeyServerClient;
 import org.cablelabs.widevine.keyreq.ResponseMessage;
-import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -62,6 +77,15 @@ import com.google.protobuf.InvalidProtocolBufferException;
  *
  */
 public class CryptfileGen {
+    
+    // Video tracks with at least this many lines are requested as HD
+    private static final int HD_MIN_HEIGHT = 720;
+    
+    // Default limit on outstanding key requests in batch mode
+    private static final int DEFAULT_CONCURRENCY = 16;
+    
+    // Default key cache wrapping key file, relative to the user's home directory
+    private static final String DEFAULT_CACHE_KEY_FILE = ".widevine_cache_key";
 
     private static void usage() {
         System.out.println("Google Widevine MP4Box cryptfile generation tool.");
@@ -83,6 +107,15 @@ public class CryptfileGen {
         System.out.println("\t\tIf present, the cryptfile will be written to the given file. Otherwise output will be");
         System.out.println("\t\twritten to stdout");
         System.out.println("");
+        System.out.println("\t-encrypt <input_mp4>,<output_mp4>");
+        System.out.println("\t\tIf present, <input_mp4> (a fragmented MP4 file) will be encrypted with the generated");
+        System.out.println("\t\tcryptfile and written to <output_mp4>.  MP4Box is not required.");
+        System.out.println("");
+        System.out.println("\t-media <mp4_file>");
+        System.out.println("\t\tThe MP4 file that will be encrypted.  If no tracks are given on the command line, the");
+        System.out.println("\t\ttracks are discovered from the file (audio is AUDIO, video of 720 lines or more is HD).");
+        System.out.println("\t\tDefaults to the -encrypt input file.");
+        System.out.println("");
         System.out.println("\t-sign <sign_props_file>");
         System.out.println("\t\tIf present, key requests will be signed with the given key information.  <sign_props_file> is");
         System.out.println("\t\ta Java properties file with the following properties:");
@@ -93,18 +126,59 @@ public class CryptfileGen {
         System.out.println("\t\tIf this argument is not present, the requests will be unsigned and the");
         System.out.println("\t\t\"widevine_test\" provider and URL will be used");
         System.out.println("");
+        System.out.println("\t-scheme {cenc|cbc1|cens|cbcs}");
+        System.out.println("\t\tThe Common Encryption protection scheme.  Default is 'cenc'.  The AES-CBC schemes");
+        System.out.println("\t\t(cbc1, cbcs) use 16-byte IVs and 'cbcs' uses a random constant IV for each track.");
+        System.out.println("");
+        System.out.println("\t-pattern <crypt_blocks>,<skip_blocks>");
+        System.out.println("\t\tThe encryption pattern for the 'cens' and 'cbcs' schemes.  Of every <crypt_blocks> +");
+        System.out.println("\t\t<skip_blocks> 16-byte blocks of protected data, the first <crypt_blocks> are encrypted.");
+        System.out.println("\t\tDefault is 1,9.");
+        System.out.println("");
         System.out.println("\t-roll <start_time>,<key_count>,<sample_count>");
         System.out.println("\t\tUsed for rolling keys only.  <start_time> is the integer time basis for the first");
         System.out.println("\t\trequested key.  Could be epoch or media time or anything else meaningful.  <key_count>");
         System.out.println("\t\tis the integer number of keys requested.  <sample_count> is the number of consecutive");
         System.out.println("\t\tsamples to be encrypted with each key before moving to the next.");
         System.out.println("");
-        System.out.println("\t-ck_remote <url>");
+        System.out.println("\t-pssh {server|track|asset}");
+        System.out.println("\t\tHow Widevine PSSH are generated.  'server' adds the PSSH sent by the key server, which");
+        System.out.println("\t\thas one PSSH for every key.  'track' (default) builds one PSSH for each track holding all");
+        System.out.println("\t\tof its rolling key IDs.  'asset' builds a single PSSH holding the key IDs of all tracks.");
+        System.out.println("");
+        System.out.println("\t-ck_remote <url>[,{list|range|keyset}]");
         System.out.println("\t\tAdd CableLabs 'Remote' ClearKey PSSH to the cryptfile.  <url> is the ClearKey server");
-        System.out.println("\t\tURL.");
+        System.out.println("\t\tURL.  The key IDs are named in the URL one by one ('list', the default), as ranges of");
+        System.out.println("\t\tconsecutive key IDs ('range') or by one key set handle ('keyset') that must be");
+        System.out.println("\t\tregistered with the server.");
         System.out.println("");
         System.out.println("\t-ck_json");
         System.out.println("\t\tAdd CableLabs 'JSON' ClearKey PSSH to the cryptfile.");
+        System.out.println("");
+        System.out.println("\t-cache <dir>[,<ttl_hours>]");
+        System.out.println("\t\tCache key server responses in the given directory.  Requests for the same content ID,");
+        System.out.println("\t\ttrack types and rolling key window are answered from the cache without contacting the");
+        System.out.println("\t\tkey server.  Cached entries expire after <ttl_hours> (default 720).");
+        System.out.println("");
+        System.out.println("\t-cache_key <file>");
+        System.out.println("\t\tThe file holding the key that encrypts cached keys.  It is created with a new random key");
+        System.out.println("\t\tif it does not exist.  Default is ~/" + DEFAULT_CACHE_KEY_FILE);
+        System.out.println("");
+        System.out.println("\t-batch <job_file>");
+        System.out.println("\t\tRequest keys for every content ID in the given job file in a single run and write a");
+        System.out.println("\t\tcryptfile for each as soon as its keys arrive.  Each line of the job file is either a");
+        System.out.println("\t\tJSON job object or a CSV line of the form:");
+        System.out.println("\t\t<content_id>,<out_file>,<track_id>:<track_type>[,<track_id>:<track_type>...]");
+        System.out.println("\t\tUse '-' to read the job file from stdin.  -roll, -sign, -scheme, -pattern and -pssh apply");
+        System.out.println("\t\tto every job.  Content ID, track arguments, -out, -encrypt, -media and ClearKey options");
+        System.out.println("\t\tare ignored in batch mode.");
+        System.out.println("");
+        System.out.println("\t-concurrency <count>");
+        System.out.println("\t\tMaximum number of outstanding key requests for -batch.  Default is " + DEFAULT_CONCURRENCY + ".");
+        System.out.println("");
+        System.out.println("\t-rate <requests_per_second>[,<burst>]");
+        System.out.println("\t\tLimit the rate of key requests for -batch to match the key server quota.  Up to <burst>");
+        System.out.println("\t\trequests (default 1) may be sent at once after an idle period.  Default is no limit.");
     }
     
     private static void invalidOption(String option) {
@@ -144,6 +218,100 @@ public class CryptfileGen {
         System.exit(1);;
     }
     
+    // Fill in the track list from the media file if it is empty, otherwise make sure
+    // that every track ID is present in the media
+    private static void checkTracks(Track[] track_args, String mediaFile) {
+        boolean discover = true;
+        for (Track t : track_args) {
+            if (t != null)
+                discover = false;
+        }
+        
+        try {
+            MP4BoxIndex media = new MP4BoxIndex(new File(mediaFile));
+            try {
+                if (!discover) {
+                    for (Track t : track_args) {
+                        if (t != null && media.getTrack(t.id) == null)
+                            errorExit("Track " + t.id + " not found in " + mediaFile);
+                    }
+                    return;
+                }
+                
+                for (TrackInfo info : media.getTracks()) {
+                    TrackType type;
+                    if (info.isAudio())
+                        type = TrackType.AUDIO;
+                    else if (info.isVideo())
+                        type = (info.getHeight() >= HD_MIN_HEIGHT) ? TrackType.HD : TrackType.SD;
+                    else
+                        continue;
+                    
+                    if (track_args[type.ordinal()] != null)
+                        errorExit("Multiple " + type + " tracks found in " + mediaFile + ".  Specify tracks explicitly.");
+                    Track t = new Track();
+                    t.type = type;
+                    t.id = info.getTrackID();
+                    track_args[type.ordinal()] = t;
+                }
+            }
+            finally {
+                media.close();
+            }
+        }
+        catch (IllegalArgumentException e) {
+            errorExit("Invalid media file (" + mediaFile + "): " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading media file (" + mediaFile + "): " + e.getMessage());
+        }
+    }
+    
+    private static KeyCache openCache(String[] cacheOpts, String cacheKeyFile) {
+        KeyCache cache = null;
+        try {
+            File keyFile = (cacheKeyFile != null) ? new File(cacheKeyFile) :
+                    new File(System.getProperty("user.home"), DEFAULT_CACHE_KEY_FILE);
+            long ttl = (cacheOpts.length > 1) ? Long.parseLong(cacheOpts[1]) * 60 * 60 * 1000 : KeyCache.DEFAULT_TTL;
+            cache = new KeyCache(new File(cacheOpts[0]), KeyCache.loadWrappingKey(keyFile),
+                                 KeyCache.DEFAULT_MAX_ENTRIES, ttl);
+        }
+        catch (IllegalArgumentException e) {
+            errorExit("Illegal cache option: " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Could not open key cache: " + e.getMessage());
+        }
+        return cache;
+    }
+    
+    private static void runBatch(KeyAcquisitionService service, String jobFile) {
+        try {
+            Reader r = "-".equals(jobFile) ? new InputStreamReader(System.in, "UTF-8") :
+                                             new InputStreamReader(new FileInputStream(jobFile), "UTF-8");
+            KeyJobReader jobs = new KeyJobReader(r);
+            BatchSummary summary;
+            try {
+                summary = service.run(jobs);
+            }
+            finally {
+                jobs.close();
+            }
+            summary.print(System.out);
+            if (!summary.getFailures().isEmpty())
+                System.exit(1);
+        }
+        catch (FileNotFoundException e) {
+            errorExit("Job file not found: " + e.getMessage());
+        }
+        catch (IOException e) {
+            errorExit("Error reading job file: " + e.getMessage());
+        }
+        catch (InterruptedException e) {
+            errorExit("Batch interrupted");
+        }
+    }
+    
     public static void main(String[] args) {
 
         // Track list -- one slot for each track type
@@ -157,11 +325,31 @@ public class CryptfileGen {
         int rollingKeyCount = -1;
         int rollingKeySamples = -1;
         
+        // Protection scheme
+        CryptfileBuilder.ProtectionScheme scheme = CryptfileBuilder.ProtectionScheme.AES_CTR;
+        int cryptByteBlock = 1;
+        int skipByteBlock = 9;
+        
         String outfile = null;
+        String[] encryptFiles = null;
+        String mediaFile = null;
+        
+        // Widevine PSSH
+        WidevinePSSHBuilder.Mode psshMode = WidevinePSSHBuilder.Mode.TRACK;
         
         // Clearkey
         boolean clearkey = false;
         URL clearkey_url = null;
+        ClearKeyRemotePSSH.Mode clearkey_mode = ClearKeyRemotePSSH.Mode.LIST;
+        
+        // Key cache
+        String[] cacheOpts = null;
+        String cacheKeyFile = null;
+        
+        // Batch
+        String jobFile = null;
+        int concurrency = DEFAULT_CONCURRENCY;
+        TokenBucket rateLimiter = null;
         
         // Parse arguments
         String content_id_str = null;
@@ -178,6 +366,14 @@ public class CryptfileGen {
                     outfile = subopts[0];
                     i++;
                 }
+                else if ((subopts = checkOption("-encrypt", args, i, 2)) != null) {
+                    encryptFiles = subopts;
+                    i++;
+                }
+                else if ((subopts = checkOption("-media", args, i, 1)) != null) {
+                    mediaFile = subopts[0];
+                    i++;
+                }
                 else if ((subopts = checkOption("-sign", args, i, 1)) != null) {
                     signingFile = subopts[0];
                     i++;
@@ -185,14 +381,33 @@ public class CryptfileGen {
                 else if ((subopts = checkOption("-ck_json", args, i, 0)) != null) {
                     clearkey = true;
                 }
-                else if ((subopts = checkOption("-ck_remote", args, i, 1)) != null) {
+                else if ((subopts = checkOption("-ck_remote", args, i, 1, 2)) != null) {
                     try {
                         clearkey_url = new URL(subopts[0]);
+                        if (subopts.length > 1)
+                            clearkey_mode = ClearKeyRemotePSSH.Mode.fromString(subopts[1]);
                         clearkey = true;
                     }
                     catch (MalformedURLException e) {
                         errorExit("Illegal clearkey URL: " + e.getMessage());
                     }
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
+                    }
+                    i++;
+                }
+                else if ((subopts = checkOption("-scheme", args, i, 1)) != null) {
+                    try {
+                        scheme = CryptfileBuilder.ProtectionScheme.fromSchemeType(subopts[0]);
+                    }
+                    catch (IllegalArgumentException e) {
+                        errorExit(e.getMessage());
+                    }
+                    i++;
+                }
+                else if ((subopts = checkOption("-pattern", args, i, 2)) != null) {
+                    cryptByteBlock = Integer.parseInt(subopts[0]);
+                    skipByteBlock = Integer.parseInt(subopts[1]);
                     i++;
                 }
                 else if ((subopts = checkOption("-roll", args, i, 3)) != null) {
@@ -201,6 +416,41 @@ public class CryptfileGen {
                     rollingKeySamples = Integer.parseInt(subopts[2]);
                     i++;
                 }
+                else if ((subopts = checkOption("-pssh", args, i, 1)) != null) {
+                    try {
+                        psshMode = WidevinePSSHBuilder.Mode.valueOf(subopts[0].toUpperCase());
+                    }
+                    catch (IllegalArgumentException e) {
+                        errorExit("Illegal PSSH mode: " + subopts[0]);
+                    }
+                    i++;
+                }
+                else if ((subopts = checkOption("-cache", args, i, 1, 2)) != null) {
+                    cacheOpts = subopts;
+                    i++;
+                }
+                else if ((subopts = checkOption("-cache_key", args, i, 1)) != null) {
+                    cacheKeyFile = subopts[0];
+                    i++;
+                }
+                else if ((subopts = checkOption("-batch", args, i, 1)) != null) {
+                    jobFile = subopts[0];
+                    i++;
+                }
+                else if ((subopts = checkOption("-concurrency", args, i, 1)) != null) {
+                    concurrency = Integer.parseInt(subopts[0]);
+                    i++;
+                }
+                else if ((subopts = checkOption("-rate", args, i, 1, 2)) != null) {
+                    try {
+                        rateLimiter = new TokenBucket(Double.parseDouble(subopts[0]),
+                                                      (subopts.length > 1) ? Integer.parseInt(subopts[1]) : 1);
+                    }
+                    catch (IllegalArgumentException e) {
+                        errorExit("Illegal rate limit: " + e.getMessage());
+                    }
+                    i++;
+                }
                 else {
                     usage();
                     errorExit("Illegal argument: " + args[i]);
@@ -232,6 +482,30 @@ public class CryptfileGen {
             }
         }
         
+        KeyCache cache = (cacheOpts != null) ? openCache(cacheOpts, cacheKeyFile) : null;
+        
+        if (jobFile != null) {
+            KeyAcquisitionService service = null;
+            try {
+                service = new KeyAcquisitionService(KeyServerClient.getDefault(), signingFile, concurrency, rateLimiter);
+            }
+            catch (IllegalArgumentException e) {
+                errorExit(e.getMessage());
+            }
+            service.setScheme(scheme, cryptByteBlock, skipByteBlock);
+            service.setRollingKeys(rollingKeyStart, rollingKeyCount, rollingKeySamples);
+            service.setCache(cache);
+            service.setPSSHMode(psshMode);
+            runBatch(service, jobFile);
+            return;
+        }
+        
+        // Discover tracks from the media if none were given
+        if (mediaFile == null && encryptFiles != null)
+            mediaFile = encryptFiles[0];
+        if (mediaFile != null)
+            checkTracks(track_args, mediaFile);
+        
         // Request keys
         List<Track> trackList = new ArrayList<Track>();
         for (Track t : track_args) {
@@ -249,44 +523,48 @@ public class CryptfileGen {
                 errorExit("Error in signing file: " + e.getMessage());
             }
         }
-        ResponseMessage m = request.requestKeys();
+        request.setCache(cache);
+        
+        // The Widevine key server sends a new PSSH for every key in every track.  Unless asked
+        // for the server PSSH, we build our own with a single PSSH per track or per asset.  Keys
+        // are collected by track type and crypto period as the response is parsed
+        WidevinePSSHBuilder psshBuilder = new WidevinePSSHBuilder(psshMode);
+        RollingKeyCollector rollingKeys = new RollingKeyCollector(psshBuilder);
+        ResponseMessage m = null;
+        try {
+            m = request.requestKeys(rollingKeys);
+        }
+        catch (KeyAcquisitionException e) {
+            errorExit(e.getMessage());
+        }
         if (m.status != ResponseMessage.StatusCode.OK) {
-            errorExit("Received error from key server! Code = " + m.status.toString());
+            errorExit("Received error from key server! Code = " + m.status);
         }
-    
-        // The Widevine key server provides the PSSH data directly to us.  Optionally, we could
-        // build our own WidevineCencHeader protobuf object from the information in the response.
-        // For rolling keys it might be a better solution to build our own, since the widevine server
-        // currently sends a new PSSH for every key in every track.  Building our own, we could keep
-        // a single PSSH per track
         
-        List<DRMInfoPSSH> psshList = new ArrayList<DRMInfoPSSH>();
         List<CryptTrack> cryptTracks = new ArrayList<CryptTrack>();
-        
-        // Build PSSH's (has to be one for each track in the Widevine world)
-        for (ResponseMessage.Track track : m.tracks) {
-            for (ResponseMessage.Track.PSSH pssh : track.pssh) {
-                
-                // Only widevine DRM for now
-                if (!pssh.drm_type.equalsIgnoreCase("widevine"))
-                    continue;
-                
-                WidevinePSSHProtoBuf.WidevineCencHeader wvPSSH = null;
-                try {
-                    wvPSSH = WidevinePSSHProtoBuf.WidevineCencHeader.parseFrom(Base64.decodeBase64(pssh.data));
-                }
-                catch (InvalidProtocolBufferException e) {
-                    errorExit("Could not parse PSSH protobuf from key response message");
-                }
-                psshList.add(new WidevinePSSH(wvPSSH));
+        for (TrackType type : rollingKeys.getTrackTypes()) {
+            if (track_args[type.ordinal()] == null)
+                errorExit("Key server returned an unrequested track type: " + type);
+            
+            // Each track is encrypted with all of its rolling keys, in crypto period order
+            List<CryptKey> keyList = rollingKeys.getKeys(type);
+            System.out.println("Received " + keyList.size() + " key(s) for " + type + " track " +
+                               track_args[type.ordinal()].id);
+            try {
+                cryptTracks.add(CryptTrack.forScheme(scheme, track_args[type.ordinal()].id, CryptTrack.IV_SIZE_8,
+                                                     keyList, rollingKeySamples, cryptByteBlock, skipByteBlock));
+            }
+            catch (IllegalArgumentException e) {
+                errorExit(e.getMessage());
             }
-                
-            // Get the keys for this track and add to our cryptfile
-            List<CryptKey> keyList = new ArrayList<CryptKey>();
-            keyList.add(new CryptKey(new KeyPair(Base64.decodeBase64(track.key_id),
-                                                 Base64.decodeBase64(track.key))));
-            cryptTracks.add(new CryptTrack(track_args[track.type.ordinal()].id, 8, null,
-                                           keyList, rollingKeySamples));
+        }
+        
+        List<DRMInfoPSSH> psshList = null;
+        try {
+            psshList = psshBuilder.build();
+        }
+        catch (InvalidProtocolBufferException e) {
+            errorExit("Could not parse PSSH protobuf from key response message");
         }
         
         // Add clearkey PSSH if requested
@@ -296,20 +574,26 @@ public class CryptfileGen {
                 List<String> keyIDs = new ArrayList<String>();
                 System.out.println("Ensure the following keys are installed on the ClearKey server:");
                 for (CryptTrack t : cryptTracks) {
-                    for (CryptKey key : t.getKeys()) {
+                    for (CryptKey key : t.getKeySequence()) {
                         System.out.println("\t" + Hex.encodeHexString(key.getKeyPair().getID()) +
                                            " : " + Hex.encodeHexString(key.getKeyPair().getKey()));
                         keyIDs.add(Hex.encodeHexString(key.getKeyPair().getID()));
                     }
                 }
                 System.out.println("");
-                psshList.add(new ClearKeyRemotePSSH(clearkey_url, keyIDs));
+                ClearKeyRemotePSSH remotePSSH = new ClearKeyRemotePSSH(clearkey_url, keyIDs, clearkey_mode);
+                if (clearkey_mode == ClearKeyRemotePSSH.Mode.KEYSET) {
+                    System.out.println("Register key set " + remotePSSH.getKeyIDSet().getHandle() +
+                                       " with the ClearKey server (ClearKeyServer -keyset)");
+                    System.out.println("");
+                }
+                psshList.add(remotePSSH);
             }
             else {
                 // Build list of all key pairs
                 List<KeyPair> keys = new ArrayList<KeyPair>();
                 for (CryptTrack t : cryptTracks) {
-                    for (CryptKey key : t.getKeys()) {
+                    for (CryptKey key : t.getKeySequence()) {
                         keys.add(key.getKeyPair());
                     }
                 }
@@ -317,20 +601,36 @@ public class CryptfileGen {
             }
         }
         
-        CryptfileBuilder cfBuilder = new CryptfileBuilder(CryptfileBuilder.ProtectionScheme.AES_CTR,
-                                                          cryptTracks, psshList);
+        CryptfileBuilder cfBuilder = new CryptfileBuilder(scheme, cryptTracks, psshList);
         
         // Write the output
-        cfBuilder.writeCryptfile(System.out);
         try {
+            cfBuilder.streamCryptfile(System.out);
             if (outfile != null) {
                 System.out.println("Writing cryptfile to: " + outfile);
-                cfBuilder.writeCryptfile(new FileOutputStream(outfile));
+                cfBuilder.streamCryptfile(new FileOutputStream(outfile));
             }
         }
         catch (FileNotFoundException e) {
             errorExit("Could not open output file (" + outfile + ") for writing");
         }
+        catch (CryptfileWriteException e) {
+            errorExit("Could not write cryptfile: " + e.getMessage());
+        }
+        
+        // Encrypt the media
+        if (encryptFiles != null) {
+            try {
+                System.out.println("Encrypting " + encryptFiles[0] + " to: " + encryptFiles[1]);
+                new CencEncryptor(cfBuilder).encrypt(new File(encryptFiles[0]), new File(encryptFiles[1]));
+            }
+            catch (IllegalArgumentException e) {
+                errorExit("Could not encrypt " + encryptFiles[0] + ": " + e.getMessage());
+            }
+            catch (IOException e) {
+                errorExit("Error encrypting " + encryptFiles[0] + ": " + e.getMessage());
+            }
+        }
         
     }
 }
@@ -0,0 +1,647 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.keyreq;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.widevine.TrackType;
+
+/**
+ * Durable, content-addressed cache of Widevine key server responses, so that
+ * re-packaging the same content does not go back to the key server for keys that
+ * have already been issued.
+ * <p>
+ * Entries are addressed by the SHA-256 hash of the key server URL, signing provider
+ * and signing key, content ID, requested track types and crypto period window (see
+ * {@link #getEntryID}), so providers sharing a key server never see each other's
+ * keys.  Only
+ * successful responses are cached, and only the parts needed to build a cryptfile
+ * are kept: the content ID and, for each track, its type, key ID, key and PSSH.
+ * <p>
+ * The cache directory holds two files.  <code>keys.dat</code> is an append-only log
+ * of records, each encoded in a compact binary form and encrypted with AES-256-GCM
+ * under a local wrapping key, using the entry ID as additional authenticated data.
+ * <code>keys.idx</code> is a fixed-size, memory-mapped, open-addressing hash table
+ * from entry ID to record location, creation time and last access time.  Entries
+ * expire after a fixed time to live and the least recently used entry is evicted
+ * when the cache is full.  The record log is compacted once more than half of it
+ * is taken up by evicted or replaced records.  A record that fails authentication
+ * (wrong wrapping key, damaged file) is treated as a cache miss and dropped.
+ * <p>
+ * A cache may be shared by many threads.  Each operation also holds an exclusive
+ * lock on the index file, so separate packaging processes may share a cache
+ * directory.
+ */
+public class KeyCache implements Closeable {
+    
+    /** Default maximum number of entries */
+    public static final int DEFAULT_MAX_ENTRIES = 65536;
+    
+    /** Largest supported maximum number of entries */
+    public static final int MAX_ENTRIES = 1 << 22;
+    
+    /** Default entry time to live (30 days, in ms) */
+    public static final long DEFAULT_TTL = 30L * 24 * 60 * 60 * 1000;
+    
+    private static final String INDEX_FILE = "keys.idx";
+    private static final String DATA_FILE = "keys.dat";
+    
+    // Index header
+    private static final int MAGIC = 0x57564b43;  // "WVKC"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 32;
+    private static final int HDR_MAGIC = 0;
+    private static final int HDR_VERSION = 4;
+    private static final int HDR_SLOTS = 8;
+    private static final int HDR_ENTRIES = 12;
+    private static final int HDR_LIVE_BYTES = 16;
+    private static final int HDR_GENERATION = 24;
+    
+    // Index slots
+    private static final int SLOT_SIZE = 64;
+    private static final int SLOT_STATE = 0;
+    private static final int SLOT_LENGTH = 4;
+    private static final int SLOT_OFFSET = 8;
+    private static final int SLOT_CREATED = 16;
+    private static final int SLOT_ACCESSED = 24;
+    private static final int SLOT_ID = 32;
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_USED = 1;
+    private static final byte STATE_DELETED = 2;
+    
+    private static final int ID_SIZE = 32;
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int RECORD_VERSION = 2;
+    
+    // Compact once the record log is more than twice the size of its live records
+    // (and at least this big)
+    private static final long MIN_COMPACT_SIZE = 1 << 20;
+    
+    private File dir;
+    private SecretKeySpec wrappingKey;
+    private int maxEntries;
+    private long ttl;
+    private SecureRandom random = new SecureRandom();
+    
+    private RandomAccessFile indexFile;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int slots;
+    
+    private RandomAccessFile dataFile;
+    private FileChannel dataChannel;
+    private int generation;     // Index generation when the record log was opened
+    
+    /**
+     * Open (or create) a cache with the default size and time to live
+     * 
+     * @param dir the cache directory
+     * @param wrappingKey the 32-byte key that encrypts the cached keys
+     * @throws IOException if the cache files could not be opened
+     */
+    public KeyCache(File dir, byte[] wrappingKey) throws IOException {
+        this(dir, wrappingKey, DEFAULT_MAX_ENTRIES, DEFAULT_TTL);
+    }
+    
+    /**
+     * Open (or create) a cache.  An existing cache created with a different maximum
+     * number of entries is discarded.
+     * 
+     * @param dir the cache directory
+     * @param wrappingKey the 32-byte key that encrypts the cached keys
+     * @param maxEntries the maximum number of entries
+     * @param ttl the time after which an entry expires (ms)
+     * @throws IOException if the cache files could not be opened
+     */
+    public KeyCache(File dir, byte[] wrappingKey, int maxEntries, long ttl) throws IOException {
+        if (wrappingKey == null || wrappingKey.length != 32)
+            throw new IllegalArgumentException("Cache wrapping key must be 32 bytes");
+        if (maxEntries < 1 || maxEntries > MAX_ENTRIES)
+            throw new IllegalArgumentException("Illegal maximum cache entries: " + maxEntries);
+        if (ttl <= 0)
+            throw new IllegalArgumentException("Cache time to live must be positive: " + ttl);
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Could not create cache directory " + dir);
+        
+        this.dir = dir;
+        this.wrappingKey = new SecretKeySpec(wrappingKey, "AES");
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        
+        // Keep the load factor at or below 1/2
+        slots = Integer.highestOneBit(maxEntries * 2 - 1) << 1;
+        
+        indexFile = new RandomAccessFile(new File(dir, INDEX_FILE), "rw");
+        indexChannel = indexFile.getChannel();
+        dataFile = new RandomAccessFile(new File(dir, DATA_FILE), "rw");
+        dataChannel = dataFile.getChannel();
+        
+        FileLock lock = indexChannel.lock();
+        try {
+            long size = HEADER_SIZE + (long)slots * SLOT_SIZE;
+            boolean valid = indexFile.length() == size;
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!valid || index.getInt(HDR_MAGIC) != MAGIC || index.getInt(HDR_VERSION) != VERSION ||
+                    index.getInt(HDR_SLOTS) != slots) {
+                clearIndex();
+                dataChannel.truncate(0);
+                index.force();
+            }
+            generation = index.getInt(HDR_GENERATION);
+        }
+        finally {
+            lock.release();
+        }
+    }
+    
+    /**
+     * Load the wrapping key from the given file, creating the file with a new random
+     * key (readable only by the owner, where supported) if it does not exist
+     * 
+     * @param keyFile the wrapping key file
+     * @return the 32-byte wrapping key
+     * @throws IOException if the key file could not be read or created, or does not
+     * contain a 32-byte key
+     */
+    public static byte[] loadWrappingKey(File keyFile) throws IOException {
+        if (!keyFile.exists()) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            File parent = keyFile.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory())
+                throw new IOException("Could not create directory " + parent);
+            File tmp = File.createTempFile("key", ".tmp", parent);
+            try {
+                try {
+                    Files.setPosixFilePermissions(tmp.toPath(), PosixFilePermissions.fromString("rw-------"));
+                }
+                catch (UnsupportedOperationException e) {
+                    // Not a POSIX file system
+                }
+                Files.write(tmp.toPath(), key);
+                Files.move(tmp.toPath(), keyFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                tmp.delete();
+            }
+        }
+        byte[] key = Files.readAllBytes(keyFile.toPath());
+        if (key.length != 32)
+            throw new IOException("Cache wrapping key file does not contain a 32-byte key: " + keyFile);
+        return key;
+    }
+    
+    /**
+     * Returns the cache entry ID for a key request
+     * 
+     * @param serverURL the key server URL
+     * @param provider the provider that signs the request, or null for unsigned requests
+     * @param signKey the request signing key, or null for unsigned requests
+     * @param signIV the request signing IV, or null for unsigned requests
+     * @param contentID the content ID
+     * @param trackTypes the requested track types, in any order
+     * @param cryptoPeriodStart the first crypto period index, or -1 for no rolling keys
+     * @param cryptoPeriodCount the number of crypto periods, or -1 for no rolling keys
+     * @return the 32-byte entry ID
+     */
+    public static byte[] getEntryID(String serverURL, String provider, byte[] signKey, byte[] signIV,
+                                    String contentID, List<TrackType> trackTypes,
+                                    int cryptoPeriodStart, int cryptoPeriodCount) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeUTF(serverURL);
+            
+            // Only a hash of the signing credentials goes into the entry ID.  Unsigned
+            // requests have none
+            boolean signed = provider != null && signKey != null && signIV != null;
+            dos.writeBoolean(signed);
+            dos.writeUTF(signed ? provider : "");
+            if (signed) {
+                sha256.update(signKey);
+                sha256.update(signIV);
+                dos.write(sha256.digest());
+            }
+            dos.writeUTF(contentID);
+            boolean[] types = new boolean[TrackType.values().length];
+            for (TrackType type : trackTypes) {
+                types[type.ordinal()] = true;
+            }
+            for (boolean t : types) {
+                dos.writeBoolean(t);
+            }
+            dos.writeInt(cryptoPeriodStart);
+            dos.writeInt(cryptoPeriodCount);
+            dos.close();
+            return sha256.digest(baos.toByteArray());
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Look up a cached response
+     * 
+     * @param entryID the entry ID
+     * @return the cached response or null if there is no unexpired entry for the ID
+     * @throws IOException if there was an error reading the cache
+     */
+    public synchronized ResponseMessage get(byte[] entryID) throws IOException {
+        FileLock lock = indexChannel.lock();
+        try {
+            checkGeneration();
+            int slot = find(entryID);
+            if (slot < 0)
+                return null;
+            
+            int pos = slotPosition(slot);
+            long now = System.currentTimeMillis();
+            if (now - index.getLong(pos + SLOT_CREATED) > ttl) {
+                remove(slot);
+                return null;
+            }
+            
+            ByteBuffer record = ByteBuffer.allocate(index.getInt(pos + SLOT_LENGTH));
+            long offset = index.getLong(pos + SLOT_OFFSET);
+            while (record.hasRemaining()) {
+                if (dataChannel.read(record, offset + record.position()) < 0)
+                    break;
+            }
+            
+            ResponseMessage message;
+            try {
+                message = decode(decrypt(record.array(), entryID));
+            }
+            catch (GeneralSecurityException e) {
+                remove(slot);
+                return null;
+            }
+            catch (IOException e) {
+                remove(slot);
+                return null;
+            }
+            index.putLong(pos + SLOT_ACCESSED, now);
+            return message;
+        }
+        finally {
+            lock.release();
+        }
+    }
+    
+    /**
+     * Add a response to the cache, replacing any existing entry with the same ID.
+     * Responses without an OK status are not cached.
+     * 
+     * @param entryID the entry ID
+     * @param message the response message
+     * @throws IOException if there was an error writing to the cache
+     */
+    public synchronized void put(byte[] entryID, ResponseMessage message) throws IOException {
+        if (message.status != ResponseMessage.StatusCode.OK || message.tracks == null)
+            return;
+        
+        byte[] record;
+        try {
+            record = encrypt(encode(message), entryID);
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt cache entry: " + e.getMessage(), e);
+        }
+        
+        FileLock lock = indexChannel.lock();
+        try {
+            checkGeneration();
+            int existing = find(entryID);
+            if (existing >= 0)
+                remove(existing);
+            while (index.getInt(HDR_ENTRIES) >= maxEntries) {
+                remove(findLeastRecentlyUsed());
+            }
+            
+            // The record is durable before the index refers to it
+            long offset = dataChannel.size();
+            ByteBuffer buf = ByteBuffer.wrap(record);
+            while (buf.hasRemaining()) {
+                dataChannel.write(buf, offset + buf.position());
+            }
+            dataChannel.force(false);
+            
+            long now = System.currentTimeMillis();
+            insert(entryID, offset, record.length, now, now);
+            index.force();
+            
+            long live = index.getLong(HDR_LIVE_BYTES);
+            if (dataChannel.size() > MIN_COMPACT_SIZE && dataChannel.size() > live * 2)
+                compact();
+        }
+        finally {
+            lock.release();
+        }
+    }
+    
+    /*
+     * (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        index.force();
+        indexFile.close();
+        dataFile.close();
+    }
+    
+    // Reopen the record log if another process has compacted it
+    private void checkGeneration() throws IOException {
+        if (index.getInt(HDR_GENERATION) == generation)
+            return;
+        dataFile.close();
+        dataFile = new RandomAccessFile(new File(dir, DATA_FILE), "rw");
+        dataChannel = dataFile.getChannel();
+        generation = index.getInt(HDR_GENERATION);
+    }
+    
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+    
+    private int home(byte[] entryID) {
+        return ByteBuffer.wrap(entryID).getInt() & (slots - 1);
+    }
+    
+    private boolean matches(int pos, byte[] entryID) {
+        for (int i = 0; i < ID_SIZE; i++) {
+            if (index.get(pos + SLOT_ID + i) != entryID[i])
+                return false;
+        }
+        return true;
+    }
+    
+    // Returns the slot holding the given entry, or -1
+    private int find(byte[] entryID) {
+        int slot = home(entryID);
+        for (int i = 0; i < slots; i++) {
+            int pos = slotPosition(slot);
+            byte state = index.get(pos + SLOT_STATE);
+            if (state == STATE_EMPTY)
+                return -1;
+            if (state == STATE_USED && matches(pos, entryID))
+                return slot;
+            slot = (slot + 1) & (slots - 1);
+        }
+        return -1;
+    }
+    
+    private int findLeastRecentlyUsed() {
+        int lru = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int slot = 0; slot < slots; slot++) {
+            int pos = slotPosition(slot);
+            if (index.get(pos + SLOT_STATE) == STATE_USED && index.getLong(pos + SLOT_ACCESSED) < oldest) {
+                oldest = index.getLong(pos + SLOT_ACCESSED);
+                lru = slot;
+            }
+        }
+        return lru;
+    }
+    
+    private void insert(byte[] entryID, long offset, int length, long created, long accessed) {
+        int slot = home(entryID);
+        int pos = slotPosition(slot);
+        while (index.get(pos + SLOT_STATE) == STATE_USED) {
+            slot = (slot + 1) & (slots - 1);
+            pos = slotPosition(slot);
+        }
+        index.putInt(pos + SLOT_LENGTH, length);
+        index.putLong(pos + SLOT_OFFSET, offset);
+        index.putLong(pos + SLOT_CREATED, created);
+        index.putLong(pos + SLOT_ACCESSED, accessed);
+        for (int i = 0; i < ID_SIZE; i++) {
+            index.put(pos + SLOT_ID + i, entryID[i]);
+        }
+        index.put(pos + SLOT_STATE, STATE_USED);
+        index.putInt(HDR_ENTRIES, index.getInt(HDR_ENTRIES) + 1);
+        index.putLong(HDR_LIVE_BYTES, index.getLong(HDR_LIVE_BYTES) + length);
+    }
+    
+    private void remove(int slot) {
+        int pos = slotPosition(slot);
+        index.put(pos + SLOT_STATE, STATE_DELETED);
+        index.putInt(HDR_ENTRIES, index.getInt(HDR_ENTRIES) - 1);
+        index.putLong(HDR_LIVE_BYTES, index.getLong(HDR_LIVE_BYTES) - index.getInt(pos + SLOT_LENGTH));
+    }
+    
+    private void clearIndex() {
+        int nextGeneration = index.getInt(HDR_GENERATION) + 1;
+        byte[] zeros = new byte[SLOT_SIZE * 1024];
+        index.clear();
+        while (index.hasRemaining()) {
+            index.put(zeros, 0, Math.min(zeros.length, index.remaining()));
+        }
+        index.clear();
+        index.putInt(HDR_MAGIC, MAGIC);
+        index.putInt(HDR_VERSION, VERSION);
+        index.putInt(HDR_SLOTS, slots);
+        index.putInt(HDR_GENERATION, nextGeneration);
+    }
+    
+    // Copy the live records to a new log and rebuild the index without deleted slots
+    private void compact() throws IOException {
+        List<long[]> live = new ArrayList<long[]>();
+        List<byte[]> ids = new ArrayList<byte[]>();
+        for (int slot = 0; slot < slots; slot++) {
+            int pos = slotPosition(slot);
+            if (index.get(pos + SLOT_STATE) != STATE_USED)
+                continue;
+            live.add(new long[] { index.getLong(pos + SLOT_OFFSET), index.getInt(pos + SLOT_LENGTH),
+                                  index.getLong(pos + SLOT_CREATED), index.getLong(pos + SLOT_ACCESSED) });
+            byte[] id = new byte[ID_SIZE];
+            for (int i = 0; i < ID_SIZE; i++) {
+                id[i] = index.get(pos + SLOT_ID + i);
+            }
+            ids.add(id);
+        }
+        
+        File tmp = new File(dir, DATA_FILE + ".tmp");
+        RandomAccessFile newData = new RandomAccessFile(tmp, "rw");
+        long[] newOffsets = new long[live.size()];
+        try {
+            FileChannel out = newData.getChannel();
+            out.truncate(0);
+            for (int i = 0; i < live.size(); i++) {
+                newOffsets[i] = out.position();
+                long offset = live.get(i)[0];
+                long length = live.get(i)[1];
+                long copied = 0;
+                while (copied < length) {
+                    copied += dataChannel.transferTo(offset + copied, length - copied, out);
+                }
+            }
+            out.force(false);
+        }
+        finally {
+            newData.close();
+        }
+        
+        // A crash between the rename and the index rewrite leaves index entries that
+        // point at the wrong records.  These fail authentication and are dropped
+        dataFile.close();
+        Files.move(tmp.toPath(), new File(dir, DATA_FILE).toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dataFile = new RandomAccessFile(new File(dir, DATA_FILE), "rw");
+        dataChannel = dataFile.getChannel();
+        
+        clearIndex();
+        generation = index.getInt(HDR_GENERATION);
+        for (int i = 0; i < live.size(); i++) {
+            long[] e = live.get(i);
+            insert(ids.get(i), newOffsets[i], (int)e[1], e[2], e[3]);
+        }
+        index.force();
+    }
+    
+    private byte[] encrypt(byte[] plaintext, byte[] entryID) throws GeneralSecurityException {
+        byte[] iv = new byte[GCM_IV_SIZE];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+        cipher.updateAAD(entryID);
+        byte[] record = new byte[GCM_IV_SIZE + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(iv, 0, record, 0, GCM_IV_SIZE);
+        cipher.doFinal(plaintext, 0, plaintext.length, record, GCM_IV_SIZE);
+        return record;
+    }
+    
+    private byte[] decrypt(byte[] record, byte[] entryID) throws GeneralSecurityException {
+        if (record.length < GCM_IV_SIZE)
+            throw new GeneralSecurityException("Truncated cache record");
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec(GCM_TAG_BITS, record, 0, GCM_IV_SIZE));
+        cipher.updateAAD(entryID);
+        return cipher.doFinal(record, GCM_IV_SIZE, record.length - GCM_IV_SIZE);
+    }
+    
+    // Compact binary form of the parts of a response needed to build a cryptfile
+    private static byte[] encode(ResponseMessage message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(RECORD_VERSION);
+        writeBytes(dos, (message.content_id != null) ? message.content_id.getBytes(StandardCharsets.UTF_8) : new byte[0]);
+        dos.writeInt(message.tracks.length);
+        for (ResponseMessage.Track track : message.tracks) {
+            dos.writeByte((track.type != null) ? track.type.ordinal() : -1);
+            dos.writeInt((track.crypto_period_index != null) ? track.crypto_period_index : -1);
+            writeBytes(dos, Base64.decodeBase64(track.key_id));
+            writeBytes(dos, Base64.decodeBase64(track.key));
+            int psshCount = (track.pssh != null) ? track.pssh.length : 0;
+            dos.writeShort(psshCount);
+            for (int i = 0; i < psshCount; i++) {
+                writeBytes(dos, track.pssh[i].drm_type.getBytes(StandardCharsets.UTF_8));
+                writeBytes(dos, Base64.decodeBase64(track.pssh[i].data));
+            }
+        }
+        dos.close();
+        return baos.toByteArray();
+    }
+    
+    private static ResponseMessage decode(byte[] record) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(record));
+        if (dis.readUnsignedByte() != RECORD_VERSION)
+            throw new IOException("Unknown cache record version");
+        
+        ResponseMessage message = new ResponseMessage();
+        message.status = ResponseMessage.StatusCode.OK;
+        byte[] contentID = readBytes(dis);
+        message.content_id = (contentID.length > 0) ? new String(contentID, StandardCharsets.UTF_8) : null;
+        int trackCount = dis.readInt();
+        if (trackCount < 0 || trackCount > dis.available())
+            throw new IOException("Corrupt cache record");
+        message.tracks = new ResponseMessage.Track[trackCount];
+        for (int t = 0; t < message.tracks.length; t++) {
+            ResponseMessage.Track track = new ResponseMessage.Track();
+            int type = dis.readByte();
+            track.type = (type >= 0 && type < TrackType.values().length) ? TrackType.values()[type] : null;
+            int period = dis.readInt();
+            track.crypto_period_index = (period >= 0) ? period : null;
+            track.key_id = Base64.encodeBase64String(readBytes(dis));
+            track.key = Base64.encodeBase64String(readBytes(dis));
+            track.pssh = new ResponseMessage.Track.PSSH[dis.readUnsignedShort()];
+            for (int i = 0; i < track.pssh.length; i++) {
+                track.pssh[i] = new ResponseMessage.Track.PSSH();
+                track.pssh[i].drm_type = new String(readBytes(dis), StandardCharsets.UTF_8);
+                track.pssh[i].data = Base64.encodeBase64String(readBytes(dis));
+            }
+            message.tracks[t] = track;
+        }
+        return message;
+    }
+    
+    private static void writeBytes(DataOutputStream dos, byte[] data) throws IOException {
+        dos.writeInt(data.length);
+        dos.write(data);
+    }
+    
+    private static byte[] readBytes(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0 || length > dis.available())
+            throw new IOException("Corrupt cache record");
+        byte[] data = new byte[length];
+        dis.readFully(data);
+        return data;
+    }
+}
@@ -26,16 +26,19 @@
 
 package org.cablelabs.widevine.keyreq;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
@@ -43,10 +46,13 @@ import javax.crypto.spec.IvParameterSpec;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
+import org.cablelabs.cryptfile.KeyAcquisitionException;
 import org.cablelabs.widevine.Track;
+import org.cablelabs.widevine.TrackType;
 
 public class KeyRequest {
 
@@ -63,6 +69,9 @@ public class KeyRequest {
     private static final String SIGN_PROPS_IV       = "iv";
     private static final String SIGN_PROPS_PROVIDER = "provider";
     
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final Gson PRETTY_GSON = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
+    
     private String content_id;
     private List<Track> tracks;
     
@@ -75,6 +84,8 @@ public class KeyRequest {
     private int rollingKeyStart = -1;
     private int rollingKeyCount = -1;
     
+    private KeyCache cache;
+    
     /**
      * Creates a new key request for the given list of tracks.  1 key per track
      * 
@@ -166,21 +177,221 @@ public class KeyRequest {
         sign_request = true;
     }
     
+    /**
+     * Use the given cache for this request.  A cached response for the same server,
+     * content ID, track types and crypto period window is returned without contacting
+     * the key server, and a successful response from the key server is added to the
+     * cache.  Errors reading or writing the cache are treated as cache misses.
+     * 
+     * @param cache the key cache or null for no caching
+     */
+    public void setCache(KeyCache cache) {
+        this.cache = cache;
+    }
+    
     /**
      * Perform the key request.
      * 
      * @return the response message
+     * @throws KeyAcquisitionException if the request could not be signed or sent, or
+     * the response could not be parsed
      */
     public ResponseMessage requestKeys() {
         
+        ResponseMessage cached = getCachedResponse();
+        if (cached != null) {
+            System.out.println("Using cached keys for content ID " + content_id);
+            return cached;
+        }
+        
+        try {
+            String jsonRequest = createRequest(true);
+            System.out.println("Sending HTTP POST to " + getServerURL());
+            String jsonResponseStr = KeyServerClient.getDefault().post(getServerURL(), jsonRequest).get();
+            return putCached(parseResponse(jsonResponseStr, true));
+        }
+        catch (GeneralSecurityException e) {
+            throw new KeyAcquisitionException("Error performing message encryption: " + e.getMessage(), e);
+        }
+        catch (ExecutionException e) {
+            throw new KeyAcquisitionException("Error in HTTP communication -- " + e.getCause().getMessage(), e.getCause());
+        }
+        catch (JsonParseException e) {
+            throw new KeyAcquisitionException("Invalid key server response -- " + e.getMessage(), e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyAcquisitionException("Interrupted waiting for key server response", e);
+        }
+    }
+    
+    /**
+     * Perform the key request asynchronously.  Nothing is written to the console.
+     * 
+     * @param client the key server client used to send the request
+     * @return a future that completes with the response message, or exceptionally if
+     * the request could not be signed or sent
+     */
+    public CompletableFuture<ResponseMessage> requestKeysAsync(KeyServerClient client) {
+        ResponseMessage cached = getCachedResponse();
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        
+        String jsonRequest;
+        try {
+            jsonRequest = createRequest(false);
+        }
+        catch (GeneralSecurityException e) {
+            CompletableFuture<ResponseMessage> failed = new CompletableFuture<ResponseMessage>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return client.post(getServerURL(), jsonRequest).thenApply(new Function<String, ResponseMessage>() {
+            @Override
+            public ResponseMessage apply(String jsonResponse) {
+                return putCached(parseResponse(jsonResponse, false));
+            }
+        });
+    }
+    
+    /**
+     * Perform the key request, streaming the tracks of the response to the given
+     * handler as they are parsed.  The response is never held in memory as a whole,
+     * which matters for rolling key requests with many crypto periods.  A cached
+     * response is replayed to the handler.
+     * 
+     * @param handler receives each track of the response
+     * @return the response message.  Its tracks are not set
+     * @throws KeyAcquisitionException if the request could not be signed or sent, or
+     * the response could not be parsed
+     */
+    public ResponseMessage requestKeys(ResponseParser.TrackHandler handler) {
+        System.out.println("Requesting keys for content ID " + content_id + " from " + getServerURL());
+        try {
+            return requestKeys(KeyServerClient.getDefault(), handler);
+        }
+        catch (GeneralSecurityException e) {
+            throw new KeyAcquisitionException("Error performing message encryption: " + e.getMessage(), e);
+        }
+        catch (IOException e) {
+            throw new KeyAcquisitionException("Error in HTTP communication -- " + e.getMessage(), e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KeyAcquisitionException("Interrupted waiting for key server response", e);
+        }
+    }
+    
+    /**
+     * Perform the key request, streaming the tracks of the response to the given
+     * handler as they are parsed.  Blocks until the whole response has been parsed.
+     * Nothing is written to the console.  A cached response is replayed to the handler.
+     * 
+     * @param client the key server client used to send the request
+     * @param handler receives each track of the response
+     * @return the response message.  Its tracks are not set
+     * @throws GeneralSecurityException if the request could not be signed
+     * @throws IOException if the request failed or the response could not be parsed, or
+     * the handler rejected a track
+     * @throws InterruptedException if interrupted while waiting for the response
+     */
+    public ResponseMessage requestKeys(KeyServerClient client, final ResponseParser.TrackHandler handler)
+            throws GeneralSecurityException, IOException, InterruptedException {
+        ResponseMessage cached = getCachedResponse();
+        if (cached != null) {
+            for (ResponseMessage.Track track : cached.tracks) {
+                handler.track(track);
+            }
+            cached.tracks = null;
+            return cached;
+        }
+        
+        String jsonRequest = createRequest(false);
+        InputStream in;
+        try {
+            in = client.postForStream(getServerURL(), jsonRequest).get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        
+        // Tracks are only collected when they are going to be cached
+        final List<ResponseMessage.Track> tracks = (cache != null) ? new ArrayList<ResponseMessage.Track>() : null;
+        ResponseMessage responseMessage;
+        try {
+            responseMessage = ResponseParser.parse(in, new ResponseParser.TrackHandler() {
+                @Override
+                public void track(ResponseMessage.Track track) throws IOException {
+                    handler.track(track);
+                    if (tracks != null)
+                        tracks.add(track);
+                }
+            });
+        }
+        finally {
+            in.close();
+        }
+        
+        if (tracks != null) {
+            responseMessage.tracks = tracks.toArray(new ResponseMessage.Track[tracks.size()]);
+            putCached(responseMessage);
+            responseMessage.tracks = null;
+        }
+        return responseMessage;
+    }
+    
+    private byte[] getCacheEntryID() {
+        List<TrackType> trackTypes = new ArrayList<TrackType>();
+        for (Track t : tracks) {
+            trackTypes.add(t.type);
+        }
+        return KeyCache.getEntryID(getServerURL(), provider, sign_key, sign_iv, content_id, trackTypes,
+                                   rollingKeyStart, rollingKeyCount);
+    }
+    
+    /**
+     * Returns the cached response for this request, if there is one
+     * 
+     * @return the cached response or null if there is no cache or no cached response
+     */
+    public ResponseMessage getCachedResponse() {
+        if (cache == null)
+            return null;
+        try {
+            return cache.get(getCacheEntryID());
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+    
+    private ResponseMessage putCached(ResponseMessage responseMessage) {
+        if (cache != null) {
+            try {
+                cache.put(getCacheEntryID(), responseMessage);
+            }
+            catch (IOException e) {
+                // The keys are still good, they just will not be cached
+            }
+        }
+        return responseMessage;
+    }
+    
+    // The key server URL from the signing properties or the test server
+    private String getServerURL() {
+        return sign_request ? license_url : TEST_SERVER_URL;
+    }
+    
+    // Build the (optionally signed) JSON request
+    private String createRequest(boolean verbose) throws GeneralSecurityException {
+        
         int i;
         
-        Gson gson = new GsonBuilder().disableHtmlEscaping().create();
-        Gson prettyGson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-
         // Create request object
         RequestMessage requestMessage = new RequestMessage();
-        requestMessage.content_id = Base64.encodeBase64String(content_id.getBytes());
+        requestMessage.content_id = Base64.encodeBase64String(content_id.getBytes(StandardCharsets.UTF_8));
         requestMessage.policy = POLICY;
         requestMessage.client_id = CLIENT_ID;
         requestMessage.drm_types = DRM_TYPES;
@@ -201,95 +412,63 @@ public class KeyRequest {
         }
         
         // Convert request message to JSON and base64 encode
-        String jsonRequestMessage = gson.toJson(requestMessage);
-        System.out.println("Request Message:");
-        System.out.println(prettyGson.toJson(requestMessage));
+        String jsonRequestMessage = GSON.toJson(requestMessage);
+        byte[] jsonRequestMessageBytes = jsonRequestMessage.getBytes(StandardCharsets.UTF_8);
+        if (verbose) {
+            System.out.println("Request Message:");
+            System.out.println(PRETTY_GSON.toJson(requestMessage));
+        }
         
         // Create request JSON
         Request request = new Request();
-        request.request = Base64.encodeBase64String(jsonRequestMessage.getBytes());
+        request.request = Base64.encodeBase64String(jsonRequestMessageBytes);
         
-        String serverURL = null;
         if (sign_request) {
             // Create message signature
-            try {
-                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
-                sha1.update(jsonRequestMessage.getBytes());
-                byte[] sha1_b = sha1.digest();
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(jsonRequestMessageBytes);
+            byte[] sha1_b = sha1.digest();
+            if (verbose)
                 System.out.println("SHA-1 hash of JSON request message = 0x" + Hex.encodeHexString(sha1_b));
-                
-                // Use AES/CBC/PKCS5Padding with CableLabs Key and InitVector
-                SecretKeySpec keySpec = new SecretKeySpec(sign_key, "AES");
-                IvParameterSpec ivSpec = new IvParameterSpec(sign_iv);
-                Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                
-                // Encrypt the SHA-1 hash of our request message
-                cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-                byte[] encrypted = cipher.doFinal(sha1_b);
+            
+            // Use AES/CBC/PKCS5Padding with CableLabs Key and InitVector
+            SecretKeySpec keySpec = new SecretKeySpec(sign_key, "AES");
+            IvParameterSpec ivSpec = new IvParameterSpec(sign_iv);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            
+            // Encrypt the SHA-1 hash of our request message
+            cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
+            byte[] encrypted = cipher.doFinal(sha1_b);
+            if (verbose)
                 System.out.println("AES/CBC/PKCS5Padding Encrypted SHA1-hash = 0x" + Hex.encodeHexString(encrypted));
-                
-                request.signer = provider;
-                request.signature = Base64.encodeBase64String(encrypted);
-                
-                serverURL = license_url;
-            }
-            catch (Exception e) {
-                System.out.println("Error performing message encryption!  Message = " + e.getMessage());
-                System.exit(1);
-            }
+            
+            request.signer = provider;
+            request.signature = Base64.encodeBase64String(encrypted);
         } else {
             request.signer = TEST_PROVIDER;
-            serverURL = TEST_SERVER_URL;
         }
         
-        String jsonRequest = gson.toJson(request);
-        System.out.println("Request:");
-        System.out.println(prettyGson.toJson(request));
-        
-        String jsonResponseStr = null;
-        try {
-            
-            // Create URL connection
-            URL url = new URL(serverURL);
-            HttpURLConnection con = (HttpURLConnection)url.openConnection();
-            con.setRequestMethod("POST");
-            con.setDoOutput(true);
-            
-            System.out.println("Sending HTTP POST to " + serverURL);
-            
-            // Write POST data
-            DataOutputStream out = new DataOutputStream(con.getOutputStream());
-            out.writeBytes(jsonRequest);
-            out.flush();
-            out.close();
-            
-            // Wait for response
-            int responseCode = con.getResponseCode();
-            System.out.println("Received response code -- " + responseCode);
-            
-            // Read response data
-            DataInputStream dis = new DataInputStream(con.getInputStream());
-            int bytesRead;
-            byte responseData[] = new byte[1024];
-            StringBuffer sb = new StringBuffer();
-            while ((bytesRead = dis.read(responseData)) != -1) {
-                sb.append(new String(responseData,0,bytesRead));
-            }
-            jsonResponseStr = sb.toString();
+        if (verbose) {
+            System.out.println("Request:");
+            System.out.println(PRETTY_GSON.toJson(request));
         }
-        catch (Exception e) {
-            System.err.println("Error in HTTP communication! -- " + e.getMessage());
-            System.exit(1);
+        return GSON.toJson(request);
+    }
+    
+    // Decode the key server response
+    private static ResponseMessage parseResponse(String jsonResponse, boolean verbose) {
+        Response response = GSON.fromJson(jsonResponse, Response.class);
+        if (verbose) {
+            System.out.println("Response:");
+            System.out.println(PRETTY_GSON.toJson(response));
         }
         
-        Response response = gson.fromJson(jsonResponseStr, Response.class);
-        System.out.println("Response:");
-        System.out.println(prettyGson.toJson(response));
-        
-        String responseMessageStr = new String(Base64.decodeBase64(response.response));
-        ResponseMessage responseMessage = gson.fromJson(responseMessageStr, ResponseMessage.class);
-        System.out.println("ResponseMessage:");
-        System.out.println(prettyGson.toJson(responseMessage));
+        String responseMessageStr = new String(Base64.decodeBase64(response.response), StandardCharsets.UTF_8);
+        ResponseMessage responseMessage = GSON.fromJson(responseMessageStr, ResponseMessage.class);
+        if (verbose) {
+            System.out.println("ResponseMessage:");
+            System.out.println(PRETTY_GSON.toJson(responseMessage));
+        }
         
         return responseMessage;
     }
@@ -0,0 +1,249 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.keyreq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous HTTP client for the Widevine key server.
+ * <p>
+ * One client should be shared by all key requests.  The underlying {@link HttpClient}
+ * keeps connections alive between requests and multiplexes concurrent requests over a
+ * single HTTP/2 connection when the server supports it, so the TLS handshake is only
+ * paid once per server rather than once per request.  Requests that fail with an I/O
+ * error, a timeout or a retryable HTTP status (429 or 5xx) are retried with
+ * exponential backoff and random jitter.
+ */
+public class KeyServerClient {
+    
+    /** Default connection timeout (ms) */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    
+    /** Default request timeout (ms) */
+    public static final int DEFAULT_REQUEST_TIMEOUT = 30000;
+    
+    /** Default number of retries after the first attempt */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    
+    // Backoff before retry n is a random delay of up to BACKOFF_BASE * 2^n ms, capped at BACKOFF_MAX
+    private static final long BACKOFF_BASE = 250;
+    private static final long BACKOFF_MAX = 8000;
+    
+    private static KeyServerClient defaultClient;
+    
+    private HttpClient client;
+    private Duration requestTimeout;
+    private int maxRetries;
+    
+    /**
+     * Create a new client with the default timeouts and retry count
+     */
+    public KeyServerClient() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, DEFAULT_MAX_RETRIES);
+    }
+    
+    /**
+     * Create a new client
+     * 
+     * @param connectTimeout the connection timeout (ms)
+     * @param requestTimeout the timeout for each request attempt, from sending the request
+     * until the response headers are received (ms)
+     * @param maxRetries the number of times a failed request is retried
+     */
+    public KeyServerClient(int connectTimeout, int requestTimeout, int maxRetries) {
+        this(connectTimeout, requestTimeout, maxRetries, null);
+    }
+    
+    /**
+     * Create a new client
+     * 
+     * @param connectTimeout the connection timeout (ms)
+     * @param requestTimeout the timeout for each request attempt, from sending the request
+     * until the response headers are received (ms)
+     * @param maxRetries the number of times a failed request is retried
+     * @param executor the executor for asynchronous tasks and dependent actions, or null to
+     * use the HTTP client default
+     */
+    public KeyServerClient(int connectTimeout, int requestTimeout, int maxRetries, Executor executor) {
+        if (connectTimeout <= 0 || requestTimeout <= 0)
+            throw new IllegalArgumentException("Timeouts must be positive");
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("Retry count must not be negative: " + maxRetries);
+        
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeout));
+        if (executor != null)
+            builder.executor(executor);
+        this.client = builder.build();
+        this.requestTimeout = Duration.ofMillis(requestTimeout);
+        this.maxRetries = maxRetries;
+    }
+    
+    /**
+     * Returns the shared client with default settings
+     * 
+     * @return the default client
+     */
+    public static synchronized KeyServerClient getDefault() {
+        if (defaultClient == null)
+            defaultClient = new KeyServerClient();
+        return defaultClient;
+    }
+    
+    /**
+     * POST a JSON document to the given URL
+     * 
+     * @param url the server URL
+     * @param json the request body
+     * @return a future that completes with the response body, or exceptionally with an
+     * {@link IOException} if the request still failed after all retries
+     * @throws IllegalArgumentException if the URL is invalid
+     */
+    public CompletableFuture<String> post(String url, String json) {
+        CompletableFuture<String> result = new CompletableFuture<String>();
+        send(createRequest(url, json), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8), 0, result);
+        return result;
+    }
+    
+    /**
+     * POST a JSON document to the given URL and stream the response body.  The future
+     * completes as soon as the response headers have been received, so large responses
+     * can be parsed while they are still arriving.  The caller must close the stream.
+     * 
+     * @param url the server URL
+     * @param json the request body
+     * @return a future that completes with the response body stream, or exceptionally
+     * with an {@link IOException} if the request still failed after all retries
+     * @throws IllegalArgumentException if the URL is invalid
+     */
+    public CompletableFuture<InputStream> postForStream(String url, String json) {
+        CompletableFuture<InputStream> result = new CompletableFuture<InputStream>();
+        send(createRequest(url, json), HttpResponse.BodyHandlers.ofInputStream(), 0, result);
+        return result;
+    }
+    
+    private HttpRequest createRequest(String url, String json) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8))
+                .build();
+    }
+    
+    private <T> void send(final HttpRequest request, final HttpResponse.BodyHandler<T> bodyHandler,
+                          final int attempt, final CompletableFuture<T> result) {
+        client.sendAsync(request, bodyHandler).whenComplete(new BiConsumer<HttpResponse<T>, Throwable>() {
+            @Override
+            public void accept(HttpResponse<T> response, Throwable error) {
+                long retryAfter = 0;
+                Throwable failure;
+                if (error != null) {
+                    failure = (error instanceof CompletionException && error.getCause() != null) ?
+                            error.getCause() : error;
+                    if (!(failure instanceof IOException)) {
+                        result.completeExceptionally(failure);
+                        return;
+                    }
+                }
+                else {
+                    int status = response.statusCode();
+                    if (status >= 200 && status < 300) {
+                        result.complete(response.body());
+                        return;
+                    }
+                    discard(response.body());
+                    failure = new IOException("Key server returned HTTP " + status + " for " + request.uri());
+                    if (status != 429 && status < 500) {
+                        result.completeExceptionally(failure);
+                        return;
+                    }
+                    retryAfter = getRetryAfter(response);
+                }
+                
+                if (attempt >= maxRetries) {
+                    result.completeExceptionally(failure);
+                    return;
+                }
+                long delay = Math.max(getBackoff(attempt), retryAfter);
+                CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        send(request, bodyHandler, attempt + 1, result);
+                    }
+                });
+            }
+        });
+    }
+    
+    // Release the connection held by an unread error response stream
+    private static void discard(Object body) {
+        if (body instanceof Closeable) {
+            try {
+                ((Closeable)body).close();
+            }
+            catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+    
+    // Full jitter: a random delay between 0 and the exponential backoff cap
+    private static long getBackoff(int attempt) {
+        long cap = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+    
+    // Retry-After delay in ms, if the server sent one in delta-seconds form
+    private static long getRetryAfter(HttpResponse<?> response) {
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null)
+            return 0;
+        try {
+            return Math.min(BACKOFF_MAX, Math.max(0, Long.parseLong(value.trim()) * 1000));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
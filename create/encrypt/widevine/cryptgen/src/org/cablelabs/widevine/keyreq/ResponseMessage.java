@@ -55,6 +55,7 @@ public class ResponseMessage {
         public String key_id;
         public TrackType type;
         public String key;
+        public Integer crypto_period_index;
     }
     
     public StatusCode status;
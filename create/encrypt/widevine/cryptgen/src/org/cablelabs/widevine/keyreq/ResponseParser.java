@@ -0,0 +1,293 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.keyreq;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Base64InputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming parser for key server responses.
+ * <p>
+ * A response is a JSON object whose <code>response</code> member is the base64-encoded
+ * JSON {@link ResponseMessage}.  For rolling keys on a continuous channel a single
+ * response can hold thousands of tracks, one for each track type and crypto period.
+ * This parser decodes the base64 string as it is read and parses the message with a
+ * {@link JsonReader}, handing each track to a {@link TrackHandler} as soon as it has
+ * been parsed.  Neither the response body nor the decoded message is ever held in
+ * memory as a whole.
+ */
+public class ResponseParser {
+    
+    /**
+     * Receives the tracks of a response message in the order they appear
+     */
+    public interface TrackHandler {
+        
+        /**
+         * Called for each track in the response message
+         * 
+         * @param track the track
+         * @throws IOException to stop parsing the response
+         */
+        void track(ResponseMessage.Track track) throws IOException;
+    }
+    
+    private static final Gson GSON = new Gson();
+    
+    /**
+     * Parse a key server response.  The stream is read up to the end of the response
+     * message but is not closed.
+     * 
+     * @param in the response body
+     * @param handler receives each track of the response message, or null to collect
+     * the tracks in the returned message
+     * @return the response message.  Its tracks are null if a handler was given
+     * @throws IOException if the response could not be read or is malformed
+     */
+    public static ResponseMessage parse(InputStream in, TrackHandler handler) throws IOException {
+        PushbackReader envelope = new PushbackReader(
+                new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        findResponse(envelope);
+        JsonReader reader = new JsonReader(new InputStreamReader(
+                new Base64InputStream(new StringValueInputStream(envelope)), StandardCharsets.UTF_8));
+        try {
+            return parseMessage(reader, handler);
+        }
+        catch (RuntimeException e) {
+            // Gson reports malformed JSON with unchecked exceptions
+            throw new IOException("Malformed response message: " + e.getMessage(), e);
+        }
+    }
+    
+    private static ResponseMessage parseMessage(JsonReader reader, TrackHandler handler) throws IOException {
+        ResponseMessage message = new ResponseMessage();
+        List<ResponseMessage.Track> tracks = (handler == null) ? new ArrayList<ResponseMessage.Track>() : null;
+        
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            }
+            else if (name.equals("tracks")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    ResponseMessage.Track track = GSON.fromJson(reader, ResponseMessage.Track.class);
+                    if (handler != null)
+                        handler.track(track);
+                    else
+                        tracks.add(track);
+                }
+                reader.endArray();
+            }
+            else if (name.equals("status")) {
+                message.status = GSON.fromJson(reader, ResponseMessage.StatusCode.class);
+            }
+            else if (name.equals("content_id")) {
+                message.content_id = reader.nextString();
+            }
+            else if (name.equals("session_key")) {
+                message.session_key = reader.nextString();
+            }
+            else if (name.equals("drm")) {
+                message.drm = GSON.fromJson(reader, ResponseMessage.DRM[].class);
+            }
+            else if (name.equals("already_used")) {
+                message.already_used = reader.nextBoolean();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        
+        if (tracks != null)
+            message.tracks = tracks.toArray(new ResponseMessage.Track[tracks.size()]);
+        return message;
+    }
+    
+    // Position the reader just after the opening quote of the "response" member of
+    // the top-level object.  Members before it are skipped
+    private static void findResponse(PushbackReader r) throws IOException {
+        if (next(r) != '{')
+            throw new IOException("Malformed key server response");
+        while (true) {
+            int c = next(r);
+            if (c == ',')
+                continue;
+            if (c != '"')
+                throw new IOException("Key server response has no response message");
+            String name = readString(r);
+            if (next(r) != ':')
+                throw new IOException("Malformed key server response");
+            c = next(r);
+            if (name.equals("response")) {
+                if (c != '"')
+                    throw new IOException("Malformed key server response");
+                return;
+            }
+            skipValue(r, c);
+        }
+    }
+    
+    // Next character that is not whitespace
+    private static int next(Reader r) throws IOException {
+        int c;
+        do {
+            c = r.read();
+        } while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+        if (c == -1)
+            throw new IOException("Unexpected end of key server response");
+        return c;
+    }
+    
+    // Read the rest of a (short) string whose opening quote has been consumed
+    private static String readString(Reader r) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = readStringChar(r)) != -1) {
+            sb.append((char)c);
+        }
+        return sb.toString();
+    }
+    
+    // Next unescaped character of a string value or -1 at the closing quote
+    private static int readStringChar(Reader r) throws IOException {
+        int c = r.read();
+        if (c == -1)
+            throw new IOException("Unexpected end of key server response");
+        if (c == '"')
+            return -1;
+        if (c != '\\')
+            return c;
+        c = r.read();
+        switch (c) {
+            case 'b': return '\b';
+            case 'f': return '\f';
+            case 'n': return '\n';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'u':
+                char[] hex = new char[4];
+                for (int i = 0; i < 4; i++) {
+                    int h = r.read();
+                    if (h == -1)
+                        throw new IOException("Unexpected end of key server response");
+                    hex[i] = (char)h;
+                }
+                try {
+                    return Integer.parseInt(new String(hex), 16);
+                }
+                catch (NumberFormatException e) {
+                    throw new IOException("Malformed escape in key server response");
+                }
+            case -1:
+                throw new IOException("Unexpected end of key server response");
+            default:
+                return c;
+        }
+    }
+    
+    // Skip a value whose first character has been consumed
+    private static void skipValue(PushbackReader r, int c) throws IOException {
+        if (c == '"') {
+            while (readStringChar(r) != -1);
+            return;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = next(r);
+                if (c == '"')
+                    while (readStringChar(r) != -1);
+                else if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+            }
+            return;
+        }
+        
+        // Number or literal -- runs up to the next member separator
+        while (c != ',' && c != '}') {
+            c = next(r);
+        }
+        r.unread(c);
+    }
+    
+    /**
+     * The characters of a JSON string value as a byte stream, ending at the closing
+     * quote.  Used for the base64-encoded response message, which is pure ASCII
+     */
+    private static class StringValueInputStream extends InputStream {
+        
+        private Reader r;
+        private boolean done = false;
+        
+        StringValueInputStream(Reader r) {
+            this.r = r;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (done)
+                return -1;
+            int c = readStringChar(r);
+            if (c == -1)
+                done = true;
+            return c;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            int count = 0;
+            while (count < len) {
+                int c = read();
+                if (c == -1)
+                    break;
+                b[off + count++] = (byte)c;
+            }
+            return (count == 0) ? -1 : count;
+        }
+    }
+}
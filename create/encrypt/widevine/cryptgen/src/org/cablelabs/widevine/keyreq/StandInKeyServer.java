@@ -0,0 +1,301 @@
+/* Copyright (c) 2014, CableLabs, Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.cablelabs.widevine.keyreq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Base64;
+import org.cablelabs.widevine.proto.WidevinePSSHProtoBuf;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.protobuf.ByteString;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the Widevine key server, for exercising batch key acquisition
+ * without network access or key server quota.  Request signatures are not checked.
+ * <p>
+ * Every response is delayed by a configurable latency.  The response message is
+ * either a canned {@link ResponseMessage} JSON document, returned as-is for every
+ * request, or is generated from the request with random keys: one key (and
+ * Widevine PSSH) for each requested track and crypto period.
+ */
+public class StandInKeyServer {
+    
+    private static final String PROVIDER = "widevine_test";
+    
+    private Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private SecureRandom random = new SecureRandom();
+    
+    private HttpServer server;
+    private ExecutorService executor;
+    private long latency;
+    private String cannedResponse;
+    
+    private static void usage() {
+        System.out.println("Stand-in Widevine key server.");
+        System.out.println("");
+        System.out.println("usage:  StandInKeyServer [-port <port>] [-latency <ms>] [-response <file>]");
+        System.out.println("");
+        System.out.println("\t-port <port>");
+        System.out.println("\t\tThe port to listen on.  Default is 8080.");
+        System.out.println("");
+        System.out.println("\t-latency <ms>");
+        System.out.println("\t\tDelay before every response.  Default is 0.");
+        System.out.println("");
+        System.out.println("\t-response <file>");
+        System.out.println("\t\tA ResponseMessage JSON document returned for every request.  If not given,");
+        System.out.println("\t\ta response with random keys is generated for each request.");
+        System.out.println("");
+        System.out.println("\tPoint the 'url' property of a request signing file at this server to use it.");
+    }
+    
+    /**
+     * Create a new stand-in key server.  The server is not started
+     * 
+     * @param port the port to listen on, or 0 for any free port
+     * @param latency the delay before every response (ms)
+     * @param cannedResponse the ResponseMessage JSON returned for every request, or
+     * null to generate responses
+     * @throws IOException if the server socket could not be opened
+     */
+    public StandInKeyServer(int port, long latency, String cannedResponse) throws IOException {
+        this.latency = latency;
+        this.cannedResponse = cannedResponse;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                }
+                finally {
+                    exchange.close();
+                }
+            }
+        });
+        
+        // Requests wait out their latency concurrently
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+    }
+    
+    /**
+     * Start accepting requests
+     */
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Returns the URL of this server
+     * 
+     * @return the server URL
+     */
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+    
+    private void respond(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        String body = new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        
+        Response response = new Response();
+        response.response = Base64.encodeBase64String(createResponseMessage(body).getBytes(StandardCharsets.UTF_8));
+        byte[] data = gson.toJson(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, data.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(data);
+        os.close();
+    }
+    
+    // The canned response or one generated from the request
+    private String createResponseMessage(String body) {
+        if (cannedResponse != null)
+            return cannedResponse;
+        
+        ResponseMessage message = new ResponseMessage();
+        RequestMessage request = null;
+        try {
+            Request r = gson.fromJson(body, Request.class);
+            if (r != null && r.request != null)
+                request = gson.fromJson(new String(Base64.decodeBase64(r.request), StandardCharsets.UTF_8),
+                                        RequestMessage.class);
+        }
+        catch (JsonParseException e) {
+            request = null;
+        }
+        if (request == null) {
+            message.status = ResponseMessage.StatusCode.MALFORMED_REQUEST;
+            return gson.toJson(message);
+        }
+        if (request.content_id == null) {
+            message.status = ResponseMessage.StatusCode.CONTENT_ID_MISSING;
+            return gson.toJson(message);
+        }
+        if (request.tracks == null || request.tracks.length == 0) {
+            message.status = ResponseMessage.StatusCode.TRACK_TYPE_MISSING;
+            return gson.toJson(message);
+        }
+        
+        byte[] contentID = Base64.decodeBase64(request.content_id);
+        int periods = (request.crypto_period_count != null) ? request.crypto_period_count : 1;
+        List<ResponseMessage.Track> tracks = new ArrayList<ResponseMessage.Track>();
+        for (RequestMessage.Track requested : request.tracks) {
+            if (requested.type == null) {
+                message.status = ResponseMessage.StatusCode.TRACK_TYPE_UNKNOWN;
+                return gson.toJson(message);
+            }
+            for (int i = 0; i < periods; i++) {
+                byte[] keyID = new byte[16];
+                byte[] key = new byte[16];
+                random.nextBytes(keyID);
+                random.nextBytes(key);
+                
+                ResponseMessage.Track.PSSH pssh = new ResponseMessage.Track.PSSH();
+                pssh.drm_type = "WIDEVINE";
+                pssh.data = Base64.encodeBase64String(WidevinePSSHProtoBuf.WidevineCencHeader.newBuilder()
+                        .setAlgorithm(WidevinePSSHProtoBuf.WidevineCencHeader.Algorithm.AESCTR)
+                        .addKeyId(ByteString.copyFrom(keyID))
+                        .setProvider(PROVIDER)
+                        .setContentId(ByteString.copyFrom(contentID))
+                        .setTrackType(requested.type.toString())
+                        .build().toByteArray());
+                
+                ResponseMessage.Track track = new ResponseMessage.Track();
+                track.type = requested.type;
+                track.key_id = Base64.encodeBase64String(keyID);
+                track.key = Base64.encodeBase64String(key);
+                track.pssh = new ResponseMessage.Track.PSSH[] { pssh };
+                if (request.crypto_period_count != null) {
+                    int first = (request.first_crypto_period_index != null) ? request.first_crypto_period_index : 0;
+                    track.crypto_period_index = first + i;
+                }
+                tracks.add(track);
+            }
+        }
+        
+        message.status = ResponseMessage.StatusCode.OK;
+        message.content_id = request.content_id;
+        message.tracks = tracks.toArray(new ResponseMessage.Track[tracks.size()]);
+        return gson.toJson(message);
+    }
+    
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = is.read(buf)) != -1) {
+            baos.write(buf, 0, bytesRead);
+        }
+        return baos.toByteArray();
+    }
+    
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        int port = 8080;
+        long latency = 0;
+        String cannedResponse = null;
+        
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-help")) {
+                    usage();
+                    System.exit(0);
+                }
+                else if (args[i].equals("-port") && i + 1 < args.length) {
+                    port = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-latency") && i + 1 < args.length) {
+                    latency = Long.parseLong(args[++i]);
+                }
+                else if (args[i].equals("-response") && i + 1 < args.length) {
+                    cannedResponse = new String(Files.readAllBytes(Paths.get(args[++i])), StandardCharsets.UTF_8);
+                }
+                else {
+                    usage();
+                    System.err.println("Illegal argument: " + args[i]);
+                    System.exit(1);
+                }
+            }
+            
+            StandInKeyServer server = new StandInKeyServer(port, latency, cannedResponse);
+            server.start();
+            System.out.println("Stand-in key server listening at " + server.getURL());
+        }
+        catch (NumberFormatException e) {
+            usage();
+            System.err.println("Illegal number: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}